@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 the original author or authors.
+ * Copyright 2014-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,20 +17,29 @@ package org.glowroot.agent.advicegen;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import javax.annotation.Nullable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.glowroot.agent.util.Reflections;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 class Accessor {
 
+    private static final Logger logger = LoggerFactory.getLogger(Accessor.class);
+
     private final AccessorType accessorType;
     private final @Nullable Method method;
     private final @Nullable Field field;
 
+    // this is null when reverting to reflection
+    private volatile @Nullable GeneratedAccessor generatedAccessor;
+
     static Accessor fromMethod(Method method) {
         return new Accessor(method);
     }
@@ -47,12 +56,14 @@ class Accessor {
         accessorType = AccessorType.METHOD;
         this.method = method;
         this.field = null;
+        generatedAccessor = AccessorGenerator.generate(method);
     }
 
     private Accessor(Field field) {
         accessorType = AccessorType.FIELD;
         this.method = null;
         this.field = field;
+        generatedAccessor = AccessorGenerator.generate(field);
     }
 
     private Accessor() {
@@ -81,6 +92,10 @@ class Accessor {
         if (isArrayEvaluation(object)) {
             return evaluateArray((/*@Nullable*/ Object[]) object);
         }
+        GeneratedAccessor generatedAccessor = this.generatedAccessor;
+        if (generatedAccessor != null) {
+            return evaluateGenerated(generatedAccessor, object);
+        }
         switch (accessorType) {
             case METHOD:
                 checkNotNull(method);
@@ -95,6 +110,22 @@ class Accessor {
         }
     }
 
+    private @Nullable Object evaluateGenerated(GeneratedAccessor generatedAccessor, Object object)
+            throws Exception {
+        try {
+            return generatedAccessor.get(object);
+        } catch (IllegalAccessError e) {
+            // this can happen if the member is public but still not accessible from outside of its
+            // class loader (e.g. a non-exported package), so revert permanently to reflection
+            logger.debug(e.getMessage(), e);
+            this.generatedAccessor = null;
+            return evaluate(object);
+        } catch (Exception e) {
+            // wrap for consistency with the reflective path
+            throw new InvocationTargetException(e);
+        }
+    }
+
     private boolean isArrayEvaluation(Object object) {
         return object instanceof Object[] && accessorType != AccessorType.ARRAY_LENGTH;
     }
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.advicegen;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.weaving.ClassNames;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+// generates a direct (non-reflective) accessor class per method/field so that message template
+// evaluation on hot methods does not pay the cost of Method.invoke() / Field.get() on every call
+//
+// only public members of public classes are supported, everything else falls back to reflection
+class AccessorGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessorGenerator.class);
+
+    // this is primarily for benchmarking the generated accessors against the reflective accessors
+    private static final boolean DISABLED =
+            Boolean.getBoolean("glowroot.advicegen.reflectiveAccessors");
+
+    private static final String SUPER_INTERNAL_NAME =
+            Type.getInternalName(GeneratedAccessor.class);
+
+    private static final org.objectweb.asm.commons.Method GET_METHOD =
+            new org.objectweb.asm.commons.Method("get", "(Ljava/lang/Object;)Ljava/lang/Object;");
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private AccessorGenerator() {}
+
+    static @Nullable GeneratedAccessor generate(Method method) {
+        Class<?> declaringClass = method.getDeclaringClass();
+        if (!isSupported(declaringClass, method)) {
+            return null;
+        }
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+        if (isStatic && declaringClass.isInterface()) {
+            // static interface methods require invokestatic with itf=true, not worth supporting
+            return null;
+        }
+        String internalName = nextInternalName();
+        ClassWriter cw = startClass(internalName);
+        GeneratorAdapter mg = startGetMethod(cw);
+        Type ownerType = Type.getType(declaringClass);
+        org.objectweb.asm.commons.Method targetMethod =
+                org.objectweb.asm.commons.Method.getMethod(method);
+        if (isStatic) {
+            mg.invokeStatic(ownerType, targetMethod);
+        } else {
+            mg.loadArg(0);
+            mg.checkCast(ownerType);
+            if (declaringClass.isInterface()) {
+                mg.invokeInterface(ownerType, targetMethod);
+            } else {
+                mg.invokeVirtual(ownerType, targetMethod);
+            }
+        }
+        // boxes primitives, and pushes null for void
+        mg.valueOf(targetMethod.getReturnType());
+        mg.returnValue();
+        mg.endMethod();
+        cw.visitEnd();
+        return define(internalName, cw.toByteArray(), declaringClass);
+    }
+
+    static @Nullable GeneratedAccessor generate(Field field) {
+        Class<?> declaringClass = field.getDeclaringClass();
+        if (!isSupported(declaringClass, field)) {
+            return null;
+        }
+        String internalName = nextInternalName();
+        ClassWriter cw = startClass(internalName);
+        GeneratorAdapter mg = startGetMethod(cw);
+        Type ownerType = Type.getType(declaringClass);
+        Type fieldType = Type.getType(field.getType());
+        if (Modifier.isStatic(field.getModifiers())) {
+            mg.getStatic(ownerType, field.getName(), fieldType);
+        } else {
+            mg.loadArg(0);
+            mg.checkCast(ownerType);
+            mg.getField(ownerType, field.getName(), fieldType);
+        }
+        mg.valueOf(fieldType);
+        mg.returnValue();
+        mg.endMethod();
+        cw.visitEnd();
+        return define(internalName, cw.toByteArray(), declaringClass);
+    }
+
+    private static boolean isSupported(Class<?> declaringClass, Member member) {
+        return !DISABLED && Modifier.isPublic(declaringClass.getModifiers())
+                && Modifier.isPublic(member.getModifiers());
+    }
+
+    private static String nextInternalName() {
+        return "org/glowroot/agent/advicegen/GeneratedAccessorImpl" + counter.incrementAndGet();
+    }
+
+    private static ClassWriter startClass(String internalName) {
+        // no branches in generated code, so no need for COMPUTE_FRAMES (which would also need to
+        // load application classes in order to compute common super classes)
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, internalName, null,
+                SUPER_INTERNAL_NAME, null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, SUPER_INTERNAL_NAME, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        return cw;
+    }
+
+    private static GeneratorAdapter startGetMethod(ClassWriter cw) {
+        GeneratorAdapter mg = new GeneratorAdapter(ACC_PUBLIC, GET_METHOD, null,
+                new Type[] {Type.getType(Exception.class)}, cw);
+        mg.visitCode();
+        return mg;
+    }
+
+    private static @Nullable GeneratedAccessor define(String internalName, byte[] bytes,
+            Class<?> declaringClass) {
+        // similar to the JDK's own generated reflection accessors, each accessor class gets its own
+        // class loader (delegating to the class loader of the declaring class) so that it can be
+        // collected along with the declaring class
+        AccessorClassLoader loader = new AccessorClassLoader(declaringClass.getClassLoader());
+        try {
+            Class<?> accessorClass =
+                    loader.define(ClassNames.fromInternalName(internalName), bytes);
+            return (GeneratedAccessor) accessorClass.newInstance();
+        } catch (Throwable t) {
+            // e.g. LinkageError if the declaring class is not visible from its own class loader
+            logger.debug("could not generate accessor for class {}: {}", declaringClass.getName(),
+                    t.getMessage(), t);
+            return null;
+        }
+    }
+
+    private static class AccessorClassLoader extends ClassLoader {
+
+        private AccessorClassLoader(@Nullable ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(GeneratedAccessor.class.getName())) {
+                // the parent class loader does not necessarily have visibility to glowroot classes
+                return GeneratedAccessor.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
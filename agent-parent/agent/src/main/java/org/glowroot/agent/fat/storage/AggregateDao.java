@@ -16,7 +16,6 @@
 package org.glowroot.agent.fat.storage;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -45,6 +44,7 @@ import org.glowroot.agent.fat.storage.util.RowMappers;
 import org.glowroot.agent.fat.storage.util.Schemas.Column;
 import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
 import org.glowroot.agent.fat.storage.util.Schemas.Index;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
 import org.glowroot.common.live.ImmutablePercentileAggregate;
 import org.glowroot.common.live.ImmutableThroughputAggregate;
@@ -70,6 +70,7 @@ import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
 import org.glowroot.storage.repo.MutableAggregate;
 import org.glowroot.storage.repo.helper.RollupLevelService;
+import org.glowroot.storage.util.TimerTrees;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate.QueriesByType;
@@ -80,12 +81,15 @@ import org.glowroot.wire.api.model.AggregateOuterClass.TransactionAggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.DAYS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 class AggregateDao implements AggregateRepository {
 
     private static final String AGENT_ID = "";
 
+    private static final int STORE_BATCH_SIZE = 100;
+
     private static final ImmutableList<Column> overallAggregatePointColumns =
             ImmutableList.<Column>of(
                     ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
@@ -127,50 +131,63 @@ class AggregateDao implements AggregateRepository {
 
     // this index includes all columns needed for the overall aggregate query so h2 can return
     // the result set directly from the index without having to reference the table for each row
-    private static final ImmutableList<String> overallAggregateIndexColumns =
-            ImmutableList.of("capture_time", "transaction_type", "total_duration_nanos",
-                    "transaction_count", "error_count");
+    private static final ImmutableList<Index> overallAggregateIndexes =
+            ImmutableList.<Index>of(ImmutableIndex.of("idx",
+                    ImmutableList.of("capture_time", "transaction_type", "total_duration_nanos",
+                            "transaction_count", "error_count")));
 
     // this index includes all columns needed for the transaction aggregate query so h2 can return
     // the result set directly from the index without having to reference the table for each row
     //
     // capture_time is first so this can also be used for readTransactionErrorCounts()
-    private static final ImmutableList<String> transactionAggregateIndexColumns =
-            ImmutableList.of("capture_time", "transaction_type", "transaction_name",
-                    "total_duration_nanos", "transaction_count", "error_count");
+    private static final ImmutableList<Index> transactionAggregateIndexes =
+            ImmutableList.<Index>of(ImmutableIndex.of("idx",
+                    ImmutableList.of("capture_time", "transaction_type", "transaction_name",
+                            "total_duration_nanos", "transaction_count", "error_count")));
 
     private final DataSource dataSource;
     private final List<CappedDatabase> rollupCappedDatabases;
     private final ConfigRepository configRepository;
     private final TransactionTypeDao transactionTypeDao;
+    private final TimerNameDao timerNameDao;
+
+    // the aggregate tables are partitioned by capture time so that expiring old data is a matter of
+    // dropping whole partitions, queries are still run against the union view of the partitions
+    private final ImmutableList<TimePartitionedTable> overallRollupTables;
+    private final ImmutableList<TimePartitionedTable> transactionRollupTables;
 
     private final AtomicLongArray lastRollupTimes;
 
     private final Object rollupLock = new Object();
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
-            ConfigRepository configRepository, TransactionTypeDao transactionTypeDao)
-            throws Exception {
+            ConfigRepository configRepository, TransactionTypeDao transactionTypeDao,
+            TimerNameDao timerNameDao) throws Exception {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.configRepository = configRepository;
         this.transactionTypeDao = transactionTypeDao;
+        this.timerNameDao = timerNameDao;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<TimePartitionedTable> overallRollupTables = Lists.newArrayList();
+        List<TimePartitionedTable> transactionRollupTables = Lists.newArrayList();
         for (int i = 0; i < rollupConfigs.size(); i++) {
             String overallTableName = "aggregate_tt_rollup_" + castUntainted(i);
             dataSource.renameColumn(overallTableName, "async_thread_profile_capped_id",
                     "aux_thread_profile_capped_id");
-            dataSource.syncTable(overallTableName, overallAggregatePointColumns);
-            dataSource.syncIndexes(overallTableName, ImmutableList.<Index>of(
-                    ImmutableIndex.of(overallTableName + "_idx", overallAggregateIndexColumns)));
+            overallRollupTables.add(new TimePartitionedTable(dataSource, overallTableName,
+                    overallAggregatePointColumns, overallAggregateIndexes,
+                    getPartitionMillis(i), true));
             String transactionTableName = "aggregate_tn_rollup_" + castUntainted(i);
             dataSource.renameColumn(transactionTableName, "async_thread_profile_capped_id",
                     "aux_thread_profile_capped_id");
-            dataSource.syncTable(transactionTableName, transactionAggregateColumns);
-            dataSource.syncIndexes(transactionTableName, ImmutableList.<Index>of(ImmutableIndex
-                    .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
+            transactionRollupTables.add(new TimePartitionedTable(dataSource, transactionTableName,
+                    transactionAggregateColumns, transactionAggregateIndexes,
+                    getPartitionMillis(i), true));
         }
+        this.overallRollupTables = ImmutableList.copyOf(overallRollupTables);
+        this.transactionRollupTables = ImmutableList.copyOf(transactionRollupTables);
 
         // don't need last_rollup_times table like in GaugeValueDao since there is already index
         // on capture_time so these queries are relatively fast
@@ -188,21 +205,37 @@ class AggregateDao implements AggregateRepository {
     @Override
     public void store(String agentId, long captureTime, List<AggregatesByType> aggregatesByType)
             throws Exception {
-        // intentionally not using batch update as that could cause memory spike while preparing a
-        // large batch
-        for (AggregatesByType aggregatesByType1 : aggregatesByType) {
-            String transactionType = aggregatesByType1.getTransactionType();
-
-            dataSource.update(new AggregateInsert(transactionType, null, captureTime,
-                    aggregatesByType1.getOverallAggregate(), 0));
-            transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
-
-            for (TransactionAggregate transactionAggregate : aggregatesByType1
-                    .getTransactionAggregateList()) {
-                dataSource.update(new AggregateInsert(transactionType,
-                        transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), 0));
+        // batch updates are bounded to STORE_BATCH_SIZE rows so that a large number of transaction
+        // names cannot cause a memory spike while preparing a batch
+        List<AggregateInsert> overallInserts = Lists.newArrayList();
+        List<AggregateInsert> transactionInserts = Lists.newArrayList();
+        String overallTableName = overallRollupTables.get(0).getPartitionForInsert(captureTime);
+        String transactionTableName =
+                transactionRollupTables.get(0).getPartitionForInsert(captureTime);
+        CappedDatabase cappedDatabase = rollupCappedDatabases.get(0);
+        cappedDatabase.startBatch();
+        try {
+            for (AggregatesByType aggregatesByType1 : aggregatesByType) {
+                String transactionType = aggregatesByType1.getTransactionType();
+
+                overallInserts.add(new AggregateInsert(overallTableName, transactionType, null,
+                        captureTime, aggregatesByType1.getOverallAggregate(), 0));
+                flushIfFull(overallInserts);
+                transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
+
+                for (TransactionAggregate transactionAggregate : aggregatesByType1
+                        .getTransactionAggregateList()) {
+                    transactionInserts.add(new AggregateInsert(transactionTableName,
+                            transactionType, transactionAggregate.getTransactionName(),
+                            captureTime, transactionAggregate.getAggregate(), 0));
+                    flushIfFull(transactionInserts);
+                }
             }
+            flush(overallInserts);
+            flush(transactionInserts);
+        } finally {
+            // a single fsync for all of the queries, service calls and profiles in this flush
+            cappedDatabase.endBatch();
         }
         synchronized (rollupLock) {
             List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
@@ -366,19 +399,44 @@ class AggregateDao implements AggregateRepository {
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
-        dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        overallRollupTables.get(rollupLevel).deleteBefore(captureTime);
+        transactionRollupTables.get(rollupLevel).deleteBefore(captureTime);
+    }
+
+    private void flushIfFull(List<AggregateInsert> inserts) throws Exception {
+        if (inserts.size() >= STORE_BATCH_SIZE) {
+            flush(inserts);
+        }
+    }
+
+    private void flush(List<AggregateInsert> inserts) throws Exception {
+        if (!inserts.isEmpty()) {
+            dataSource.batchUpdate(new AggregateBatchInsert(inserts));
+            inserts.clear();
+        }
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
-        for (Long rollupTime : rollupTimes) {
-            dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
-            dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+        CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
+        cappedDatabase.startBatch();
+        try {
+            for (Long rollupTime : rollupTimes) {
+                // partitions are resolved here instead of inside the queries below, since the
+                // queries run under the data source lock
+                String overallTableName =
+                        overallRollupTables.get(toRollupLevel).getPartitionForInsert(rollupTime);
+                String transactionTableName = transactionRollupTables.get(toRollupLevel)
+                        .getPartitionForInsert(rollupTime);
+                dataSource.query(new RollupOverallAggregates(overallTableName, rollupTime,
+                        fixedIntervalMillis, fromRollupLevel, toRollupLevel));
+                dataSource.query(new RollupTransactionAggregates(transactionTableName, rollupTime,
+                        fixedIntervalMillis, fromRollupLevel, toRollupLevel));
+            }
+        } finally {
+            cappedDatabase.endBatch();
         }
     }
 
@@ -424,14 +482,14 @@ class AggregateDao implements AggregateRepository {
         mergedAggregate.addAsyncTransactions(asyncTransactions);
         if (mainThreadRootTimers != null) {
             mergedAggregate.mergeMainThreadRootTimers(
-                    readMessages(mainThreadRootTimers, Aggregate.Timer.parser()));
+                    readTimers(mainThreadRootTimers));
         }
         if (auxThreadRootTimers != null) {
             mergedAggregate.mergeAuxThreadRootTimers(
-                    readMessages(auxThreadRootTimers, Aggregate.Timer.parser()));
+                    readTimers(auxThreadRootTimers));
         }
         if (asyncTimers != null) {
-            mergedAggregate.mergeAsyncTimers(readMessages(asyncTimers, Aggregate.Timer.parser()));
+            mergedAggregate.mergeAsyncTimers(readTimers(asyncTimers));
         }
         if (mainThreadStats == null) {
             mergedAggregate.mergeMainThreadStats(null);
@@ -476,6 +534,12 @@ class AggregateDao implements AggregateRepository {
         }
     }
 
+    // one partition per day at the fine-grained levels (which are retained for days) and one per
+    // week at the coarse-grained levels (which are retained for months)
+    private static long getPartitionMillis(int rollupLevel) {
+        return rollupLevel <= 1 ? DAYS.toMillis(1) : DAYS.toMillis(7);
+    }
+
     private int getMaxAggregateQueriesPerType() throws IOException {
         AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(AGENT_ID);
         if (advancedConfig != null && advancedConfig.hasMaxAggregateQueriesPerType()) {
@@ -523,6 +587,14 @@ class AggregateDao implements AggregateRepository {
         return i;
     }
 
+    private List<Aggregate.Timer> readTimers(byte[] bytes) throws Exception {
+        if (TimerTrees.isEncoded(bytes)) {
+            return TimerTrees.decode(bytes, timerNameDao);
+        }
+        // stored prior to timer name encoding
+        return readMessages(bytes, Aggregate.Timer.parser());
+    }
+
     private static <T extends /*@NonNull*/ Object> List<T> readMessages(byte[] bytes,
             Parser<T> parser) throws InvalidProtocolBufferException {
         ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
@@ -536,6 +608,7 @@ class AggregateDao implements AggregateRepository {
 
     private class AggregateInsert implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final String transactionType;
         private final @Nullable String transactionName;
         private final long captureTime;
@@ -553,8 +626,10 @@ class AggregateDao implements AggregateRepository {
 
         private final int rollupLevel;
 
-        private AggregateInsert(String transactionType, @Nullable String transactionName,
-                long captureTime, Aggregate aggregate, int rollupLevel) throws IOException {
+        private AggregateInsert(@Untainted String tableName, String transactionType,
+                @Nullable String transactionName, long captureTime, Aggregate aggregate,
+                int rollupLevel) throws Exception {
+            this.tableName = tableName;
             this.transactionType = transactionType;
             this.transactionName = transactionName;
             this.captureTime = captureTime;
@@ -593,31 +668,19 @@ class AggregateDao implements AggregateRepository {
             if (mainThreadRootTimers.isEmpty()) {
                 this.mainThreadRootTimers = null;
             } else {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                for (Timer message : mainThreadRootTimers) {
-                    message.writeDelimitedTo(baos);
-                }
-                this.mainThreadRootTimers = baos.toByteArray();
+                this.mainThreadRootTimers = TimerTrees.encode(mainThreadRootTimers, timerNameDao);
             }
             List<Timer> auxThreadRootTimers = aggregate.getAuxThreadRootTimerList();
             if (auxThreadRootTimers.isEmpty()) {
                 this.auxThreadRootTimers = null;
             } else {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                for (Timer message : auxThreadRootTimers) {
-                    message.writeDelimitedTo(baos);
-                }
-                this.auxThreadRootTimers = baos.toByteArray();
+                this.auxThreadRootTimers = TimerTrees.encode(auxThreadRootTimers, timerNameDao);
             }
-            List<Aggregate.Timer> asyncTimers = aggregate.getAsyncTimerList();
+            List<Timer> asyncTimers = aggregate.getAsyncTimerList();
             if (asyncTimers.isEmpty()) {
                 this.asyncTimers = null;
             } else {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                for (Timer message : asyncTimers) {
-                    message.writeDelimitedTo(baos);
-                }
-                this.asyncTimers = baos.toByteArray();
+                this.asyncTimers = TimerTrees.encode(asyncTimers, timerNameDao);
             }
             if (aggregate.hasMainThreadStats()) {
                 this.mainThreadStats = aggregate.getMainThreadStats().toByteArray();
@@ -635,14 +698,8 @@ class AggregateDao implements AggregateRepository {
         @Override
         public @Untainted String getSql() {
             StringBuilder sb = new StringBuilder();
-            sb.append("merge into aggregate_");
-            if (transactionName != null) {
-                sb.append("tn_");
-            } else {
-                sb.append("tt_");
-            }
-            sb.append("rollup_");
-            sb.append(castUntainted(rollupLevel));
+            sb.append("merge into ");
+            sb.append(tableName);
             sb.append(" (transaction_type,");
             if (transactionName != null) {
                 sb.append(" transaction_name,");
@@ -710,6 +767,30 @@ class AggregateDao implements AggregateRepository {
         }
     }
 
+    // all inserts must be for the same table (i.e. all have null transaction name or all have
+    // non-null transaction name, and all have the same rollup level)
+    private static class AggregateBatchInsert implements JdbcUpdate {
+
+        private final List<AggregateInsert> inserts;
+
+        private AggregateBatchInsert(List<AggregateInsert> inserts) {
+            this.inserts = inserts;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return inserts.get(0).getSql();
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (AggregateInsert insert : inserts) {
+                insert.bind(preparedStatement);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
     private static class OverallSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
 
         private final OverallSummaryCollector collector;
@@ -942,7 +1023,7 @@ class AggregateDao implements AggregateRepository {
 
     }
 
-    private static class OverviewAggregateQuery implements JdbcRowQuery<OverviewAggregate> {
+    private class OverviewAggregateQuery implements JdbcRowQuery<OverviewAggregate> {
 
         private final TransactionQuery query;
 
@@ -977,16 +1058,16 @@ class AggregateDao implements AggregateRepository {
             byte[] mainThreadRootTimers = resultSet.getBytes(i++);
             if (mainThreadRootTimers != null) {
                 builder.mainThreadRootTimers(
-                        readMessages(mainThreadRootTimers, Aggregate.Timer.parser()));
+                        readTimers(mainThreadRootTimers));
             }
             byte[] auxThreadRootTimers = resultSet.getBytes(i++);
             if (auxThreadRootTimers != null) {
                 builder.auxThreadRootTimers(
-                        readMessages(auxThreadRootTimers, Aggregate.Timer.parser()));
+                        readTimers(auxThreadRootTimers));
             }
             byte[] asyncTimers = resultSet.getBytes(i++);
             if (asyncTimers != null) {
-                builder.asyncTimers(readMessages(asyncTimers, Aggregate.Timer.parser()));
+                builder.asyncTimers(readTimers(asyncTimers));
             }
             byte[] mainThreadStats = resultSet.getBytes(i++);
             if (mainThreadStats != null) {
@@ -1071,14 +1152,16 @@ class AggregateDao implements AggregateRepository {
 
     private class RollupOverallAggregates implements JdbcQuery</*@Nullable*/ Void> {
 
+        private final @Untainted String toTableName;
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
         private final ScratchBuffer scratchBuffer = new ScratchBuffer();
 
-        private RollupOverallAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+        private RollupOverallAggregates(@Untainted String toTableName, long rollupCaptureTime,
+                long fixedIntervalMillis, int fromRollupLevel, int toRollupLevel) {
+            this.toTableName = toTableName;
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
@@ -1111,9 +1194,9 @@ class AggregateDao implements AggregateRepository {
                 String transactionType = checkNotNull(resultSet.getString(1));
                 if (curr == null || !transactionType.equals(curr.transactionType())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                                rollupCaptureTime, curr.aggregate().toAggregate(scratchBuffer),
-                                toRollupLevel));
+                        dataSource.update(new AggregateInsert(toTableName,
+                                curr.transactionType(), null, rollupCaptureTime,
+                                curr.aggregate().toAggregate(scratchBuffer), toRollupLevel));
                     }
                     curr = ImmutableMutableOverallAggregate.of(transactionType,
                             new MutableAggregate(maxAggregateQueriesPerType,
@@ -1122,9 +1205,9 @@ class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource
-                        .update(new AggregateInsert(curr.transactionType(), null, rollupCaptureTime,
-                                curr.aggregate().toAggregate(scratchBuffer), toRollupLevel));
+                dataSource.update(new AggregateInsert(toTableName, curr.transactionType(), null,
+                        rollupCaptureTime, curr.aggregate().toAggregate(scratchBuffer),
+                        toRollupLevel));
             }
             return null;
         }
@@ -1137,14 +1220,16 @@ class AggregateDao implements AggregateRepository {
 
     private class RollupTransactionAggregates implements JdbcQuery</*@Nullable*/ Void> {
 
+        private final @Untainted String toTableName;
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
         private final ScratchBuffer scratchBuffer = new ScratchBuffer();
 
-        private RollupTransactionAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+        private RollupTransactionAggregates(@Untainted String toTableName, long rollupCaptureTime,
+                long fixedIntervalMillis, int fromRollupLevel, int toRollupLevel) {
+            this.toTableName = toTableName;
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
@@ -1180,8 +1265,8 @@ class AggregateDao implements AggregateRepository {
                 if (curr == null || !transactionType.equals(curr.transactionType())
                         || !transactionName.equals(curr.transactionName())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(),
-                                curr.transactionName(), rollupCaptureTime,
+                        dataSource.update(new AggregateInsert(toTableName,
+                                curr.transactionType(), curr.transactionName(), rollupCaptureTime,
                                 curr.aggregate().toAggregate(scratchBuffer), toRollupLevel));
                     }
                     curr = ImmutableMutableTransactionAggregate.of(transactionType, transactionName,
@@ -1191,7 +1276,7 @@ class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, 3, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(),
+                dataSource.update(new AggregateInsert(toTableName, curr.transactionType(),
                         curr.transactionName(), rollupCaptureTime,
                         curr.aggregate().toAggregate(scratchBuffer), toRollupLevel));
             }
@@ -39,6 +39,9 @@ import org.glowroot.agent.fat.storage.util.ImmutableIndex;
 import org.glowroot.agent.fat.storage.util.Schemas.Column;
 import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
 import org.glowroot.agent.fat.storage.util.Schemas.Index;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable.Partition;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable.PartitionQueryFactory;
 import org.glowroot.common.util.Clock;
 import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
 import org.glowroot.storage.repo.GaugeValueRepository;
@@ -46,6 +49,7 @@ import org.glowroot.storage.repo.helper.Gauges;
 import org.glowroot.storage.repo.helper.RollupLevelService;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.DAYS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 class GaugeValueDao implements GaugeValueRepository {
@@ -59,10 +63,14 @@ class GaugeValueDao implements GaugeValueRepository {
             // for counters, it is the interval of time that the (averaged) value represents
             ImmutableColumn.of("weight", ColumnType.BIGINT));
 
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(ImmutableIndex
+            .of("idx", ImmutableList.of("gauge_id", "capture_time", "value", "weight")));
+
     private final GaugeNameDao gaugeNameDao;
     private final DataSource dataSource;
     private final Clock clock;
     private final ImmutableList<RollupConfig> rollupConfigs;
+    private final ImmutableList<TimePartitionedTable> rollupTables;
 
     // AtomicLongArray used for visibility
     private final AtomicLongArray lastRollupTimes;
@@ -75,13 +83,13 @@ class GaugeValueDao implements GaugeValueRepository {
         this.clock = clock;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
 
+        List<TimePartitionedTable> rollupTables = Lists.newArrayList();
         for (int i = 0; i <= rollupConfigs.size(); i++) {
-            dataSource.syncTable("gauge_value_rollup_" + castUntainted(i), columns);
-            dataSource.syncIndexes("gauge_value_rollup_" + castUntainted(i),
-                    ImmutableList.<Index>of(ImmutableIndex.of(
-                            "gauge_value_rollup_" + castUntainted(i) + "_idx",
-                            ImmutableList.of("gauge_id", "capture_time", "value", "weight"))));
+            rollupTables.add(new TimePartitionedTable(dataSource,
+                    "gauge_value_rollup_" + castUntainted(i), columns,
+                    indexes, getPartitionMillis(i), false));
         }
+        this.rollupTables = ImmutableList.copyOf(rollupTables);
         List<Column> columns = Lists.newArrayList();
         for (int i = 1; i <= rollupConfigs.size(); i++) {
             columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
@@ -120,7 +128,24 @@ class GaugeValueDao implements GaugeValueRepository {
             }
             gaugeValueIdMap.put(gaugeValue, gaugeId);
         }
-        dataSource.batchUpdate(new GaugeValuesBinder(gaugeValueIdMap));
+        // gauge values are normally all captured at the same time, but may straddle a partition
+        Map<String, Map<GaugeValue, Long>> partitionedGaugeValueIdMaps = Maps.newLinkedHashMap();
+        for (Entry<GaugeValue, Long> entry : gaugeValueIdMap.entrySet()) {
+            String tableName =
+                    rollupTables.get(0).getPartitionForInsert(entry.getKey().getCaptureTime());
+            Map<GaugeValue, Long> partitionedGaugeValueIdMap =
+                    partitionedGaugeValueIdMaps.get(tableName);
+            if (partitionedGaugeValueIdMap == null) {
+                partitionedGaugeValueIdMap = Maps.newLinkedHashMap();
+                partitionedGaugeValueIdMaps.put(tableName, partitionedGaugeValueIdMap);
+            }
+            partitionedGaugeValueIdMap.put(entry.getKey(), entry.getValue());
+        }
+        for (Entry<String, Map<GaugeValue, Long>> entry : partitionedGaugeValueIdMaps
+                .entrySet()) {
+            dataSource.batchUpdate(
+                    new GaugeValuesBinder(castUntainted(entry.getKey()), entry.getValue()));
+        }
         synchronized (rollupLock) {
             // clock can never go backwards and future gauge captures will wait until this method
             // completes since ScheduledExecutorService.scheduleAtFixedRate() guarantees that future
@@ -146,18 +171,24 @@ class GaugeValueDao implements GaugeValueRepository {
 
     // query.from() is INCLUSIVE
     @Override
-    public List<GaugeValue> readGaugeValues(String agentRollup, String gaugeName, long from,
-            long to, int rollupLevel) throws Exception {
-        Long gaugeId = gaugeNameDao.getGaugeId(gaugeName);
+    public List<GaugeValue> readGaugeValues(String agentRollup, String gaugeName,
+            final long from, final long to, int rollupLevel) throws Exception {
+        final Long gaugeId = gaugeNameDao.getGaugeId(gaugeName);
         if (gaugeId == null) {
             // not necessarily an error, gauge id not created until first store
             return ImmutableList.of();
         }
-        return dataSource.query(new GaugeValueQuery(gaugeId, from, to, rollupLevel));
+        return rollupTables.get(rollupLevel).query(from, to,
+                new PartitionQueryFactory<GaugeValue>() {
+                    @Override
+                    public JdbcRowQuery<GaugeValue> create(@Untainted String partitionTableName) {
+                        return new GaugeValueQuery(partitionTableName, gaugeId, from, to);
+                    }
+                });
     }
 
     void deleteBefore(long captureTime, int rollupLevel) throws Exception {
-        dataSource.deleteBefore("gauge_value_rollup_" + castUntainted(rollupLevel), captureTime);
+        rollupTables.get(rollupLevel).deleteBefore(captureTime);
     }
 
     void reinitAfterDeletingDatabase() throws Exception {
@@ -172,13 +203,32 @@ class GaugeValueDao implements GaugeValueRepository {
         // need ".0" to force double result
         String captureTimeSql = castUntainted(
                 "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-        dataSource.update("merge into gauge_value_rollup_" + castUntainted(toRollupLevel)
-                + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
-                + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
-                + " sum(value * weight) / sum(weight), sum(weight) from gauge_value_rollup_"
-                + castUntainted(fromRollupLevel) + " gp where gp.capture_time > ?"
-                + " and gp.capture_time <= ? group by gp.gauge_id, ceil_capture_time",
-                lastRollupTime, safeRollupTime);
+        // partition lengths are non-decreasing by rollup level and are multiples of each other, so
+        // the rolled up capture times from each source partition all land in a single target
+        // partition
+        for (Partition partition : rollupTables.get(fromRollupLevel)
+                .getPartitions(lastRollupTime, safeRollupTime)) {
+            long from = Math.max(lastRollupTime, partition.from());
+            long to = Math.min(safeRollupTime, partition.to());
+            if (from >= to) {
+                continue;
+            }
+            String toTableName = rollupTables.get(toRollupLevel).getPartitionForInsert(to);
+            dataSource.update("merge into " + toTableName
+                    + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
+                    + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
+                    + " sum(value * weight) / sum(weight), sum(weight) from "
+                    + partition.tableName() + " gp where gp.capture_time > ?"
+                    + " and gp.capture_time <= ? group by gp.gauge_id, ceil_capture_time", from,
+                    to);
+        }
+    }
+
+    // one partition per day at the fine-grained levels (which are retained for days) and one per
+    // week at the coarse-grained levels (which are retained for months), all rollup intervals
+    // evenly divide both
+    private static long getPartitionMillis(int rollupLevel) {
+        return rollupLevel <= 2 ? DAYS.toMillis(1) : DAYS.toMillis(7);
     }
 
     private static AtomicLongArray initData(ImmutableList<RollupConfig> rollupConfigs,
@@ -201,17 +251,20 @@ class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
-    private class GaugeValuesBinder implements JdbcUpdate {
+    private static class GaugeValuesBinder implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final Map<GaugeValue, Long> gaugeValueIdMap;
 
-        private GaugeValuesBinder(Map<GaugeValue, Long> gaugeValueIdMap) {
+        private GaugeValuesBinder(@Untainted String tableName,
+                Map<GaugeValue, Long> gaugeValueIdMap) {
+            this.tableName = tableName;
             this.gaugeValueIdMap = gaugeValueIdMap;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into gauge_value_rollup_0 (gauge_id, capture_time, value, weight)"
+            return "insert into " + tableName + " (gauge_id, capture_time, value, weight)"
                     + " values (?, ?, ?, ?)";
         }
 
@@ -264,25 +317,25 @@ class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
-    private class GaugeValueQuery implements JdbcRowQuery<GaugeValue> {
+    private static class GaugeValueQuery implements JdbcRowQuery<GaugeValue> {
 
+        private final @Untainted String tableName;
         private final long gaugeId;
         private final long from;
         private final long to;
-        private final int rollupLevel;
 
-        private GaugeValueQuery(long gaugeId, long from, long to, int rollupLevel) {
+        private GaugeValueQuery(@Untainted String tableName, long gaugeId, long from, long to) {
+            this.tableName = tableName;
             this.gaugeId = gaugeId;
             this.from = from;
             this.to = to;
-            this.rollupLevel = rollupLevel;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "select capture_time, value, weight from gauge_value_rollup_"
-                    + castUntainted(rollupLevel) + " where gauge_id = ? and capture_time >= ?"
-                    + " and capture_time <= ? order by capture_time";
+            return "select capture_time, value, weight from " + tableName
+                    + " where gauge_id = ? and capture_time >= ? and capture_time <= ?"
+                    + " order by capture_time";
         }
 
         @Override
@@ -31,16 +31,18 @@ class RepoAdminImpl implements RepoAdmin {
     private final ConfigRepository configRepository;
     private final AgentDao agentDao;
     private final GaugeValueDao gaugeValueDao;
+    private final TimerNameDao timerNameDao;
 
     RepoAdminImpl(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             CappedDatabase traceCappedDatabase, ConfigRepository configRepository,
-            AgentDao agentDao, GaugeValueDao gaugeValueDao) {
+            AgentDao agentDao, GaugeValueDao gaugeValueDao, TimerNameDao timerNameDao) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
         this.configRepository = configRepository;
         this.agentDao = agentDao;
         this.gaugeValueDao = gaugeValueDao;
+        this.timerNameDao = timerNameDao;
     }
 
     @Override
@@ -49,6 +51,7 @@ class RepoAdminImpl implements RepoAdmin {
         dataSource.deleteAll();
         agentDao.reinitAfterDeletingDatabase();
         gaugeValueDao.reinitAfterDeletingDatabase();
+        timerNameDao.reinitAfterDeletingDatabase();
         if (systemInfo != null) {
             agentDao.store(systemInfo);
         }
@@ -98,14 +98,15 @@ public class SimpleRepoModule {
         agentDao = new AgentDao(dataSource);
         transactionTypeDao = new TransactionTypeDao(dataSource);
         rollupLevelService = new RollupLevelService(configRepository, clock);
+        TimerNameDao timerNameDao = new TimerNameDao(dataSource);
         aggregateDao = new AggregateDao(dataSource, this.rollupCappedDatabases, configRepository,
-                transactionTypeDao);
+                transactionTypeDao, timerNameDao);
         traceDao = new TraceDao(dataSource, traceCappedDatabase, transactionTypeDao);
         GaugeNameDao gaugeNameDao = new GaugeNameDao(dataSource);
         gaugeValueDao = new GaugeValueDao(dataSource, gaugeNameDao, clock);
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
-                configRepository, agentDao, gaugeValueDao);
+                configRepository, agentDao, gaugeValueDao, timerNameDao);
 
         TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(dataSource);
         alertingService = new AlertingService(configRepository, triggeredAlertDao, aggregateDao,
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.tainting.qual.Untainted;
+
+import org.glowroot.agent.fat.storage.util.DataSource;
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.fat.storage.util.ImmutableColumn;
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
+import org.glowroot.storage.util.TimerNameDictionary;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// timer names are never deleted since the set of timer names is small and bounded by the
+// instrumentation, and any aggregate row (at any rollup level) may still reference them
+class TimerNameDao implements TimerNameDictionary {
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("id", ColumnType.AUTO_IDENTITY),
+            ImmutableColumn.of("timer_name", ColumnType.VARCHAR));
+
+    private final DataSource dataSource;
+
+    @GuardedBy("lock")
+    private final BiMap<String, Long> timerNameIds = HashBiMap.create();
+
+    private final Object lock = new Object();
+
+    TimerNameDao(DataSource dataSource) throws Exception {
+        this.dataSource = dataSource;
+        dataSource.syncTable("timer_name", columns);
+        readAll();
+    }
+
+    // the data source is never called while holding lock, since getName() is called from inside
+    // data source queries (which already hold the data source lock), and getId() is called from
+    // inside rollup queries
+    @Override
+    public long getId(String timerName) throws Exception {
+        synchronized (lock) {
+            Long timerNameId = timerNameIds.get(timerName);
+            if (timerNameId != null) {
+                return timerNameId;
+            }
+        }
+        // merge so that concurrent callers with the same new timer name do not insert two rows
+        dataSource.update("merge into timer_name (timer_name) key (timer_name) values (?)",
+                timerName);
+        Long timerNameId = dataSource.queryForOptionalLong(
+                "select id from timer_name where timer_name = ?", timerName);
+        if (timerNameId == null) {
+            // don't return a placeholder id, since it would be encoded into the stored timers
+            throw new SQLException("Data source is closing");
+        }
+        synchronized (lock) {
+            timerNameIds.forcePut(timerName, timerNameId);
+        }
+        return timerNameId;
+    }
+
+    @Override
+    public @Nullable String getName(long id) throws Exception {
+        synchronized (lock) {
+            String timerName = timerNameIds.inverse().get(id);
+            if (timerName != null) {
+                return timerName;
+            }
+        }
+        // could have been inserted since the last read, though this is not expected in the
+        // embedded (single writer) case
+        readAll();
+        synchronized (lock) {
+            return timerNameIds.inverse().get(id);
+        }
+    }
+
+    void reinitAfterDeletingDatabase() throws Exception {
+        synchronized (lock) {
+            timerNameIds.clear();
+        }
+    }
+
+    private void readAll() throws Exception {
+        List<TimerNameRow> rows = dataSource.query(new TimerNameQuery());
+        synchronized (lock) {
+            for (TimerNameRow row : rows) {
+                timerNameIds.forcePut(row.timerName, row.id);
+            }
+        }
+    }
+
+    private static class TimerNameRow {
+
+        private final long id;
+        private final String timerName;
+
+        private TimerNameRow(long id, String timerName) {
+            this.id = id;
+            this.timerName = timerName;
+        }
+    }
+
+    private static class TimerNameQuery implements JdbcRowQuery<TimerNameRow> {
+
+        @Override
+        public @Untainted String getSql() {
+            return "select id, timer_name from timer_name";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {}
+
+        @Override
+        public TimerNameRow mapRow(ResultSet resultSet) throws Exception {
+            long id = resultSet.getLong(1);
+            String timerName = resultSet.getString(2);
+            return new TimerNameRow(id, checkNotNull(timerName));
+        }
+    }
+}
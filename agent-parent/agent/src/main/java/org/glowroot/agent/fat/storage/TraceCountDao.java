@@ -0,0 +1,389 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.immutables.value.Value;
+
+import org.glowroot.agent.fat.storage.util.DataSource;
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.fat.storage.util.ImmutableColumn;
+import org.glowroot.agent.fat.storage.util.ImmutableIndex;
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
+import org.glowroot.agent.fat.storage.util.Schemas.Index;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable.PartitionQueryFactory;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable.PartitionUpdateFactory;
+import org.glowroot.common.util.Styles;
+import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
+import org.glowroot.storage.repo.TraceRepository.TraceQuery;
+import org.glowroot.storage.repo.Utils;
+import org.glowroot.storage.repo.helper.RollupLevelService;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// slow and error trace counts, maintained at trace insert (and expiration) time at each of the
+// aggregate rollup intervals, so that the trace count badges do not need to run count(*) over the
+// trace table
+//
+// unlike aggregates, the counts are maintained directly at every rollup level (instead of being
+// rolled up later from the lower level), since partial trace updates and trace expiration both
+// need to adjust counts in intervals that have already been rolled up, and since every rollup
+// level must be expired together with the traces themselves
+//
+// the count tables are partitioned the same as the trace table, and the partition length is a
+// multiple of every rollup interval, so every count row lands in the same partition window as the
+// traces that it counts, and expiring a partition never needs to back out counts from the rollup
+// rows that are retained
+class TraceCountDao {
+
+    private static final ImmutableList<Column> overallColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("slow_count", ColumnType.BIGINT),
+            ImmutableColumn.of("error_count", ColumnType.BIGINT));
+
+    private static final ImmutableList<Column> transactionColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
+            ImmutableColumn.of("transaction_name", ColumnType.VARCHAR),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("slow_count", ColumnType.BIGINT),
+            ImmutableColumn.of("error_count", ColumnType.BIGINT));
+
+    // these indexes include all columns needed for the count queries so h2 can return the result
+    // set directly from the index without having to reference the table for each row
+    private static final ImmutableList<Index> overallIndexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("idx", ImmutableList.of("transaction_type", "capture_time",
+                    "slow_count", "error_count")));
+
+    private static final ImmutableList<Index> transactionIndexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("idx", ImmutableList.of("transaction_type", "transaction_name",
+                    "capture_time", "slow_count", "error_count")));
+
+    private final DataSource dataSource;
+    private final ImmutableList<RollupConfig> rollupConfigs;
+    private final ImmutableList<TimePartitionedTable> overallTables;
+    private final ImmutableList<TimePartitionedTable> transactionTables;
+
+    private final Object lock = new Object();
+
+    TraceCountDao(DataSource dataSource, long partitionMillis) throws Exception {
+        this.dataSource = dataSource;
+        this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
+        List<TimePartitionedTable> overallTables = Lists.newArrayList();
+        List<TimePartitionedTable> transactionTables = Lists.newArrayList();
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            overallTables.add(new TimePartitionedTable(dataSource,
+                    "trace_tt_count_rollup_" + castUntainted(i), overallColumns, overallIndexes,
+                    partitionMillis, false));
+            transactionTables.add(new TimePartitionedTable(dataSource,
+                    "trace_tn_count_rollup_" + castUntainted(i), transactionColumns,
+                    transactionIndexes, partitionMillis, false));
+        }
+        this.overallTables = ImmutableList.copyOf(overallTables);
+        this.transactionTables = ImmutableList.copyOf(transactionTables);
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            // populate counts from traces that were stored prior to the count tables being created
+            // (e.g. upgrade from prior version), there can only be slow or error traces without
+            // any count partitions in that case, so otherwise this is a no-op
+            if (this.overallTables.get(i).getPartitions(0, Long.MAX_VALUE).isEmpty()
+                    && this.transactionTables.get(i).getPartitions(0, Long.MAX_VALUE).isEmpty()) {
+                populateFromTraceTable(i);
+            }
+        }
+    }
+
+    void updateCounts(String transactionType, String transactionName, long captureTime,
+            boolean slow, boolean error, int delta) throws Exception {
+        if (!slow && !error) {
+            return;
+        }
+        long slowDelta = slow ? delta : 0;
+        long errorDelta = error ? delta : 0;
+        synchronized (lock) {
+            for (int i = 0; i < rollupConfigs.size(); i++) {
+                long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime,
+                        rollupConfigs.get(i).intervalMillis());
+                addCounts(i, transactionType, transactionName, rollupCaptureTime, slowDelta,
+                        errorDelta);
+            }
+        }
+    }
+
+    // query.from() is non-inclusive
+    long readSlowCount(TraceQuery query) throws Exception {
+        return readCount(query, "slow", query.from(), query.to(), rollupConfigs.size() - 1);
+    }
+
+    // query.from() is non-inclusive
+    long readErrorCount(TraceQuery query) throws Exception {
+        return readCount(query, "error", query.from(), query.to(), rollupConfigs.size() - 1);
+    }
+
+    // this drops the same partitions that are dropped from the trace table for the same
+    // captureTime, see class comment
+    void deleteBefore(long captureTime) throws Exception {
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            overallTables.get(i).deleteBefore(captureTime);
+            transactionTables.get(i).deleteBefore(captureTime);
+        }
+    }
+
+    // must be called under lock (or from the constructor)
+    private void addCounts(int rollupLevel, String transactionType, String transactionName,
+            long rollupCaptureTime, long slowDelta, long errorDelta) throws Exception {
+        // counts are never inserted for a negative delta, since that means the prior (partial)
+        // trace has already expired along with its counts
+        boolean insert = slowDelta > 0 || errorDelta > 0;
+        TimePartitionedTable overallTable = overallTables.get(rollupLevel);
+        int updateCount = overallTable.update(rollupCaptureTime, new CountUpdate(transactionType,
+                null, rollupCaptureTime, slowDelta, errorDelta));
+        if (updateCount == 0 && insert) {
+            dataSource.update("insert into "
+                    + overallTable.getPartitionForInsert(rollupCaptureTime)
+                    + " (transaction_type, capture_time, slow_count, error_count) values"
+                    + " (?, ?, ?, ?)", transactionType, rollupCaptureTime, slowDelta, errorDelta);
+        }
+        TimePartitionedTable transactionTable = transactionTables.get(rollupLevel);
+        updateCount = transactionTable.update(rollupCaptureTime, new CountUpdate(transactionType,
+                transactionName, rollupCaptureTime, slowDelta, errorDelta));
+        if (updateCount == 0 && insert) {
+            dataSource.update("insert into "
+                    + transactionTable.getPartitionForInsert(rollupCaptureTime)
+                    + " (transaction_type, transaction_name, capture_time, slow_count,"
+                    + " error_count) values (?, ?, ?, ?, ?)", transactionType, transactionName,
+                    rollupCaptureTime, slowDelta, errorDelta);
+        }
+    }
+
+    // the query range is split into the largest intervals that line up with the coarsest rollup
+    // level, and the remaining ends of the range are handled by progressively finer rollup levels
+    // (and finally by the trace table itself for the sub-minute ends)
+    private long readCount(TraceQuery query, @Untainted String kind, long from, long to,
+            int rollupLevel) throws Exception {
+        if (from >= to) {
+            return 0;
+        }
+        if (rollupLevel < 0) {
+            return readCountFromTraceTable(query, kind, from, to);
+        }
+        long intervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
+        long alignedFrom = Utils.getRollupCaptureTime(from, intervalMillis);
+        long alignedTo = RollupLevelService.getSafeRollupTime(to, intervalMillis);
+        if (alignedFrom >= alignedTo) {
+            return readCount(query, kind, from, to, rollupLevel - 1);
+        }
+        return readCount(query, kind, from, alignedFrom, rollupLevel - 1)
+                + readCountFromRollup(query, kind, alignedFrom, alignedTo, rollupLevel)
+                + readCount(query, kind, alignedTo, to, rollupLevel - 1);
+    }
+
+    private long readCountFromRollup(TraceQuery query, @Untainted String kind, long from, long to,
+            int rollupLevel) throws Exception {
+        TimePartitionedTable table = query.transactionName() == null
+                ? overallTables.get(rollupLevel) : transactionTables.get(rollupLevel);
+        long count = 0;
+        for (Long partitionCount : table.query(from, to,
+                new CountQueryFactory(query, kind, from, to))) {
+            count += partitionCount;
+        }
+        return count;
+    }
+
+    private long readCountFromTraceTable(TraceQuery query, @Untainted String kind, long from,
+            long to) throws Exception {
+        String transactionName = query.transactionName();
+        if (transactionName == null) {
+            return dataSource.queryForLong(
+                    "select count(*) from trace where transaction_type = ? and capture_time > ?"
+                            + " and capture_time <= ? and " + kind + " = ?",
+                    query.transactionType(), from, to, true);
+        } else {
+            return dataSource.queryForLong(
+                    "select count(*) from trace where transaction_type = ? and transaction_name = ?"
+                            + " and capture_time > ? and capture_time <= ? and " + kind + " = ?",
+                    query.transactionType(), transactionName, from, to, true);
+        }
+    }
+
+    private void populateFromTraceTable(int rollupLevel) throws Exception {
+        long intervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
+        List<TraceCount> traceCounts = dataSource.query(new TraceCountQuery(intervalMillis));
+        synchronized (lock) {
+            for (TraceCount traceCount : traceCounts) {
+                addCounts(rollupLevel, traceCount.transactionType(),
+                        traceCount.transactionName(), traceCount.captureTime(),
+                        traceCount.slowCount(), traceCount.errorCount());
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface TraceCount {
+        String transactionType();
+        String transactionName();
+        long captureTime();
+        long slowCount();
+        long errorCount();
+    }
+
+    private static class TraceCountQuery implements JdbcRowQuery<TraceCount> {
+
+        private final long intervalMillis;
+
+        private TraceCountQuery(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            // need ".0" to force double result
+            String captureTimeSql = castUntainted(
+                    "ceil(capture_time / " + intervalMillis + ".0) * " + intervalMillis);
+            return "select transaction_type, transaction_name, " + captureTimeSql
+                    + " ceil_capture_time, sum(case when slow then 1 else 0 end),"
+                    + " sum(case when error then 1 else 0 end) from trace where slow = ?"
+                    + " or error = ? group by transaction_type, transaction_name,"
+                    + " ceil_capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setBoolean(1, true);
+            preparedStatement.setBoolean(2, true);
+        }
+
+        @Override
+        public TraceCount mapRow(ResultSet resultSet) throws Exception {
+            String transactionType = checkNotNull(resultSet.getString(1));
+            String transactionName = checkNotNull(resultSet.getString(2));
+            return ImmutableTraceCount.of(transactionType, transactionName, resultSet.getLong(3),
+                    resultSet.getLong(4), resultSet.getLong(5));
+        }
+    }
+
+    private static class CountUpdate implements PartitionUpdateFactory {
+
+        private final String transactionType;
+        private final @Nullable String transactionName;
+        private final long captureTime;
+        private final long slowDelta;
+        private final long errorDelta;
+
+        private CountUpdate(String transactionType, @Nullable String transactionName,
+                long captureTime, long slowDelta, long errorDelta) {
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.captureTime = captureTime;
+            this.slowDelta = slowDelta;
+            this.errorDelta = errorDelta;
+        }
+
+        @Override
+        public JdbcUpdate create(final @Untainted String partitionTableName) {
+            return new JdbcUpdate() {
+                @Override
+                public @Untainted String getSql() {
+                    StringBuilder sql = new StringBuilder();
+                    sql.append("update ");
+                    sql.append(partitionTableName);
+                    sql.append(" set slow_count = slow_count + ?,"
+                            + " error_count = error_count + ? where transaction_type = ?");
+                    if (transactionName != null) {
+                        sql.append(" and transaction_name = ?");
+                    }
+                    sql.append(" and capture_time = ?");
+                    return castUntainted(sql.toString());
+                }
+                @Override
+                public void bind(PreparedStatement preparedStatement) throws SQLException {
+                    int i = 1;
+                    preparedStatement.setLong(i++, slowDelta);
+                    preparedStatement.setLong(i++, errorDelta);
+                    preparedStatement.setString(i++, transactionType);
+                    if (transactionName != null) {
+                        preparedStatement.setString(i++, transactionName);
+                    }
+                    preparedStatement.setLong(i++, captureTime);
+                }
+            };
+        }
+    }
+
+    private static class CountQueryFactory implements PartitionQueryFactory<Long> {
+
+        private final TraceQuery query;
+        private final @Untainted String kind;
+        private final long from;
+        private final long to;
+
+        private CountQueryFactory(TraceQuery query, @Untainted String kind, long from, long to) {
+            this.query = query;
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public JdbcRowQuery<Long> create(final @Untainted String partitionTableName) {
+            return new JdbcRowQuery<Long>() {
+                @Override
+                public @Untainted String getSql() {
+                    StringBuilder sql = new StringBuilder();
+                    sql.append("select sum(");
+                    sql.append(kind);
+                    sql.append("_count) from ");
+                    sql.append(partitionTableName);
+                    sql.append(" where transaction_type = ?");
+                    if (query.transactionName() != null) {
+                        sql.append(" and transaction_name = ?");
+                    }
+                    sql.append(" and capture_time > ? and capture_time <= ?");
+                    return castUntainted(sql.toString());
+                }
+                @Override
+                public void bind(PreparedStatement preparedStatement) throws SQLException {
+                    int i = 1;
+                    preparedStatement.setString(i++, query.transactionType());
+                    String transactionName = query.transactionName();
+                    if (transactionName != null) {
+                        preparedStatement.setString(i++, transactionName);
+                    }
+                    preparedStatement.setLong(i++, from);
+                    preparedStatement.setLong(i++, to);
+                }
+                @Override
+                public Long mapRow(ResultSet resultSet) throws SQLException {
+                    // sum() is null when there are no matching rows, which getLong() returns as 0
+                    return resultSet.getLong(1);
+                }
+            };
+        }
+    }
+}
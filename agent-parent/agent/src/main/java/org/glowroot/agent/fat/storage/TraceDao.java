@@ -27,9 +27,13 @@ import javax.annotation.Nullable;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import org.checkerframework.checker.tainting.qual.Untainted;
+import org.immutables.value.Value;
 
 import org.glowroot.agent.fat.storage.TracePointQueryBuilder.ParameterizedSql;
+import org.glowroot.agent.fat.storage.TraceTrigramDao.TrigramKind;
 import org.glowroot.agent.fat.storage.util.CappedDatabase;
 import org.glowroot.agent.fat.storage.util.DataSource;
 import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
@@ -40,12 +44,17 @@ import org.glowroot.agent.fat.storage.util.RowMappers;
 import org.glowroot.agent.fat.storage.util.Schemas.Column;
 import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
 import org.glowroot.agent.fat.storage.util.Schemas.Index;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable.PartitionUpdateFactory;
 import org.glowroot.common.live.ImmutableTracePoint;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
+import org.glowroot.common.util.Styles;
+import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
 import org.glowroot.storage.repo.ImmutableErrorMessageCount;
 import org.glowroot.storage.repo.ImmutableErrorMessagePoint;
 import org.glowroot.storage.repo.ImmutableErrorMessageResult;
@@ -79,45 +88,51 @@ class TraceDao implements TraceRepository {
             ImmutableColumn.of("main_thread_profile_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("aux_thread_profile_capped_id", ColumnType.BIGINT));
 
-    // capture_time column is used for expiring records without using FK with on delete cascade
+    // capture_time column is used for partitioning the same as the trace table, so that attributes
+    // expire together with their traces without using FK with on delete cascade
     private static final ImmutableList<Column> traceAttributeColumns =
             ImmutableList.<Column>of(ImmutableColumn.of("trace_id", ColumnType.VARCHAR),
                     ImmutableColumn.of("name", ColumnType.VARCHAR),
                     ImmutableColumn.of("value", ColumnType.VARCHAR),
                     ImmutableColumn.of("capture_time", ColumnType.BIGINT));
 
+    // these indexes are created on each partition (see TimePartitionedTable), and there is no
+    // capture_time index for the reaper since expired partitions are dropped as a whole
     private static final ImmutableList<Index> traceIndexes = ImmutableList.<Index>of(
             // duration_nanos, id and error columns are included so database can return the
             // result set directly from the index without having to reference the table for each row
             //
-            // trace_overall_slow_idx is for readSlowCount() and readSlowPoints()
-            ImmutableIndex.of("trace_overall_slow_idx",
+            // overall_slow_idx is for readSlowCount() and readSlowPoints()
+            ImmutableIndex.of("overall_slow_idx",
                     ImmutableList.of("transaction_type", "slow", "capture_time", "duration_nanos",
                             "error", "id")),
-            // trace_transaction_slow_idx is for readSlowCount() and readSlowPoints()
-            ImmutableIndex.of("trace_transaction_slow_idx",
+            // transaction_slow_idx is for readSlowCount() and readSlowPoints()
+            ImmutableIndex.of("transaction_slow_idx",
                     ImmutableList.of("transaction_type", "transaction_name", "slow", "capture_time",
                             "duration_nanos", "error", "id")),
-            // trace_overall_error_idx is for readErrorCount() and readErrorPoints()
-            ImmutableIndex.of("trace_error_idx",
+            // error_idx is for readErrorCount() and readErrorPoints()
+            ImmutableIndex.of("error_idx",
                     ImmutableList.of("transaction_type", "error", "capture_time", "duration_nanos",
                             "error", "id")),
-            // trace_transaction_error_idx is for readErrorCount() and readErrorPoints()
-            ImmutableIndex.of("trace_transaction_error_idx",
+            // transaction_error_idx is for readErrorCount() and readErrorPoints()
+            ImmutableIndex.of("transaction_error_idx",
                     ImmutableList.of("transaction_type", "transaction_name", "error",
                             "capture_time", "duration_nanos", "id")),
-            // trace_capture_time_idx is for reaper, this is very important when trace table is huge
-            // e.g. after leaving slow threshold at 0 for a while
-            ImmutableIndex.of("trace_capture_time_idx", ImmutableList.of("capture_time")),
-            // trace_idx is for trace header lookup
-            ImmutableIndex.of("trace_idx", ImmutableList.of("id")));
+            // idx is for trace header lookup
+            ImmutableIndex.of("idx", ImmutableList.of("id")));
 
     private static final ImmutableList<Index> traceAttributeIndexes = ImmutableList.<Index>of(
-            ImmutableIndex.of("trace_attribute_idx", ImmutableList.of("trace_id")));
+            ImmutableIndex.of("idx", ImmutableList.of("trace_id")));
 
     private final DataSource dataSource;
     private final CappedDatabase traceCappedDatabase;
+    // the read queries go through the union view that is maintained under the base table name,
+    // h2 pushes their capture_time and id criteria down into the indexes of each partition
+    private final TimePartitionedTable traceTable;
+    private final TimePartitionedTable traceAttributeTable;
     private final TraceAttributeNameDao traceAttributeNameDao;
+    private final TraceTrigramDao traceTrigramDao;
+    private final TraceCountDao traceCountDao;
     private final TransactionTypeDao transactionTypeDao;
 
     TraceDao(DataSource dataSource, CappedDatabase traceCappedDatabase,
@@ -126,26 +141,42 @@ class TraceDao implements TraceRepository {
         this.traceCappedDatabase = traceCappedDatabase;
         traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         this.transactionTypeDao = transactionTypeDao;
-        dataSource.syncTable("trace", traceColumns);
-        dataSource.syncIndexes("trace", traceIndexes);
-        dataSource.syncTable("trace_attribute", traceAttributeColumns);
-        dataSource.syncIndexes("trace_attribute", traceAttributeIndexes);
+        long partitionMillis = getPartitionMillis();
+        traceTable = new TimePartitionedTable(dataSource, "trace", traceColumns, traceIndexes,
+                partitionMillis, true);
+        traceAttributeTable = new TimePartitionedTable(dataSource, "trace_attribute",
+                traceAttributeColumns, traceAttributeIndexes, partitionMillis, true);
+        traceTrigramDao = new TraceTrigramDao(dataSource, partitionMillis);
+        traceCountDao = new TraceCountDao(dataSource, partitionMillis);
     }
 
     @Override
     public void collect(final String agentId, final Trace trace) throws Exception {
         final Trace.Header header = trace.getHeader();
-        dataSource.update(new TraceMerge(trace));
-        if (header.getAttributeCount() > 0) {
-            if (trace.getUpdate()) {
-                dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
+        if (trace.getUpdate()) {
+            // the counts of the prior (partial) trace need to be backed out
+            PriorTrace priorTrace = dataSource.queryAtMostOne(new PriorTraceQuery(trace.getId()));
+            if (priorTrace != null) {
+                traceCountDao.updateCounts(header.getTransactionType(),
+                        priorTrace.transactionName(), priorTrace.captureTime(), priorTrace.slow(),
+                        priorTrace.error(), -1);
+                // the prior (partial) trace is not necessarily in the same partition
+                deletePriorTrace(trace.getId(), priorTrace.captureTime());
             }
-            dataSource.batchUpdate(new TraceAttributeInsert(trace));
+        }
+        dataSource.update(new TraceMerge(traceTable.getPartitionForInsert(header.getCaptureTime()),
+                trace));
+        traceCountDao.updateCounts(header.getTransactionType(), header.getTransactionName(),
+                header.getCaptureTime(), header.getSlow(), header.hasError(), 1);
+        if (header.getAttributeCount() > 0) {
+            dataSource.batchUpdate(new TraceAttributeInsert(
+                    traceAttributeTable.getPartitionForInsert(header.getCaptureTime()), trace));
             for (Trace.Attribute attribute : header.getAttributeList()) {
                 traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
                         attribute.getName(), header.getCaptureTime());
             }
         }
+        traceTrigramDao.collect(trace);
         transactionTypeDao.updateLastCaptureTime(trace.getHeader().getTransactionType(),
                 trace.getHeader().getCaptureTime());
     }
@@ -170,43 +201,22 @@ class TraceDao implements TraceRepository {
 
     @Override
     public long readSlowCount(String agentRollup, TraceQuery query) throws Exception {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ? and slow = ?",
-                    query.transactionType(), query.from(), query.to(), true);
-        } else {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ? and slow = ?",
-                    query.transactionType(), transactionName, query.from(), query.to(), true);
-        }
+        return traceCountDao.readSlowCount(query);
     }
 
     @Override
     public long readErrorCount(String agentRollup, TraceQuery query) throws Exception {
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and capture_time > ?"
-                            + " and capture_time <= ? and error = ?",
-                    query.transactionType(), query.from(), query.to(), true);
-        } else {
-            return dataSource.queryForLong(
-                    "select count(*) from trace where transaction_type = ? and transaction_name = ?"
-                            + " and capture_time > ? and capture_time <= ? and error = ?",
-                    query.transactionType(), transactionName, query.from(), query.to(), true);
-        }
+        return traceCountDao.readErrorCount(query);
     }
 
     @Override
     public ErrorMessageResult readErrorMessages(String agentRollup, TraceQuery query,
             ErrorMessageFilter filter, long resolutionMillis, int limit) throws Exception {
-        List<ErrorMessagePoint> points =
-                dataSource.query(new ErrorPointQuery(query, filter, resolutionMillis));
-        List<ErrorMessageCount> counts =
-                dataSource.query(new ErrorMessageCountQuery(query, filter, limit + 1));
+        List<ParameterizedSql> trigramCriteria = getErrorMessageTrigramCriteria(query, filter);
+        List<ErrorMessagePoint> points = dataSource
+                .query(new ErrorPointQuery(query, filter, trigramCriteria, resolutionMillis));
+        List<ErrorMessageCount> counts = dataSource
+                .query(new ErrorMessageCountQuery(query, filter, trigramCriteria, limit + 1));
         // one extra record over the limit is fetched above to identify if the limit was hit
         return ImmutableErrorMessageResult.builder()
                 .addAllPoints(points)
@@ -254,23 +264,54 @@ class TraceDao implements TraceRepository {
         return traceCappedDatabase.readMessage(cappedId, Profile.parser());
     }
 
+    // all of the trace tables (including the trace count tables) are partitioned the same, so
+    // the same partitions are dropped from each of them
     void deleteBefore(long captureTime) throws Exception {
         traceAttributeNameDao.deleteBefore(captureTime);
-        dataSource.deleteBefore("trace", captureTime);
-        dataSource.deleteBefore("trace_attribute", captureTime);
+        traceCountDao.deleteBefore(captureTime);
+        traceTable.deleteBefore(captureTime);
+        traceAttributeTable.deleteBefore(captureTime);
+        traceTrigramDao.deleteBefore(captureTime);
+    }
+
+    private void deletePriorTrace(String traceId, long priorCaptureTime) throws Exception {
+        traceTable.update(priorCaptureTime, new TraceDelete("id", traceId));
+        traceAttributeTable.update(priorCaptureTime, new TraceDelete("trace_id", traceId));
+        traceTrigramDao.delete(traceId, priorCaptureTime);
     }
 
     private Result<TracePoint> readPoints(TraceKind traceKind, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
         ParameterizedSql parameterizedSql =
-                new TracePointQueryBuilder(traceKind, query, filter, limit).getParameterizedSql();
+                new TracePointQueryBuilder(traceKind, query, filter, limit, traceTrigramDao)
+                        .getParameterizedSql();
         List<TracePoint> points = dataSource.query(new TracePointQuery(parameterizedSql));
         // one extra record over the limit is fetched above to identify if the limit was hit
         return Result.from(points, limit);
     }
 
-    private static void appendQueryAndFilter(StringBuilder sql, TraceQuery query,
+    private List<ParameterizedSql> getErrorMessageTrigramCriteria(TraceQuery query,
             ErrorMessageFilter filter) {
+        List<ParameterizedSql> trigramCriteria = Lists.newArrayList();
+        for (String include : filter.includes()) {
+            ParameterizedSql criteria = traceTrigramDao.getTraceIdCriteria("id",
+                    TrigramKind.ERROR_MESSAGE, StringComparator.CONTAINS, include, query.from(),
+                    query.to());
+            if (criteria != null) {
+                trigramCriteria.add(criteria);
+            }
+        }
+        return trigramCriteria;
+    }
+
+    // partitions are the length of the coarsest rollup interval so that every trace count rollup
+    // row lands in the same partition window as the traces that it counts (see TraceCountDao)
+    private static long getPartitionMillis() {
+        return Iterables.getLast(RollupConfig.buildRollupConfigs()).intervalMillis();
+    }
+
+    private static void appendQueryAndFilter(StringBuilder sql, TraceQuery query,
+            ErrorMessageFilter filter, List<ParameterizedSql> trigramCriteria) {
         sql.append(" and transaction_type = ?");
         String transactionName = query.transactionName();
         if (transactionName != null) {
@@ -283,10 +324,14 @@ class TraceDao implements TraceRepository {
         for (int i = 0; i < filter.excludes().size(); i++) {
             sql.append(" and upper(error_message) not like ?");
         }
+        for (ParameterizedSql criteria : trigramCriteria) {
+            sql.append(criteria.sql());
+        }
     }
 
     private static int bindQueryAndFilter(PreparedStatement preparedStatement, int startIndex,
-            TraceQuery query, ErrorMessageFilter filter) throws SQLException {
+            TraceQuery query, ErrorMessageFilter filter, List<ParameterizedSql> trigramCriteria)
+            throws SQLException {
         int i = startIndex;
         preparedStatement.setString(i++, query.transactionType());
         String transactionName = query.transactionName();
@@ -301,18 +346,25 @@ class TraceDao implements TraceRepository {
         for (String exclude : filter.excludes()) {
             preparedStatement.setString(i++, '%' + exclude.toUpperCase(Locale.ENGLISH) + '%');
         }
+        for (ParameterizedSql criteria : trigramCriteria) {
+            for (Object arg : criteria.args()) {
+                preparedStatement.setObject(i++, arg);
+            }
+        }
         return i;
     }
 
     private class TraceMerge implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final String traceId;
         private final Trace.Header header;
         private final @Nullable Long entriesId;
         private final @Nullable Long mainThreadProfileId;
         private final @Nullable Long auxThreadProfileId;
 
-        private TraceMerge(Trace trace) throws IOException {
+        private TraceMerge(@Untainted String tableName, Trace trace) throws IOException {
+            this.tableName = tableName;
             this.traceId = trace.getId();
             this.header = trace.getHeader();
 
@@ -339,10 +391,10 @@ class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "merge into trace (id, partial, slow, error, start_time, capture_time,"
-                    + " duration_nanos, transaction_type, transaction_name, headline, user,"
-                    + " error_message, header, entries_capped_id, main_thread_profile_capped_id,"
-                    + " aux_thread_profile_capped_id) key (id)"
+            return "merge into " + tableName + " (id, partial, slow, error, start_time,"
+                    + " capture_time, duration_nanos, transaction_type, transaction_name,"
+                    + " headline, user, error_message, header, entries_capped_id,"
+                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id) key (id)"
                     + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         }
 
@@ -375,15 +427,17 @@ class TraceDao implements TraceRepository {
 
     private static class TraceAttributeInsert implements JdbcUpdate {
 
+        private final @Untainted String tableName;
         private final Trace trace;
 
-        private TraceAttributeInsert(Trace trace) {
+        private TraceAttributeInsert(@Untainted String tableName, Trace trace) {
+            this.tableName = tableName;
             this.trace = trace;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "insert into trace_attribute (trace_id, name, value, capture_time)"
+            return "insert into " + tableName + " (trace_id, name, value, capture_time)"
                     + " values (?, ?, ?, ?)";
         }
 
@@ -403,6 +457,58 @@ class TraceDao implements TraceRepository {
         }
     }
 
+    private static class TraceDelete implements PartitionUpdateFactory {
+
+        private final @Untainted String traceIdColumn;
+        private final String traceId;
+
+        private TraceDelete(@Untainted String traceIdColumn, String traceId) {
+            this.traceIdColumn = traceIdColumn;
+            this.traceId = traceId;
+        }
+
+        @Override
+        public JdbcUpdate create(final @Untainted String partitionTableName) {
+            return new JdbcUpdate() {
+                @Override
+                public @Untainted String getSql() {
+                    return "delete from " + partitionTableName + " where " + traceIdColumn
+                            + " = ?";
+                }
+                @Override
+                public void bind(PreparedStatement preparedStatement) throws SQLException {
+                    preparedStatement.setString(1, traceId);
+                }
+            };
+        }
+    }
+
+    private static class PriorTraceQuery implements JdbcRowQuery<PriorTrace> {
+
+        private final String traceId;
+
+        private PriorTraceQuery(String traceId) {
+            this.traceId = traceId;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select transaction_name, capture_time, slow, error from trace where id = ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setString(1, traceId);
+        }
+
+        @Override
+        public PriorTrace mapRow(ResultSet resultSet) throws SQLException {
+            String transactionName = checkNotNull(resultSet.getString(1));
+            return ImmutablePriorTrace.of(transactionName, resultSet.getLong(2),
+                    resultSet.getBoolean(3), resultSet.getBoolean(4));
+        }
+    }
+
     private static class TracePointQuery implements JdbcRowQuery<TracePoint> {
 
         private final ParameterizedSql parameterizedSql;
@@ -488,12 +594,14 @@ class TraceDao implements TraceRepository {
 
         private final TraceQuery query;
         private final ErrorMessageFilter filter;
+        private final List<ParameterizedSql> trigramCriteria;
         private final long resolutionMillis;
 
         private ErrorPointQuery(TraceQuery query, ErrorMessageFilter filter,
-                long resolutionMillis) {
+                List<ParameterizedSql> trigramCriteria, long resolutionMillis) {
             this.query = query;
             this.filter = filter;
+            this.trigramCriteria = trigramCriteria;
             this.resolutionMillis = resolutionMillis;
         }
 
@@ -504,7 +612,7 @@ class TraceDao implements TraceRepository {
                     "ceil(capture_time / " + resolutionMillis + ".0) * " + resolutionMillis);
             StringBuilder sql = new StringBuilder();
             sql.append("select " + captureTimeSql + ", count(*) from trace where error = ?");
-            appendQueryAndFilter(sql, query, filter);
+            appendQueryAndFilter(sql, query, filter, trigramCriteria);
             sql.append(" group by " + captureTimeSql + " order by " + captureTimeSql);
             return castUntainted(sql.toString());
         }
@@ -513,7 +621,7 @@ class TraceDao implements TraceRepository {
         public void bind(PreparedStatement preparedStatement) throws SQLException {
             int i = 1;
             preparedStatement.setBoolean(i++, true);
-            bindQueryAndFilter(preparedStatement, i, query, filter);
+            bindQueryAndFilter(preparedStatement, i, query, filter, trigramCriteria);
         }
 
         @Override
@@ -528,11 +636,14 @@ class TraceDao implements TraceRepository {
 
         private final TraceQuery query;
         private final ErrorMessageFilter filter;
+        private final List<ParameterizedSql> trigramCriteria;
         private final int limit;
 
-        private ErrorMessageCountQuery(TraceQuery query, ErrorMessageFilter filter, int limit) {
+        private ErrorMessageCountQuery(TraceQuery query, ErrorMessageFilter filter,
+                List<ParameterizedSql> trigramCriteria, int limit) {
             this.query = query;
             this.filter = filter;
+            this.trigramCriteria = trigramCriteria;
             this.limit = limit;
         }
 
@@ -540,7 +651,7 @@ class TraceDao implements TraceRepository {
         public @Untainted String getSql() {
             StringBuilder sql = new StringBuilder();
             sql.append("select error_message, count(*) from trace where error = ?");
-            appendQueryAndFilter(sql, query, filter);
+            appendQueryAndFilter(sql, query, filter, trigramCriteria);
             sql.append(" group by error_message order by count(*) desc limit ?");
             return castUntainted(sql.toString());
         }
@@ -549,7 +660,7 @@ class TraceDao implements TraceRepository {
         public void bind(PreparedStatement preparedStatement) throws SQLException {
             int i = 1;
             preparedStatement.setBoolean(i++, true);
-            i = bindQueryAndFilter(preparedStatement, i, query, filter);
+            i = bindQueryAndFilter(preparedStatement, i, query, filter, trigramCriteria);
             preparedStatement.setInt(i++, limit);
         }
 
@@ -561,4 +672,13 @@ class TraceDao implements TraceRepository {
                     .build();
         }
     }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PriorTrace {
+        String transactionName();
+        long captureTime();
+        boolean slow();
+        boolean error();
+    }
 }
@@ -26,6 +26,7 @@ import com.google.common.collect.Lists;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.immutables.value.Value;
 
+import org.glowroot.agent.fat.storage.TraceTrigramDao.TrigramKind;
 import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
@@ -38,13 +39,15 @@ class TracePointQueryBuilder {
     private final TraceQuery query;
     private final TracePointFilter filter;
     private final int limit;
+    private final TraceTrigramDao traceTrigramDao;
 
     TracePointQueryBuilder(TraceKind traceKind, TraceQuery query, TracePointFilter filter,
-            int limit) {
+            int limit, TraceTrigramDao traceTrigramDao) {
         this.traceKind = traceKind;
         this.query = query;
         this.filter = filter;
         this.limit = limit;
+        this.traceTrigramDao = traceTrigramDao;
     }
 
     // capture time lower bound is non-inclusive so that aggregate data intervals can be mapped
@@ -75,6 +78,7 @@ class TracePointQueryBuilder {
         appendHeadlineCriteria(builder);
         appendErrorCriteria(builder);
         appendUserCriteria(builder);
+        appendAttributeValueTrigramCriteria(builder);
         appendOrderByAndLimit(builder);
         return builder.build();
     }
@@ -144,6 +148,7 @@ class TracePointQueryBuilder {
             builder.appendText(
                     " and upper(trace.headline) " + headlineComparator.getComparator() + " ?");
             builder.addArg(headlineComparator.formatParameter(headline));
+            appendTrigramCriteria(builder, TrigramKind.HEADLINE, headlineComparator, headline);
         }
     }
 
@@ -154,6 +159,7 @@ class TracePointQueryBuilder {
             builder.appendText(
                     " and upper(trace.error_message) " + errorComparator.getComparator() + " ?");
             builder.addArg(errorComparator.formatParameter(error));
+            appendTrigramCriteria(builder, TrigramKind.ERROR_MESSAGE, errorComparator, error);
         }
     }
 
@@ -163,6 +169,26 @@ class TracePointQueryBuilder {
         if (userComparator != null && !Strings.isNullOrEmpty(user)) {
             builder.appendText(" and upper(trace.user) " + userComparator.getComparator() + " ?");
             builder.addArg(userComparator.formatParameter(user));
+            appendTrigramCriteria(builder, TrigramKind.USER, userComparator, user);
+        }
+    }
+
+    private void appendAttributeValueTrigramCriteria(ParameterizedSqlBuilder builder) {
+        StringComparator attributeValueComparator = filter.attributeValueComparator();
+        String attributeValue = filter.attributeValue();
+        if (attributeValueComparator != null && !Strings.isNullOrEmpty(attributeValue)) {
+            appendTrigramCriteria(builder, TrigramKind.ATTRIBUTE_VALUE, attributeValueComparator,
+                    attributeValue);
+        }
+    }
+
+    private void appendTrigramCriteria(ParameterizedSqlBuilder builder, TrigramKind kind,
+            StringComparator comparator, String text) {
+        ParameterizedSql criteria = traceTrigramDao.getTraceIdCriteria("trace.id", kind,
+                comparator, text, query.from(), query.to());
+        if (criteria != null) {
+            builder.appendText(criteria.sql());
+            builder.addArgs(criteria.args());
         }
     }
 
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.tainting.qual.Untainted;
+
+import org.glowroot.agent.fat.storage.TracePointQueryBuilder.ParameterizedSql;
+import org.glowroot.agent.fat.storage.util.DataSource;
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.fat.storage.util.ImmutableColumn;
+import org.glowroot.agent.fat.storage.util.ImmutableIndex;
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
+import org.glowroot.agent.fat.storage.util.Schemas.Index;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable.PartitionUpdateFactory;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// inverted trigram index over trace headline, error message, user and attribute values, so that
+// substring filters (which are otherwise upper(..) like '%..%' full scans of the trace table) only
+// need to look at traces that contain every trigram of the search text
+//
+// the trigram criteria is only a pre-filter, the original like/= criteria is still applied on top
+// of it, so the index is allowed to contain false positives, but never false negatives
+class TraceTrigramDao {
+
+    // the number of trigrams used per search text is capped since each additional trigram only
+    // narrows the (already narrowed) pre-filter further
+    private static final int MAX_SEARCH_TRIGRAMS = 16;
+
+    // capture_time column is used for partitioning the same as the trace table, so that trigrams
+    // expire together with their traces without using FK with on delete cascade
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("trace_id", ColumnType.VARCHAR),
+            ImmutableColumn.of("kind", ColumnType.VARCHAR),
+            ImmutableColumn.of("trigram", ColumnType.BIGINT),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT));
+
+    private static final ImmutableList<Column> indexedSinceColumns = ImmutableList.<Column>of(
+            ImmutableColumn.of("indexed_since", ColumnType.BIGINT));
+
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            // trace_id is included so database can return the result set directly from the index
+            // without having to reference the table for each row
+            ImmutableIndex.of("idx",
+                    ImmutableList.of("kind", "trigram", "capture_time", "trace_id")),
+            // trace_id_idx is for deleting trigrams when partial traces are updated
+            ImmutableIndex.of("trace_id_idx", ImmutableList.of("trace_id")));
+
+    private final DataSource dataSource;
+    private final TimePartitionedTable table;
+
+    // traces captured at or before this time were stored prior to the trigram index being created
+    // (e.g. upgrade from prior version), and so the trigram index cannot be used for queries that
+    // include them
+    private final long indexedSince;
+
+    TraceTrigramDao(DataSource dataSource, long partitionMillis) throws Exception {
+        this.dataSource = dataSource;
+        table = new TimePartitionedTable(dataSource, "trace_trigram", columns, indexes,
+                partitionMillis, true);
+        dataSource.syncTable("trace_trigram_indexed_since", indexedSinceColumns);
+        Long indexedSince = dataSource.queryForOptionalLong(
+                "select indexed_since from trace_trigram_indexed_since");
+        if (indexedSince == null) {
+            Long maxCaptureTime =
+                    dataSource.queryForOptionalLong("select max(capture_time) from trace");
+            indexedSince = maxCaptureTime == null ? 0 : maxCaptureTime;
+            dataSource.update("insert into trace_trigram_indexed_since (indexed_since) values (?)",
+                    indexedSince);
+        }
+        this.indexedSince = indexedSince;
+    }
+
+    // trigrams of the prior (partial) trace are deleted separately, see delete() below
+    void collect(Trace trace) throws Exception {
+        Trace.Header header = trace.getHeader();
+        Map<TrigramKind, Set<Long>> trigrams = Maps.newEnumMap(TrigramKind.class);
+        addTrigrams(trigrams, TrigramKind.HEADLINE, header.getHeadline());
+        if (header.hasError()) {
+            addTrigrams(trigrams, TrigramKind.ERROR_MESSAGE, header.getError().getMessage());
+        }
+        addTrigrams(trigrams, TrigramKind.USER, header.getUser());
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            for (String value : attribute.getValueList()) {
+                addTrigrams(trigrams, TrigramKind.ATTRIBUTE_VALUE, value);
+            }
+        }
+        if (!trigrams.isEmpty()) {
+            dataSource.batchUpdate(new TraceTrigramInsert(
+                    table.getPartitionForInsert(header.getCaptureTime()), trace.getId(),
+                    header.getCaptureTime(), trigrams));
+        }
+    }
+
+    // returns null if the trigram index cannot be used for the given criteria, in which case the
+    // caller simply relies on the original like/= criteria
+    @Nullable
+    ParameterizedSql getTraceIdCriteria(@Untainted String traceIdColumn, TrigramKind kind,
+            StringComparator comparator, String text, long from, long to) {
+        if (comparator == StringComparator.NOT_CONTAINS || from < indexedSince) {
+            return null;
+        }
+        Set<Long> trigrams = getSearchTrigrams(text);
+        if (trigrams.isEmpty()) {
+            return null;
+        }
+        // one sub-query per trigram (instead of a single "trigram in (..)" sub-query) since h2 only
+        // pushes equality and range criteria (not in lists) down through the union view into the
+        // index of each partition
+        StringBuilder sql = new StringBuilder();
+        List<Object> args = Lists.newArrayList();
+        for (Long trigram : trigrams) {
+            sql.append(" and ");
+            sql.append(traceIdColumn);
+            sql.append(" in (select trace_id from trace_trigram where kind = ? and trigram = ?"
+                    + " and capture_time > ? and capture_time <= ?)");
+            args.add(kind.name());
+            args.add(trigram);
+            args.add(from);
+            args.add(to);
+        }
+        return ImmutableParameterizedSql.of(castUntainted(sql.toString()), args);
+    }
+
+    void delete(final String traceId, long captureTime) throws Exception {
+        table.update(captureTime, new PartitionUpdateFactory() {
+            @Override
+            public JdbcUpdate create(final @Untainted String partitionTableName) {
+                return new JdbcUpdate() {
+                    @Override
+                    public @Untainted String getSql() {
+                        return "delete from " + partitionTableName + " where trace_id = ?";
+                    }
+                    @Override
+                    public void bind(PreparedStatement preparedStatement) throws SQLException {
+                        preparedStatement.setString(1, traceId);
+                    }
+                };
+            }
+        });
+    }
+
+    void deleteBefore(long captureTime) throws Exception {
+        table.deleteBefore(captureTime);
+    }
+
+    private static void addTrigrams(Map<TrigramKind, Set<Long>> trigrams, TrigramKind kind,
+            String text) {
+        if (text.length() < 3) {
+            return;
+        }
+        Set<Long> trigramsForKind = trigrams.get(kind);
+        if (trigramsForKind == null) {
+            trigramsForKind = Sets.newHashSet();
+            trigrams.put(kind, trigramsForKind);
+        }
+        addTrigrams(trigramsForKind, upper(text));
+    }
+
+    // the search text ends up as a like parameter (except for StringComparator.EQUALS) so '%' and
+    // '_' are wildcards, and trigrams cannot span them
+    private static Set<Long> getSearchTrigrams(String text) {
+        Set<Long> trigrams = Sets.newLinkedHashSet();
+        String upper = upper(text);
+        int start = 0;
+        for (int i = 0; i <= upper.length(); i++) {
+            if (i == upper.length() || upper.charAt(i) == '%' || upper.charAt(i) == '_') {
+                addTrigrams(trigrams, upper.substring(start, i));
+                start = i + 1;
+            }
+        }
+        if (trigrams.size() <= MAX_SEARCH_TRIGRAMS) {
+            return trigrams;
+        }
+        Set<Long> capped = Sets.newLinkedHashSet();
+        for (Long trigram : trigrams) {
+            capped.add(trigram);
+            if (capped.size() == MAX_SEARCH_TRIGRAMS) {
+                break;
+            }
+        }
+        return capped;
+    }
+
+    private static void addTrigrams(Set<Long> trigrams, String upper) {
+        for (int i = 0; i + 3 <= upper.length(); i++) {
+            trigrams.add(trigram(upper.charAt(i), upper.charAt(i + 1), upper.charAt(i + 2)));
+        }
+    }
+
+    private static long trigram(char c1, char c2, char c3) {
+        return ((long) c1 << 32) | ((long) c2 << 16) | c3;
+    }
+
+    // same upper casing that is used by StringComparator.formatParameter()
+    private static String upper(String text) {
+        return text.toUpperCase(Locale.ENGLISH);
+    }
+
+    enum TrigramKind {
+        HEADLINE, ERROR_MESSAGE, USER, ATTRIBUTE_VALUE
+    }
+
+    private static class TraceTrigramInsert implements JdbcUpdate {
+
+        private final @Untainted String tableName;
+        private final String traceId;
+        private final long captureTime;
+        private final Map<TrigramKind, Set<Long>> trigrams;
+
+        private TraceTrigramInsert(@Untainted String tableName, String traceId, long captureTime,
+                Map<TrigramKind, Set<Long>> trigrams) {
+            this.tableName = tableName;
+            this.traceId = traceId;
+            this.captureTime = captureTime;
+            this.trigrams = trigrams;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "insert into " + tableName + " (trace_id, kind, trigram, capture_time)"
+                    + " values (?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (Map.Entry<TrigramKind, Set<Long>> entry : trigrams.entrySet()) {
+                String kind = entry.getKey().name();
+                for (Long trigram : entry.getValue()) {
+                    preparedStatement.setString(1, traceId);
+                    preparedStatement.setString(2, kind);
+                    preparedStatement.setLong(3, trigram);
+                    preparedStatement.setLong(4, captureTime);
+                    preparedStatement.addBatch();
+                }
+            }
+        }
+    }
+}
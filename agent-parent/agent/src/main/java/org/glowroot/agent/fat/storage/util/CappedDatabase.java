@@ -60,6 +60,10 @@ public class CappedDatabase {
     private final Thread shutdownHookThread;
     @GuardedBy("lock")
     private RandomAccessFile inFile;
+    @GuardedBy("lock")
+    private int batchDepth;
+    @GuardedBy("lock")
+    private boolean batchNeedsSync;
     private volatile boolean closing = false;
 
     private final Ticker ticker;
@@ -95,6 +99,24 @@ public class CappedDatabase {
         });
     }
 
+    // blocks written between startBatch() and endBatch() (from any thread) share a single fsync
+    // at the end of the batch instead of one fsync per block
+    public void startBatch() {
+        synchronized (lock) {
+            batchDepth++;
+        }
+    }
+
+    public void endBatch() throws IOException {
+        synchronized (lock) {
+            batchDepth--;
+            if (batchDepth == 0 && batchNeedsSync && !closing) {
+                out.sync();
+                batchNeedsSync = false;
+            }
+        }
+    }
+
     public CappedDatabaseStats getStats(String type) {
         CappedDatabaseStats stats = statsByType.get(type);
         if (stats == null) {
@@ -134,7 +156,11 @@ public class CappedDatabase {
             }
             stats.record(countingStreamBeforeCompression.getCount(),
                     countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+            boolean sync = batchDepth == 0;
+            if (!sync) {
+                batchNeedsSync = true;
+            }
+            return out.endBlock(sync);
         }
     }
 
@@ -82,12 +82,24 @@ class CappedDatabaseOutputStream extends OutputStream {
     }
 
     long endBlock() throws IOException {
+        return endBlock(true);
+    }
+
+    // sync can be deferred when writing many blocks at once, as long as sync() is called after the
+    // last block
+    long endBlock(boolean sync) throws IOException {
         out.seek(HEADER_SKIP_BYTES + blockStartPosition);
         out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
+        if (sync) {
+            sync();
+        }
         return blockStartIndex;
     }
 
+    void sync() throws IOException {
+        out.getFD().sync();
+    }
+
     boolean isOverwritten(long cappedId) {
         return cappedId < getSmallestNonOverwrittenId();
     }
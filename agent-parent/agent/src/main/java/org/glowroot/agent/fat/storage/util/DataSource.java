@@ -70,6 +70,7 @@ public class DataSource {
 
     private final Map</*@Untainted*/String, ImmutableList<Column>> tables = Maps.newConcurrentMap();
     private final Map</*@Untainted*/String, ImmutableList<Index>> indexes = Maps.newConcurrentMap();
+    private final Map</*@Untainted*/String, /*@Untainted*/String> views = Maps.newConcurrentMap();
 
     private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
             CacheBuilder.newBuilder().weakValues()
@@ -127,6 +128,10 @@ public class DataSource {
             for (Entry</*@Untainted*/String, ImmutableList<Index>> entry : indexes.entrySet()) {
                 syncIndexes(entry.getKey(), entry.getValue());
             }
+            // views last since they reference the tables above
+            for (Entry</*@Untainted*/String, /*@Untainted*/String> entry : views.entrySet()) {
+                syncView(entry.getKey(), entry.getValue());
+            }
             if (!success) {
                 throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
             }
@@ -330,16 +335,6 @@ public class DataSource {
         }
     }
 
-    public void deleteBefore(@Untainted String tableName, long captureTime) throws SQLException {
-        // delete 100 at a time, which is both faster than deleting all at once, and doesn't
-        // lock the single jdbc connection for one large chunk of time
-        int deleted;
-        do {
-            deleted = update("delete from " + tableName + " where capture_time < ? limit 100",
-                    captureTime);
-        } while (deleted > 0);
-    }
-
     public void syncTable(@Untainted String tableName, List<Column> columns) throws SQLException {
         synchronized (lock) {
             if (closing) {
@@ -361,12 +356,35 @@ public class DataSource {
         }
     }
 
+    public void syncView(@Untainted String viewName, @Untainted String selectSql)
+            throws SQLException {
+        synchronized (lock) {
+            if (closing) {
+                return;
+            }
+            execute("create or replace view " + viewName + " as " + selectSql);
+            views.put(viewName, selectSql);
+        }
+    }
+
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
             return !closing && Schemas.tableExists(tableName, connection);
         }
     }
 
+    public void dropTable(@Untainted String tableName) throws SQLException {
+        synchronized (lock) {
+            if (closing) {
+                return;
+            }
+            execute("drop table if exists " + tableName);
+            // so the table is not re-created by deleteAll()
+            tables.remove(tableName);
+            indexes.remove(tableName);
+        }
+    }
+
     long getDbFileSize() {
         return dbFile == null ? 0 : dbFile.length();
     }
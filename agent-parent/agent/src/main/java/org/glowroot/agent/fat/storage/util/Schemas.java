@@ -96,6 +96,16 @@ public class Schemas {
         }
     }
 
+    // type name that is valid in a cast expression
+    static String getCastTypeName(ColumnType columnType) {
+        if (columnType == ColumnType.AUTO_IDENTITY) {
+            return "bigint";
+        }
+        String typeName = typeNames.get(columnType);
+        checkNotNull(typeName, "Unexpected sql type: %s", columnType);
+        return typeName;
+    }
+
     // useful for upgrades
     static boolean tableExists(String tableName, Connection connection) throws SQLException {
         logger.debug("tableExists(): tableName={}", tableName);
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage.util;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.immutables.value.Value;
+
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.Index;
+
+import static org.glowroot.agent.util.Checkers.castUntainted;
+
+// splits a time series table into one physical table per fixed time window (keyed on the
+// capture_time column) so that expiring old data is a matter of dropping whole tables instead of
+// deleting rows one chunk at a time
+//
+// partition windows are (start, end], matching the rollup convention of rounding capture times up
+// to the end of their interval, so as long as the rollup intervals evenly divide the partition
+// length, every row rolls up into a capture time that lands in the same window
+//
+// optionally, a union all view is maintained under the base table name so that queries which need
+// to group or sort across the whole time range can still be written against a single table
+public class TimePartitionedTable {
+
+    private final DataSource dataSource;
+    private final @Untainted String baseTableName;
+    private final ImmutableList<Column> columns;
+    private final ImmutableList<Index> indexes;
+    private final long partitionMillis;
+    private final boolean unionView;
+
+    // keyed by partition number (partition end = partition number * partitionMillis)
+    private final NavigableMap<Long, /*@Untainted*/ String> partitions =
+            new ConcurrentSkipListMap<Long, /*@Untainted*/ String>();
+
+    // read lock is held while querying across partitions so that a partition is never dropped
+    // out from under a query
+    private final ReadWriteLock dropLock = new ReentrantReadWriteLock();
+
+    // index names are relative to each partition, e.g. index "idx" is created as "<base>_p<n>_idx"
+    public TimePartitionedTable(DataSource dataSource, @Untainted String baseTableName,
+            ImmutableList<Column> columns, ImmutableList<Index> indexes, long partitionMillis,
+            boolean unionView) throws Exception {
+        this.dataSource = dataSource;
+        this.baseTableName = baseTableName;
+        this.columns = columns;
+        this.indexes = indexes;
+        this.partitionMillis = partitionMillis;
+        this.unionView = unionView;
+        String prefix = (baseTableName + "_p").toUpperCase(Locale.ENGLISH);
+        for (String tableName : dataSource.query(new TableNamesQuery())) {
+            if (!tableName.toUpperCase(Locale.ENGLISH).startsWith(prefix)) {
+                continue;
+            }
+            String suffix = tableName.substring(prefix.length());
+            if (!suffix.matches("[0-9]+")) {
+                continue;
+            }
+            long partitionNum = Long.parseLong(suffix);
+            // sync in order to register the partition with the data source (for deleteAll)
+            syncPartition(partitionNum);
+        }
+        // the base table name is a view (not a table) once the union view has been created
+        if (dataSource.queryForExists("select 1 from information_schema.tables where"
+                + " table_schema = 'PUBLIC' and table_name = ? and table_type = 'TABLE'",
+                baseTableName.toUpperCase(Locale.ENGLISH))) {
+            migrateUnpartitionedTable();
+        }
+        if (unionView) {
+            syncUnionView();
+        }
+    }
+
+    public @Untainted String getPartitionForInsert(long captureTime) throws SQLException {
+        long partitionNum = getPartitionNum(captureTime);
+        String tableName = partitions.get(partitionNum);
+        if (tableName != null) {
+            return tableName;
+        }
+        synchronized (partitions) {
+            tableName = partitions.get(partitionNum);
+            if (tableName == null) {
+                tableName = syncPartition(partitionNum);
+                if (unionView) {
+                    syncUnionView();
+                }
+            }
+            return tableName;
+        }
+    }
+
+    // returns the partitions that overlap the inclusive range [from, to], in capture time order
+    //
+    // callers that are not holding the read lock (see query() below) must only ask for recent
+    // ranges that cannot be concurrently expired
+    public List<Partition> getPartitions(long from, long to) {
+        List<Partition> overlapping = Lists.newArrayList();
+        long fromPartitionNum = getPartitionNum(from);
+        long toPartitionNum = getPartitionNum(to);
+        for (Map.Entry<Long, /*@Untainted*/ String> entry : partitions
+                .subMap(fromPartitionNum, true, toPartitionNum, true).entrySet()) {
+            long partitionNum = entry.getKey();
+            overlapping.add(ImmutablePartition.of(entry.getValue(),
+                    (partitionNum - 1) * partitionMillis, partitionNum * partitionMillis));
+        }
+        return overlapping;
+    }
+
+    // runs the query against each partition overlapping the inclusive range [from, to] and
+    // concatenates the results in capture time order
+    public <T extends /*@NonNull*/ Object> List<T> query(long from, long to,
+            PartitionQueryFactory<T> queryFactory) throws Exception {
+        dropLock.readLock().lock();
+        try {
+            List<T> results = Lists.newArrayList();
+            for (Partition partition : getPartitions(from, to)) {
+                results.addAll(dataSource.query(queryFactory.create(partition.tableName())));
+            }
+            return results;
+        } finally {
+            dropLock.readLock().unlock();
+        }
+    }
+
+    // runs the update against the partition containing captureTime, unless that partition has
+    // already been expired (or was never created)
+    public int update(long captureTime, PartitionUpdateFactory updateFactory)
+            throws SQLException {
+        dropLock.readLock().lock();
+        try {
+            String tableName = partitions.get(getPartitionNum(captureTime));
+            if (tableName == null) {
+                return 0;
+            }
+            return dataSource.update(updateFactory.create(castUntainted(tableName)));
+        } finally {
+            dropLock.readLock().unlock();
+        }
+    }
+
+    // drops every partition whose rows all have capture_time < captureTime, rows in the partition
+    // straddling captureTime are retained until that partition expires as a whole, so data is
+    // kept for up to one partition length past its expiration
+    public void deleteBefore(long captureTime) throws SQLException {
+        List<Long> expiredPartitionNums = Lists.newArrayList();
+        for (Long partitionNum : partitions.keySet()) {
+            if (partitionNum * partitionMillis < captureTime) {
+                expiredPartitionNums.add(partitionNum);
+            }
+        }
+        if (expiredPartitionNums.isEmpty()) {
+            return;
+        }
+        dropLock.writeLock().lock();
+        try {
+            synchronized (partitions) {
+                List<String> expiredTableNames = Lists.newArrayList();
+                for (Long partitionNum : expiredPartitionNums) {
+                    String tableName = partitions.remove(partitionNum);
+                    if (tableName != null) {
+                        expiredTableNames.add(tableName);
+                    }
+                }
+                if (unionView) {
+                    // the view must stop referencing the partitions before they can be dropped
+                    syncUnionView();
+                }
+                for (String tableName : expiredTableNames) {
+                    dataSource.dropTable(castUntainted(tableName));
+                }
+            }
+        } finally {
+            dropLock.writeLock().unlock();
+        }
+    }
+
+    private long getPartitionNum(long captureTime) {
+        // round up, since partition windows are (start, end]
+        long partitionNum = captureTime / partitionMillis;
+        return captureTime % partitionMillis == 0 ? partitionNum : partitionNum + 1;
+    }
+
+    private @Untainted String syncPartition(long partitionNum) throws SQLException {
+        String tableName = baseTableName + "_p" + castUntainted(partitionNum);
+        dataSource.syncTable(tableName, columns);
+        List<Index> partitionIndexes = Lists.newArrayList();
+        for (Index index : indexes) {
+            partitionIndexes
+                    .add(ImmutableIndex.of(tableName + "_" + index.name(), index.columns()));
+        }
+        dataSource.syncIndexes(tableName, ImmutableList.copyOf(partitionIndexes));
+        partitions.put(partitionNum, tableName);
+        return tableName;
+    }
+
+    private void syncUnionView() throws SQLException {
+        String columnList = getColumnList();
+        StringBuilder sb = new StringBuilder();
+        for (String tableName : partitions.values()) {
+            if (sb.length() > 0) {
+                sb.append(" union all ");
+            }
+            sb.append("select ");
+            sb.append(columnList);
+            sb.append(" from ");
+            sb.append(tableName);
+        }
+        if (sb.length() == 0) {
+            // no partitions yet, but the view still needs the right column names and types
+            List<String> nullColumns = Lists.newArrayList();
+            for (Column column : columns) {
+                nullColumns.add("cast(null as " + Schemas.getCastTypeName(column.type()) + ") "
+                        + column.name());
+            }
+            sb.append("select ");
+            sb.append(Joiner.on(", ").join(nullColumns));
+            sb.append(" where 1 = 0");
+        }
+        dataSource.syncView(baseTableName, castUntainted(sb.toString()));
+    }
+
+    private @Untainted String getColumnList() {
+        List<String> columnNames = Lists.newArrayList();
+        for (Column column : columns) {
+            columnNames.add(column.name());
+        }
+        return castUntainted(Joiner.on(", ").join(columnNames));
+    }
+
+    // one-time copy of a table created prior to partitioning
+    private void migrateUnpartitionedTable() throws Exception {
+        Long minCaptureTime = dataSource
+                .queryForOptionalLong("select min(capture_time) from " + baseTableName);
+        Long maxCaptureTime = dataSource
+                .queryForOptionalLong("select max(capture_time) from " + baseTableName);
+        if (minCaptureTime != null && maxCaptureTime != null) {
+            String columnList = getColumnList();
+            long maxPartitionNum = getPartitionNum(maxCaptureTime);
+            for (long partitionNum = getPartitionNum(minCaptureTime);
+                    partitionNum <= maxPartitionNum; partitionNum++) {
+                long partitionStart = (partitionNum - 1) * partitionMillis;
+                long partitionEnd = partitionNum * partitionMillis;
+                if (!dataSource.queryForExists("select 1 from " + baseTableName
+                        + " where capture_time > ? and capture_time <= ? limit 1", partitionStart,
+                        partitionEnd)) {
+                    continue;
+                }
+                // not using getPartitionForInsert() since the union view cannot be created until
+                // the unpartitioned table is dropped
+                String tableName = partitions.get(partitionNum);
+                if (tableName == null) {
+                    tableName = syncPartition(partitionNum);
+                }
+                dataSource.update("insert into " + tableName + " (" + columnList + ") select "
+                        + columnList + " from " + baseTableName
+                        + " where capture_time > ? and capture_time <= ?", partitionStart,
+                        partitionEnd);
+            }
+        }
+        dataSource.dropTable(baseTableName);
+    }
+
+    public interface PartitionQueryFactory<T extends /*@NonNull*/ Object> {
+        JdbcRowQuery<T> create(@Untainted String partitionTableName);
+    }
+
+    public interface PartitionUpdateFactory {
+        JdbcUpdate create(@Untainted String partitionTableName);
+    }
+
+    @Value.Immutable
+    public abstract static class Partition {
+        @Value.Parameter
+        public abstract @Untainted String tableName();
+        // exclusive
+        @Value.Parameter
+        public abstract long from();
+        // inclusive
+        @Value.Parameter
+        public abstract long to();
+    }
+
+    private static class TableNamesQuery implements JdbcRowQuery<String> {
+
+        @Override
+        public @Untainted String getSql() {
+            return "select table_name from information_schema.tables where table_schema = 'PUBLIC'";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) {}
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            String tableName = resultSet.getString(1);
+            return tableName == null ? "" : tableName;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package org.glowroot.agent.impl;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.annotation.Nullable;
@@ -25,8 +26,11 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.agent.config.AdvancedConfig;
 import org.glowroot.agent.model.CommonTimerImpl;
+import org.glowroot.agent.model.FlatTimerTree;
 import org.glowroot.agent.model.Profile;
 import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.agent.model.TimerImpl;
+import org.glowroot.agent.model.TimerTreeShape;
 import org.glowroot.agent.model.Transaction;
 import org.glowroot.agent.model.Transaction.RootTimerCollector;
 import org.glowroot.agent.model.Transaction.ThreadStatsCollector;
@@ -96,8 +100,17 @@ class AggregateCollector {
         if (transaction.isAsync()) {
             asyncTransactions = true;
         }
-        mainThreadStats.mergeThreadStats(transaction.getMainThreadStats());
-        transaction.mergeAuxThreadStatsInto(auxThreadStats);
+        int threadStatsSampleWeight = transaction.getThreadStatsSampleWeight();
+        if (threadStatsSampleWeight == 1) {
+            mainThreadStats.mergeThreadStats(transaction.getMainThreadStats());
+            transaction.mergeAuxThreadStatsInto(auxThreadStats);
+        } else if (threadStatsSampleWeight > 1) {
+            // thread stats are sampled, so scale them up to represent the unsampled transactions
+            mainThreadStats.mergeThreadStats(transaction.getMainThreadStats(),
+                    threadStatsSampleWeight);
+            transaction.mergeAuxThreadStatsInto(
+                    new WeightedThreadStatsCollector(auxThreadStats, threadStatsSampleWeight));
+        }
         durationNanosHistogram.add(totalDurationNanos);
     }
 
@@ -259,12 +272,27 @@ class AggregateCollector {
 
         List<MutableTimer> rootMutableTimers = Lists.newArrayList();
 
+        // timer trees whose shape has been interned are only added up here by shape id, and then
+        // merged by timer name into rootMutableTimers once per shape when the aggregate is read
+        private /*@Nullable*/ ShapeAccumulator[] accumulatorsByShapeId = new ShapeAccumulator[0];
+        private final List<ShapeAccumulator> accumulators = Lists.newArrayList();
+
         @Override
         public void mergeRootTimer(CommonTimerImpl rootTimer) {
+            if (rootTimer instanceof TimerImpl) {
+                FlatTimerTree flatTimerTree = FlatTimerTree.create((TimerImpl) rootTimer);
+                if (flatTimerTree != null) {
+                    getAccumulator(flatTimerTree.getShape()).add(flatTimerTree);
+                    return;
+                }
+            }
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
         private List<Aggregate.Timer> toProto() {
+            for (ShapeAccumulator accumulator : accumulators) {
+                accumulator.mergeInto(rootMutableTimers);
+            }
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableTimer rootMutableTimer : rootMutableTimers) {
                 rootTimers.add(rootMutableTimer.toProto());
@@ -272,18 +300,86 @@ class AggregateCollector {
             return rootTimers;
         }
 
+        private ShapeAccumulator getAccumulator(TimerTreeShape shape) {
+            int shapeId = shape.getId();
+            if (shapeId >= accumulatorsByShapeId.length) {
+                accumulatorsByShapeId = Arrays.copyOf(accumulatorsByShapeId,
+                        Math.max(shapeId + 1, accumulatorsByShapeId.length * 2));
+            }
+            ShapeAccumulator accumulator = accumulatorsByShapeId[shapeId];
+            if (accumulator == null) {
+                accumulator = new ShapeAccumulator(shape);
+                accumulatorsByShapeId[shapeId] = accumulator;
+                accumulators.add(accumulator);
+            }
+            return accumulator;
+        }
+
         private static void mergeRootTimer(CommonTimerImpl toBeMergedRootTimer,
                 List<MutableTimer> rootTimers) {
+            getOrCreateRootTimer(toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended(),
+                    rootTimers).merge(toBeMergedRootTimer);
+        }
+
+        private static MutableTimer getOrCreateRootTimer(String name, boolean extended,
+                List<MutableTimer> rootTimers) {
             for (MutableTimer rootTimer : rootTimers) {
-                if (toBeMergedRootTimer.getName().equals(rootTimer.getName())) {
-                    rootTimer.merge(toBeMergedRootTimer);
-                    return;
+                if (name.equals(rootTimer.getName())) {
+                    return rootTimer;
                 }
             }
-            MutableTimer rootTimer = MutableTimer.createRootTimer(toBeMergedRootTimer.getName(),
-                    toBeMergedRootTimer.isExtended());
-            rootTimer.merge(toBeMergedRootTimer);
+            MutableTimer rootTimer = MutableTimer.createRootTimer(name, extended);
             rootTimers.add(rootTimer);
+            return rootTimer;
+        }
+    }
+
+    private static class ShapeAccumulator {
+
+        private final TimerTreeShape shape;
+        // aggregates use double instead of long to avoid (unlikely) 292 year nanosecond rollover
+        private final double[] totalNanos;
+        private final long[] counts;
+        private boolean empty = true;
+
+        private ShapeAccumulator(TimerTreeShape shape) {
+            this.shape = shape;
+            totalNanos = new double[shape.size()];
+            counts = new long[shape.size()];
+        }
+
+        private void add(FlatTimerTree flatTimerTree) {
+            for (int i = 0; i < totalNanos.length; i++) {
+                totalNanos[i] += flatTimerTree.getTotalNanos(i);
+                counts[i] += flatTimerTree.getCount(i);
+            }
+            empty = false;
+        }
+
+        private void mergeInto(List<MutableTimer> rootMutableTimers) {
+            if (empty) {
+                return;
+            }
+            // parent index is always less than child index since shape is in pre-order
+            /*@Nullable*/ MutableTimer[] mutableTimers = new MutableTimer[totalNanos.length];
+            for (int i = 0; i < totalNanos.length; i++) {
+                String timerName = shape.getTimerName(i);
+                boolean extended = shape.isExtended(i);
+                int parentIndex = shape.getParentIndex(i);
+                MutableTimer mutableTimer;
+                if (parentIndex == -1) {
+                    mutableTimer = RootTimerCollectorImpl.getOrCreateRootTimer(timerName,
+                            extended, rootMutableTimers);
+                } else {
+                    mutableTimer = checkNotNull(mutableTimers[parentIndex])
+                            .getOrCreateChildTimer(timerName, extended);
+                }
+                mutableTimer.merge(totalNanos[i], counts[i]);
+                mutableTimers[i] = mutableTimer;
+            }
+            Arrays.fill(totalNanos, 0);
+            Arrays.fill(counts, 0);
+            empty = true;
         }
     }
 
@@ -298,13 +394,18 @@ class AggregateCollector {
 
         @Override
         public void mergeThreadStats(ThreadStats threadStats) {
-            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, threadStats.getTotalCpuNanos());
+            mergeThreadStats(threadStats, 1);
+        }
+
+        private void mergeThreadStats(ThreadStats threadStats, int weight) {
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos,
+                    scale(threadStats.getTotalCpuNanos(), weight));
             totalBlockedNanos = NotAvailableAware.addMillisToNanos(totalBlockedNanos,
-                    threadStats.getTotalBlockedMillis());
+                    scale(threadStats.getTotalBlockedMillis(), weight));
             totalWaitedNanos = NotAvailableAware.addMillisToNanos(totalWaitedNanos,
-                    threadStats.getTotalWaitedMillis());
+                    scale(threadStats.getTotalWaitedMillis(), weight));
             totalAllocatedBytes = NotAvailableAware.add(totalAllocatedBytes,
-                    threadStats.getTotalAllocatedBytes());
+                    scale(threadStats.getTotalAllocatedBytes(), weight));
             empty = false;
         }
 
@@ -338,5 +439,25 @@ class AggregateCollector {
         private static OptionalDouble toProto(double value) {
             return OptionalDouble.newBuilder().setValue(value).build();
         }
+
+        private static long scale(long value, int weight) {
+            return NotAvailableAware.isNA(value) ? value : value * weight;
+        }
+    }
+
+    private static class WeightedThreadStatsCollector implements ThreadStatsCollector {
+
+        private final ThreadStatsCollectorImpl delegate;
+        private final int weight;
+
+        private WeightedThreadStatsCollector(ThreadStatsCollectorImpl delegate, int weight) {
+            this.delegate = delegate;
+            this.weight = weight;
+        }
+
+        @Override
+        public void mergeThreadStats(ThreadStats threadStats) {
+            delegate.mergeThreadStats(threadStats, weight);
+        }
     }
 }
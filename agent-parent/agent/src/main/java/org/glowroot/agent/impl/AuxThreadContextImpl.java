@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import java.lang.ref.WeakReference;
+
 import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
@@ -39,6 +41,11 @@ public class AuxThreadContextImpl implements AuxThreadContext {
 
     private static final Logger logger = LoggerFactory.getLogger(AuxThreadContextImpl.class);
 
+    // when enabled, tasks run by the same thread for the same transaction share a single auxiliary
+    // thread context (and its timers, queries and trace entries), instead of one per task
+    private static final boolean COALESCE_AUX_THREAD_CONTEXTS =
+            Boolean.getBoolean("glowroot.auxThreadContext.coalesce");
+
     private final Transaction transaction;
     private final TraceEntryImpl parentTraceEntry;
     private final TraceEntryImpl parentThreadContextPriorEntry;
@@ -84,12 +91,25 @@ public class AuxThreadContextImpl implements AuxThreadContext {
             }
             return NopTraceEntry.INSTANCE;
         }
+        if (COALESCE_AUX_THREAD_CONTEXTS) {
+            context = reopenPriorAuxThreadContext(threadContextHolder);
+            if (context != null) {
+                if (completeAsyncTransaction) {
+                    context.completeAsyncTransaction();
+                }
+                return context.getRootEntry();
+            }
+        }
         context = transactionService.startAuxThreadContextInternal(transaction, parentTraceEntry,
                 parentThreadContextPriorEntry, servletMessageSupplier, threadContextHolder);
         if (context == null) {
             // transaction is already complete or auxiliary thread context limit exceeded
             return NopTraceEntry.INSTANCE;
         }
+        if (COALESCE_AUX_THREAD_CONTEXTS) {
+            transactionRegistry.getPriorAuxThreadContextHolder()
+                    .set(new WeakReference<ThreadContextImpl>(context));
+        }
         if (logger.isDebugEnabled()) {
             logger.debug("start AUX thread context: {}, thread context: {},"
                     + " parent thread context: {}, thread name: {}", hashCode(), context.hashCode(),
@@ -101,4 +121,28 @@ public class AuxThreadContextImpl implements AuxThreadContext {
         }
         return context.getRootEntry();
     }
+
+    // re-uses the auxiliary thread context that this thread last ran for the same transaction (if
+    // it has completed and was started from the same parent trace entry), instead of creating a
+    // new thread context for every task
+    private @Nullable ThreadContextImpl reopenPriorAuxThreadContext(
+            Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
+        WeakReference<ThreadContextImpl> priorContextRef =
+                transactionRegistry.getPriorAuxThreadContextHolder().get();
+        if (priorContextRef == null) {
+            return null;
+        }
+        ThreadContextImpl priorContext = priorContextRef.get();
+        if (priorContext == null || priorContext.getTransaction() != transaction
+                || !priorContext.isCompleted()
+                || !priorContext.hasSameParent(parentTraceEntry, parentThreadContextPriorEntry)) {
+            return null;
+        }
+        if (!transactionService.reopenAuxThreadContextInternal(priorContext,
+                threadContextHolder)) {
+            // transaction is already complete
+            return null;
+        }
+        return priorContext;
+    }
 }
@@ -59,6 +59,23 @@ public class MutableTimer {
         timer.mergeChildTimersInto2(childTimers);
     }
 
+    void merge(double totalDurationNanos, long count) {
+        this.count += count;
+        this.totalDurationNanos += totalDurationNanos;
+    }
+
+    MutableTimer getOrCreateChildTimer(String name, boolean extended) {
+        for (MutableTimer childTimer : childTimers) {
+            if (name.equals(childTimer.name) && extended == childTimer.extended) {
+                return childTimer;
+            }
+        }
+        MutableTimer childTimer =
+                new MutableTimer(name, extended, 0, 0, new ArrayList<MutableTimer>());
+        childTimers.add(childTimer);
+        return childTimer;
+    }
+
     Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Random;
+
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+
+// decides which transactions capture thread stats when thread stats are sampled
+//
+// each transaction is sampled independently with probability 1/N and weighted by N, so the scaled
+// up thread stats are unbiased for every transaction type and name (a shared round robin counter
+// can line up with periodic or interleaved traffic, and then always or never sample the same
+// transaction names)
+class ThreadStatsSampler {
+
+    private final int sampleInterval;
+
+    // per-thread random to avoid contention on a shared seed (ThreadLocalRandom is not available
+    // in java 6)
+    private final FastThreadLocal<Random> randoms = new FastThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    ThreadStatsSampler(int sampleInterval) {
+        this.sampleInterval = Math.max(sampleInterval, 1);
+    }
+
+    // returns the number of transactions that the next transaction's thread stats represent, or
+    // zero if the next transaction should not capture thread stats
+    int nextSampleWeight() {
+        if (sampleInterval == 1) {
+            return 1;
+        }
+        return randoms.get().nextInt(sampleInterval) == 0 ? sampleInterval : 0;
+    }
+}
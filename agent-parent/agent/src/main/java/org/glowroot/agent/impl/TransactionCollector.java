@@ -117,6 +117,7 @@ public class TransactionCollector {
         long captureTime = aggregator.add(transaction);
         final boolean slow = shouldStoreSlow(transaction);
         if (!slow && !shouldStoreError(transaction)) {
+            transaction.releaseEntriesForRecycling();
             return;
         }
         // limit doesn't apply to transactions that were already (partially) stored to make sure
@@ -124,6 +125,7 @@ public class TransactionCollector {
         if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
                     + " traces already waiting to be stored", PENDING_LIMIT);
+            transaction.releaseEntriesForRecycling();
             return;
         }
         pendingTransactions.add(transaction);
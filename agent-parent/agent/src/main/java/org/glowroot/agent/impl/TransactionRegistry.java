@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import java.lang.ref.WeakReference;
+
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.impl.TransactionCollection.TransactionEntry;
@@ -35,6 +37,11 @@ public class TransactionRegistry {
     private final FastThreadLocal</*@Nullable*/ ThreadContextImpl> currentThreadContext =
             new FastThreadLocal</*@Nullable*/ ThreadContextImpl>();
 
+    // last auxiliary thread context started by the current thread, only used when coalescing
+    // auxiliary thread contexts (weak reference so that it does not retain completed transactions)
+    private final FastThreadLocal</*@Nullable*/ WeakReference<ThreadContextImpl>> priorAuxContext =
+            new FastThreadLocal</*@Nullable*/ WeakReference<ThreadContextImpl>>();
+
     public TransactionRegistry() {
         TransactionRegistryHolder.transactionRegistry = castInitialized(this);
     }
@@ -53,6 +60,10 @@ public class TransactionRegistry {
         return currentThreadContext.getHolder();
     }
 
+    Holder</*@Nullable*/ WeakReference<ThreadContextImpl>> getPriorAuxThreadContextHolder() {
+        return priorAuxContext.getHolder();
+    }
+
     TransactionEntry addTransaction(Transaction transaction) {
         return transactions.add(transaction);
     }
@@ -42,6 +42,11 @@ public class TransactionServiceImpl implements ConfigListener {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionServiceImpl.class);
 
+    // capture thread stats on only 1 out of every N transactions (when thread stats are enabled),
+    // aggregates scale the sampled thread stats back up by N
+    private static final ThreadStatsSampler threadStatsSampler =
+            new ThreadStatsSampler(Integer.getInteger("glowroot.threadStats.sampleInterval", 1));
+
     private final TransactionRegistry transactionRegistry;
     private final TransactionCollector transactionCollector;
     private final ConfigService configService;
@@ -117,9 +122,15 @@ public class TransactionServiceImpl implements ConfigListener {
             MessageSupplier messageSupplier, TimerName timerName,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
         long startTick = ticker.read();
+        boolean captureThreadStats = this.captureThreadStats;
+        int threadStatsSampleWeight = 1;
+        if (captureThreadStats) {
+            threadStatsSampleWeight = threadStatsSampler.nextSampleWeight();
+            captureThreadStats = threadStatsSampleWeight != 0;
+        }
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
+                threadStatsSampleWeight, maxTraceEntriesPerTransaction, maxAggregateQueriesPerType,
                 maxAggregateServiceCallsPerType, threadAllocatedBytes,
                 transactionCompletionCallback, ticker, transactionRegistry, this, configService,
                 userProfileScheduler, threadContextHolder);
@@ -141,6 +152,12 @@ public class TransactionServiceImpl implements ConfigListener {
                 threadAllocatedBytes);
     }
 
+    boolean reopenAuxThreadContextInternal(ThreadContextImpl auxThreadContext,
+            Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
+        return auxThreadContext.getTransaction().reopenAuxThreadContext(auxThreadContext,
+                ticker.read(), threadContextHolder);
+    }
+
     @Override
     public void onChange() {
         AdvancedConfig advancedConfig = configService.getAdvancedConfig();
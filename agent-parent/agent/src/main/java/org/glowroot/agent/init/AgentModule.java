@@ -205,8 +205,11 @@ public class AgentModule {
         liveTraceRepository = new LiveTraceRepositoryImpl(transactionRegistry, transactionCollector,
                 clock, ticker);
         liveAggregateRepository = new LiveAggregateRepositoryImpl(aggregator);
+        // the classpath cache is only persisted when running with javaagent container, since that
+        // is when the tmp directory is created (see AdviceCache)
         liveWeavingService = new LiveWeavingServiceImpl(analyzedWorld, instrumentation,
-                configService, adviceCache, jvmRetransformClassesSupported);
+                configService, adviceCache, jvmRetransformClassesSupported,
+                instrumentation == null ? null : new File(baseDir, "tmp"));
         liveJvmService = new LiveJvmServiceImpl(lazyPlatformMBeanServer, transactionRegistry,
                 transactionCollector, threadAllocatedBytes.getAvailability());
 
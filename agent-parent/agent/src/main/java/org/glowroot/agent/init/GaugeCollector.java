@@ -19,28 +19,42 @@ import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
-import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,12 +72,23 @@ import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class GaugeCollector extends ScheduledRunnable {
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
+    // number of gauges (mbean object names) that are collected in parallel, so that a single slow
+    // mbean (e.g. one that performs I/O) doesn't delay collection of the other gauges
+    private static final int COLLECTION_THREADS =
+            Integer.getInteger("glowroot.gauge.collectionThreads", 4);
+
+    // defaults to half of the gauge collection interval
+    private static final @Nullable Long COLLECTION_TIMEOUT_MILLIS =
+            Long.getLong("glowroot.gauge.collectionTimeoutMillis");
+
     private final ConfigService configService;
     private final Collector collector;
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
@@ -78,9 +103,30 @@ class GaugeCollector extends ScheduledRunnable {
     // other glowroot background work
     private final ScheduledExecutorService dedicatedExecutor;
 
-    // since gauges have their own dedicated thread, don't need to worry about thread safety of
-    // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
-    private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
+    // gauges are collected in parallel on these threads, while the dedicated thread waits for them
+    //
+    // the pool grows by one thread for each collection that is still running from a prior run
+    // (e.g. an mbean blocked on I/O), so that hung mbeans cannot starve the other gauges
+    private final ThreadPoolExecutor workerExecutor;
+
+    // gauge values are collected on multiple worker threads, but a given counter gauge name is only
+    // collected by one worker thread at a time
+    private final ConcurrentMap<String, RawCounterValue> priorRawCounterValues =
+            Maps.newConcurrentMap();
+
+    // only accessed by the dedicated thread, gauges whose prior collection has not completed yet
+    // are skipped instead of piling up more work behind a slow mbean
+    private Map<String, Future<List<GaugeValue>>> inFlightCollections = Maps.newHashMap();
+
+    // cache of mbean object name pattern matches, cleared whenever an mbean is registered or
+    // unregistered
+    private final ConcurrentMap<ObjectName, Set<ObjectName>> patternMatches =
+            Maps.newConcurrentMap();
+
+    private final AtomicInteger patternMatchesGeneration = new AtomicInteger();
+
+    // patternMatches is only used once the mbean registration listener has been added
+    private volatile boolean mbeanRegistrationListenerAdded;
 
     GaugeCollector(ConfigService configService, Collector collector,
             LazyPlatformMBeanServer lazyPlatformMBeanServer, Clock clock, Ticker ticker) {
@@ -95,6 +141,12 @@ class GaugeCollector extends ScheduledRunnable {
                 .setNameFormat("Glowroot-Gauge-Collector")
                 .build();
         dedicatedExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        ThreadFactory workerThreadFactory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Gauge-Collector-Worker-%d")
+                .build();
+        workerExecutor = new ThreadPoolExecutor(COLLECTION_THREADS, COLLECTION_THREADS, 0,
+                MILLISECONDS, new LinkedBlockingQueue<Runnable>(), workerThreadFactory);
         lazyPlatformMBeanServer.addInitListener(new InitListener() {
             @Override
             public void postInit(MBeanServer mbeanServer) {
@@ -108,20 +160,62 @@ class GaugeCollector extends ScheduledRunnable {
                 } catch (Exception e) {
                     logger.debug(e.getMessage(), e);
                 }
+                addMBeanRegistrationListener(mbeanServer);
             }
         });
     }
 
     @Override
     protected void runInternal() throws Exception {
-        List<GaugeValue> gaugeValues = Lists.newArrayList();
-        if (priorRawCounterValues == null) {
-            // wait to now to initialize priorGaugeValues inside of the dedicated thread
-            priorRawCounterValues = Maps.newHashMap();
+        int stillRunningCount = 0;
+        for (Future<List<GaugeValue>> inFlightCollection : inFlightCollections.values()) {
+            if (!inFlightCollection.isDone()) {
+                stillRunningCount++;
+            }
         }
-        for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
-            gaugeValues.addAll(collectGaugeValues(gaugeConfig));
+        setWorkerPoolSize(COLLECTION_THREADS + stillRunningCount);
+        Map<String, Future<List<GaugeValue>>> futures = Maps.newLinkedHashMap();
+        Map<String, Future<List<GaugeValue>>> stillInFlightCollections = Maps.newHashMap();
+        for (final GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
+            String mbeanObjectName = gaugeConfig.mbeanObjectName();
+            Future<List<GaugeValue>> inFlightCollection =
+                    inFlightCollections.get(mbeanObjectName);
+            if (inFlightCollection != null && !inFlightCollection.isDone()) {
+                // prior collection of this gauge is still running
+                stillInFlightCollections.put(mbeanObjectName, inFlightCollection);
+                continue;
+            }
+            if (futures.containsKey(mbeanObjectName)) {
+                // duplicate gauge config
+                continue;
+            }
+            futures.put(mbeanObjectName,
+                    workerExecutor.submit(new Callable<List<GaugeValue>>() {
+                        @Override
+                        public List<GaugeValue> call() throws Exception {
+                            return collectGaugeValues(gaugeConfig);
+                        }
+                    }));
         }
+        long timeoutMillis = COLLECTION_TIMEOUT_MILLIS == null
+                ? configService.getGaugeCollectionIntervalMillis() / 2 : COLLECTION_TIMEOUT_MILLIS;
+        long deadlineTick = ticker.read() + MILLISECONDS.toNanos(timeoutMillis);
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (Map.Entry<String, Future<List<GaugeValue>>> entry : futures.entrySet()) {
+            String mbeanObjectName = entry.getKey();
+            Future<List<GaugeValue>> future = entry.getValue();
+            try {
+                long remainingNanos = Math.max(deadlineTick - ticker.read(), 0);
+                gaugeValues.addAll(future.get(remainingNanos, NANOSECONDS));
+            } catch (TimeoutException e) {
+                logger.debug(e.getMessage(), e);
+                logFirstTimeMBeanCollectionTimeout(mbeanObjectName, timeoutMillis);
+                stillInFlightCollections.put(mbeanObjectName, future);
+            } catch (ExecutionException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        inFlightCollections = stillInFlightCollections;
         try {
             collector.collectGaugeValues(gaugeValues);
         } catch (Throwable t) {
@@ -130,6 +224,17 @@ class GaugeCollector extends ScheduledRunnable {
         }
     }
 
+    private void setWorkerPoolSize(int poolSize) {
+        // core pool size can never be larger than maximum pool size
+        if (poolSize > workerExecutor.getMaximumPoolSize()) {
+            workerExecutor.setMaximumPoolSize(poolSize);
+            workerExecutor.setCorePoolSize(poolSize);
+        } else if (poolSize < workerExecutor.getCorePoolSize()) {
+            workerExecutor.setCorePoolSize(poolSize);
+            workerExecutor.setMaximumPoolSize(poolSize);
+        }
+    }
+
     void scheduleWithFixedDelay(long initialDelay, long period, TimeUnit unit) {
         scheduleWithFixedDelay(dedicatedExecutor, initialDelay, period, unit);
     }
@@ -139,10 +244,13 @@ class GaugeCollector extends ScheduledRunnable {
         if (!dedicatedExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate gauge collector");
         }
+        workerExecutor.shutdownNow();
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate gauge collector workers");
+        }
     }
 
     @VisibleForTesting
-    @RequiresNonNull("priorRawCounterValues")
     List<GaugeValue> collectGaugeValues(GaugeConfig gaugeConfig) throws InterruptedException {
         String mbeanObjectName = gaugeConfig.mbeanObjectName();
         ObjectName objectName;
@@ -157,7 +265,7 @@ class GaugeCollector extends ScheduledRunnable {
         if (!objectName.isPattern()) {
             return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName);
         }
-        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        Set<ObjectName> matchingObjectNames = getMatchingObjectNames(objectName);
         if (matchingObjectNames.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
             return ImmutableList.of();
@@ -171,10 +279,58 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
-    @RequiresNonNull("priorRawCounterValues")
+    private Set<ObjectName> getMatchingObjectNames(ObjectName pattern)
+            throws InterruptedException {
+        if (!mbeanRegistrationListenerAdded) {
+            return lazyPlatformMBeanServer.queryNames(pattern, null);
+        }
+        Set<ObjectName> matchingObjectNames = patternMatches.get(pattern);
+        if (matchingObjectNames == null) {
+            int generation = patternMatchesGeneration.get();
+            matchingObjectNames = lazyPlatformMBeanServer.queryNames(pattern, null);
+            patternMatches.put(pattern, matchingObjectNames);
+            if (patternMatchesGeneration.get() != generation) {
+                // an mbean was registered or unregistered during the query
+                patternMatches.remove(pattern);
+            }
+        }
+        return matchingObjectNames;
+    }
+
+    @VisibleForTesting
+    void addMBeanRegistrationListener(MBeanServer mbeanServer) {
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        NotificationListener listener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification,
+                    @Nullable Object handback) {
+                patternMatchesGeneration.incrementAndGet();
+                patternMatches.clear();
+            }
+        };
+        try {
+            mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener,
+                    filter, null);
+            mbeanRegistrationListenerAdded = true;
+        } catch (Exception e) {
+            // pattern matches will be queried on each collection
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
     private List<GaugeValue> collectGaugeValues(ObjectName objectName,
             List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName) {
         long captureTime = clock.currentTimeMillis();
+        Map<String, Object> attributeValues;
+        try {
+            attributeValues = getAttributes(objectName, mbeanAttributes);
+        } catch (InstanceNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+            return ImmutableList.of();
+        }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
             String mbeanAttributeName = mbeanAttribute.name();
@@ -182,12 +338,11 @@ class GaugeCollector extends ScheduledRunnable {
             try {
                 if (mbeanAttributeName.contains("/")) {
                     String[] path = mbeanAttributeName.split("\\/");
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName, path[0]);
+                    attributeValue = getAttribute(objectName, path[0], attributeValues);
                     CompositeData compositeData = (CompositeData) attributeValue;
                     attributeValue = compositeData.get(path[1]);
                 } else {
-                    attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, mbeanAttributeName);
+                    attributeValue = getAttribute(objectName, mbeanAttributeName, attributeValues);
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -256,6 +411,50 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    // reads all of the mbean's attributes in a single call, attributes that cannot be read are
+    // omitted by the mbean server, and are read individually later in order to report the error
+    private Map<String, Object> getAttributes(ObjectName objectName,
+            List<ImmutableMBeanAttribute> mbeanAttributes) throws InstanceNotFoundException {
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String mbeanAttributeName = mbeanAttribute.name();
+            int index = mbeanAttributeName.indexOf('/');
+            attributeNames.add(
+                    index == -1 ? mbeanAttributeName : mbeanAttributeName.substring(0, index));
+        }
+        AttributeList attributeList;
+        try {
+            attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                    attributeNames.toArray(new String[attributeNames.size()]));
+        } catch (InstanceNotFoundException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            return ImmutableMap.of();
+        }
+        Map<String, Object> attributeValues = Maps.newHashMap();
+        for (Attribute attribute : attributeList.asList()) {
+            attributeValues.put(attribute.getName(), attribute.getValue());
+        }
+        return attributeValues;
+    }
+
+    private Object getAttribute(ObjectName objectName, String attributeName,
+            Map<String, Object> attributeValues) throws Exception {
+        if (attributeValues.containsKey(attributeName)) {
+            return attributeValues.get(attributeName);
+        }
+        return lazyPlatformMBeanServer.getAttribute(objectName, attributeName);
+    }
+
+    private void logFirstTimeMBeanCollectionTimeout(String mbeanObjectName, long timeoutMillis) {
+        if (loggedMBeanGauges.add(mbeanObjectName + "/timeout")) {
+            logger.warn("mbean gauge collection took longer than {} milliseconds: {} (collection of"
+                    + " this gauge will be skipped until it completes)", timeoutMillis,
+                    mbeanObjectName);
+        }
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
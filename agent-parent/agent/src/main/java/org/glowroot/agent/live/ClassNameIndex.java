@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
+import org.glowroot.agent.live.ClasspathCache.Location;
+
+// immutable sorted index of class names, updates build a new index (by merging) so that searches
+// never need to hold a lock
+class ClassNameIndex {
+
+    static final ClassNameIndex EMPTY = new ClassNameIndex(new String[0], new Location[0]);
+
+    // sorted by String.CASE_INSENSITIVE_ORDER, the same class name can appear multiple times (one
+    // for each location that it is found in)
+    private final String[] classNames;
+    private final Location[] locations;
+
+    // indexes into classNames, sorted (case insensitive) by simple name, where simple name is the
+    // part after the last '.' or '$'
+    private final int[] simpleNameOrder;
+
+    private ClassNameIndex(String[] classNames, Location[] locations) {
+        this.classNames = classNames;
+        this.locations = locations;
+        simpleNameOrder = buildSimpleNameOrder(classNames);
+    }
+
+    int size() {
+        return classNames.length;
+    }
+
+    ClassNameIndex merge(Multimap<String, Location> newClassNameLocations) {
+        if (newClassNameLocations.isEmpty()) {
+            return this;
+        }
+        List<Map.Entry<String, Location>> entries =
+                Lists.newArrayList(newClassNameLocations.entries());
+        Collections.sort(entries, EntryOrdering.INSTANCE);
+        int size = classNames.length + entries.size();
+        String[] mergedClassNames = new String[size];
+        Location[] mergedLocations = new Location[size];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < size; k++) {
+            if (j == entries.size() || i < classNames.length && String.CASE_INSENSITIVE_ORDER
+                    .compare(classNames[i], entries.get(j).getKey()) <= 0) {
+                mergedClassNames[k] = classNames[i];
+                mergedLocations[k] = locations[i];
+                i++;
+            } else {
+                Map.Entry<String, Location> entry = entries.get(j++);
+                mergedClassNames[k] = entry.getKey();
+                mergedLocations[k] = entry.getValue();
+            }
+        }
+        return new ClassNameIndex(mergedClassNames, mergedLocations);
+    }
+
+    List<Location> getLocations(String className) {
+        List<Location> matches = Lists.newArrayList();
+        for (int i = lowerBound(className); i < classNames.length; i++) {
+            if (!classNames[i].equalsIgnoreCase(className)) {
+                break;
+            }
+            if (classNames[i].equals(className)) {
+                matches.add(locations[i]);
+            }
+        }
+        return matches;
+    }
+
+    // adds class names starting with the given (case insensitive) prefix
+    void addClassNamesWithPrefix(String prefix, ClassNameCollector collector) {
+        for (int i = lowerBound(prefix); i < classNames.length; i++) {
+            String className = classNames[i];
+            if (!className.regionMatches(true, 0, prefix, 0, prefix.length())
+                    || !collector.collect(className)) {
+                return;
+            }
+        }
+    }
+
+    // adds class names whose simple name starts with (or is equal to, if exact is true) the given
+    // (case insensitive) simple name
+    void addClassNamesWithSimpleName(String simpleName, boolean exact,
+            ClassNameCollector collector) {
+        for (int i = simpleNameLowerBound(simpleName); i < simpleNameOrder.length; i++) {
+            String className = classNames[simpleNameOrder[i]];
+            int start = simpleNameStart(className);
+            if (!className.regionMatches(true, start, simpleName, 0, simpleName.length())) {
+                return;
+            }
+            if (exact && className.length() - start != simpleName.length()) {
+                // sorted after all exact matches
+                return;
+            }
+            if (!collector.collect(className)) {
+                return;
+            }
+        }
+    }
+
+    void addAllClassNames(ClassNameCollector collector) {
+        for (String className : classNames) {
+            if (!collector.collect(className)) {
+                return;
+            }
+        }
+    }
+
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = classNames.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(classNames[mid], key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int simpleNameLowerBound(String simpleName) {
+        int low = 0;
+        int high = simpleNameOrder.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            String className = classNames[simpleNameOrder[mid]];
+            if (compareIgnoreCase(className, simpleNameStart(className), simpleName, 0) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    static int simpleNameStart(String className) {
+        return Math.max(className.lastIndexOf('.'), className.lastIndexOf('$')) + 1;
+    }
+
+    // same ordering as String.CASE_INSENSITIVE_ORDER, but starting at the given offsets
+    private static int compareIgnoreCase(String s1, int start1, String s2, int start2) {
+        int n1 = s1.length() - start1;
+        int n2 = s2.length() - start2;
+        int min = Math.min(n1, n2);
+        for (int i = 0; i < min; i++) {
+            char c1 = s1.charAt(start1 + i);
+            char c2 = s2.charAt(start2 + i);
+            if (c1 != c2) {
+                c1 = Character.toUpperCase(c1);
+                c2 = Character.toUpperCase(c2);
+                if (c1 != c2) {
+                    c1 = Character.toLowerCase(c1);
+                    c2 = Character.toLowerCase(c2);
+                    if (c1 != c2) {
+                        return c1 - c2;
+                    }
+                }
+            }
+        }
+        return n1 - n2;
+    }
+
+    private static int[] buildSimpleNameOrder(final String[] classNames) {
+        Integer[] order = new Integer[classNames.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                String leftClassName = classNames[left];
+                String rightClassName = classNames[right];
+                return compareIgnoreCase(leftClassName, simpleNameStart(leftClassName),
+                        rightClassName, simpleNameStart(rightClassName));
+            }
+        });
+        int[] simpleNameOrder = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            simpleNameOrder[i] = order[i];
+        }
+        return simpleNameOrder;
+    }
+
+    interface ClassNameCollector {
+        // returns false when no more class names are needed
+        boolean collect(String className);
+    }
+
+    private static class EntryOrdering implements Comparator<Map.Entry<String, Location>> {
+
+        private static final EntryOrdering INSTANCE = new EntryOrdering();
+
+        @Override
+        public int compare(Map.Entry<String, Location> left, Map.Entry<String, Location> right) {
+            return String.CASE_INSENSITIVE_ORDER.compare(left.getKey(), right.getKey());
+        }
+    }
+}
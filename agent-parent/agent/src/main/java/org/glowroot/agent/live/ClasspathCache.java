@@ -15,8 +15,13 @@
  */
 package org.glowroot.agent.live;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.instrument.Instrumentation;
@@ -27,11 +32,9 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
@@ -40,18 +43,16 @@ import java.util.jar.Manifest;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
-import com.google.common.collect.TreeMultimap;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closer;
 import com.google.common.io.Resources;
@@ -63,6 +64,7 @@ import org.objectweb.asm.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.live.ClassNameIndex.ClassNameCollector;
 import org.glowroot.agent.util.Reflections;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.ClassNames;
@@ -72,75 +74,86 @@ import static org.objectweb.asm.Opcodes.ACC_NATIVE;
 import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
 import static org.objectweb.asm.Opcodes.ASM5;
 
-// TODO remove items from classpathLocations and classNameLocations when class loaders are no longer
+// TODO remove items from classpathLocations and classNameIndex when class loaders are no longer
 // present, e.g. in wildfly after undeploying an application
 class ClasspathCache {
 
     private static final Logger logger = LoggerFactory.getLogger(ClasspathCache.class);
 
+    private static final String PERSISTENCE_FILE_NAME = "classpath-cache.bin";
+    private static final int PERSISTENCE_FORMAT_VERSION = 1;
+    // DataOutputStream.writeUTF() is limited to 65535 bytes of modified utf-8
+    private static final int MAX_PERSISTED_STRING_LENGTH = 65535 / 3;
+
     private final AnalyzedWorld analyzedWorld;
     private final @Nullable Instrumentation instrumentation;
+    private final @Nullable File persistenceFile;
+
+    private final Object lock = new Object();
 
-    @GuardedBy("this")
+    @GuardedBy("lock")
     private final Set<Location> classpathLocations = Sets.newHashSet();
 
-    // using ImmutableMultimap because it is very space efficient
-    // this is not updated often so trading space efficiency for copying the entire map on update
-    @GuardedBy("this")
-    private ImmutableMultimap<String, Location> classNameLocations = ImmutableMultimap.of();
+    // class names found in jar files (keyed by jar file path), persisted across restarts so that
+    // unchanged jar files (same last modified and length) do not need to be scanned again
+    @GuardedBy("lock")
+    private @Nullable Map<String, JarClassNames> jarClassNamesCache;
+
+    @GuardedBy("lock")
+    private boolean jarClassNamesCacheDirty;
 
-    ClasspathCache(AnalyzedWorld analyzedWorld, @Nullable Instrumentation instrumentation) {
+    // the index is immutable and is replaced on update so that searches do not need the lock
+    private volatile ClassNameIndex classNameIndex = ClassNameIndex.EMPTY;
+
+    ClasspathCache(AnalyzedWorld analyzedWorld, @Nullable Instrumentation instrumentation,
+            @Nullable File tmpDir) {
         this.analyzedWorld = analyzedWorld;
         this.instrumentation = instrumentation;
+        persistenceFile = tmpDir == null ? null : new File(tmpDir, PERSISTENCE_FILE_NAME);
     }
 
-    // using synchronization instead of concurrent structures in this cache to conserve memory
-    synchronized ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
+    ImmutableList<String> getMatchingClassNames(String partialClassName, int limit) {
         // update cache before proceeding
         updateCache();
+        ClassNameIndex index = classNameIndex;
         PartialClassNameMatcher matcher = new PartialClassNameMatcher(partialClassName);
-        Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
-        Set<String> matchingClassNames = Sets.newLinkedHashSet();
-        // also check loaded classes, e.g. for groovy classes
-        Iterator<String> i = classNameLocations.keySet().iterator();
-        if (instrumentation != null) {
-            List<String> loadedClassNames = Lists.newArrayList();
-            for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
-                if (!clazz.getName().startsWith("[")) {
-                    loadedClassNames.add(clazz.getName());
-                }
+        MatchingClassNameCollector collector = new MatchingClassNameCollector(matcher, limit);
+        String simpleName = partialClassName.substring(
+                ClassNameIndex.simpleNameStart(partialClassName));
+        if (simpleName.isEmpty()) {
+            index.addAllClassNames(collector);
+        } else {
+            // all full matches have the same simple name as the partial class name
+            index.addClassNamesWithSimpleName(simpleName, true, collector);
+            if (!collector.hasAllMatches()) {
+                index.addClassNamesWithPrefix(partialClassName, collector);
             }
-            i = Iterators.concat(i, loadedClassNames.iterator());
-        }
-        while (i.hasNext()) {
-            String className = i.next();
-            String classNameUpper = className.toUpperCase(Locale.ENGLISH);
-            boolean potentialFullMatch = matcher.isPotentialFullMatch(classNameUpper);
-            if (matchingClassNames.size() == limit && !potentialFullMatch) {
-                // once limit reached, only consider full matches
-                continue;
+            if (!collector.hasAllMatches() && simpleName.equals(partialClassName)) {
+                index.addClassNamesWithSimpleName(simpleName, false, collector);
             }
-            if (fullMatchingClassNames.size() == limit) {
-                break;
+            if (!collector.hasAllMatches()) {
+                // fall back to scanning for matches in the middle of class names
+                index.addAllClassNames(collector);
             }
-            if (matcher.isPotentialMatch(classNameUpper)) {
-                if (potentialFullMatch) {
-                    fullMatchingClassNames.add(className);
-                } else {
-                    matchingClassNames.add(className);
+        }
+        if (instrumentation != null) {
+            // also check loaded classes, e.g. for groovy classes
+            for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+                String className = clazz.getName();
+                if (!className.startsWith("[") && !collector.collect(className)) {
+                    break;
                 }
             }
         }
-        return combineClassNamesWithLimit(fullMatchingClassNames, matchingClassNames, limit);
+        return combineClassNamesWithLimit(collector.fullMatchingClassNames,
+                collector.matchingClassNames, limit);
     }
 
-    // using synchronization over concurrent structures in this cache to conserve memory
-    synchronized ImmutableList<UiAnalyzedMethod> getAnalyzedMethods(String className) {
+    ImmutableList<UiAnalyzedMethod> getAnalyzedMethods(String className) {
         // update cache before proceeding
         updateCache();
         Set<UiAnalyzedMethod> analyzedMethods = Sets.newHashSet();
-        Collection<Location> locations = classNameLocations.get(className);
-        for (Location location : locations) {
+        for (Location location : classNameIndex.getLocations(className)) {
             try {
                 analyzedMethods.addAll(getAnalyzedMethods(location, className));
             } catch (IOException e) {
@@ -158,20 +171,26 @@ class ClasspathCache {
         return ImmutableList.copyOf(analyzedMethods);
     }
 
-    // using synchronization over concurrent structures in this cache to conserve memory
-    synchronized void updateCache() {
-        Multimap<String, Location> newClassNameLocations = HashMultimap.create();
-        for (ClassLoader loader : getKnownClassLoaders()) {
-            updateCache(loader, newClassNameLocations);
-        }
-        updateCacheWithClasspathClasses(newClassNameLocations);
-        updateCacheWithBootstrapClasses(newClassNameLocations);
-        if (!newClassNameLocations.isEmpty()) {
-            Multimap<String, Location> newMap =
-                    TreeMultimap.create(String.CASE_INSENSITIVE_ORDER, Ordering.allEqual());
-            newMap.putAll(classNameLocations);
-            newMap.putAll(newClassNameLocations);
-            classNameLocations = ImmutableMultimap.copyOf(newMap);
+    // only locations that have not been seen before are scanned, and the new class names are
+    // merged into a new index
+    void updateCache() {
+        synchronized (lock) {
+            if (jarClassNamesCache == null) {
+                jarClassNamesCache = readJarClassNamesCache();
+            }
+            Multimap<String, Location> newClassNameLocations = HashMultimap.create();
+            for (ClassLoader loader : getKnownClassLoaders()) {
+                updateCache(loader, newClassNameLocations);
+            }
+            updateCacheWithClasspathClasses(newClassNameLocations);
+            updateCacheWithBootstrapClasses(newClassNameLocations);
+            if (!newClassNameLocations.isEmpty()) {
+                classNameIndex = classNameIndex.merge(newClassNameLocations);
+            }
+            if (jarClassNamesCacheDirty) {
+                writeJarClassNamesCache();
+                jarClassNamesCacheDirty = false;
+            }
         }
     }
 
@@ -186,7 +205,7 @@ class ClasspathCache {
         return ImmutableList.copyOf(fullMatchingClassNames);
     }
 
-    @GuardedBy("this")
+    @GuardedBy("lock")
     private void updateCacheWithClasspathClasses(Multimap<String, Location> newClassNameLocations) {
         String javaClassPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
         if (javaClassPath == null) {
@@ -203,7 +222,7 @@ class ClasspathCache {
     }
 
     // TODO refactor this and above method which are nearly identical
-    @GuardedBy("this")
+    @GuardedBy("lock")
     private void updateCacheWithBootstrapClasses(Multimap<String, Location> newClassNameLocations) {
         String bootClassPath = System.getProperty("sun.boot.class.path");
         if (bootClassPath == null) {
@@ -258,7 +277,7 @@ class ClasspathCache {
         return analyzedMethods;
     }
 
-    @GuardedBy("this")
+    @GuardedBy("lock")
     private void updateCache(ClassLoader loader, Multimap<String, Location> newClassNameLocations) {
         List<URL> urls = getURLs(loader);
         List<Location> locations = Lists.newArrayList();
@@ -340,7 +359,8 @@ class ClasspathCache {
         return loaders;
     }
 
-    private static void loadClassNames(Location location,
+    @GuardedBy("lock")
+    private void loadClassNames(Location location,
             Multimap<String, Location> newClassNameLocations) {
         try {
             File dir = location.directory();
@@ -348,11 +368,14 @@ class ClasspathCache {
             if (dir != null) {
                 loadClassNamesFromDirectory(dir, "", location, newClassNameLocations);
             } else if (jarFile != null) {
-                String nestedJarFilePath = location.nestedJarFilePath();
-                if (nestedJarFilePath == null) {
-                    loadClassNamesFromJarFile(jarFile, location, newClassNameLocations);
-                } else {
-                    loadClassNamesFromNestedJarFile(jarFile, nestedJarFilePath, location,
+                JarClassNames jarClassNames =
+                        getJarClassNames(jarFile, location.nestedJarFilePath());
+                for (String className : jarClassNames.classNames()) {
+                    newClassNameLocations.put(className, location);
+                }
+                String manifestClassPath = jarClassNames.manifestClassPath();
+                if (manifestClassPath != null) {
+                    loadClassNamesFromManifestClassPath(manifestClassPath, jarFile,
                             newClassNameLocations);
                 }
             } else {
@@ -366,6 +389,97 @@ class ClasspathCache {
         }
     }
 
+    @GuardedBy("lock")
+    private JarClassNames getJarClassNames(File jarFile, @Nullable String nestedJarFilePath)
+            throws IOException {
+        checkNotNull(jarClassNamesCache);
+        String key = jarFile.getPath();
+        if (nestedJarFilePath != null) {
+            key += "!/" + nestedJarFilePath;
+        }
+        long lastModified = jarFile.lastModified();
+        long length = jarFile.length();
+        JarClassNames jarClassNames = jarClassNamesCache.get(key);
+        if (jarClassNames != null && jarClassNames.lastModified() == lastModified
+                && jarClassNames.length() == length) {
+            return jarClassNames;
+        }
+        ImmutableJarClassNames.Builder builder = ImmutableJarClassNames.builder()
+                .lastModified(lastModified)
+                .length(length);
+        if (nestedJarFilePath == null) {
+            loadClassNamesFromJarFile(jarFile, builder);
+        } else {
+            loadClassNamesFromNestedJarFile(jarFile, nestedJarFilePath, builder);
+        }
+        jarClassNames = builder.build();
+        jarClassNamesCache.put(key, jarClassNames);
+        jarClassNamesCacheDirty = true;
+        return jarClassNames;
+    }
+
+    @GuardedBy("lock")
+    private void loadClassNamesFromManifestClassPath(String manifestClassPath, File jarFile,
+            Multimap<String, Location> newClassNameLocations) {
+        URI baseUri = jarFile.toURI();
+        for (String path : Splitter.on(' ').omitEmptyStrings().split(manifestClassPath)) {
+            File file = new File(baseUri.resolve(path));
+            Location location = getLocationFromFile(file);
+            if (location != null) {
+                loadClassNames(location, newClassNameLocations);
+            }
+        }
+    }
+
+    private Map<String, JarClassNames> readJarClassNamesCache() {
+        Map<String, JarClassNames> cache = Maps.newHashMap();
+        if (persistenceFile == null || !persistenceFile.exists()) {
+            return cache;
+        }
+        try {
+            readJarClassNamesCache(persistenceFile, cache);
+        } catch (IOException e) {
+            // the cache is only an optimization, so just start over
+            logger.debug(e.getMessage(), e);
+            cache.clear();
+            deleteCorruptedPersistenceFile(persistenceFile);
+        } catch (RuntimeException e) {
+            logger.debug(e.getMessage(), e);
+            cache.clear();
+            deleteCorruptedPersistenceFile(persistenceFile);
+        }
+        return cache;
+    }
+
+    private static void deleteCorruptedPersistenceFile(File persistenceFile) {
+        // delete so that the next update does not try (and fail) to read it again before it is
+        // re-written
+        if (!persistenceFile.delete()) {
+            logger.debug("unable to delete file: {}", persistenceFile);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void writeJarClassNamesCache() {
+        if (persistenceFile == null) {
+            return;
+        }
+        checkNotNull(jarClassNamesCache);
+        File tmpFile = new File(persistenceFile.getPath() + ".tmp");
+        try {
+            writeJarClassNamesCache(tmpFile, jarClassNamesCache);
+            if (persistenceFile.exists() && !persistenceFile.delete()) {
+                logger.debug("unable to delete file: {}", persistenceFile);
+                return;
+            }
+            if (!tmpFile.renameTo(persistenceFile)) {
+                logger.debug("unable to rename file: {}", tmpFile);
+            }
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
     private static void loadClassNamesFromDirectory(File dir, String prefix, Location location,
             Multimap<String, Location> newClassNameLocations) throws MalformedURLException {
         File[] files = dir.listFiles();
@@ -384,14 +498,17 @@ class ClasspathCache {
         }
     }
 
-    private static void loadClassNamesFromJarFile(File jarFile, Location location,
-            Multimap<String, Location> newClassNameLocations) throws IOException {
+    private static void loadClassNamesFromJarFile(File jarFile,
+            ImmutableJarClassNames.Builder builder) throws IOException {
         Closer closer = Closer.create();
         InputStream s = new FileInputStream(jarFile);
         JarInputStream jarIn = closer.register(new JarInputStream(s));
         try {
-            loadClassNamesFromManifestClassPath(jarIn, jarFile, newClassNameLocations);
-            loadClassNamesFromJarInputStream(jarIn, location, newClassNameLocations);
+            Manifest manifest = jarIn.getManifest();
+            if (manifest != null) {
+                builder.manifestClassPath(manifest.getMainAttributes().getValue("Class-Path"));
+            }
+            builder.addAllClassNames(loadClassNamesFromJarInputStream(jarIn));
         } catch (Throwable t) {
             throw closer.rethrow(t);
         } finally {
@@ -400,8 +517,7 @@ class ClasspathCache {
     }
 
     private static void loadClassNamesFromNestedJarFile(File jarFile, String nestedJarFilePath,
-            Location location, Multimap<String, Location> newClassNameLocations)
-            throws IOException {
+            ImmutableJarClassNames.Builder builder) throws IOException {
         URI uri;
         try {
             uri = new URI("jar", "file:" + jarFile.getPath() + "!/" + nestedJarFilePath, "");
@@ -413,7 +529,7 @@ class ClasspathCache {
         InputStream s = uri.toURL().openStream();
         JarInputStream jarIn = closer.register(new JarInputStream(s));
         try {
-            loadClassNamesFromJarInputStream(jarIn, location, newClassNameLocations);
+            builder.addAllClassNames(loadClassNamesFromJarInputStream(jarIn));
         } catch (Throwable t) {
             throw closer.rethrow(t);
         } finally {
@@ -421,28 +537,9 @@ class ClasspathCache {
         }
     }
 
-    private static void loadClassNamesFromManifestClassPath(JarInputStream jarIn, File jarFile,
-            Multimap<String, Location> newClassNameLocations) {
-        Manifest manifest = jarIn.getManifest();
-        if (manifest == null) {
-            return;
-        }
-        String classpath = manifest.getMainAttributes().getValue("Class-Path");
-        if (classpath == null) {
-            return;
-        }
-        URI baseUri = jarFile.toURI();
-        for (String path : Splitter.on(' ').omitEmptyStrings().split(classpath)) {
-            File file = new File(baseUri.resolve(path));
-            Location location = getLocationFromFile(file);
-            if (location != null) {
-                loadClassNames(location, newClassNameLocations);
-            }
-        }
-    }
-
-    private static void loadClassNamesFromJarInputStream(JarInputStream jarIn, Location location,
-            Multimap<String, Location> newClassNameLocations) throws IOException {
+    private static List<String> loadClassNamesFromJarInputStream(JarInputStream jarIn)
+            throws IOException {
+        List<String> classNames = Lists.newArrayList();
         JarEntry jarEntry;
         while ((jarEntry = jarIn.getNextJarEntry()) != null) {
             if (jarEntry.isDirectory()) {
@@ -452,9 +549,119 @@ class ClasspathCache {
             if (!name.endsWith(".class")) {
                 continue;
             }
-            String className = name.substring(0, name.lastIndexOf('.')).replace('/', '.');
-            newClassNameLocations.put(className, location);
+            classNames.add(name.substring(0, name.lastIndexOf('.')).replace('/', '.'));
         }
+        // sorted so that the persisted form can share prefixes
+        Collections.sort(classNames);
+        return classNames;
+    }
+
+    @VisibleForTesting
+    static void readJarClassNamesCache(File file, Map<String, JarClassNames> cache)
+            throws IOException {
+        Closer closer = Closer.create();
+        DataInputStream in = closer.register(
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != PERSISTENCE_FORMAT_VERSION) {
+                return;
+            }
+            int jarCount = in.readInt();
+            if (jarCount < 0) {
+                throw new IOException("Corrupted classpath cache, jar count: " + jarCount);
+            }
+            for (int i = 0; i < jarCount; i++) {
+                String key = in.readUTF();
+                ImmutableJarClassNames.Builder builder = ImmutableJarClassNames.builder()
+                        .lastModified(in.readLong())
+                        .length(in.readLong());
+                if (in.readBoolean()) {
+                    builder.manifestClassPath(in.readUTF());
+                }
+                int classNameCount = in.readInt();
+                if (classNameCount < 0) {
+                    throw new IOException(
+                            "Corrupted classpath cache, class name count: " + classNameCount);
+                }
+                String priorClassName = "";
+                for (int j = 0; j < classNameCount; j++) {
+                    // each class name is stored as the length of the prefix shared with the prior
+                    // class name, followed by the remaining suffix
+                    int sharedPrefixLength = in.readUnsignedShort();
+                    if (sharedPrefixLength > priorClassName.length()) {
+                        throw new IOException("Corrupted classpath cache, shared prefix length: "
+                                + sharedPrefixLength);
+                    }
+                    String className =
+                            priorClassName.substring(0, sharedPrefixLength) + in.readUTF();
+                    builder.addClassNames(className);
+                    priorClassName = className;
+                }
+                cache.put(key, builder.build());
+            }
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    @VisibleForTesting
+    static void writeJarClassNamesCache(File file, Map<String, JarClassNames> cache)
+            throws IOException {
+        Map<String, JarClassNames> retained = Maps.newHashMap();
+        for (Map.Entry<String, JarClassNames> entry : cache.entrySet()) {
+            String key = entry.getKey();
+            int index = key.indexOf("!/");
+            File jarFile = new File(index == -1 ? key : key.substring(0, index));
+            String manifestClassPath = entry.getValue().manifestClassPath();
+            // don't retain entries for jar files that no longer exist (e.g. temporary directories
+            // used by application servers), and don't exceed the modified utf-8 length limit
+            if (jarFile.exists() && (manifestClassPath == null
+                    || manifestClassPath.length() < MAX_PERSISTED_STRING_LENGTH)) {
+                retained.put(key, entry.getValue());
+            }
+        }
+        Closer closer = Closer.create();
+        DataOutputStream out = closer.register(
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
+        try {
+            out.writeInt(PERSISTENCE_FORMAT_VERSION);
+            out.writeInt(retained.size());
+            for (Map.Entry<String, JarClassNames> entry : retained.entrySet()) {
+                JarClassNames jarClassNames = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(jarClassNames.lastModified());
+                out.writeLong(jarClassNames.length());
+                String manifestClassPath = jarClassNames.manifestClassPath();
+                out.writeBoolean(manifestClassPath != null);
+                if (manifestClassPath != null) {
+                    out.writeUTF(manifestClassPath);
+                }
+                out.writeInt(jarClassNames.classNames().size());
+                String priorClassName = "";
+                for (String className : jarClassNames.classNames()) {
+                    int sharedPrefixLength =
+                            Math.min(sharedPrefixLength(priorClassName, className), 0xFFFF);
+                    out.writeShort(sharedPrefixLength);
+                    out.writeUTF(className.substring(sharedPrefixLength));
+                    priorClassName = className;
+                }
+            }
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static int sharedPrefixLength(String s1, String s2) {
+        int max = Math.min(s1.length(), s2.length());
+        int i = 0;
+        while (i < max && s1.charAt(i) == s2.charAt(i)) {
+            i++;
+        }
+        return i;
     }
 
     private static @Nullable Location getFileFromJBossVfsURL(URL url, ClassLoader loader)
@@ -485,26 +692,82 @@ class ClasspathCache {
 
     private static class PartialClassNameMatcher {
 
-        private final String partialClassNameUpper;
-        private final String prefixedPartialClassNameUpper1;
-        private final String prefixedPartialClassNameUpper2;
+        private final String partialClassName;
+        private final String prefixedPartialClassName1;
+        private final String prefixedPartialClassName2;
 
         private PartialClassNameMatcher(String partialClassName) {
-            partialClassNameUpper = partialClassName.toUpperCase(Locale.ENGLISH);
-            prefixedPartialClassNameUpper1 = '.' + partialClassNameUpper;
-            prefixedPartialClassNameUpper2 = '$' + partialClassNameUpper;
+            this.partialClassName = partialClassName;
+            prefixedPartialClassName1 = '.' + partialClassName;
+            prefixedPartialClassName2 = '$' + partialClassName;
+        }
+
+        // comparisons are case insensitive, using regionMatches to avoid allocating upper case
+        // copies of every class name
+        private boolean isPotentialFullMatch(String className) {
+            return className.equalsIgnoreCase(partialClassName)
+                    || endsWithIgnoreCase(className, prefixedPartialClassName1)
+                    || endsWithIgnoreCase(className, prefixedPartialClassName2);
+        }
+
+        private boolean isPotentialMatch(String className) {
+            return className.regionMatches(true, 0, partialClassName, 0,
+                    partialClassName.length())
+                    || containsIgnoreCase(className, prefixedPartialClassName1)
+                    || containsIgnoreCase(className, prefixedPartialClassName2);
+        }
+
+        private static boolean endsWithIgnoreCase(String str, String suffix) {
+            int offset = str.length() - suffix.length();
+            return offset >= 0 && str.regionMatches(true, offset, suffix, 0, suffix.length());
+        }
+
+        private static boolean containsIgnoreCase(String str, String substr) {
+            int max = str.length() - substr.length();
+            for (int i = 0; i <= max; i++) {
+                if (str.regionMatches(true, i, substr, 0, substr.length())) {
+                    return true;
+                }
+            }
+            return false;
         }
+    }
+
+    private static class MatchingClassNameCollector implements ClassNameCollector {
+
+        private final PartialClassNameMatcher matcher;
+        private final int limit;
 
-        private boolean isPotentialFullMatch(String classNameUpper) {
-            return classNameUpper.equals(partialClassNameUpper)
-                    || classNameUpper.endsWith(prefixedPartialClassNameUpper1)
-                    || classNameUpper.endsWith(prefixedPartialClassNameUpper2);
+        private final Set<String> fullMatchingClassNames = Sets.newLinkedHashSet();
+        private final Set<String> matchingClassNames = Sets.newLinkedHashSet();
+
+        private MatchingClassNameCollector(PartialClassNameMatcher matcher, int limit) {
+            this.matcher = matcher;
+            this.limit = limit;
         }
 
-        private boolean isPotentialMatch(String classNameUpper) {
-            return classNameUpper.startsWith(partialClassNameUpper)
-                    || classNameUpper.contains(prefixedPartialClassNameUpper1)
-                    || classNameUpper.contains(prefixedPartialClassNameUpper2);
+        @Override
+        public boolean collect(String className) {
+            if (fullMatchingClassNames.size() == limit) {
+                return false;
+            }
+            boolean potentialFullMatch = matcher.isPotentialFullMatch(className);
+            if (matchingClassNames.size() == limit && !potentialFullMatch) {
+                // once limit reached, only consider full matches
+                return true;
+            }
+            if (potentialFullMatch) {
+                fullMatchingClassNames.add(className);
+            } else if (matcher.isPotentialMatch(className)) {
+                matchingClassNames.add(className);
+            }
+            return true;
+        }
+
+        // the index searches look for full matches first, so once there are enough partial
+        // matches there is no need to search the rest of the index
+        private boolean hasAllMatches() {
+            return fullMatchingClassNames.size() == limit || matchingClassNames.size() == limit;
         }
     }
 
@@ -639,6 +902,15 @@ class ClasspathCache {
         throw new UnsupportedOperationException();
     }
 
+    @Value.Immutable
+    interface JarClassNames {
+        long lastModified();
+        long length();
+        @Nullable
+        String manifestClassPath();
+        ImmutableList<String> classNames();
+    }
+
     @Value.Immutable
     interface Location {
         @Nullable
@@ -140,13 +140,13 @@ public class LiveJvmServiceImpl implements LiveJvmService {
 
     @Override
     public MBeanDump getMBeanDump(String agentId, MBeanDumpKind mbeanDumpKind,
-            List<String> objectNames) throws Exception {
+            List<String> objectNames, String domain) throws Exception {
         switch (mbeanDumpKind) {
             case ALL_MBEANS_INCLUDE_ATTRIBUTES:
                 throw new UnsupportedOperationException("Not implemented yet");
             case ALL_MBEANS_INCLUDE_ATTRIBUTES_FOR_SOME:
                 return MBeanDump.newBuilder()
-                        .addAllMbeanInfo(getAllMBeanInfos(objectNames))
+                        .addAllMbeanInfo(getAllMBeanInfos(objectNames, domain))
                         .build();
             case SOME_MBEANS_INCLUDE_ATTRIBUTES:
                 return MBeanDump.newBuilder()
@@ -157,11 +157,19 @@ public class LiveJvmServiceImpl implements LiveJvmService {
         }
     }
 
-    private List<MBeanDump.MBeanInfo> getAllMBeanInfos(List<String> includeAttrsForObjectNames)
-            throws Exception {
-        Set<ObjectName> objectNames = lazyPlatformMBeanServer.queryNames(null, null);
+    private List<MBeanDump.MBeanInfo> getAllMBeanInfos(List<String> includeAttrsForObjectNames,
+            String domain) throws Exception {
+        // filtering by domain here (as opposed to in the ui) keeps the response small on jvms with
+        // very large numbers of mbeans
+        @Nullable
+        ObjectName domainPattern = domain.isEmpty() ? null : new ObjectName(domain + ":*");
+        Set<ObjectName> objectNames = lazyPlatformMBeanServer.queryNames(domainPattern, null);
         List<MBeanDump.MBeanInfo> mbeanInfos = Lists.newArrayList();
         for (ObjectName objectName : objectNames) {
+            if (!domain.isEmpty() && !objectName.getDomain().equals(domain)) {
+                // see comment in getMatchingMBeanObjectNames() about Wildfly not filtering
+                continue;
+            }
             String name = objectName.toString();
             if (includeAttrsForObjectNames.contains(name)) {
                 mbeanInfos.add(MBeanDump.MBeanInfo.newBuilder()
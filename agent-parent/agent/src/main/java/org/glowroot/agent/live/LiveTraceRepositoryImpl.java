@@ -22,12 +22,13 @@ import java.util.List;
 import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.RateLimiter;
 
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
@@ -40,82 +41,108 @@ import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
 public class LiveTraceRepositoryImpl implements LiveTraceRepository {
 
+    // full snapshots walk (and build protobufs for) every entry of a live transaction, so this
+    // bounds the overhead that repeatedly refreshing / exporting large active traces can add
+    //
+    // requests over the limit never wait for a permit (which would tie up the ui request thread),
+    // they get the cheap response below instead
+    private static final double MAX_FULL_SNAPSHOTS_PER_SECOND =
+            Double.parseDouble(System.getProperty("glowroot.liveTrace.maxFullSnapshotsPerSecond",
+                    "10"));
+
+    private static final Trace.Entry TRY_AGAIN_ENTRY = Trace.Entry.newBuilder()
+            .setMessage("Too many live trace snapshot requests, please try again in a moment")
+            .build();
+
     private final TransactionRegistry transactionRegistry;
     private final TransactionCollector transactionCollector;
     private final Clock clock;
     private final Ticker ticker;
 
+    private final RateLimiter fullSnapshotRateLimiter;
+
     public LiveTraceRepositoryImpl(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, Clock clock, Ticker ticker) {
+        this(transactionRegistry, transactionCollector, clock, ticker,
+                MAX_FULL_SNAPSHOTS_PER_SECOND);
+    }
+
+    @VisibleForTesting
+    LiveTraceRepositoryImpl(TransactionRegistry transactionRegistry,
+            TransactionCollector transactionCollector, Clock clock, Ticker ticker,
+            double maxFullSnapshotsPerSecond) {
         this.transactionRegistry = transactionRegistry;
         this.transactionCollector = transactionCollector;
         this.clock = clock;
         this.ticker = ticker;
+        fullSnapshotRateLimiter = RateLimiter.create(maxFullSnapshotsPerSecond);
     }
 
     // checks active traces first, then pending traces (and finally caller should check stored
     // traces) to make sure that the trace is not missed if it is in transition between these states
+    //
+    // the header is requested on each poll of a trace that is still active, so it is not rate
+    // limited, and it only counts the entries instead of building them
     @Override
     public @Nullable Trace.Header getHeader(String agentId, String traceId) throws IOException {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return createTraceHeader(transaction);
-            }
+        Transaction transaction = findTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        return createTraceHeader(transaction);
     }
 
     // this is only called if the trace does have traces, so empty list response means trace was not
     // found (e.g. has expired)
     @Override
     public List<Trace.Entry> getEntries(String agentId, String traceId) {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return transaction.getEntriesProtobuf(ticker.read());
-            }
+        Transaction transaction = findTransaction(traceId);
+        if (transaction == null) {
+            return ImmutableList.of();
+        }
+        if (!fullSnapshotRateLimiter.tryAcquire()) {
+            return ImmutableList.of(TRY_AGAIN_ENTRY);
         }
-        return ImmutableList.of();
+        return transaction.getEntriesProtobuf(ticker.read());
     }
 
     @Override
     public @Nullable Profile getMainThreadProfile(String agentId, String traceId)
             throws IOException {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return transaction.getMainThreadProfileProtobuf();
-            }
+        Transaction transaction = findTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        return transaction.getMainThreadProfileProtobuf();
     }
 
     @Override
     public @Nullable Profile getAuxThreadProfile(String agentId, String traceId)
             throws IOException {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return transaction.getAuxThreadProfileProtobuf();
-            }
+        Transaction transaction = findTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        return transaction.getAuxThreadProfileProtobuf();
     }
 
     @Override
     public @Nullable Trace getFullTrace(String agentId, String traceId) throws IOException {
-        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
-                transactionCollector.getPendingTransactions())) {
-            if (transaction.getTraceId().equals(traceId)) {
-                return createFullTrace(transaction);
-            }
+        Transaction transaction = findTransaction(traceId);
+        if (transaction == null) {
+            return null;
         }
-        return null;
+        if (!fullSnapshotRateLimiter.tryAcquire()) {
+            // the header only counts the entries instead of building them
+            return Trace.newBuilder()
+                    .setId(traceId)
+                    .setHeader(createTraceHeader(transaction))
+                    .addEntry(TRY_AGAIN_ENTRY)
+                    .build();
+        }
+        return createFullTrace(transaction);
     }
 
     @Override
@@ -138,30 +165,35 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
     public List<TracePoint> getMatchingActiveTracePoints(TraceKind traceKind, String agentId,
             String transactionType, @Nullable String transactionName, TracePointFilter filter,
             int limit, long captureTime, long captureTick) {
-        List<TracePoint> activeTracePoints = Lists.newArrayList();
+        // first pass only captures lightweight snapshots (no monitors are taken and no trace ids or
+        // messages are built), and then only the transactions that make the limit are captured
+        List<ActiveTransaction> activeTransactions = Lists.newArrayList();
         for (Transaction transaction : transactionRegistry.getTransactions()) {
             long startTick = transaction.getStartTick();
-            if (matches(transaction, traceKind, transactionType, transactionName, filter)
-                    && startTick < captureTick) {
-                activeTracePoints.add(ImmutableTracePoint.builder()
-                        .agentId(agentId)
-                        .traceId(transaction.getTraceId())
-                        .captureTime(captureTime)
-                        .durationNanos(captureTick - startTick)
-                        .error(transaction.getErrorMessage() != null)
-                        .build());
+            if (startTick >= captureTick) {
+                continue;
+            }
+            long durationNanos = captureTick - startTick;
+            if (matches(transaction, traceKind, transactionType, transactionName, filter,
+                    durationNanos)) {
+                activeTransactions.add(new ActiveTransaction(transaction, durationNanos));
             }
         }
-        Collections.sort(activeTracePoints,
-                Ordering.natural().reverse().onResultOf(new Function<TracePoint, Long>() {
-                    @Override
-                    public Long apply(@Nullable TracePoint tracePoint) {
-                        checkNotNull(tracePoint);
-                        return tracePoint.durationNanos();
-                    }
-                }));
-        if (limit != 0 && activeTracePoints.size() > limit) {
-            activeTracePoints = activeTracePoints.subList(0, limit);
+        if (limit != 0 && activeTransactions.size() > limit) {
+            activeTransactions = ActiveTransaction.ORDERING.greatestOf(activeTransactions, limit);
+        } else {
+            Collections.sort(activeTransactions, ActiveTransaction.ORDERING.reverse());
+        }
+        List<TracePoint> activeTracePoints = Lists.newArrayList();
+        for (ActiveTransaction activeTransaction : activeTransactions) {
+            Transaction transaction = activeTransaction.transaction;
+            activeTracePoints.add(ImmutableTracePoint.builder()
+                    .agentId(agentId)
+                    .traceId(transaction.getTraceId())
+                    .captureTime(captureTime)
+                    .durationNanos(activeTransaction.durationNanos)
+                    .error(transaction.getErrorMessage() != null)
+                    .build());
         }
         return activeTracePoints;
     }
@@ -172,7 +204,8 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
             long captureTime) {
         List<TracePoint> points = Lists.newArrayList();
         for (Transaction transaction : transactionCollector.getPendingTransactions()) {
-            if (matches(transaction, traceKind, transactionType, transactionName, filter)) {
+            if (matches(transaction, traceKind, transactionType, transactionName, filter,
+                    transaction.getDurationNanos())) {
                 points.add(ImmutableTracePoint.builder()
                         .agentId(agentId)
                         .traceId(transaction.getTraceId())
@@ -200,6 +233,16 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         return true;
     }
 
+    private @Nullable Transaction findTransaction(String traceId) {
+        for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
+                transactionCollector.getPendingTransactions())) {
+            if (transaction.getTraceId().equals(traceId)) {
+                return transaction;
+            }
+        }
+        return null;
+    }
+
     private Trace.Header createTraceHeader(Transaction transaction) throws IOException {
         // capture time before checking if complete to guard against condition where partial
         // trace header is created with captureTime > the real (completed) capture time
@@ -221,17 +264,25 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         }
     }
 
+    // cheapest checks first, and headline / attributes are only captured when filtered on
     private boolean matches(Transaction transaction, TraceKind traceKind, String transactionType,
-            @Nullable String transactionName, TracePointFilter filter) {
+            @Nullable String transactionName, TracePointFilter filter, long durationNanos) {
+        if (!matchesTransactionType(transaction, transactionType)
+                || !matchesTransactionName(transaction, transactionName)
+                || !filter.matchesDuration(durationNanos)
+                || !matchesKind(transaction, traceKind)) {
+            return false;
+        }
         ErrorMessage errorMessage = transaction.getErrorMessage();
-        return matchesKind(transaction, traceKind)
-                && matchesTransactionType(transaction, transactionType)
-                && matchesTransactionName(transaction, transactionName)
-                && filter.matchesDuration(transaction.getDurationNanos())
-                && filter.matchesHeadline(transaction.getHeadline())
-                && filter.matchesError(errorMessage == null ? "" : errorMessage.message())
-                && filter.matchesUser(transaction.getUser())
-                && filter.matchesAttributes(transaction.getAttributes().asMap());
+        if (!filter.matchesError(errorMessage == null ? "" : errorMessage.message())
+                || !filter.matchesUser(transaction.getUser())) {
+            return false;
+        }
+        if (filter.hasHeadlineFilter() && !filter.matchesHeadline(transaction.getHeadline())) {
+            return false;
+        }
+        return !filter.hasAttributeFilter()
+                || filter.matchesAttributes(transaction.getAttributes().asMap());
     }
 
     private boolean matchesKind(Transaction transaction, TraceKind traceKind) {
@@ -251,4 +302,23 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
             @Nullable String transactionName) {
         return transactionName == null || transactionName.equals(transaction.getTransactionName());
     }
+
+    private static class ActiveTransaction {
+
+        private static final Ordering<ActiveTransaction> ORDERING =
+                new Ordering<ActiveTransaction>() {
+                    @Override
+                    public int compare(ActiveTransaction left, ActiveTransaction right) {
+                        return Longs.compare(left.durationNanos, right.durationNanos);
+                    }
+                };
+
+        private final Transaction transaction;
+        private final long durationNanos;
+
+        private ActiveTransaction(Transaction transaction, long durationNanos) {
+            this.transaction = transaction;
+            this.durationNanos = durationNanos;
+        }
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.live;
 
+import java.io.File;
 import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Modifier;
 import java.util.List;
@@ -60,6 +61,7 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
     private final ConfigService configService;
     private final AdviceCache adviceCache;
     private final boolean jvmRetransformClassesSupported;
+    private final @Nullable File tmpDir;
 
     // hopefully can simplify someday https://github.com/google/guava/issues/872
     private final LoadingCache<String, ClasspathCache> classpathCache = CacheBuilder.newBuilder()
@@ -68,18 +70,20 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
             .build(new CacheLoader<String, ClasspathCache>() {
                 @Override
                 public ClasspathCache load(String key) throws Exception {
-                    return new ClasspathCache(analyzedWorld, instrumentation);
+                    return new ClasspathCache(analyzedWorld, instrumentation, tmpDir);
                 }
             });
 
     public LiveWeavingServiceImpl(AnalyzedWorld analyzedWorld,
             @Nullable Instrumentation instrumentation, ConfigService configService,
-            AdviceCache adviceCache, boolean jvmRetransformClassesSupported) {
+            AdviceCache adviceCache, boolean jvmRetransformClassesSupported,
+            @Nullable File tmpDir) {
         this.analyzedWorld = analyzedWorld;
         this.instrumentation = instrumentation;
         this.configService = configService;
         this.adviceCache = adviceCache;
         this.jvmRetransformClassesSupported = jvmRetransformClassesSupported;
+        this.tmpDir = tmpDir;
     }
 
     @Override
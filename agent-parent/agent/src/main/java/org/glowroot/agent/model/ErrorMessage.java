@@ -18,7 +18,6 @@ package org.glowroot.agent.model;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -45,7 +44,7 @@ public abstract class ErrorMessage {
 
     // accepts null values so callers don't have to check if passing it in from elsewhere
     static ErrorMessage from(@Nullable String message, @Nullable Throwable t,
-            AtomicInteger transactionThrowableFrameCount) {
+            ThrowableFrameLimitCounter transactionThrowableFrameCount) {
         if (t == null) {
             return ImmutableErrorMessage.of(Strings.nullToEmpty(message), null);
         } else {
@@ -54,7 +53,7 @@ public abstract class ErrorMessage {
     }
 
     private static ErrorMessage fromThrowable(@Nullable String message, Throwable t,
-            AtomicInteger transactionThrowableFrameCount) {
+            ThrowableFrameLimitCounter transactionThrowableFrameCount) {
         String msg = Strings.nullToEmpty(message);
         if (msg.isEmpty()) {
             msg = Strings.nullToEmpty(t.getMessage());
@@ -62,17 +61,21 @@ public abstract class ErrorMessage {
         if (msg.isEmpty()) {
             msg = Strings.nullToEmpty(t.getClass().getName());
         }
-        return ImmutableErrorMessage.of(msg,
-                buildThrowableInfo(t, null, transactionThrowableFrameCount));
+        Proto.Throwable throwableInfo = transactionThrowableFrameCount.getThrowableInfo(t);
+        if (throwableInfo == null) {
+            throwableInfo = buildThrowableInfo(t, null, transactionThrowableFrameCount);
+            transactionThrowableFrameCount.setThrowableInfo(t, throwableInfo);
+        }
+        return ImmutableErrorMessage.of(msg, throwableInfo);
     }
 
     // recursionDepth is important because protobuf limits to 100 total levels of nesting by default
     private static Proto.Throwable buildThrowableInfo(Throwable t,
             @Nullable List<StackTraceElement> causedStackTrace,
-            AtomicInteger transactionThrowableFrameCount) {
+            ThrowableFrameLimitCounter transactionThrowableFrameCount) {
         int framesInCommonWithEnclosing = 0;
         ImmutableList<StackTraceElement> stackTrace = ImmutableList.of();
-        if (transactionThrowableFrameCount.get() < TRANSACTION_THROWABLE_FRAME_LIMIT) {
+        if (transactionThrowableFrameCount.getFrameCount() < TRANSACTION_THROWABLE_FRAME_LIMIT) {
             stackTrace = ImmutableList.copyOf(t.getStackTrace());
             if (causedStackTrace != null) {
                 ListIterator<StackTraceElement> i = stackTrace.listIterator(stackTrace.size());
@@ -92,7 +95,7 @@ public abstract class ErrorMessage {
                             stackTrace.subList(0, stackTrace.size() - framesInCommonWithEnclosing);
                 }
             }
-            transactionThrowableFrameCount.addAndGet(stackTrace.size());
+            transactionThrowableFrameCount.addFrames(stackTrace.size());
         }
         Proto.Throwable.Builder builder = Proto.Throwable.newBuilder()
                 .setClassName(t.getClass().getName());
@@ -105,8 +108,8 @@ public abstract class ErrorMessage {
         }
         builder.setFramesInCommonWithEnclosing(framesInCommonWithEnclosing);
         Throwable cause = t.getCause();
-        if (cause != null
-                && transactionThrowableFrameCount.get() > TRANSACTION_THROWABLE_FRAME_LIMIT) {
+        if (cause != null && transactionThrowableFrameCount.getFrameCount()
+                > TRANSACTION_THROWABLE_FRAME_LIMIT) {
             builder.setCause(Proto.Throwable.newBuilder()
                     .setMessage("Throwable frame capture limit exceeded")
                     .build());
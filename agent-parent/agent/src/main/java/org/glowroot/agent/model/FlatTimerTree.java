@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import javax.annotation.Nullable;
+
+// the values of a completed timer tree, flattened in pre-order according to its shape
+public class FlatTimerTree {
+
+    private final TimerTreeShape shape;
+    private final long[] totalNanos;
+    private final long[] counts;
+
+    private FlatTimerTree(TimerTreeShape shape, long[] totalNanos, long[] counts) {
+        this.shape = shape;
+        this.totalNanos = totalNanos;
+        this.counts = counts;
+    }
+
+    public TimerTreeShape getShape() {
+        return shape;
+    }
+
+    public long getTotalNanos(int index) {
+        return totalNanos[index];
+    }
+
+    public long getCount(int index) {
+        return counts[index];
+    }
+
+    // only called after transaction completion
+    //
+    // returns null if the max number of timer tree shapes has been reached and this timer tree has
+    // a new shape
+    public static @Nullable FlatTimerTree create(TimerImpl rootTimer) {
+        int size = rootTimer.getTimerCount();
+        TimerNameImpl[] timerNames = new TimerNameImpl[size];
+        int[] parentIndexes = new int[size];
+        long[] totalNanos = new long[size];
+        long[] counts = new long[size];
+        rootTimer.flattenInto(timerNames, parentIndexes, totalNanos, counts, 0, -1);
+        TimerTreeShape shape = TimerTreeShape.intern(timerNames, parentIndexes);
+        if (shape == null) {
+            return null;
+        }
+        return new FlatTimerTree(shape, totalNanos, counts);
+    }
+}
@@ -56,6 +56,7 @@ abstract class QueryEntryBase implements QueryEntry {
                 // (though typically query limit is larger than trace entry limit)
                 queryData.setRowNavigationAttempted();
             }
+            rowNavigationUpdated(0);
         }
     }
 
@@ -69,6 +70,7 @@ abstract class QueryEntryBase implements QueryEntry {
                 // (though typically query limit is larger than trace entry limit)
                 queryData.incrementRowCount(1);
             }
+            rowNavigationUpdated(1);
         } else if (currRow == maxRow) {
             currRow++;
             maxRow = currRow;
@@ -77,6 +79,7 @@ abstract class QueryEntryBase implements QueryEntry {
                 // (though typically query limit is larger than trace entry limit)
                 queryData.incrementRowCount(1);
             }
+            rowNavigationUpdated(maxRow);
         } else {
             currRow++;
         }
@@ -93,15 +96,12 @@ abstract class QueryEntryBase implements QueryEntry {
             maxRow = row;
         }
         currRow = row;
+        rowNavigationUpdated(currRow == -1 ? -1 : maxRow);
     }
 
-    // row count -1 means no navigation has been attempted
-    // row count 0 means that navigation has been attempted but there were 0 rows
-    boolean isRowNavigationAttempted() {
-        return currRow != -1;
-    }
+    // called whenever the row count suffix of the trace entry message may have changed
+    // (row count -1 means no navigation has been attempted, row count 0 means that navigation has
+    // been attempted but there were 0 rows)
+    void rowNavigationUpdated(@SuppressWarnings("unused") long rowCount) {}
 
-    long getRowCount() {
-        return maxRow;
-    }
 }
@@ -25,7 +25,6 @@ import javax.annotation.Nullable;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ListMultimap;
 import com.google.common.primitives.Ints;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.slf4j.Logger;
@@ -46,10 +45,8 @@ import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopAsyncTrac
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopQueryEntry;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopTimer;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopTraceEntry;
-import org.glowroot.agent.plugin.api.internal.ReadableMessage;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
-import org.glowroot.agent.util.Tickers;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.util.UsedByGeneratedBytecode;
@@ -130,6 +127,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return transaction;
     }
 
+    @Nullable
+    TraceEntryImpl getParentTraceEntry() {
+        return parentTraceEntry;
+    }
+
     @Nullable
     TraceEntryImpl getParentThreadContextPriorEntry() {
         return parentThreadContextPriorEntry;
@@ -139,6 +141,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return traceEntryComponent.getRootEntry();
     }
 
+    TraceEntryStore getTraceEntryStore() {
+        return traceEntryComponent.getStore();
+    }
+
     TimerImpl getRootTimer() {
         return rootTimer;
     }
@@ -158,13 +164,6 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return traceEntryComponent.isCompleted();
     }
 
-    private boolean isCompleted(long captureTick) {
-        if (!traceEntryComponent.isCompleted()) {
-            return false;
-        }
-        return traceEntryComponent.getEndTick() >= captureTick;
-    }
-
     public @Nullable TimerImpl getCurrentTimer() {
         return currentTimer;
     }
@@ -317,7 +316,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     // passed in just to make sure it is the one on top (and if not, then pop until is is found,
     // preventing any nasty bugs from a missed pop, e.g. a trace never being marked as complete)
     void popEntry(TraceEntryImpl entry, long endTick) {
-        traceEntryComponent.popEntry(entry, endTick);
+        traceEntryComponent.popEntry(entry);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -342,6 +341,24 @@ public class ThreadContextImpl implements ThreadContextPlus {
         transaction.memoryBarrierReadWrite();
     }
 
+    // an auxiliary thread context can only be reopened for a task that was started from the same
+    // place in the parent thread context, otherwise the task's trace entries would be nested under
+    // the wrong parent trace entry
+    public boolean hasSameParent(TraceEntryImpl parentTraceEntry,
+            TraceEntryImpl parentThreadContextPriorEntry) {
+        return this.parentTraceEntry == parentTraceEntry
+                && this.parentThreadContextPriorEntry == parentThreadContextPriorEntry;
+    }
+
+    // reopens this (completed) auxiliary thread context so that it can be re-used by the same
+    // thread for another task of the same transaction, see Transaction.reopenAuxThreadContext()
+    void reopen(long startTick) {
+        traceEntryComponent.reopen(startTick);
+        if (threadStatsComponent != null) {
+            threadStatsComponent.onReopen();
+        }
+    }
+
     // detach is called from another thread
     void detach() {
         // this synchronization protects against clobbering valid thread context in race condition
@@ -765,57 +782,6 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return transaction.startAsyncTimer(asyncTimerName, startTick);
     }
 
-    void populateParentChildMap(ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap,
-            long captureTick,
-            ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryAuxThreadContextMap) {
-        if (captureTick < traceEntryComponent.getStartTick()) {
-            return;
-        }
-        boolean completed = isCompleted(captureTick);
-        TraceEntryImpl entry = getRootEntry();
-        boolean entryIsRoot = true;
-        // filter out entries that started after the capture tick
-        // checking completed is short circuit optimization for the common case
-        while (entry != null
-                && (completed || Tickers.lessThanOrEqual(entry.getStartTick(), captureTick))) {
-            TraceEntryImpl parentTraceEntry = entry.getParentTraceEntry();
-            if (parentTraceEntry == null && !entryIsRoot) {
-                logFoundNonRootEntryWithNullParent(entry);
-                entry = entry.getNextTraceEntry();
-                continue;
-            }
-            if (!entryIsRoot) {
-                parentChildMap.put(parentTraceEntry, entry);
-            }
-            for (ThreadContextImpl auxThreadContext : priorEntryAuxThreadContextMap.get(entry)) {
-                TraceEntryImpl auxThreadRootEntry = auxThreadContext.getRootEntry();
-                if (completed || Tickers.lessThanOrEqual(auxThreadRootEntry.getStartTick(),
-                        captureTick)) {
-                    // checkNotNull is safe b/c aux thread contexts have non-null parent trace entry
-                    parentChildMap.put(checkNotNull(auxThreadContext.parentTraceEntry),
-                            auxThreadRootEntry);
-                }
-            }
-            entry = entry.getNextTraceEntry();
-            entryIsRoot = false;
-        }
-    }
-
-    private void logFoundNonRootEntryWithNullParent(TraceEntryImpl entry) {
-        MessageSupplier messageSupplier = entry.getMessageSupplier();
-        ErrorMessage errorMessage = entry.getErrorMessage();
-        String traceEntryMessage = "";
-        if (messageSupplier != null) {
-            ReadableMessage message = (ReadableMessage) messageSupplier.get();
-            traceEntryMessage = message.getText();
-        } else if (errorMessage != null) {
-            traceEntryMessage = errorMessage.message();
-        }
-        logger.error("found non-root trace entry with null parent trace entry"
-                + "\ntrace entry: {}\ntransaction: {} - {}", traceEntryMessage,
-                transaction.getTransactionType(), transaction.getTransactionName());
-    }
-
     // this does not include the root trace entry
     private class DummyTraceEntryOrQuery extends QueryEntryBase implements AsyncQueryEntry, Timer {
 
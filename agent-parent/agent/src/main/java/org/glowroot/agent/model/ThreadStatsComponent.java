@@ -22,10 +22,10 @@ import java.lang.management.ThreadMXBean;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 
 import org.glowroot.agent.util.ThreadAllocatedBytes;
+import org.glowroot.common.util.NotAvailableAware;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -37,48 +37,53 @@ class ThreadStatsComponent {
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
+    private static final long CONTENTION_MONITORING_ENABLED_CHECK_INTERVAL_MILLIS = 1000;
+
+    // ThreadMXBean.isThreadContentionMonitoringEnabled() is synchronized in the jdk implementation,
+    // so it is only checked periodically instead of on every transaction (racy updates are ok)
+    private static volatile boolean contentionMonitoringEnabled;
+    private static volatile long contentionMonitoringEnabledCheckTime;
+
     private final long threadId;
-    private final long startingCpuNanos;
-    private final long startingBlockedMillis;
-    private final long startingWaitedMillis;
-    private final long startingAllocatedBytes;
+    // these are only updated under lock (by the transaction thread) when the thread context is
+    // reopened, see onReopen()
+    private long startingCpuNanos;
+    private long startingBlockedMillis;
+    private long startingWaitedMillis;
+    private long startingAllocatedBytes;
 
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
 
     @GuardedBy("lock")
-    private volatile @MonotonicNonNull ThreadStats completedThreadStats;
+    private volatile @Nullable ThreadStats completedThreadStats;
+
+    // thread stats from prior (completed) runs of a reopened thread context
+    @GuardedBy("lock")
+    private @Nullable ThreadStats priorThreadStats;
 
     private final Object lock = new Object();
 
     ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
-        if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
-        } else {
-            startingCpuNanos = -1;
-        }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
-            startingBlockedMillis = threadInfo.getBlockedTime();
-            startingWaitedMillis = threadInfo.getWaitedTime();
-        } else {
-            startingBlockedMillis = -1;
-            startingWaitedMillis = -1;
-        }
-        if (threadAllocatedBytes != null) {
-            startingAllocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
-        } else {
-            startingAllocatedBytes = -1;
-        }
         this.threadAllocatedBytes = threadAllocatedBytes;
+        captureStartingValues();
     }
 
     // must be called from transaction thread
     void onComplete() {
         synchronized (lock) {
-            completedThreadStats = getThreadStats();
+            if (completedThreadStats == null) {
+                completedThreadStats = getThreadStatsInternal(true);
+            }
+        }
+    }
+
+    // must be called from transaction thread
+    void onReopen() {
+        synchronized (lock) {
+            priorThreadStats = completedThreadStats;
+            completedThreadStats = null;
+            captureStartingValues();
         }
     }
 
@@ -89,28 +94,32 @@ class ThreadStatsComponent {
                 // transaction thread is still alive (and cannot terminate in the middle of this
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
                 // and ThreadMXBean.getThreadCpuTime() for the transaction thread
-                return getThreadStatsInternal();
+                return getThreadStatsInternal(false);
             } else {
                 return completedThreadStats;
             }
         }
     }
 
-    private ThreadStats getThreadStatsInternal() {
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(-1, -1, -1, -1);
+    private ThreadStats getThreadStatsInternal(boolean currentThread) {
+        @Nullable
+        ThreadInfo threadInfo = null;
+        if (startingBlockedMillis != -1 || startingWaitedMillis != -1) {
+            threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(-1, -1, -1, -1);
+            }
         }
         long totalCpuNanos;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            totalCpuNanos = getTotalCpuNanos();
+            totalCpuNanos = getTotalCpuNanos(currentThread);
         } else {
             totalCpuNanos = -1;
         }
         long totalBlockedMillis;
         long totalWaitedMillis;
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (threadInfo != null) {
             totalBlockedMillis = getTotalBlockedMillis(threadInfo);
             totalWaitedMillis = getTotalWaitedMillis(threadInfo);
         } else {
@@ -123,14 +132,53 @@ class ThreadStatsComponent {
         } else {
             totalAllocatedBytes = -1;
         }
+        if (priorThreadStats != null) {
+            totalCpuNanos =
+                    NotAvailableAware.add(totalCpuNanos, priorThreadStats.getTotalCpuNanos());
+            totalBlockedMillis = NotAvailableAware.add(totalBlockedMillis,
+                    priorThreadStats.getTotalBlockedMillis());
+            totalWaitedMillis = NotAvailableAware.add(totalWaitedMillis,
+                    priorThreadStats.getTotalWaitedMillis());
+            totalAllocatedBytes = NotAvailableAware.add(totalAllocatedBytes,
+                    priorThreadStats.getTotalAllocatedBytes());
+        }
         return new ThreadStats(totalCpuNanos, totalBlockedMillis, totalWaitedMillis,
                 totalAllocatedBytes);
     }
 
-    private long getTotalCpuNanos() {
+    private void captureStartingValues() {
+        if (IS_THREAD_CPU_TIME_SUPPORTED) {
+            startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        } else {
+            startingCpuNanos = -1;
+        }
+        // ThreadMXBean.getThreadInfo() is relatively expensive, and is only needed for blocked and
+        // waited times, which are not available anyways unless thread contention monitoring is
+        // enabled
+        if (isContentionMonitoringEnabled()) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info for current thread cannot be null
+            checkNotNull(threadInfo);
+            startingBlockedMillis = threadInfo.getBlockedTime();
+            startingWaitedMillis = threadInfo.getWaitedTime();
+        } else {
+            startingBlockedMillis = -1;
+            startingWaitedMillis = -1;
+        }
+        if (threadAllocatedBytes != null) {
+            startingAllocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
+        } else {
+            startingAllocatedBytes = -1;
+        }
+    }
+
+    private long getTotalCpuNanos(boolean currentThread) {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
-        long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+        //
+        // getCurrentThreadCpuTime() is cheaper since it doesn't need to look up the thread by id
+        long threadCpuNanos = currentThread ? threadMXBean.getCurrentThreadCpuTime()
+                : threadMXBean.getThreadCpuTime(threadId);
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
             return threadCpuNanos - startingCpuNanos;
         } else {
@@ -160,6 +208,19 @@ class ThreadStatsComponent {
         }
     }
 
+    private static boolean isContentionMonitoringEnabled() {
+        if (!IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+            return false;
+        }
+        long currentTimeMillis = System.currentTimeMillis();
+        if (currentTimeMillis - contentionMonitoringEnabledCheckTime
+                > CONTENTION_MONITORING_ENABLED_CHECK_INTERVAL_MILLIS) {
+            contentionMonitoringEnabled = threadMXBean.isThreadContentionMonitoringEnabled();
+            contentionMonitoringEnabledCheckTime = currentTimeMillis;
+        }
+        return contentionMonitoringEnabled;
+    }
+
     @RequiresNonNull("threadAllocatedBytes")
     private long getThreadAllocatedBytes() {
         long allocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
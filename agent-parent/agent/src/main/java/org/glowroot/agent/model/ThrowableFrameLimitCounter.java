@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import org.glowroot.wire.api.model.Proto;
+
+// counts the throwable frames captured by a transaction, and also remembers the last throwable
+// captured, so that capturing the same throwable again (e.g. a logged exception which marks the
+// transaction as error and then ends the log trace entry with error) shares the frames that were
+// already captured instead of capturing (and counting) them a second time
+class ThrowableFrameLimitCounter {
+
+    private final AtomicInteger frameCount = new AtomicInteger();
+
+    @GuardedBy("this")
+    private @Nullable Throwable lastThrowable;
+    @GuardedBy("this")
+    private @Nullable Proto.Throwable lastThrowableInfo;
+
+    int getFrameCount() {
+        return frameCount.get();
+    }
+
+    void addFrames(int frames) {
+        frameCount.addAndGet(frames);
+    }
+
+    synchronized @Nullable Proto.Throwable getThrowableInfo(Throwable t) {
+        return t == lastThrowable ? lastThrowableInfo : null;
+    }
+
+    synchronized void setThrowableInfo(Throwable t, Proto.Throwable throwableInfo) {
+        lastThrowable = t;
+        lastThrowableInfo = throwableInfo;
+    }
+}
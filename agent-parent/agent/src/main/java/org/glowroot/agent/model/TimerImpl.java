@@ -229,6 +229,37 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         }
     }
 
+    // only called after transaction completion
+    int getTimerCount() {
+        int timerCount = 1;
+        TimerImpl curr = headChild;
+        while (curr != null) {
+            timerCount += curr.getTimerCount();
+            curr = curr.nextSibling;
+        }
+        return timerCount;
+    }
+
+    // only called after transaction completion
+    //
+    // writes this timer and its descendants in pre-order starting at index, and returns the index
+    // after the last timer written
+    int flattenInto(TimerNameImpl[] timerNames, int[] parentIndexes, long[] totalNanos,
+            long[] counts, int index, int parentIndex) {
+        timerNames[index] = timerName;
+        parentIndexes[index] = parentIndex;
+        totalNanos[index] = this.totalNanos;
+        counts[index] = count;
+        int nextIndex = index + 1;
+        TimerImpl curr = headChild;
+        while (curr != null) {
+            nextIndex = curr.flattenInto(timerNames, parentIndexes, totalNanos, counts, nextIndex,
+                    index);
+            curr = curr.nextSibling;
+        }
+        return nextIndex;
+    }
+
     // only called by transaction thread
     public TimerImpl startNestedTimer(TimerName timerName) {
         // timer names are guaranteed one instance per name so pointer equality can be used
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+
+// the shape of a timer tree, which is its timer names and how they are nested (in pre-order)
+//
+// shapes are interned and assigned stable integer ids (starting at 0), so that aggregating timer
+// trees can be done by adding up arrays keyed by shape id, instead of recursively merging each
+// timer tree by timer name
+public class TimerTreeShape {
+
+    private static final int MAX_SHAPES = Integer.getInteger("glowroot.timerTreeShape.max", 1000);
+
+    private static final ConcurrentMap<TimerTreeShape, TimerTreeShape> shapes =
+            Maps.newConcurrentMap();
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private final TimerNameImpl[] timerNames;
+    // -1 for the root timer
+    private final int[] parentIndexes;
+    private final int hashCode;
+    // -1 for shapes that are only used to look up the interned shape
+    private final int id;
+
+    private TimerTreeShape(TimerNameImpl[] timerNames, int[] parentIndexes, int id) {
+        this.timerNames = timerNames;
+        this.parentIndexes = parentIndexes;
+        int hashCode = Arrays.hashCode(parentIndexes);
+        for (TimerNameImpl timerName : timerNames) {
+            // timer names are guaranteed one instance per name so identity can be used
+            hashCode = 31 * hashCode + timerName.specialHashCode();
+        }
+        this.hashCode = hashCode;
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int size() {
+        return timerNames.length;
+    }
+
+    public String getTimerName(int index) {
+        return timerNames[index].name();
+    }
+
+    public boolean isExtended(int index) {
+        return timerNames[index].extended();
+    }
+
+    public int getParentIndex(int index) {
+        return parentIndexes[index];
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TimerTreeShape)) {
+            return false;
+        }
+        TimerTreeShape other = (TimerTreeShape) obj;
+        if (hashCode != other.hashCode || timerNames.length != other.timerNames.length) {
+            return false;
+        }
+        for (int i = 0; i < timerNames.length; i++) {
+            if (timerNames[i] != other.timerNames[i]) {
+                return false;
+            }
+        }
+        return Arrays.equals(parentIndexes, other.parentIndexes);
+    }
+
+    // returns null once the max number of shapes has been reached and this is a new shape, in
+    // which case the caller needs to fall back to merging the timer tree by timer name
+    static @Nullable TimerTreeShape intern(TimerNameImpl[] timerNames, int[] parentIndexes) {
+        TimerTreeShape existingShape =
+                shapes.get(new TimerTreeShape(timerNames, parentIndexes, -1));
+        if (existingShape != null) {
+            return existingShape;
+        }
+        if (shapes.size() >= MAX_SHAPES) {
+            return null;
+        }
+        // if another thread interns the same shape concurrently, the id assigned here is just
+        // skipped, so ids are not necessarily contiguous
+        TimerTreeShape shape =
+                new TimerTreeShape(timerNames, parentIndexes, nextId.getAndIncrement());
+        existingShape = shapes.putIfAbsent(shape, shape);
+        return existingShape == null ? shape : existingShape;
+    }
+
+    // ids are not reused, so shapes interned before this remain valid
+    @VisibleForTesting
+    static void clear() {
+        shapes.clear();
+    }
+}
@@ -52,7 +52,7 @@ public class TraceCreator {
 
     public static Trace.Header createPartialTraceHeader(Transaction transaction, long captureTime,
             long captureTick) throws IOException {
-        int entryCount = transaction.getEntriesProtobuf(captureTick).size();
+        int entryCount = transaction.getEntryCount(captureTick);
         long mainThreadProfileSampleCount = transaction.getMainThreadProfileSampleCount();
         long auxThreadProfileSampleCount = transaction.getAuxThreadProfileSampleCount();
         // only slow transactions reach this point, so setting slow=true (second arg below)
@@ -62,7 +62,7 @@ public class TraceCreator {
 
     public static Trace.Header createCompletedTraceHeader(Transaction transaction)
             throws IOException {
-        int entryCount = transaction.getEntriesProtobuf(transaction.getEndTick()).size();
+        int entryCount = transaction.getEntryCount(transaction.getEndTick());
         long mainProfileSampleCount = transaction.getMainThreadProfileSampleCount();
         long auxProfileSampleCount = transaction.getAuxThreadProfileSampleCount();
         // only slow transactions reach this point, so setting slow=true (second arg below)
@@ -21,6 +21,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.internal.DeferredMessageSupplier;
 
 // this supports updating by a single thread and reading by multiple threads
 class TraceEntryComponent {
@@ -30,11 +31,11 @@ class TraceEntryComponent {
     private final long startTick;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private boolean completed;
-    // not volatile, so depends on memory barrier in Transaction for visibility
-    private long endTick;
 
     private final ThreadContextImpl threadContext;
 
+    private final TraceEntryStore store = new TraceEntryStore();
+
     private final TraceEntryImpl rootEntry;
 
     private TraceEntryImpl activeEntry;
@@ -45,8 +46,8 @@ class TraceEntryComponent {
             TimerImpl timer, long startTick) {
         this.threadContext = threadContext;
         this.startTick = startTick;
-        rootEntry = new TraceEntryImpl(threadContext, null, messageSupplier, null, 0, startTick,
-                timer, null);
+        rootEntry = new TraceEntryImpl(threadContext, null, store, messageSupplier, null, 0,
+                startTick, timer, null);
         activeEntry = rootEntry;
         tailEntry = rootEntry;
     }
@@ -55,6 +56,10 @@ class TraceEntryComponent {
         return rootEntry;
     }
 
+    TraceEntryStore getStore() {
+        return store;
+    }
+
     long getStartTick() {
         return startTick;
     }
@@ -63,28 +68,26 @@ class TraceEntryComponent {
         return completed;
     }
 
-    long getEndTick() {
-        return endTick;
-    }
-
     TraceEntryImpl pushEntry(long startTick, MessageSupplier messageSupplier,
             TimerImpl syncTimer, @Nullable AsyncTimerImpl asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
-        tailEntry.setNextTraceEntry(entry);
+        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, store,
+                messageSupplier, queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
         tailEntry = entry;
         activeEntry = entry;
+        if (messageSupplier instanceof DeferredMessageSupplier) {
+            threadContext.getTransaction().onDeferredTraceEntry(startTick,
+                    (DeferredMessageSupplier) messageSupplier);
+        }
         return entry;
     }
 
     // typically pop() methods don't require the objects to pop, but for safety, the entry is
     // passed in just to make sure it is the one on top (and if not, then pop until it is found,
     // preventing any nasty bugs from a missed pop, e.g. an entry never being marked as complete)
-    void popEntry(TraceEntryImpl entry, long endTick) {
+    void popEntry(TraceEntryImpl entry) {
         popEntrySafe(entry);
         if (entry == rootEntry) {
-            this.endTick = endTick;
             this.completed = true;
         }
     }
@@ -96,12 +99,17 @@ class TraceEntryComponent {
         popEntrySafe(entry);
     }
 
+    void reopen(long startTick) {
+        rootEntry.reopen(startTick);
+        activeEntry = rootEntry;
+        completed = false;
+    }
+
     TraceEntryImpl addErrorEntry(long startTick, long endTick,
             @Nullable MessageSupplier messageSupplier, ErrorMessage errorMessage) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier, null,
-                1, startTick, null, null);
+        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, store,
+                messageSupplier, null, 1, startTick, null, null);
         entry.immediateEndAsErrorEntry(errorMessage, endTick);
-        tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         return entry;
     }
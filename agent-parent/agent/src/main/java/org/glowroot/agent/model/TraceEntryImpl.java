@@ -19,7 +19,6 @@ import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
-import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
@@ -33,8 +32,6 @@ import org.glowroot.agent.plugin.api.Timer;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopTimer;
 import org.glowroot.agent.plugin.api.internal.ReadableMessage;
 import org.glowroot.agent.util.Tickers;
-import org.glowroot.wire.api.model.Proto;
-import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -46,6 +43,9 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
 
     private final ThreadContextImpl threadContext;
     private final @Nullable TraceEntryImpl parentTraceEntry;
+    // once completed, trace entries are only retained by the transaction via the compact store
+    private final TraceEntryStore store;
+    private final int index;
     private final @Nullable MessageSupplier messageSupplier;
 
     // volatile so it can be set from another thread (needed for async trace entries)
@@ -59,9 +59,6 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
     private long endTick;
     private boolean initialComplete;
 
-    // this is for maintaining linear list of trace entries
-    private @Nullable TraceEntryImpl nextTraceEntry;
-
     // only null for trace entries added using addEntryEntry()
     private final @Nullable TimerImpl syncTimer;
     private final @Nullable AsyncTimerImpl asyncTimer;
@@ -74,12 +71,15 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
     private @MonotonicNonNull TimerImpl extendedTimer;
 
     TraceEntryImpl(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
-            @Nullable MessageSupplier messageSupplier, @Nullable QueryData queryData,
-            long queryExecutionCount, long startTick, @Nullable TimerImpl syncTimer,
-            @Nullable AsyncTimerImpl asyncTimer) {
+            TraceEntryStore store, @Nullable MessageSupplier messageSupplier,
+            @Nullable QueryData queryData, long queryExecutionCount, long startTick,
+            @Nullable TimerImpl syncTimer, @Nullable AsyncTimerImpl asyncTimer) {
         super(queryData);
         this.threadContext = threadContext;
         this.parentTraceEntry = parentTraceEntry;
+        this.store = store;
+        index = store.add(startTick, parentTraceEntry == null ? -1 : parentTraceEntry.index,
+                messageSupplier);
         this.messageSupplier = messageSupplier;
         this.startTick = startTick;
         this.syncTimer = syncTimer;
@@ -101,62 +101,14 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
         return errorMessage;
     }
 
-    Trace.Entry toProto(int depth, long transactionStartTick, long captureTick) {
-        long offsetNanos = startTick - transactionStartTick;
-        long durationNanos;
-        boolean active;
-        if (isCompleted() && Tickers.lessThanOrEqual(endTick, captureTick)) {
-            // total time is calculated relative to revised start tick
-            durationNanos = endTick - revisedStartTick;
-            active = false;
-        } else {
-            // total time is calculated relative to revised start tick
-            // max with zero to prevent negative value which is possible here under race condition
-            durationNanos = Math.max(captureTick - revisedStartTick, 0);
-            active = true;
-        }
-        MessageSupplier messageSupplier = getMessageSupplier();
-        ReadableMessage message =
-                messageSupplier == null ? null : (ReadableMessage) messageSupplier.get();
-
-        Trace.Entry.Builder builder = Trace.Entry.newBuilder()
-                .setDepth(depth)
-                .setStartOffsetNanos(offsetNanos)
-                .setDurationNanos(durationNanos)
-                .setActive(active);
-
-        // async root entry always has empty message and empty detail
-        builder.setMessage(message == null ? "" : message.getText() + getRowCountSuffix());
-        if (message != null) {
-            builder.addAllDetailEntry(DetailMapWriter.toProto(message.getDetail()));
-        }
-        ErrorMessage errorMessage = this.errorMessage;
-        if (errorMessage != null) {
-            Trace.Error.Builder errorBuilder = builder.getErrorBuilder();
-            errorBuilder.setMessage(errorMessage.message());
-            Proto.Throwable throwable = errorMessage.throwable();
-            if (throwable != null) {
-                errorBuilder.setException(throwable);
-            }
-            errorBuilder.build();
-        }
-        if (stackTrace != null) {
-            for (StackTraceElement stackTraceElement : stackTrace) {
-                builder.addLocationStackTraceElementBuilder()
-                        .setClassName(stackTraceElement.getClassName())
-                        .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
-                        .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
-                        .setLineNumber(stackTraceElement.getLineNumber())
-                        .build();
-            }
-        }
-        return builder.build();
-    }
-
     long getStartTick() {
         return startTick;
     }
 
+    int getIndex() {
+        return index;
+    }
+
     @Override
     public void end() {
         if (initialComplete) {
@@ -192,7 +144,7 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
             // skip i=0 which is "java.lang.Thread.getStackTrace()"
             // skip i=1 which is "...TraceEntry.endWithStackTrace()"
             // skip i=2 which is the plugin advice
-            this.stackTrace = ImmutableList.copyOf(stackTrace).subList(3, stackTrace.length);
+            setStackTrace(ImmutableList.copyOf(stackTrace).subList(3, stackTrace.length));
         } else {
             // store threshold in case this trace entry is extended, see extend() below
             stackTraceThreshold = thresholdNanos;
@@ -247,6 +199,8 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
             long priorDurationNanos = endTick - revisedStartTick;
             long currTick = ticker.read();
             revisedStartTick = currTick - priorDurationNanos;
+            store.setRevisedStartTick(index, revisedStartTick);
+            store.setNotCompleted(index);
             extendedTimer = syncTimer.extend(currTick);
             extendQueryData(currTick);
         }
@@ -259,6 +213,7 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
         // the timer interface for this class is only expose through return value of extend()
         if (--selfNestingLevel == 0) {
             endTick = ticker.read();
+            store.setCompleted(index, endTick);
             checkNotNull(extendedTimer);
             extendedTimer.end(endTick);
             endQueryData(endTick);
@@ -271,13 +226,14 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
                 // skip i=0 which is "java.lang.Thread.getStackTrace()"
                 // skip i=1 which is "...Timer.stop()"
                 // skip i=2 which is the plugin advice
-                this.stackTrace = ImmutableList.copyOf(stackTrace).subList(3, stackTrace.length);
+                setStackTrace(ImmutableList.copyOf(stackTrace).subList(3, stackTrace.length));
             }
         }
     }
 
     void setStackTrace(ImmutableList<StackTraceElement> stackTrace) {
         this.stackTrace = stackTrace;
+        store.setStackTrace(index, stackTrace);
     }
 
     public ThreadContextImpl getThreadContext() {
@@ -289,18 +245,11 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
         return parentTraceEntry;
     }
 
-    @Nullable
-    TraceEntryImpl getNextTraceEntry() {
-        return nextTraceEntry;
-    }
-
-    void setNextTraceEntry(TraceEntryImpl nextTraceEntry) {
-        this.nextTraceEntry = nextTraceEntry;
-    }
-
     void immediateEndAsErrorEntry(ErrorMessage errorMessage, long endTick) {
         this.errorMessage = errorMessage;
         this.endTick = endTick;
+        store.setErrorMessage(index, errorMessage);
+        store.setCompleted(index, endTick);
         selfNestingLevel--;
         initialComplete = true;
     }
@@ -310,12 +259,6 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
         return syncTimer != null && syncTimer.getName().equals("auxiliary thread");
     }
 
-    private boolean isCompleted() {
-        // initialComplete is needed for async trace entries which have selfNestingLevel = 0 after
-        // calling stopSyncTimer(), but are not complete until end() is called
-        return initialComplete && selfNestingLevel == 0;
-    }
-
     private boolean isAsync() {
         return asyncTimer != null;
     }
@@ -347,27 +290,39 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
             asyncTimer.end(endTick);
         }
         endQueryData(endTick);
-        this.errorMessage = errorMessage;
+        if (errorMessage != null) {
+            // null check preserves the error message from a prior run of a reopened root entry
+            this.errorMessage = errorMessage;
+            store.setErrorMessage(index, errorMessage);
+        }
         this.endTick = endTick;
         if (isAsync()) {
+            if (selfNestingLevel == 0) {
+                store.setCompleted(index, endTick);
+            }
             threadContext.getTransaction().memoryBarrierWrite();
         } else {
-            selfNestingLevel--;
+            if (--selfNestingLevel == 0) {
+                store.setCompleted(index, endTick);
+            }
             threadContext.popEntry(this, endTick);
         }
         initialComplete = true;
     }
 
-    private String getRowCountSuffix() {
-        if (!isRowNavigationAttempted()) {
-            return "";
-        }
-        long rowCount = getRowCount();
-        if (rowCount == 1) {
-            return " => 1 row";
-        } else {
-            return " => " + rowCount + " rows";
-        }
+    // only called on the root entry of a completed auxiliary thread context, by the thread that
+    // previously ran it, see ThreadContextImpl.reopen()
+    void reopen(long startTick) {
+        checkNotNull(syncTimer);
+        syncTimer.start(startTick);
+        selfNestingLevel = 1;
+        initialComplete = false;
+        store.setNotCompleted(index);
+    }
+
+    @Override
+    void rowNavigationUpdated(long rowCount) {
+        store.setRowCount(index, rowCount);
     }
 
     @Override
@@ -376,7 +331,9 @@ public class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, T
         // entries are not returned from plugin api so no way for stopSyncTimer() to be called
         checkNotNull(syncTimer);
         syncTimer.stop();
-        selfNestingLevel--;
+        if (--selfNestingLevel == 0 && initialComplete) {
+            store.setCompleted(index, endTick);
+        }
         threadContext.popNonRootEntry(this);
     }
 
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.internal.DeferredMessageSupplier;
+import org.glowroot.agent.plugin.api.internal.ReadableMessage;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+import org.glowroot.agent.util.Tickers;
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.glowroot.agent.util.Checkers.castInitialized;
+
+// compact storage of the trace entries of a single thread context, in struct-of-arrays form so that
+// the transaction does not need to retain a TraceEntryImpl object for each trace entry
+//
+// TraceEntryImpl writes through to this store whenever anything that is needed to build the trace
+// entry changes, so once a trace entry is no longer referenced by the plugin that created it, its
+// TraceEntryImpl object can be collected (typically while still in the young generation)
+//
+// entries are stored in chunks that are never copied, and released all at once along with the
+// thread context
+//
+// this supports updating by a single thread (with the exception of async trace entries, which are
+// ended by another thread) and reading by multiple threads, and depends on memory barrier in
+// Transaction for visibility
+//
+// when recycling is enabled, the transaction thread can release the store once nothing else can
+// read or write it (see Transaction.releaseEntriesForRecycling()), and its chunks are then reused
+// by the next store that the same thread creates
+//
+// each chunk records the store that currently owns it, and writes through a stale reference to a
+// released store (e.g. a plugin ending a trace entry after the transaction has completed) are
+// ignored instead of landing in the next store's entries
+class TraceEntryStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceEntryStore.class);
+
+    static final boolean RECYCLE = Boolean.getBoolean("glowroot.transaction.recycle");
+
+    // in debug mode, released chunks are poisoned instead of reused, and any use of a store after
+    // it has been released is logged along with where it was released
+    private static final boolean RECYCLE_DEBUG =
+            Boolean.getBoolean("glowroot.transaction.recycle.debug");
+
+    // small first chunk since most thread contexts have only a few trace entries
+    private static final int FIRST_CHUNK_SIZE = 8;
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // only the first two chunks are kept for reuse, to bound the memory retained by each thread
+    private static final int MAX_SPARE_CHUNKS = 2;
+
+    private static final Chunk[] RELEASED = new Chunk[0];
+
+    // released chunks of the current thread, waiting to be reused by the next store it creates
+    private static final FastThreadLocal</*@Nullable*/ Chunk[]> spareChunks =
+            new FastThreadLocal</*@Nullable*/ Chunk[]>();
+
+    private Chunk[] chunks;
+    private int size;
+
+    private volatile @Nullable Exception releasedAt;
+
+    TraceEntryStore() {
+        this(RECYCLE && !RECYCLE_DEBUG);
+    }
+
+    @VisibleForTesting
+    TraceEntryStore(boolean reuseSpareChunks) {
+        Chunk[] spare = reuseSpareChunks ? spareChunks.get() : null;
+        if (spare == null) {
+            chunks = new Chunk[] {new Chunk(FIRST_CHUNK_SIZE)};
+        } else {
+            spareChunks.set(null);
+            chunks = spare;
+        }
+        for (Chunk chunk : chunks) {
+            if (chunk != null) {
+                chunk.owner = castInitialized(this);
+            }
+        }
+    }
+
+    // returns the index of the new trace entry
+    int add(long startTick, int parentIndex, @Nullable MessageSupplier messageSupplier) {
+        if (chunks == RELEASED) {
+            onUseAfterRelease();
+            return 0;
+        }
+        int index = size;
+        Chunk chunk = getOrCreateChunk(index);
+        int i = offset(index);
+        chunk.startTicks[i] = startTick;
+        chunk.revisedStartTicks[i] = startTick;
+        chunk.parentIndexes[i] = parentIndex;
+        chunk.messageSuppliers[i] = messageSupplier;
+        size = index + 1;
+        return index;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getStartTick(int index) {
+        return chunk(index).startTicks[offset(index)];
+    }
+
+    int getParentIndex(int index) {
+        return chunk(index).parentIndexes[offset(index)];
+    }
+
+    void setRevisedStartTick(int index, long revisedStartTick) {
+        Chunk chunk = writableChunk(index);
+        if (chunk != null) {
+            chunk.revisedStartTicks[offset(index)] = revisedStartTick;
+        }
+    }
+
+    void setCompleted(int index, long endTick) {
+        Chunk chunk = writableChunk(index);
+        if (chunk != null) {
+            int i = offset(index);
+            chunk.endTicks[i] = endTick;
+            chunk.completed[i] = true;
+        }
+    }
+
+    void setNotCompleted(int index) {
+        Chunk chunk = writableChunk(index);
+        if (chunk != null) {
+            chunk.completed[offset(index)] = false;
+        }
+    }
+
+    void setErrorMessage(int index, @Nullable ErrorMessage errorMessage) {
+        Chunk chunk = writableChunk(index);
+        if (chunk != null) {
+            chunk.errorMessages[offset(index)] = errorMessage;
+        }
+    }
+
+    void setStackTrace(int index, ImmutableList<StackTraceElement> stackTrace) {
+        Chunk chunk = writableChunk(index);
+        if (chunk != null) {
+            chunk.stackTraces[offset(index)] = stackTrace;
+        }
+    }
+
+    // row count -1 means no navigation has been attempted
+    void setRowCount(int index, long rowCount) {
+        Chunk chunk = writableChunk(index);
+        if (chunk != null) {
+            chunk.rowCounts[offset(index)] = rowCount;
+        }
+    }
+
+    boolean hasEntry(int index) {
+        // the chunks array may be stale when read from another thread
+        Chunk[] chunks = this.chunks;
+        int chunkIndex = chunkIndex(index);
+        return chunkIndex < chunks.length && chunks[chunkIndex] != null;
+    }
+
+    // called by the transaction thread once nothing else can read or write this store, see
+    // Transaction.releaseEntriesForRecycling()
+    void release() {
+        Chunk[] chunks = this.chunks;
+        int size = this.size;
+        this.chunks = RELEASED;
+        this.size = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk != null) {
+                chunk.owner = null;
+            }
+        }
+        if (RECYCLE_DEBUG) {
+            releasedAt = new Exception("trace entry store was released here");
+            for (Chunk chunk : chunks) {
+                if (chunk != null) {
+                    chunk.poison();
+                }
+            }
+            return;
+        }
+        Chunk[] spare = chunks.length <= MAX_SPARE_CHUNKS ? chunks
+                : Arrays.copyOf(chunks, MAX_SPARE_CHUNKS);
+        for (int i = 0; i < size && chunkIndex(i) < spare.length; i++) {
+            Chunk chunk = spare[chunkIndex(i)];
+            if (chunk != null) {
+                chunk.clear(offset(i));
+            }
+        }
+        spareChunks.set(spare);
+    }
+
+    // see Transaction.materializeDeferredMessageSuppliers()
+    void materializeDeferredMessageSuppliers() {
+        int size = this.size;
+        for (int i = 0; i < size && hasEntry(i); i++) {
+            MessageSupplier messageSupplier = chunk(i).messageSuppliers[offset(i)];
+            if (messageSupplier instanceof DeferredMessageSupplier) {
+                ((DeferredMessageSupplier) messageSupplier).materialize();
+            }
+        }
+    }
+
+    Trace.Entry toProto(int index, int depth, long transactionStartTick, long captureTick) {
+        Chunk chunk = chunk(index);
+        int i = offset(index);
+        long startTick = chunk.startTicks[i];
+        long revisedStartTick = chunk.revisedStartTicks[i];
+        long offsetNanos = startTick - transactionStartTick;
+        long durationNanos;
+        boolean active;
+        if (chunk.completed[i] && Tickers.lessThanOrEqual(chunk.endTicks[i], captureTick)) {
+            // total time is calculated relative to revised start tick
+            durationNanos = chunk.endTicks[i] - revisedStartTick;
+            active = false;
+        } else {
+            // total time is calculated relative to revised start tick
+            // max with zero to prevent negative value which is possible here under race condition
+            durationNanos = Math.max(captureTick - revisedStartTick, 0);
+            active = true;
+        }
+        MessageSupplier messageSupplier = chunk.messageSuppliers[i];
+        ReadableMessage message =
+                messageSupplier == null ? null : (ReadableMessage) messageSupplier.get();
+
+        Trace.Entry.Builder builder = Trace.Entry.newBuilder()
+                .setDepth(depth)
+                .setStartOffsetNanos(offsetNanos)
+                .setDurationNanos(durationNanos)
+                .setActive(active);
+
+        // async root entry always has empty message and empty detail
+        builder.setMessage(
+                message == null ? "" : message.getText() + getRowCountSuffix(chunk.rowCounts[i]));
+        if (message != null) {
+            builder.addAllDetailEntry(DetailMapWriter.toProto(message.getDetail()));
+        }
+        ErrorMessage errorMessage = chunk.errorMessages[i];
+        if (errorMessage != null) {
+            Trace.Error.Builder errorBuilder = builder.getErrorBuilder();
+            errorBuilder.setMessage(errorMessage.message());
+            Proto.Throwable throwable = errorMessage.throwable();
+            if (throwable != null) {
+                errorBuilder.setException(throwable);
+            }
+            errorBuilder.build();
+        }
+        @SuppressWarnings("unchecked")
+        ImmutableList<StackTraceElement> stackTrace =
+                (ImmutableList<StackTraceElement>) chunk.stackTraces[i];
+        if (stackTrace != null) {
+            for (StackTraceElement stackTraceElement : stackTrace) {
+                builder.addLocationStackTraceElementBuilder()
+                        .setClassName(stackTraceElement.getClassName())
+                        .setMethodName(Strings.nullToEmpty(stackTraceElement.getMethodName()))
+                        .setFileName(Strings.nullToEmpty(stackTraceElement.getFileName()))
+                        .setLineNumber(stackTraceElement.getLineNumber())
+                        .build();
+            }
+        }
+        return builder.build();
+    }
+
+    private Chunk getOrCreateChunk(int index) {
+        int chunkIndex = chunkIndex(index);
+        if (chunkIndex == chunks.length) {
+            Chunk[] newChunks = Arrays.copyOf(chunks, chunks.length * 2);
+            newChunks[chunkIndex] = newChunk(CHUNK_SIZE);
+            chunks = newChunks;
+        } else if (chunks[chunkIndex] == null) {
+            chunks[chunkIndex] = newChunk(CHUNK_SIZE);
+        }
+        return chunks[chunkIndex];
+    }
+
+    private Chunk newChunk(int size) {
+        Chunk chunk = new Chunk(size);
+        chunk.owner = this;
+        return chunk;
+    }
+
+    private Chunk chunk(int index) {
+        Chunk chunk = chunks[chunkIndex(index)];
+        if (RECYCLE_DEBUG && chunk.owner != this) {
+            onUseAfterRelease();
+        }
+        return chunk;
+    }
+
+    // returns null if this store has been released, in which case the write is ignored
+    private @Nullable Chunk writableChunk(int index) {
+        // the chunks array may be stale when written from another thread (async trace entries)
+        Chunk[] chunks = this.chunks;
+        int chunkIndex = chunkIndex(index);
+        if (chunkIndex >= chunks.length) {
+            onUseAfterRelease();
+            return null;
+        }
+        Chunk chunk = chunks[chunkIndex];
+        if (chunk == null || chunk.owner != this) {
+            onUseAfterRelease();
+            return null;
+        }
+        return chunk;
+    }
+
+    private void onUseAfterRelease() {
+        Exception releasedAt = this.releasedAt;
+        if (releasedAt != null) {
+            logger.error("trace entry store was used after it was released",
+                    new Exception("trace entry store was used here", releasedAt));
+        }
+    }
+
+    // chunk 0 is FIRST_CHUNK_SIZE, and all other chunks are CHUNK_SIZE
+    private static int chunkIndex(int index) {
+        if (index < FIRST_CHUNK_SIZE) {
+            return 0;
+        }
+        return ((index - FIRST_CHUNK_SIZE) >> CHUNK_SHIFT) + 1;
+    }
+
+    private static int offset(int index) {
+        if (index < FIRST_CHUNK_SIZE) {
+            return index;
+        }
+        return (index - FIRST_CHUNK_SIZE) & CHUNK_MASK;
+    }
+
+    private static String getRowCountSuffix(long rowCount) {
+        if (rowCount == -1) {
+            return "";
+        }
+        if (rowCount == 1) {
+            return " => 1 row";
+        } else {
+            return " => " + rowCount + " rows";
+        }
+    }
+
+    private static class Chunk {
+
+        // null once released, not volatile since stale writes from other threads are best effort
+        private @Nullable TraceEntryStore owner;
+
+        private final long[] startTicks;
+        private final long[] revisedStartTicks;
+        private final long[] endTicks;
+        private final boolean[] completed;
+        private final int[] parentIndexes;
+        private final long[] rowCounts;
+        private final @Nullable MessageSupplier[] messageSuppliers;
+        private final @Nullable ErrorMessage[] errorMessages;
+        private final @Nullable Object[] stackTraces;
+
+        private Chunk(int size) {
+            startTicks = new long[size];
+            revisedStartTicks = new long[size];
+            endTicks = new long[size];
+            completed = new boolean[size];
+            parentIndexes = new int[size];
+            rowCounts = new long[size];
+            Arrays.fill(rowCounts, -1);
+            messageSuppliers = new MessageSupplier[size];
+            errorMessages = new ErrorMessage[size];
+            stackTraces = new Object[size];
+        }
+
+        // add() overwrites the other columns
+        private void clear(int i) {
+            completed[i] = false;
+            rowCounts[i] = -1;
+            messageSuppliers[i] = null;
+            errorMessages[i] = null;
+            stackTraces[i] = null;
+        }
+
+        // makes any read of a released entry obviously wrong, instead of plausibly stale
+        private void poison() {
+            Arrays.fill(startTicks, Long.MIN_VALUE);
+            Arrays.fill(revisedStartTicks, Long.MIN_VALUE);
+            Arrays.fill(endTicks, Long.MIN_VALUE);
+            Arrays.fill(completed, false);
+            Arrays.fill(parentIndexes, Integer.MIN_VALUE);
+            Arrays.fill(rowCounts, Long.MIN_VALUE);
+            Arrays.fill(messageSuppliers, null);
+            Arrays.fill(errorMessages, null);
+            Arrays.fill(stackTraces, null);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.Tickers;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// parent/child view over the trace entry stores of the main thread context and its auxiliary
+// thread contexts, built from the parent index column of each store, so that trace entries can be
+// emitted in tree order without walking (or retaining) TraceEntryImpl objects
+class TraceEntryTree {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceEntryTree.class);
+
+    private final ContextNode mainNode;
+    private final long transactionStartTick;
+    private final long captureTick;
+
+    private TraceEntryTree(ContextNode mainNode, long transactionStartTick, long captureTick) {
+        this.mainNode = mainNode;
+        this.transactionStartTick = transactionStartTick;
+        this.captureTick = captureTick;
+    }
+
+    static TraceEntryTree create(Transaction transaction, ThreadContextImpl mainThreadContext,
+            List<ThreadContextImpl> auxThreadContexts, long captureTick) {
+        ContextNode mainNode = new ContextNode(mainThreadContext, captureTick, transaction);
+        if (!auxThreadContexts.isEmpty()) {
+            Map<ThreadContextImpl, ContextNode> nodes =
+                    new IdentityHashMap<ThreadContextImpl, ContextNode>();
+            nodes.put(mainThreadContext, mainNode);
+            List<ContextNode> auxNodes = Lists.newArrayList();
+            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
+                ContextNode auxNode = new ContextNode(auxThreadContext, captureTick, transaction);
+                nodes.put(auxThreadContext, auxNode);
+                auxNodes.add(auxNode);
+            }
+            for (ContextNode auxNode : auxNodes) {
+                if (auxNode.count == 0) {
+                    // aux thread context started after the capture tick
+                    continue;
+                }
+                ThreadContextImpl auxThreadContext = auxNode.threadContext;
+                // checkNotNull is safe b/c aux thread contexts have non-null parent trace entry
+                // and non-null parent thread context prior entry
+                TraceEntryImpl parentTraceEntry =
+                        checkNotNull(auxThreadContext.getParentTraceEntry());
+                TraceEntryImpl priorEntry =
+                        checkNotNull(auxThreadContext.getParentThreadContextPriorEntry());
+                ContextNode parentNode = nodes.get(parentTraceEntry.getThreadContext());
+                if (parentNode == null) {
+                    continue;
+                }
+                auxNode.priorEntryIndex = priorEntry.getIndex();
+                if (auxNode.priorEntryIndex >= parentNode.count) {
+                    // prior entry started after the capture tick
+                    continue;
+                }
+                parentNode.addAuxChild(parentTraceEntry.getIndex(), auxNode);
+            }
+        }
+        return new TraceEntryTree(mainNode, transaction.getStartTick(), captureTick);
+    }
+
+    List<Trace.Entry> getEntriesProtobuf() {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        if (mainNode.count > 0) {
+            addChildEntries(mainNode, 0, 0, entries);
+        }
+        return entries;
+    }
+
+    int getEntryCount() {
+        if (mainNode.count == 0) {
+            return 0;
+        }
+        return addChildEntries(mainNode, 0, 0, null);
+    }
+
+    // entries is null when only counting
+    private int addChildEntries(ContextNode node, int index, int depth,
+            @Nullable List<Trace.Entry> entries) {
+        List<ContextNode> auxChildren = node.getAuxChildren(index);
+        int auxChildIndex = 0;
+        int count = 0;
+        for (int childIndex = node.firstChild[index]; childIndex != -1;
+                childIndex = node.nextSibling[childIndex]) {
+            // aux thread contexts are placed after the entry that was the tail entry at the time
+            // the aux thread context was created
+            while (auxChildIndex < auxChildren.size()
+                    && auxChildren.get(auxChildIndex).priorEntryIndex < childIndex) {
+                count += addAuxThreadRootEntry(auxChildren.get(auxChildIndex++), depth, entries);
+            }
+            if (!Tickers.lessThanOrEqual(node.store.getStartTick(childIndex), captureTick)) {
+                continue;
+            }
+            if (entries != null) {
+                entries.add(node.store.toProto(childIndex, depth, transactionStartTick,
+                        captureTick));
+            }
+            count += 1 + addChildEntries(node, childIndex, depth + 1, entries);
+        }
+        while (auxChildIndex < auxChildren.size()) {
+            count += addAuxThreadRootEntry(auxChildren.get(auxChildIndex++), depth, entries);
+        }
+        return count;
+    }
+
+    private int addAuxThreadRootEntry(ContextNode auxNode, int depth,
+            @Nullable List<Trace.Entry> entries) {
+        if (isEmptyAuxThreadRoot(auxNode)) {
+            return 0;
+        }
+        if (entries != null) {
+            entries.add(auxNode.store.toProto(0, depth, transactionStartTick, captureTick));
+        }
+        return 1 + addChildEntries(auxNode, 0, depth + 1, entries);
+    }
+
+    private static boolean isEmptyAuxThreadRoot(ContextNode auxNode) {
+        if (!auxNode.threadContext.getRootEntry().isAuxThreadRoot()) {
+            return false;
+        }
+        if (auxNode.firstChild[0] != -1) {
+            return false;
+        }
+        for (ContextNode auxChild : auxNode.getAuxChildren(0)) {
+            if (!isEmptyAuxThreadRoot(auxChild)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class ContextNode {
+
+        private final ThreadContextImpl threadContext;
+        private final TraceEntryStore store;
+        // number of entries (from the start of the store) that started before the capture tick
+        private final int count;
+        private final int[] firstChild;
+        private final int[] nextSibling;
+
+        // index of the parent thread context's tail entry when this aux thread context was created
+        private int priorEntryIndex = -1;
+
+        // keyed by parent entry index, and ordered by prior entry index
+        private @Nullable ListMultimap<Integer, ContextNode> auxChildren;
+
+        private ContextNode(ThreadContextImpl threadContext, long captureTick,
+                Transaction transaction) {
+            this.threadContext = threadContext;
+            store = threadContext.getTraceEntryStore();
+            int count = store.size();
+            // filter out entries that started after the capture tick
+            while (count > 0 && (!store.hasEntry(count - 1)
+                    || !Tickers.lessThanOrEqual(store.getStartTick(count - 1), captureTick))) {
+                count--;
+            }
+            this.count = count;
+            firstChild = new int[count];
+            nextSibling = new int[count];
+            Arrays.fill(firstChild, -1);
+            Arrays.fill(nextSibling, -1);
+            // iterating backwards so that children end up in ascending order
+            for (int i = count - 1; i > 0; i--) {
+                int parentIndex = store.getParentIndex(i);
+                if (parentIndex < 0 || parentIndex >= i) {
+                    logger.error("found non-root trace entry with invalid parent trace entry"
+                            + "\ntransaction: {} - {}", transaction.getTransactionType(),
+                            transaction.getTransactionName());
+                    continue;
+                }
+                nextSibling[i] = firstChild[parentIndex];
+                firstChild[parentIndex] = i;
+            }
+        }
+
+        private void addAuxChild(int parentIndex, ContextNode auxNode) {
+            if (auxChildren == null) {
+                auxChildren = ArrayListMultimap.create();
+            }
+            List<ContextNode> list = auxChildren.get(parentIndex);
+            // stable insertion by prior entry index
+            int i = list.size();
+            while (i > 0 && list.get(i - 1).priorEntryIndex > auxNode.priorEntryIndex) {
+                i--;
+            }
+            list.add(i, auxNode);
+        }
+
+        private List<ContextNode> getAuxChildren(int parentIndex) {
+            if (auxChildren == null) {
+                return ImmutableList.of();
+            }
+            return auxChildren.get(parentIndex);
+        }
+    }
+}
@@ -22,7 +22,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -30,15 +29,11 @@ import javax.annotation.concurrent.GuardedBy;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
-import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.TreeMultimap;
 import com.google.common.io.BaseEncoding;
@@ -56,6 +51,7 @@ import org.glowroot.agent.model.TimerImpl.TimerImplSnapshot;
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.internal.DeferredMessageSupplier;
 import org.glowroot.agent.plugin.api.internal.ReadableMessage;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
@@ -65,6 +61,7 @@ import org.glowroot.common.util.Cancellable;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.glowroot.agent.util.Checkers.castInitialized;
 
 // contains all data that has been captured for a given transaction (e.g. a servlet request)
@@ -132,6 +129,10 @@ public class Transaction {
 
     private volatile boolean partiallyStored;
 
+    // set once a trace entry with a deferred message supplier is started after the slow threshold
+    // has been crossed, after which deferred message suppliers are materialized right away
+    private volatile boolean materializeDeferredImmediately;
+
     private long captureTime;
 
     // memory barrier is used to ensure memory visibility of entries and timers at key points,
@@ -152,13 +153,23 @@ public class Transaction {
     private volatile int aggregateQueryLimitCounter;
     private volatile int aggregateServiceCallLimitCounter;
 
-    private volatile @Nullable AtomicInteger throwableFrameLimitCounter;
+    private volatile @Nullable ThrowableFrameLimitCounter throwableFrameLimitCounter;
 
     private final ThreadContextImpl mainThreadContext;
 
+    // number of transactions that this transaction's thread stats represent (when thread stats are
+    // sampled), zero if thread stats were not sampled for this transaction
+    private final int threadStatsSampleWeight;
+
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull List<ThreadContextImpl> auxThreadContexts;
 
+    // these are only used when recycling is enabled, see releaseEntriesForRecycling()
+    @GuardedBy("mainThreadContext")
+    private int entryReaderCount;
+    @GuardedBy("mainThreadContext")
+    private boolean entriesReleased;
+
     // async root timers are the root timers which do not have corresponding thread context
     // (those corresponding to async trace entries)
     private final Object asyncTimerLock = new Object();
@@ -178,7 +189,8 @@ public class Transaction {
 
     public Transaction(long startTime, long startTick, String transactionType,
             String transactionName, MessageSupplier messageSupplier, TimerName timerName,
-            boolean captureThreadStats, int maxTraceEntriesPerTransaction,
+            boolean captureThreadStats, int threadStatsSampleWeight,
+            int maxTraceEntriesPerTransaction,
             int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
@@ -189,6 +201,7 @@ public class Transaction {
         this.startTick = startTick;
         this.transactionType = transactionType;
         this.transactionName = transactionName;
+        this.threadStatsSampleWeight = threadStatsSampleWeight;
         this.maxTraceEntriesPerTransaction = maxTraceEntriesPerTransaction;
         this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
         this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
@@ -324,6 +337,10 @@ public class Transaction {
         }
     }
 
+    public int getThreadStatsSampleWeight() {
+        return threadStatsSampleWeight;
+    }
+
     // can be called from a non-transaction thread
     public ThreadStats getMainThreadStats() {
         return mainThreadContext.getThreadStats();
@@ -384,23 +401,17 @@ public class Transaction {
     }
 
     public List<Trace.Entry> getEntriesProtobuf(long captureTick) {
-        memoryBarrierRead();
-        ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
-                buildPriorEntryChildThreadContextMap();
-        ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap = ArrayListMultimap.create();
-        mainThreadContext.populateParentChildMap(parentChildMap, captureTick,
-                priorEntryChildThreadContextMap);
-        synchronized (mainThreadContext) {
-            if (auxThreadContexts != null) {
-                for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                    auxThreadContext.populateParentChildMap(parentChildMap, captureTick,
-                            priorEntryChildThreadContextMap);
-                }
-            }
+        if (!acquireEntryReader()) {
+            return ImmutableList.of();
+        }
+        List<Trace.Entry> entries;
+        try {
+            // partial traces and active traces need to retain deferred data before it is recycled
+            materializeDeferredMessageSuppliers();
+            entries = buildTraceEntryTree(captureTick).getEntriesProtobuf();
+        } finally {
+            releaseEntryReader();
         }
-        List<Trace.Entry> entries = Lists.newArrayList();
-        addProtobufChildEntries(mainThreadContext.getRootEntry(), parentChildMap, startTick,
-                captureTick, 0, entries);
         // FIXME
         // if (detachedTime != null) {
         // entries.add(Trace.Entry.newBuilder()
@@ -412,6 +423,19 @@ public class Transaction {
         return entries;
     }
 
+    // same as getEntriesProtobuf(captureTick).size(), but without building the entries, so that
+    // trace headers for active traces are cheap to create
+    int getEntryCount(long captureTick) {
+        if (!acquireEntryReader()) {
+            return 0;
+        }
+        try {
+            return buildTraceEntryTree(captureTick).getEntryCount();
+        } finally {
+            releaseEntryReader();
+        }
+    }
+
     long getMainThreadProfileSampleCount() {
         if (mainThreadProfile == null) {
             return 0;
@@ -568,6 +592,31 @@ public class Transaction {
         partiallyStored = true;
     }
 
+    // called by the transaction thread once it is known that the trace will not be stored
+    //
+    // the main thread context's trace entries are only released when the transaction thread is the
+    // only thread that could still write them (not an async transaction, no auxiliary thread
+    // contexts and no async trace entries), and when no other thread is reading them (e.g. the
+    // active trace viewer, which still finds the transaction until it has been aggregated), after
+    // which readers see no trace entries
+    public void releaseEntriesForRecycling() {
+        if (!TraceEntryStore.RECYCLE || async || partiallyStored) {
+            return;
+        }
+        synchronized (asyncTimerLock) {
+            if (asyncTimers != null) {
+                return;
+            }
+        }
+        synchronized (mainThreadContext) {
+            if (auxThreadContexts != null || entryReaderCount != 0) {
+                return;
+            }
+            entriesReleased = true;
+        }
+        mainThreadContext.getTraceEntryStore().release();
+    }
+
     public void setTransactionEntry(TransactionEntry transactionEntry) {
         this.transactionEntry = transactionEntry;
     }
@@ -615,6 +664,26 @@ public class Transaction {
         return auxThreadContext;
     }
 
+    // reopens an auxiliary thread context that was previously completed by the current thread, so
+    // that many small tasks run by the same thread are coalesced into a single thread context
+    public boolean reopenAuxThreadContext(ThreadContextImpl auxThreadContext, long startTick,
+            Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
+        // synchronizing on mainThreadContext (and setting the thread context holder inside of it)
+        // guarantees that either the reopen is rejected here, or the reopened thread context is
+        // seen and detached by checkForIncompleteAuxThreadContexts()
+        synchronized (mainThreadContext) {
+            if (completed) {
+                return false;
+            }
+            auxThreadContext.reopen(startTick);
+            // see counterpart to this synchronization (and explanation) in detach()
+            synchronized (threadContextHolder) {
+                threadContextHolder.set(auxThreadContext);
+            }
+        }
+        return true;
+    }
+
     AsyncTimerImpl startAsyncTimer(TimerName asyncTimerName, long startTick) {
         AsyncTimerImpl asyncTimer = new AsyncTimerImpl((TimerNameImpl) asyncTimerName, startTick);
         synchronized (asyncTimerLock) {
@@ -701,6 +770,41 @@ public class Transaction {
     // called by the transaction thread
     public void onCompleteWillStoreTrace(long captureTime) {
         this.captureTime = captureTime;
+        // give plugins a chance to retain data that they only keep in per-thread storage, now that
+        // it is known that this transaction will be stored as a trace
+        materializeDeferredMessageSuppliers();
+    }
+
+    // called by the thread context's thread after starting a trace entry whose message supplier
+    // only keeps its data in per-thread storage, which the plugin may recycle well before the
+    // transaction completes, so once the transaction is slow the data is retained right away
+    void onDeferredTraceEntry(long startTick, DeferredMessageSupplier messageSupplier) {
+        if (materializeDeferredImmediately) {
+            messageSupplier.materialize();
+        } else if (startTick - this.startTick >= getSlowThresholdNanos()) {
+            materializeDeferredImmediately = true;
+            // this includes the trace entry that was just started
+            materializeDeferredMessageSuppliers();
+        }
+    }
+
+    // this is called by the transaction thread, and also by other threads before building partial
+    // traces and active traces, in which case the plugin message suppliers are responsible for
+    // reading their per-thread storage safely
+    private void materializeDeferredMessageSuppliers() {
+        memoryBarrierRead();
+        mainThreadContext.getTraceEntryStore().materializeDeferredMessageSuppliers();
+        for (ThreadContextImpl auxThreadContext : copyAuxThreadContexts()) {
+            auxThreadContext.getTraceEntryStore().materializeDeferredMessageSuppliers();
+        }
+    }
+
+    private long getSlowThresholdNanos() {
+        int slowThresholdMillis = this.slowThresholdMillis;
+        if (slowThresholdMillis == USE_GENERAL_STORE_THRESHOLD) {
+            slowThresholdMillis = configService.getTransactionConfig().slowThresholdMillis();
+        }
+        return MILLISECONDS.toNanos(slowThresholdMillis);
     }
 
     long getCaptureTime() {
@@ -719,7 +823,7 @@ public class Transaction {
         return configService;
     }
 
-    AtomicInteger getThrowableFrameLimitCounter() {
+    ThrowableFrameLimitCounter getThrowableFrameLimitCounter() {
         if (throwableFrameLimitCounter == null) {
             // double-checked locking works here because throwableFrameLimitCounter is volatile
             //
@@ -727,7 +831,7 @@ public class Transaction {
             // object to lock on
             synchronized (this) {
                 if (throwableFrameLimitCounter == null) {
-                    throwableFrameLimitCounter = new AtomicInteger();
+                    throwableFrameLimitCounter = new ThrowableFrameLimitCounter();
                 }
             }
         }
@@ -747,55 +851,43 @@ public class Transaction {
         memoryBarrierWrite();
     }
 
-    private static void addProtobufChildEntries(TraceEntryImpl entry,
-            Multimap<TraceEntryImpl, TraceEntryImpl> parentChildMap, long transactionStartTick,
-            long captureTick, int depth, List<Trace.Entry> entries) {
-        if (!parentChildMap.containsKey(entry)) {
-            return;
+    private boolean acquireEntryReader() {
+        if (!TraceEntryStore.RECYCLE) {
+            return true;
         }
-        Collection<TraceEntryImpl> childEntries = parentChildMap.get(entry);
-        for (TraceEntryImpl childEntry : childEntries) {
-            if (childEntry.getStartTick() > captureTick) {
-                continue;
-            }
-            if (isEmptyAuxThreadRoot(childEntry, parentChildMap)) {
-                continue;
+        synchronized (mainThreadContext) {
+            if (entriesReleased) {
+                return false;
             }
-            entries.add(childEntry.toProto(depth, transactionStartTick, captureTick));
-            addProtobufChildEntries(childEntry, parentChildMap, transactionStartTick,
-                    captureTick, depth + 1, entries);
+            entryReaderCount++;
+            return true;
         }
     }
 
-    private static boolean isEmptyAuxThreadRoot(TraceEntryImpl entry,
-            Multimap<TraceEntryImpl, TraceEntryImpl> parentChildMap) {
-        if (!entry.isAuxThreadRoot()) {
-            return false;
+    private void releaseEntryReader() {
+        if (!TraceEntryStore.RECYCLE) {
+            return;
         }
-        Collection<TraceEntryImpl> childEntries = parentChildMap.get(entry);
-        for (TraceEntryImpl childEntry : childEntries) {
-            if (!isEmptyAuxThreadRoot(childEntry, parentChildMap)) {
-                return false;
-            }
+        synchronized (mainThreadContext) {
+            entryReaderCount--;
         }
-        return true;
     }
 
-    private ListMultimap<TraceEntryImpl, ThreadContextImpl> buildPriorEntryChildThreadContextMap() {
+    private TraceEntryTree buildTraceEntryTree(long captureTick) {
+        memoryBarrierRead();
+        // the monitor on mainThreadContext is also needed by application threads in order to
+        // start aux thread contexts, so it is only held long enough to copy the aux thread
+        // contexts, and the (potentially long) entry stores are read outside of it
+        List<ThreadContextImpl> auxThreadContexts = copyAuxThreadContexts();
+        return TraceEntryTree.create(this, mainThreadContext, auxThreadContexts, captureTick);
+    }
+
+    private List<ThreadContextImpl> copyAuxThreadContexts() {
         synchronized (mainThreadContext) {
             if (auxThreadContexts == null) {
-                return ImmutableListMultimap.of();
-            }
-            ListMultimap<TraceEntryImpl, ThreadContextImpl> parentChildMap =
-                    ArrayListMultimap.create();
-            for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
-                // checkNotNull is safe b/c aux thread contexts have non-null parent trace context
-                // prior entries
-                parentChildMap.put(
-                        checkNotNull(auxThreadContext.getParentThreadContextPriorEntry()),
-                        auxThreadContext);
+                return ImmutableList.of();
             }
-            return parentChildMap;
+            return ImmutableList.copyOf(auxThreadContexts);
         }
     }
 
@@ -21,6 +21,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
@@ -82,6 +83,11 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
 
     private static final Logger logger = LoggerFactory.getLogger(DownstreamServiceObserver.class);
 
+    // the glowroot server limits the size of each inbound grpc message, so thread dumps and mbean
+    // dumps from very large jvms are sent in chunks (when the server accepts chunked responses)
+    private static final int CHUNK_SIZE_BYTES =
+            Integer.getInteger("glowroot.downstream.chunkSizeBytes", 1024 * 1024);
+
     private final ServerConnection serverConnection;
     private final DownstreamServiceStub downstreamServiceStub;
     private final AgentConfigUpdater agentConfigUpdater;
@@ -296,6 +302,10 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
             sendExceptionResponse(request, responseObserver);
             return;
         }
+        if (request.getAcceptChunkedResponse()) {
+            sendThreadDumpChunks(request.getRequestId(), threadDump, responseObserver);
+            return;
+        }
         responseObserver.onNext(ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setThreadDumpResponse(ThreadDumpResponse.newBuilder()
@@ -303,6 +313,46 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
                 .build());
     }
 
+    // the server merges the chunks, so the thread dumping thread only needs to be in the first one
+    @VisibleForTesting
+    static void sendThreadDumpChunks(long requestId, ThreadDump threadDump,
+            StreamObserver<ClientResponse> responseObserver) {
+        ThreadDump.Builder chunk = ThreadDump.newBuilder();
+        if (threadDump.hasThreadDumpingThread()) {
+            chunk.setThreadDumpingThread(threadDump.getThreadDumpingThread());
+        }
+        int chunkSize = 0;
+        for (ThreadDump.Transaction transaction : threadDump.getTransactionList()) {
+            if (chunkSize > CHUNK_SIZE_BYTES) {
+                sendThreadDumpChunk(requestId, chunk, true, responseObserver);
+                chunk = ThreadDump.newBuilder();
+                chunkSize = 0;
+            }
+            chunk.addTransaction(transaction);
+            chunkSize += transaction.getSerializedSize();
+        }
+        for (ThreadDump.Thread thread : threadDump.getUnmatchedThreadList()) {
+            if (chunkSize > CHUNK_SIZE_BYTES) {
+                sendThreadDumpChunk(requestId, chunk, true, responseObserver);
+                chunk = ThreadDump.newBuilder();
+                chunkSize = 0;
+            }
+            chunk.addUnmatchedThread(thread);
+            chunkSize += thread.getSerializedSize();
+        }
+        sendThreadDumpChunk(requestId, chunk, false, responseObserver);
+    }
+
+    private static void sendThreadDumpChunk(long requestId, ThreadDump.Builder chunk,
+            boolean moreChunks, StreamObserver<ClientResponse> responseObserver) {
+        responseObserver.onNext(ClientResponse.newBuilder()
+                .setRequestId(requestId)
+                .setMoreChunks(moreChunks)
+                .setThreadDumpResponse(ThreadDumpResponse.newBuilder()
+                        .setThreadDump(chunk))
+                .build());
+    }
+
     private void availableDiskSpaceAndRespond(ServerRequest request,
             StreamObserver<ClientResponse> responseObserver) {
         long availableDiskSpaceBytes;
@@ -359,12 +409,17 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
         MBeanDumpRequest req = request.getMbeanDumpRequest();
         MBeanDump mbeanDump;
         try {
-            mbeanDump = liveJvmService.getMBeanDump("", req.getKind(), req.getObjectNameList());
+            mbeanDump = liveJvmService.getMBeanDump("", req.getKind(), req.getObjectNameList(),
+                    req.getDomain());
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
             return;
         }
+        if (request.getAcceptChunkedResponse()) {
+            sendMBeanDumpChunks(request.getRequestId(), mbeanDump, responseObserver);
+            return;
+        }
         responseObserver.onNext(ClientResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setMbeanDumpResponse(MBeanDumpResponse.newBuilder()
@@ -372,6 +427,33 @@ class DownstreamServiceObserver implements StreamObserver<ServerRequest> {
                 .build());
     }
 
+    @VisibleForTesting
+    static void sendMBeanDumpChunks(long requestId, MBeanDump mbeanDump,
+            StreamObserver<ClientResponse> responseObserver) {
+        MBeanDump.Builder chunk = MBeanDump.newBuilder();
+        int chunkSize = 0;
+        for (MBeanDump.MBeanInfo mbeanInfo : mbeanDump.getMbeanInfoList()) {
+            if (chunkSize > CHUNK_SIZE_BYTES) {
+                sendMBeanDumpChunk(requestId, chunk, true, responseObserver);
+                chunk = MBeanDump.newBuilder();
+                chunkSize = 0;
+            }
+            chunk.addMbeanInfo(mbeanInfo);
+            chunkSize += mbeanInfo.getSerializedSize();
+        }
+        sendMBeanDumpChunk(requestId, chunk, false, responseObserver);
+    }
+
+    private static void sendMBeanDumpChunk(long requestId, MBeanDump.Builder chunk,
+            boolean moreChunks, StreamObserver<ClientResponse> responseObserver) {
+        responseObserver.onNext(ClientResponse.newBuilder()
+                .setRequestId(requestId)
+                .setMoreChunks(moreChunks)
+                .setMbeanDumpResponse(MBeanDumpResponse.newBuilder()
+                        .setMbeanDump(chunk))
+                .build());
+    }
+
     private void matchingMBeanObjectNamesAndRespond(ServerRequest request,
             StreamObserver<ClientResponse> responseObserver) {
         MatchingMBeanObjectNamesRequest req = request.getMatchingMbeanObjectNamesRequest();
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.advicegen;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AccessorGeneratorTest {
+
+    @Test
+    public void shouldGenerateForPublicMethod() throws Exception {
+        // given
+        GeneratedAccessor accessor =
+                AccessorGenerator.generate(PublicObject.class.getMethod("getOne"));
+        // when
+        Object value = accessor.get(new PublicObject());
+        // then
+        assertThat(value).isEqualTo("1");
+    }
+
+    @Test
+    public void shouldGenerateForPrimitiveMethod() throws Exception {
+        // given
+        GeneratedAccessor accessor =
+                AccessorGenerator.generate(PublicObject.class.getMethod("isTwo"));
+        // when
+        Object value = accessor.get(new PublicObject());
+        // then
+        assertThat(value).isEqualTo(true);
+    }
+
+    @Test
+    public void shouldGenerateForInterfaceMethod() throws Exception {
+        // given
+        GeneratedAccessor accessor = AccessorGenerator.generate(List.class.getMethod("size"));
+        // when
+        Object value = accessor.get(ImmutableList.of("a", "b"));
+        // then
+        assertThat(value).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldGenerateForPublicField() throws Exception {
+        // given
+        GeneratedAccessor accessor =
+                AccessorGenerator.generate(PublicObject.class.getField("three"));
+        // when
+        Object value = accessor.get(new PublicObject());
+        // then
+        assertThat(value).isEqualTo(3L);
+    }
+
+    @Test
+    public void shouldNotGenerateForNonPublicMethod() throws Exception {
+        assertThat(AccessorGenerator.generate(PublicObject.class.getDeclaredMethod("four")))
+                .isNull();
+    }
+
+    @Test
+    public void shouldNotGenerateForNonPublicClass() throws Exception {
+        assertThat(AccessorGenerator.generate(NonPublicObject.class.getMethod("getOne"))).isNull();
+    }
+
+    @Test
+    public void shouldWrapExceptionSameAsReflection() throws Exception {
+        // given
+        Accessor accessor = Accessor.fromMethod(PublicObject.class.getMethod("getError"));
+        // when
+        Throwable t = null;
+        try {
+            accessor.evaluate(new PublicObject());
+        } catch (Throwable u) {
+            t = u;
+        }
+        // then
+        assertThat(t).isInstanceOf(InvocationTargetException.class);
+        assertThat(t.getCause()).isInstanceOf(IllegalStateException.class);
+    }
+
+    public static class PublicObject {
+
+        public final long three = 3;
+
+        public String getOne() {
+            return "1";
+        }
+
+        public boolean isTwo() {
+            return true;
+        }
+
+        public String getError() {
+            throw new IllegalStateException();
+        }
+
+        String four() {
+            return "4";
+        }
+    }
+
+    static class NonPublicObject {
+
+        public String getOne() {
+            return "1";
+        }
+    }
+}
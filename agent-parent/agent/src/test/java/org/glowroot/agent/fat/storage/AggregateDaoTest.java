@@ -17,6 +17,7 @@ package org.glowroot.agent.fat.storage;
 
 import java.io.File;
 import java.util.List;
+import java.util.Locale;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -46,6 +47,7 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.AggregateOuterClass.TransactionAggregate;
 
+import static java.util.concurrent.TimeUnit.DAYS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -80,8 +82,9 @@ public class AggregateDaoTest {
                 ImmutableRollupConfig.of(1000, 0), ImmutableRollupConfig.of(15000, 3600000),
                 ImmutableRollupConfig.of(900000000, 8 * 3600000));
         when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
-        aggregateDao = new AggregateDao(dataSource, ImmutableList.<CappedDatabase>of(),
-                configRepository, mock(TransactionTypeDao.class));
+        aggregateDao = new AggregateDao(dataSource,
+                ImmutableList.of(cappedDatabase, cappedDatabase, cappedDatabase), configRepository,
+                mock(TransactionTypeDao.class), new TimerNameDao(dataSource));
     }
 
     @After
@@ -129,6 +132,54 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldDeleteExpiredPartitions() throws Exception {
+        // given
+        populateAggregates();
+        // when
+        aggregateDao.deleteBefore(DAYS.toMillis(2), 0);
+        // then
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(0)
+                .build();
+        assertThat(aggregateDao.readOverviewAggregates(AGENT_ID, query)).isEmpty();
+        assertThat(dataSource.queryForLong("select count(*) from aggregate_tn_rollup_0"))
+                .isEqualTo(0);
+    }
+
+    @Test
+    public void shouldPushCaptureTimeCriteriaDownIntoEachPartitionOfUnionView() throws Exception {
+        // given
+        populateAggregates();
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(100000)
+                .setTransactionCount(1)
+                .setDurationNanosHistogram(getFakeHistogram())
+                .build();
+        aggregateDao.store(AGENT_ID, DAYS.toMillis(3), ImmutableList.of(AggregatesByType
+                .newBuilder()
+                .setTransactionType("a type")
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(TransactionAggregate.newBuilder()
+                        .setTransactionName("one")
+                        .setAggregate(aggregate))
+                .build()));
+        // when
+        String plan = dataSource.queryForStringList("explain select transaction_name,"
+                + " sum(total_duration_nanos) from aggregate_tn_rollup_0"
+                + " where transaction_type = 'a type' and capture_time > 0"
+                + " and capture_time <= 100000 group by transaction_name").get(0)
+                .toUpperCase(Locale.ENGLISH);
+        // then
+        // the partition outside of the range costs a single index seek instead of a table scan
+        assertThat(plan).contains("AGGREGATE_TN_ROLLUP_0_P1_IDX: CAPTURE_TIME");
+        assertThat(plan).contains("AGGREGATE_TN_ROLLUP_0_P3_IDX: CAPTURE_TIME");
+        assertThat(plan).doesNotContain("TABLESCAN");
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         Aggregate overallAggregate = Aggregate.newBuilder()
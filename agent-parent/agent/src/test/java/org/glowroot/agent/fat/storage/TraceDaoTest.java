@@ -33,6 +33,7 @@ import org.glowroot.storage.repo.ImmutableTraceQuery;
 import org.glowroot.storage.repo.TraceRepository.TraceQuery;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 
@@ -52,9 +53,6 @@ public class TraceDaoTest {
     @Before
     public void beforeEachTest() throws Exception {
         dataSource = new DataSource();
-        if (dataSource.tableExists("trace")) {
-            dataSource.execute("drop table trace");
-        }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
         traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class));
@@ -268,14 +266,236 @@ public class TraceDaoTest {
         assertThat(queryResult.records()).isEmpty();
     }
 
+    @Test
+    public void shouldReadTraceWithHeadlineQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("T HEAD")
+                .build();
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldReadTraceWithWildcardHeadlineQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .headlineComparator(StringComparator.BEGINS)
+                .headline("tes_%line")
+                .build();
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotReadTraceWithNonMatchingHeadlineQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .headlineComparator(StringComparator.CONTAINS)
+                .headline("headlinex")
+                .build();
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+        // then
+        assertThat(queryResult.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadTraceWithAttributeValueQualifierAfterUpdate() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace);
+        Trace.Header header = trace.getHeader().toBuilder()
+                .clearAttribute()
+                .addAttribute(Trace.Attribute.newBuilder()
+                        .setName("abc")
+                        .addValue("updated"))
+                .build();
+        traceDao.collect(AGENT_ID, trace.toBuilder()
+                .setHeader(header)
+                .setUpdate(true)
+                .build());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .durationNanosHigh(Long.MAX_VALUE)
+                .attributeValueComparator(StringComparator.CONTAINS)
+                .attributeValue("pdat")
+                .build();
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldReadSlowCount() throws Exception {
+        // given
+        traceDao.collect(AGENT_ID, TraceTestData.createTrace());
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(HOURS.toMillis(5) + 1))
+                .build());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(HOURS.toMillis(10))
+                .build();
+        // when
+        long count = traceDao.readSlowCount(AGENT_ID, query);
+        // then
+        assertThat(count).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReadSlowCountWithUnalignedRange() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(HOURS.toMillis(5) + 1))
+                .build());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .transactionName("test transaction name")
+                .from(HOURS.toMillis(5))
+                .to(HOURS.toMillis(5) + 2)
+                .build();
+        TraceQuery excludingQuery = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(HOURS.toMillis(5) + 1)
+                .to(HOURS.toMillis(10))
+                .build();
+        // when
+        long count = traceDao.readSlowCount(AGENT_ID, query);
+        long excludingCount = traceDao.readSlowCount(AGENT_ID, excludingQuery);
+        // then
+        assertThat(count).isEqualTo(1);
+        assertThat(excludingCount).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReadSlowCountAfterPartialTraceUpdate() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setPartial(true))
+                .build());
+        traceDao.collect(AGENT_ID, trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(HOURS.toMillis(5)))
+                .setUpdate(true)
+                .build());
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(HOURS.toMillis(10))
+                .build();
+        // when
+        long count = traceDao.readSlowCount(AGENT_ID, query);
+        // then
+        assertThat(count).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotReadSlowCountAfterDelete() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace);
+        // traces are expired a whole partition (the coarsest rollup interval) at a time
+        traceDao.deleteBefore(HOURS.toMillis(4) + 1);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(HOURS.toMillis(10))
+                .build();
+        // when
+        long count = traceDao.readSlowCount(AGENT_ID, query);
+        // then
+        assertThat(count).isEqualTo(0);
+    }
+
     @Test
     public void shouldDeletedTrace() throws Exception {
         // given
         Trace trace = TraceTestData.createTrace();
         traceDao.collect(AGENT_ID, trace);
         // when
-        traceDao.deleteBefore(100);
+        traceDao.deleteBefore(HOURS.toMillis(4) + 1);
         // then
         assertThat(traceDao.readHeaderPlus(AGENT_ID, trace.getId())).isNull();
     }
+
+    @Test
+    public void shouldNotDeleteTraceInPartitionStraddlingCaptureTime() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace);
+        // when
+        traceDao.deleteBefore(100);
+        // then
+        assertThat(traceDao.readHeaderPlus(AGENT_ID, trace.getId())).isNotNull();
+    }
+
+    @Test
+    public void shouldMovePartialTraceToPartitionOfUpdate() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        traceDao.collect(AGENT_ID, trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setPartial(true))
+                .build());
+        // when
+        traceDao.collect(AGENT_ID, trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setCaptureTime(HOURS.toMillis(5)))
+                .setUpdate(true)
+                .build());
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from trace")).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from trace where capture_time = ?",
+                HOURS.toMillis(5))).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from trace_attribute"
+                + " where capture_time <> ?", HOURS.toMillis(5))).isEqualTo(0);
+        assertThat(dataSource.queryForLong("select count(*) from trace_trigram"
+                + " where capture_time <> ?", HOURS.toMillis(5))).isEqualTo(0);
+    }
 }
@@ -63,6 +63,23 @@ public class CappedDatabaseTest {
         assertThat(text2).isEqualTo(text);
     }
 
+    @Test
+    public void shouldWriteInBatch() throws Exception {
+        // given
+        String text = "0123456789";
+        String text2 = "abcdefghij";
+        // when
+        cappedDatabase.startBatch();
+        long cappedId =
+                cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        long cappedId2 =
+                cappedDatabase.write(ByteSource.wrap(text2.getBytes(Charsets.UTF_8)), "test");
+        cappedDatabase.endBatch();
+        // then
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+        assertThat(cappedDatabase.read(cappedId2).read()).isEqualTo(text2);
+    }
+
     @Test
     public void shouldReadOneByteAtATime() throws Exception {
         // given
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.fat.storage.util;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.fat.storage.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.fat.storage.util.Schemas.Column;
+import org.glowroot.agent.fat.storage.util.Schemas.ColumnType;
+import org.glowroot.agent.fat.storage.util.Schemas.Index;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable.PartitionQueryFactory;
+import org.glowroot.agent.fat.storage.util.TimePartitionedTable.PartitionUpdateFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimePartitionedTableTest {
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("value", ColumnType.BIGINT));
+
+    private static final ImmutableList<Index> indexes = ImmutableList.<Index>of(
+            ImmutableIndex.of("idx", ImmutableList.of("capture_time", "value")));
+
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldRouteAndQueryAcrossPartitions() throws Exception {
+        // given
+        TimePartitionedTable table = newTable();
+        insert(table, 50);
+        insert(table, 100);
+        insert(table, 150);
+        insert(table, 250);
+        // when
+        List<Long> captureTimes = readCaptureTimes(table, 0, 1000);
+        // then
+        assertThat(captureTimes).containsExactly(50L, 100L, 150L, 250L);
+        assertThat(table.getPartitions(0, 1000)).hasSize(3);
+        assertThat(table.getPartitions(100, 100).get(0).to()).isEqualTo(100);
+        assertThat(readCaptureTimes(table, 101, 200)).containsExactly(150L);
+    }
+
+    @Test
+    public void shouldDropExpiredPartitions() throws Exception {
+        // given
+        TimePartitionedTable table = newTable();
+        insert(table, 50);
+        insert(table, 150);
+        insert(table, 250);
+        // when
+        table.deleteBefore(201);
+        // then
+        assertThat(readCaptureTimes(table, 0, 1000)).containsExactly(250L);
+        assertThat(dataSource.tableExists("tab_p1")).isFalse();
+        assertThat(dataSource.tableExists("tab_p2")).isFalse();
+        assertThat(dataSource.tableExists("tab_p3")).isTrue();
+    }
+
+    @Test
+    public void shouldRetainStraddlingPartition() throws Exception {
+        // given
+        TimePartitionedTable table = newTable();
+        insert(table, 50);
+        insert(table, 150);
+        // when
+        table.deleteBefore(199);
+        // then
+        assertThat(readCaptureTimes(table, 0, 1000)).containsExactly(150L);
+    }
+
+    @Test
+    public void shouldReloadExistingPartitions() throws Exception {
+        // given
+        insert(newTable(), 150);
+        // when
+        TimePartitionedTable table = newTable();
+        // then
+        assertThat(readCaptureTimes(table, 0, 1000)).containsExactly(150L);
+    }
+
+    @Test
+    public void shouldMigrateUnpartitionedTable() throws Exception {
+        // given
+        dataSource.syncTable("tab", columns);
+        dataSource.update("insert into tab (capture_time, value) values (?, ?)", 50, 1);
+        dataSource.update("insert into tab (capture_time, value) values (?, ?)", 350, 1);
+        // when
+        TimePartitionedTable table = newTable();
+        // then
+        assertThat(dataSource.tableExists("tab")).isFalse();
+        assertThat(readCaptureTimes(table, 0, 1000)).containsExactly(50L, 350L);
+        assertThat(table.getPartitions(0, 1000)).hasSize(2);
+    }
+
+    @Test
+    public void shouldMaintainUnionView() throws Exception {
+        // given
+        TimePartitionedTable table = newTableWithUnionView();
+        assertThat(dataSource.queryForLong("select count(*) from tab")).isEqualTo(0);
+        insert(table, 50);
+        insert(table, 150);
+        insert(table, 250);
+        // when
+        table.deleteBefore(101);
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from tab")).isEqualTo(2);
+        assertThat(dataSource.queryForLong("select min(capture_time) from tab")).isEqualTo(150);
+        assertThat(dataSource.tableExists("tab_p1")).isFalse();
+    }
+
+    @Test
+    public void shouldMigrateUnpartitionedTableOnlyOnceWithUnionView() throws Exception {
+        // given
+        dataSource.syncTable("tab", columns);
+        dataSource.update("insert into tab (capture_time, value) values (?, ?)", 50, 1);
+        dataSource.update("insert into tab (capture_time, value) values (?, ?)", 350, 1);
+        newTableWithUnionView();
+        // when
+        TimePartitionedTable table = newTableWithUnionView();
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from tab")).isEqualTo(2);
+        assertThat(readCaptureTimes(table, 0, 1000)).containsExactly(50L, 350L);
+    }
+
+    @Test
+    public void shouldPushCaptureTimeCriteriaDownIntoEachPartitionOfUnionView() throws Exception {
+        // given
+        TimePartitionedTable table = newTableWithUnionView();
+        insert(table, 50);
+        insert(table, 150);
+        insert(table, 250);
+        // when
+        String plan = dataSource.queryForStringList("explain select value from tab"
+                + " where capture_time > 100 and capture_time <= 200").get(0)
+                .toUpperCase(Locale.ENGLISH);
+        // then
+        // each partition is range scanned on its capture_time index, so partitions outside of
+        // the range cost a single index seek instead of a full table scan
+        assertThat(plan).contains("TAB_P1_IDX: CAPTURE_TIME");
+        assertThat(plan).contains("TAB_P2_IDX: CAPTURE_TIME");
+        assertThat(plan).contains("TAB_P3_IDX: CAPTURE_TIME");
+        assertThat(plan).doesNotContain("TABLESCAN");
+    }
+
+    @Test
+    public void shouldUpdateOnlyPartitionContainingCaptureTime() throws Exception {
+        // given
+        TimePartitionedTable table = newTable();
+        insert(table, 50);
+        insert(table, 150);
+        // when
+        int updateCount = table.update(150, new PartitionUpdateFactory() {
+            @Override
+            public JdbcUpdate create(@Untainted String partitionTableName) {
+                return new JdbcUpdate() {
+                    @Override
+                    public @Untainted String getSql() {
+                        return "delete from " + partitionTableName;
+                    }
+                    @Override
+                    public void bind(PreparedStatement preparedStatement) {}
+                };
+            }
+        });
+        // then
+        assertThat(updateCount).isEqualTo(1);
+        assertThat(readCaptureTimes(table, 0, 1000)).containsExactly(50L);
+    }
+
+    @Test
+    public void shouldNotUpdateExpiredPartition() throws Exception {
+        // given
+        TimePartitionedTable table = newTable();
+        insert(table, 50);
+        table.deleteBefore(101);
+        // when
+        int updateCount = table.update(50, new PartitionUpdateFactory() {
+            @Override
+            public JdbcUpdate create(@Untainted String partitionTableName) {
+                throw new AssertionError();
+            }
+        });
+        // then
+        assertThat(updateCount).isEqualTo(0);
+        assertThat(dataSource.tableExists("tab_p1")).isFalse();
+    }
+
+    private TimePartitionedTable newTable() throws Exception {
+        return new TimePartitionedTable(dataSource, "tab", columns, indexes, 100, false);
+    }
+
+    private TimePartitionedTable newTableWithUnionView() throws Exception {
+        return new TimePartitionedTable(dataSource, "tab", columns, indexes, 100, true);
+    }
+
+    private void insert(TimePartitionedTable table, long captureTime) throws Exception {
+        dataSource.update("insert into " + table.getPartitionForInsert(captureTime)
+                + " (capture_time, value) values (?, ?)", captureTime, 1);
+    }
+
+    private List<Long> readCaptureTimes(TimePartitionedTable table, final long from,
+            final long to) throws Exception {
+        return table.query(from, to, new PartitionQueryFactory<Long>() {
+            @Override
+            public JdbcRowQuery<Long> create(final @Untainted String partitionTableName) {
+                return new JdbcRowQuery<Long>() {
+                    @Override
+                    public @Untainted String getSql() {
+                        return "select capture_time from " + partitionTableName
+                                + " where capture_time >= ? and capture_time <= ?"
+                                + " order by capture_time";
+                    }
+                    @Override
+                    public void bind(PreparedStatement preparedStatement) throws SQLException {
+                        preparedStatement.setLong(1, from);
+                        preparedStatement.setLong(2, to);
+                    }
+                    @Override
+                    public Long mapRow(ResultSet resultSet) throws SQLException {
+                        return resultSet.getLong(1);
+                    }
+                };
+            }
+        });
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.model.CommonTimerImpl;
+import org.glowroot.agent.model.FlatTimerTree;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.agent.model.TimerImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.model.TimerTrees;
+import org.glowroot.agent.model.Transaction;
+import org.glowroot.agent.model.Transaction.RootTimerCollector;
+import org.glowroot.agent.model.Transaction.ThreadStatsCollector;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateCollectorTest {
+
+    // timer name instances are per test, so each test starts with new shapes in the (global) timer
+    // tree shape registry
+    private final TimerNameImpl httpRequest = ImmutableTimerNameImpl.of("http request", false);
+    private final TimerNameImpl jdbcQuery = ImmutableTimerNameImpl.of("jdbc query", false);
+    private final TimerNameImpl jdbcQueryExtended = ImmutableTimerNameImpl.of("jdbc query", true);
+    private final TimerNameImpl jdbcFetch = ImmutableTimerNameImpl.of("jdbc fetch", false);
+    private final TimerNameImpl jdbcCommit = ImmutableTimerNameImpl.of("jdbc commit", false);
+
+    @Test
+    public void shouldMergeUnsampledThreadStats() throws Exception {
+        // given
+        AggregateCollector collector = new AggregateCollector(null, 100, 100);
+        // when
+        collector.add(buildTransaction(1, threadStats(10, 1, 2, 100), threadStats(5, 0, 0, 50)));
+        collector.add(buildTransaction(1, threadStats(20, 3, 4, 200), threadStats(5, 0, 0, 50)));
+        // then
+        Aggregate aggregate = collector.build(new ScratchBuffer());
+        assertThreadStats(aggregate.getMainThreadStats(), 30, 4, 6, 300);
+        assertThreadStats(aggregate.getAuxThreadStats(), 10, 0, 0, 100);
+    }
+
+    @Test
+    public void shouldScaleSampledThreadStats() throws Exception {
+        // given
+        AggregateCollector collector = new AggregateCollector(null, 100, 100);
+        // when
+        collector.add(buildTransaction(4, threadStats(10, 1, 2, 100), threadStats(5, 1, 1, 50)));
+        // then
+        Aggregate aggregate = collector.build(new ScratchBuffer());
+        assertThreadStats(aggregate.getMainThreadStats(), 40, 4, 8, 400);
+        assertThreadStats(aggregate.getAuxThreadStats(), 20, 4, 4, 200);
+    }
+
+    @Test
+    public void shouldSkipUnsampledTransactions() throws Exception {
+        // given
+        AggregateCollector collector = new AggregateCollector(null, 100, 100);
+        // when
+        collector.add(buildTransaction(0, ThreadStats.NA, ThreadStats.NA));
+        collector.add(buildTransaction(0, ThreadStats.NA, ThreadStats.NA));
+        collector.add(buildTransaction(3, threadStats(10, 1, 2, 100), null));
+        // then
+        Aggregate aggregate = collector.build(new ScratchBuffer());
+        assertThat(aggregate.getTransactionCount()).isEqualTo(3);
+        assertThreadStats(aggregate.getMainThreadStats(), 30, 3, 6, 300);
+        assertThat(aggregate.hasAuxThreadStats()).isFalse();
+    }
+
+    @Test
+    public void shouldNotHaveThreadStatsWhenNoneSampled() throws Exception {
+        // given
+        AggregateCollector collector = new AggregateCollector(null, 100, 100);
+        // when
+        collector.add(buildTransaction(0, ThreadStats.NA, ThreadStats.NA));
+        // then
+        Aggregate aggregate = collector.build(new ScratchBuffer());
+        assertThat(aggregate.hasMainThreadStats()).isFalse();
+        assertThat(aggregate.hasAuxThreadStats()).isFalse();
+    }
+
+    @Test
+    public void shouldMergeTimersByShapeSameAsByName() throws Exception {
+        // given
+        AggregateCollector shapeCollector = new AggregateCollector(null, 100, 100);
+        AggregateCollector nameCollector = new AggregateCollector(null, 100, 100);
+        // when
+        for (TimerImpl rootTimer : createTimerTrees()) {
+            // make sure this is not testing the fallback
+            assertThat(FlatTimerTree.create(rootTimer)).isNotNull();
+            shapeCollector.getMainThreadRootTimers().mergeRootTimer(rootTimer);
+            nameCollector.getMainThreadRootTimers().mergeRootTimer(nameBasedOnly(rootTimer));
+        }
+        // then
+        assertSameMainThreadRootTimers(shapeCollector, nameCollector);
+    }
+
+    @Test
+    public void shouldMergeTimersSameAsByNameWhenMixingShapeAndName() throws Exception {
+        // given
+        AggregateCollector mixedCollector = new AggregateCollector(null, 100, 100);
+        AggregateCollector nameCollector = new AggregateCollector(null, 100, 100);
+        // when
+        boolean shape = true;
+        for (TimerImpl rootTimer : createTimerTrees()) {
+            mixedCollector.getMainThreadRootTimers()
+                    .mergeRootTimer(shape ? rootTimer : nameBasedOnly(rootTimer));
+            nameCollector.getMainThreadRootTimers().mergeRootTimer(nameBasedOnly(rootTimer));
+            shape = !shape;
+        }
+        // then
+        assertSameMainThreadRootTimers(mixedCollector, nameCollector);
+    }
+
+    @Test
+    public void shouldNotDoubleCountOnRepeatedBuild() throws Exception {
+        // given
+        AggregateCollector shapeCollector = new AggregateCollector(null, 100, 100);
+        AggregateCollector nameCollector = new AggregateCollector(null, 100, 100);
+        List<TimerImpl> rootTimers = createTimerTrees();
+        RootTimerCollector shapeRootTimers = shapeCollector.getMainThreadRootTimers();
+        RootTimerCollector nameRootTimers = nameCollector.getMainThreadRootTimers();
+        // when
+        shapeRootTimers.mergeRootTimer(rootTimers.get(0));
+        nameRootTimers.mergeRootTimer(nameBasedOnly(rootTimers.get(0)));
+        assertSameMainThreadRootTimers(shapeCollector, nameCollector);
+        assertSameMainThreadRootTimers(shapeCollector, nameCollector);
+        shapeRootTimers.mergeRootTimer(rootTimers.get(1));
+        shapeRootTimers.mergeRootTimer(rootTimers.get(2));
+        nameRootTimers.mergeRootTimer(nameBasedOnly(rootTimers.get(1)));
+        nameRootTimers.mergeRootTimer(nameBasedOnly(rootTimers.get(2)));
+        // then
+        assertSameMainThreadRootTimers(shapeCollector, nameCollector);
+        assertSameMainThreadRootTimers(shapeCollector, nameCollector);
+    }
+
+    @Test
+    public void shouldFallBackToMergeByNameWhenMaxShapesReached() throws Exception {
+        // given
+        AggregateCollector shapeCollector = new AggregateCollector(null, 100, 100);
+        AggregateCollector nameCollector = new AggregateCollector(null, 100, 100);
+        List<TimerImpl> rootTimers = createTimerTrees();
+        // intern the shape of the first tree before the registry is full
+        shapeCollector.getMainThreadRootTimers().mergeRootTimer(rootTimers.get(0));
+        nameCollector.getMainThreadRootTimers().mergeRootTimer(nameBasedOnly(rootTimers.get(0)));
+        try {
+            // fill up the registry with single timer shapes
+            int i = 0;
+            while (FlatTimerTree.create(createSingleTimerTree("filler " + i++)) != null) {
+                assertThat(i).isLessThanOrEqualTo(1000);
+            }
+            // when
+            for (TimerImpl rootTimer : rootTimers) {
+                shapeCollector.getMainThreadRootTimers().mergeRootTimer(rootTimer);
+                nameCollector.getMainThreadRootTimers().mergeRootTimer(nameBasedOnly(rootTimer));
+            }
+            // then
+            assertThat(FlatTimerTree.create(rootTimers.get(0))).isNotNull();
+            assertThat(FlatTimerTree.create(createSingleTimerTree("one too many"))).isNull();
+            assertSameMainThreadRootTimers(shapeCollector, nameCollector);
+        } finally {
+            TimerTrees.clearTimerTreeShapes();
+        }
+    }
+
+    // the first two timer trees have the same shape
+    private List<TimerImpl> createTimerTrees() {
+        List<TimerImpl> rootTimers = Lists.newArrayList();
+        for (int i = 0; i < 2; i++) {
+            TimerImpl rootTimer = TimerTrees.startRootTimer(httpRequest, 0);
+            TimerImpl query = TimerTrees.startNestedTimer(rootTimer, jdbcQuery, 10);
+            TimerTrees.end(TimerTrees.startNestedTimer(query, jdbcFetch, 12 + i), 15);
+            TimerTrees.end(query, 20);
+            TimerTrees.end(TimerTrees.startNestedTimer(rootTimer, jdbcQuery, 30), 50);
+            TimerTrees.end(TimerTrees.startNestedTimer(rootTimer, jdbcCommit, 60), 70);
+            TimerTrees.end(rootTimer, 100 + i);
+            rootTimers.add(rootTimer);
+        }
+        // different shape, with same root timer, and children in different order
+        TimerImpl rootTimer = TimerTrees.startRootTimer(httpRequest, 0);
+        TimerTrees.end(TimerTrees.startNestedTimer(rootTimer, jdbcCommit, 10), 20);
+        TimerTrees.end(TimerTrees.startNestedTimer(rootTimer, jdbcQueryExtended, 30), 40);
+        TimerTrees.end(TimerTrees.startNestedTimer(rootTimer, jdbcQuery, 50), 70);
+        TimerTrees.end(rootTimer, 200);
+        rootTimers.add(rootTimer);
+        return rootTimers;
+    }
+
+    private static TimerImpl createSingleTimerTree(String timerName) {
+        TimerImpl rootTimer =
+                TimerTrees.startRootTimer(ImmutableTimerNameImpl.of(timerName, false), 0);
+        TimerTrees.end(rootTimer, 10);
+        return rootTimer;
+    }
+
+    // not an instance of TimerImpl, so it is always merged by timer name
+    private static CommonTimerImpl nameBasedOnly(TimerImpl rootTimer) {
+        return mock(CommonTimerImpl.class, delegatesTo(rootTimer));
+    }
+
+    private static void assertSameMainThreadRootTimers(AggregateCollector collector,
+            AggregateCollector expectedCollector) throws Exception {
+        List<Aggregate.Timer> rootTimers =
+                collector.build(new ScratchBuffer()).getMainThreadRootTimerList();
+        List<Aggregate.Timer> expectedRootTimers =
+                expectedCollector.build(new ScratchBuffer()).getMainThreadRootTimerList();
+        assertThat(sorted(rootTimers)).isEqualTo(sorted(expectedRootTimers));
+    }
+
+    // the order of child timers depends on the order of merging, which the shape path defers until
+    // the aggregate is built, and the order is not significant
+    private static List<Aggregate.Timer> sorted(List<Aggregate.Timer> timers) {
+        List<Aggregate.Timer> sortedTimers = Lists.newArrayList();
+        for (Aggregate.Timer timer : timers) {
+            sortedTimers.add(timer.toBuilder()
+                    .clearChildTimer()
+                    .addAllChildTimer(sorted(timer.getChildTimerList()))
+                    .build());
+        }
+        Collections.sort(sortedTimers, new Comparator<Aggregate.Timer>() {
+            @Override
+            public int compare(Aggregate.Timer left, Aggregate.Timer right) {
+                int result = left.getName().compareTo(right.getName());
+                if (result != 0) {
+                    return result;
+                }
+                return Boolean.valueOf(left.getExtended()).compareTo(right.getExtended());
+            }
+        });
+        return sortedTimers;
+    }
+
+    private static Transaction buildTransaction(int threadStatsSampleWeight,
+            ThreadStats mainThreadStats, final ThreadStats auxThreadStats) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
+        when(transaction.getThreadStatsSampleWeight()).thenReturn(threadStatsSampleWeight);
+        when(transaction.getMainThreadStats()).thenReturn(mainThreadStats);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                if (auxThreadStats != null) {
+                    ThreadStatsCollector collector =
+                            (ThreadStatsCollector) invocation.getArguments()[0];
+                    collector.mergeThreadStats(auxThreadStats);
+                }
+                return null;
+            }
+        }).when(transaction).mergeAuxThreadStatsInto(any(ThreadStatsCollector.class));
+        return transaction;
+    }
+
+    private static ThreadStats threadStats(long totalCpuNanos, long totalBlockedMillis,
+            long totalWaitedMillis, long totalAllocatedBytes) {
+        ThreadStats threadStats = mock(ThreadStats.class);
+        when(threadStats.getTotalCpuNanos()).thenReturn(totalCpuNanos);
+        when(threadStats.getTotalBlockedMillis()).thenReturn(totalBlockedMillis);
+        when(threadStats.getTotalWaitedMillis()).thenReturn(totalWaitedMillis);
+        when(threadStats.getTotalAllocatedBytes()).thenReturn(totalAllocatedBytes);
+        return threadStats;
+    }
+
+    private static void assertThreadStats(Aggregate.ThreadStats threadStats, double totalCpuNanos,
+            long totalBlockedMillis, long totalWaitedMillis, double totalAllocatedBytes) {
+        assertThat(threadStats.getTotalCpuNanos().getValue()).isEqualTo(totalCpuNanos);
+        assertThat(threadStats.getTotalBlockedNanos().getValue())
+                .isEqualTo(MILLISECONDS.toNanos(totalBlockedMillis));
+        assertThat(threadStats.getTotalWaitedNanos().getValue())
+                .isEqualTo(MILLISECONDS.toNanos(totalWaitedMillis));
+        assertThat(threadStats.getTotalAllocatedBytes().getValue()).isEqualTo(totalAllocatedBytes);
+    }
+}
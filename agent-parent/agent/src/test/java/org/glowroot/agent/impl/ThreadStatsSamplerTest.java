@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadStatsSamplerTest {
+
+    @Test
+    public void shouldSampleEveryTransactionWhenIntervalIsOne() {
+        // given
+        ThreadStatsSampler sampler = new ThreadStatsSampler(1);
+        // when
+        // then
+        for (int i = 0; i < 100; i++) {
+            assertThat(sampler.nextSampleWeight()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void shouldTreatNonPositiveIntervalAsOne() {
+        // given
+        ThreadStatsSampler sampler = new ThreadStatsSampler(0);
+        // when
+        // then
+        assertThat(sampler.nextSampleWeight()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSampleOneOutOfEveryN() {
+        // given
+        ThreadStatsSampler sampler = new ThreadStatsSampler(10);
+        // when
+        int sampled = 0;
+        long totalWeight = 0;
+        for (int i = 0; i < 100000; i++) {
+            int weight = sampler.nextSampleWeight();
+            assertThat(weight).isIn(0, 10);
+            if (weight != 0) {
+                sampled++;
+            }
+            totalWeight += weight;
+        }
+        // then
+        assertThat(sampled).isBetween(9000, 11000);
+        assertThat(totalWeight).isBetween(90000L, 110000L);
+    }
+
+    @Test
+    public void shouldNotLineUpWithInterleavedTraffic() {
+        // given
+        ThreadStatsSampler sampler = new ThreadStatsSampler(4);
+        int[] sampledPerTransactionName = new int[4];
+        // when
+        // 4 transaction names arriving strictly round robin, which a shared round robin counter
+        // with interval 4 would always sample on the same transaction name
+        for (int i = 0; i < 40000; i++) {
+            if (sampler.nextSampleWeight() != 0) {
+                sampledPerTransactionName[i % 4]++;
+            }
+        }
+        // then
+        for (int sampled : sampledPerTransactionName) {
+            assertThat(sampled).isBetween(2000, 3000);
+        }
+    }
+}
@@ -18,15 +18,30 @@ package org.glowroot.agent.init;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
 import org.glowroot.agent.config.AdvancedConfig;
@@ -46,6 +61,7 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -53,21 +69,33 @@ import static org.mockito.Mockito.when;
 
 public class GaugeCollectorTest {
 
+    private static final String TIMEOUT_MESSAGE = "mbean gauge collection took longer than {}"
+            + " milliseconds: {} (collection of this gauge will be skipped until it completes)";
+
     private GaugeCollector gaugeCollector;
+    private ConfigService configService;
+    private Collector collector;
     private LazyPlatformMBeanServer lazyPlatformMBeanServer;
+    private CountDownLatch hungLatch;
     private Clock clock;
     private Ticker ticker;
     private Logger logger;
 
     @Before
     public void beforeEachTest() throws Exception {
-        ConfigService configService = mock(ConfigService.class);
+        configService = mock(ConfigService.class);
         AdvancedConfig advancedConfig =
                 ImmutableAdvancedConfig.builder().mbeanGaugeNotFoundDelaySeconds(60).build();
         when(configService.getAdvancedConfig()).thenReturn(advancedConfig);
+        // collection timeout defaults to half of this
+        when(configService.getGaugeCollectionIntervalMillis()).thenReturn(200L);
 
-        Collector collector = mock(Collector.class);
+        collector = mock(Collector.class);
         lazyPlatformMBeanServer = mock(LazyPlatformMBeanServer.class);
+        // mbean server never returns null from getAttributes()
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(new AttributeList());
+        hungLatch = new CountDownLatch(1);
         clock = mock(Clock.class);
         ticker = mock(Ticker.class);
         logger = mock(Logger.class);
@@ -77,7 +105,9 @@ public class GaugeCollectorTest {
     }
 
     @After
-    public void afterEachTest() {
+    public void afterEachTest() throws Exception {
+        hungLatch.countDown();
+        gaugeCollector.close();
         verifyNoMoreInteractions(logger);
     }
 
@@ -254,6 +284,156 @@ public class GaugeCollectorTest {
                 "MBean attribute value is not a number or string");
     }
 
+    @Test
+    public void shouldReadMBeanAttributesInSingleCall() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
+                .build();
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 1));
+        attributeList.add(new Attribute("ddd", "2.5"));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("xyz:aaa=bbb:ccc");
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(1);
+        assertThat(gaugeValues.get(1).getGaugeName()).isEqualTo("xyz:aaa=bbb:ddd");
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(2.5);
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class), anyString());
+    }
+
+    @Test
+    public void shouldNotWaitPastDeadlineForHungMBean() throws Exception {
+        // given
+        when(configService.getGaugeConfigs()).thenReturn(
+                ImmutableList.of(gaugeConfig("xyz:aaa=hung"), gaugeConfig("xyz:aaa=ok")));
+        stubAttributesHangingFor("hung");
+        // when
+        gaugeCollector.runInternal();
+        // then
+        List<List<GaugeValue>> collected = getCollectedGaugeValues(1);
+        assertThat(collected.get(0)).hasSize(1);
+        assertThat(collected.get(0).get(0).getGaugeName()).isEqualTo("xyz:aaa=ok:ccc");
+        verify(logger).debug(anyString(), any(TimeoutException.class));
+        verify(logger).warn(TIMEOUT_MESSAGE, 100L, "xyz:aaa=hung");
+    }
+
+    @Test
+    public void shouldSkipCollectionThatIsStillRunning() throws Exception {
+        // given
+        when(configService.getGaugeConfigs())
+                .thenReturn(ImmutableList.of(gaugeConfig("xyz:aaa=hung")));
+        stubAttributesHangingFor("hung");
+        // when
+        gaugeCollector.runInternal();
+        gaugeCollector.runInternal();
+        // then
+        verify(lazyPlatformMBeanServer).getAttributes(eq(ObjectName.getInstance("xyz:aaa=hung")),
+                any(String[].class));
+        List<List<GaugeValue>> collected = getCollectedGaugeValues(2);
+        assertThat(collected.get(0)).isEmpty();
+        assertThat(collected.get(1)).isEmpty();
+        // timeout is only logged the first time, the second time collection is just skipped
+        verify(logger).debug(anyString(), any(TimeoutException.class));
+        verify(logger).warn(TIMEOUT_MESSAGE, 100L, "xyz:aaa=hung");
+    }
+
+    @Test
+    public void shouldNotLetHungMBeansStarveOtherGauges() throws Exception {
+        // given
+        // one hung mbean per default collection thread
+        List<GaugeConfig> hungGaugeConfigs = ImmutableList.of(gaugeConfig("xyz:aaa=hung0"),
+                gaugeConfig("xyz:aaa=hung1"), gaugeConfig("xyz:aaa=hung2"),
+                gaugeConfig("xyz:aaa=hung3"));
+        when(configService.getGaugeConfigs()).thenReturn(hungGaugeConfigs)
+                .thenReturn(ImmutableList.<GaugeConfig>builder()
+                        .addAll(hungGaugeConfigs)
+                        .add(gaugeConfig("xyz:aaa=ok"))
+                        .build());
+        stubAttributesHangingFor("hung");
+        // when
+        gaugeCollector.runInternal();
+        gaugeCollector.runInternal();
+        // then
+        List<List<GaugeValue>> collected = getCollectedGaugeValues(2);
+        assertThat(collected.get(0)).isEmpty();
+        assertThat(collected.get(1)).hasSize(1);
+        assertThat(collected.get(1).get(0).getGaugeName()).isEqualTo("xyz:aaa=ok:ccc");
+        verify(logger, times(4)).debug(anyString(), any(TimeoutException.class));
+        for (int i = 0; i < 4; i++) {
+            verify(logger).warn(TIMEOUT_MESSAGE, 100L, "xyz:aaa=hung" + i);
+        }
+    }
+
+    @Test
+    public void shouldClearPatternMatchesOnMBeanRegistration() throws Exception {
+        // given
+        MBeanServer mbeanServer = mock(MBeanServer.class);
+        gaugeCollector.addMBeanRegistrationListener(mbeanServer);
+        ArgumentCaptor<NotificationListener> listenerCaptor =
+                ArgumentCaptor.forClass(NotificationListener.class);
+        verify(mbeanServer).addNotificationListener(eq(MBeanServerDelegate.DELEGATE_NAME),
+                listenerCaptor.capture(), any(NotificationFilter.class), any());
+        when(lazyPlatformMBeanServer.queryNames(any(ObjectName.class), any(QueryExp.class)))
+                .thenReturn(ImmutableSet.of(ObjectName.getInstance("xyz:aaa=bbb")));
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 1));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+        GaugeConfig gaugeConfig = gaugeConfig("xyz:aaa=*");
+        // when
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        listenerCaptor.getValue().handleNotification(new MBeanServerNotification(
+                MBeanServerNotification.REGISTRATION_NOTIFICATION,
+                MBeanServerDelegate.DELEGATE_NAME, 1, ObjectName.getInstance("xyz:aaa=ccc")),
+                null);
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+        // then
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(any(ObjectName.class),
+                any(QueryExp.class));
+    }
+
+    private static GaugeConfig gaugeConfig(String mbeanObjectName) {
+        return ImmutableGaugeConfig.builder()
+                .mbeanObjectName(mbeanObjectName)
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+    }
+
+    // mbeans whose "aaa" key property starts with the given prefix block until the end of the
+    // test, all others return ccc=1
+    private void stubAttributesHangingFor(final String prefix) throws Exception {
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenAnswer(new Answer<AttributeList>() {
+                    @Override
+                    public AttributeList answer(InvocationOnMock invocation) throws Exception {
+                        ObjectName objectName = (ObjectName) invocation.getArguments()[0];
+                        if (objectName.getKeyProperty("aaa").startsWith(prefix)) {
+                            hungLatch.await();
+                        }
+                        AttributeList attributeList = new AttributeList();
+                        attributeList.add(new Attribute("ccc", 1));
+                        return attributeList;
+                    }
+                });
+    }
+
+    private List<List<GaugeValue>> getCollectedGaugeValues(int expectedCalls) throws Exception {
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<GaugeValue>> captor =
+                (ArgumentCaptor<List<GaugeValue>>) (ArgumentCaptor<?>) ArgumentCaptor
+                        .forClass(List.class);
+        verify(collector, times(expectedCalls)).collectGaugeValues(captor.capture());
+        return captor.getAllValues();
+    }
+
     private static void setLogger(Class<?> clazz, Logger logger) throws Exception {
         Field loggerField = clazz.getDeclaredField("logger");
         loggerField.setAccessible(true);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2015 the original author or authors.
+ * Copyright 2013-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,16 +15,23 @@
  */
 package org.glowroot.agent.live;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.lang.instrument.Instrumentation;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.agent.live.ClasspathCache.JarClassNames;
 import org.glowroot.agent.live.ClasspathCache.UiAnalyzedMethod;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 
@@ -45,7 +52,7 @@ public class ClasspathCacheTest {
                 ImmutableList.of(badUrlsClassLoader, ClassLoader.getSystemClassLoader()));
         Instrumentation instrumentation = mock(Instrumentation.class);
         when(instrumentation.getAllLoadedClasses()).thenReturn(new Class[] {A.class});
-        classpathCache = new ClasspathCache(analyzedWorld, instrumentation);
+        classpathCache = new ClasspathCache(analyzedWorld, instrumentation, null);
     }
 
     @Test
@@ -109,6 +116,97 @@ public class ClasspathCacheTest {
         }
     }
 
+    @Test
+    public void shouldReadSimpleClassNamePrefix() {
+        // given
+        // when
+        List<String> classNames = classpathCache.getMatchingClassNames("ImmutableSortedM", 5);
+        // then
+        assertThat(classNames).contains("com.google.common.collect.ImmutableSortedMap");
+    }
+
+    @Test
+    public void shouldReadFromPersistedCache() throws Exception {
+        // given
+        File tmpDir = Files.createTempDir();
+        File persistenceFile = new File(tmpDir, "classpath-cache.bin");
+        try {
+            AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
+            when(analyzedWorld.getClassLoaders())
+                    .thenReturn(ImmutableList.of(ClassLoader.getSystemClassLoader()));
+            new ClasspathCache(analyzedWorld, null, tmpDir).updateCache();
+            // add a class name that only exists in the persisted file (the jar file's last
+            // modified and length are unchanged, so the jar file will not be re-scanned)
+            Map<String, JarClassNames> cache = Maps.newHashMap();
+            ClasspathCache.readJarClassNamesCache(persistenceFile, cache);
+            String key = getGuavaJarKey(cache);
+            JarClassNames jarClassNames = cache.get(key);
+            cache.put(key, ImmutableJarClassNames.builder()
+                    .copyFrom(jarClassNames)
+                    .addClassNames("com.google.common.collect.OnlyInPersistedCache")
+                    .build());
+            ClasspathCache.writeJarClassNamesCache(persistenceFile, cache);
+            // when
+            List<String> classNames = new ClasspathCache(analyzedWorld, null, tmpDir)
+                    .getMatchingClassNames("OnlyInPersistedCache", 5);
+            // then
+            assertThat(classNames)
+                    .containsExactly("com.google.common.collect.OnlyInPersistedCache");
+        } finally {
+            persistenceFile.delete();
+            tmpDir.delete();
+        }
+    }
+
+    @Test
+    public void shouldIgnoreAndDeleteCorruptedPersistedCache() throws Exception {
+        // given
+        File tmpDir = Files.createTempDir();
+        File persistenceFile = new File(tmpDir, "classpath-cache.bin");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(persistenceFile));
+            try {
+                out.writeInt(1);
+                out.writeInt(1);
+                out.writeUTF("/a/b/c.jar");
+                out.writeLong(0);
+                out.writeLong(0);
+                out.writeBoolean(false);
+                out.writeInt(2);
+                out.writeShort(0);
+                out.writeUTF("a");
+                // shared prefix length is longer than the prior class name
+                out.writeShort(50);
+                out.writeUTF("b");
+            } finally {
+                out.close();
+            }
+            AnalyzedWorld analyzedWorld = mock(AnalyzedWorld.class);
+            when(analyzedWorld.getClassLoaders()).thenReturn(ImmutableList.<ClassLoader>of());
+            // when
+            new ClasspathCache(analyzedWorld, null, tmpDir).updateCache();
+            // then
+            // the corrupted file is replaced with a readable one built from the class path
+            Map<String, JarClassNames> cache = Maps.newHashMap();
+            ClasspathCache.readJarClassNamesCache(persistenceFile, cache);
+            assertThat(cache).isNotEmpty();
+            assertThat(cache).doesNotContainKey("/a/b/c.jar");
+        } finally {
+            persistenceFile.delete();
+            tmpDir.delete();
+        }
+    }
+
+    private static String getGuavaJarKey(Map<String, JarClassNames> cache) {
+        for (Map.Entry<String, JarClassNames> entry : cache.entrySet()) {
+            if (entry.getValue().classNames()
+                    .contains("com.google.common.collect.ImmutableMap")) {
+                return entry.getKey();
+            }
+        }
+        throw new AssertionError("guava jar not found in persisted cache");
+    }
+
     @Test
     public void shouldAnalyzedMethods() {
         List<UiAnalyzedMethod> methods = classpathCache.getAnalyzedMethods(A.class.getName());
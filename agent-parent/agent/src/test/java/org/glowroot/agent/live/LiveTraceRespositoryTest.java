@@ -15,28 +15,41 @@
  */
 package org.glowroot.agent.live;
 
+import java.util.List;
+
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
 import org.glowroot.agent.model.Transaction;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TraceKind;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class LiveTraceRespositoryTest {
 
     private LiveTraceRepositoryImpl liveTraceRepository;
+    private TransactionRegistry transactionRegistry;
     private TransactionCollector transactionCollector;
 
     @Before
     public void beforeEachTest() {
-        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        transactionRegistry = mock(TransactionRegistry.class);
         transactionCollector = mock(TransactionCollector.class);
         Clock clock = mock(Clock.class);
         Ticker ticker = mock(Ticker.class);
@@ -108,4 +121,56 @@ public class LiveTraceRespositoryTest {
         // then
         assertThat(matches).isTrue();
     }
+
+    @Test
+    public void shouldReturnLongestActiveTracePoints() throws Exception {
+        // given
+        Transaction transaction1 = mockTransaction("t1", 300);
+        Transaction transaction2 = mockTransaction("t2", 100);
+        Transaction transaction3 = mockTransaction("t3", 200);
+        when(transactionRegistry.getTransactions())
+                .thenReturn(ImmutableList.of(transaction1, transaction2, transaction3));
+        when(transactionCollector.shouldStoreSlow(any(Transaction.class))).thenReturn(true);
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+        // when
+        List<TracePoint> points = liveTraceRepository.getMatchingActiveTracePoints(TraceKind.SLOW,
+                "", "tt", null, filter, 2, 12345, 1000);
+        // then
+        assertThat(points).hasSize(2);
+        assertThat(points.get(0).traceId()).isEqualTo("t2");
+        assertThat(points.get(0).durationNanos()).isEqualTo(900);
+        assertThat(points.get(1).traceId()).isEqualTo("t3");
+        assertThat(points.get(1).durationNanos()).isEqualTo(800);
+        verify(transaction1, never()).getTraceId();
+        verify(transaction1, never()).getHeadline();
+        verify(transaction1, never()).getAttributes();
+    }
+
+    @Test
+    public void shouldNotWaitWhenFullSnapshotsAreRateLimited() throws Exception {
+        // given
+        liveTraceRepository = new LiveTraceRepositoryImpl(transactionRegistry,
+                transactionCollector, mock(Clock.class), mock(Ticker.class), 0.001);
+        Transaction transaction = mockTransaction("t1", 100);
+        when(transactionRegistry.getTransactions()).thenReturn(ImmutableList.of(transaction));
+        liveTraceRepository.getEntries("", "t1");
+        // when
+        List<Trace.Entry> entries = liveTraceRepository.getEntries("", "t1");
+        // then
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).getMessage()).contains("try again");
+        verify(transaction, times(1)).getEntriesProtobuf(anyLong());
+    }
+
+    private static Transaction mockTransaction(String traceId, long startTick) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTraceId()).thenReturn(traceId);
+        when(transaction.getStartTick()).thenReturn(startTick);
+        when(transaction.getTransactionType()).thenReturn("tt");
+        when(transaction.getTransactionName()).thenReturn("tn");
+        when(transaction.getUser()).thenReturn("");
+        return transaction;
+    }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ErrorMessageTest {
+
+    @Test
+    public void shouldShareFramesWhenCapturingSameThrowableAgain() {
+        // given
+        ThrowableFrameLimitCounter counter = new ThrowableFrameLimitCounter();
+        Exception exception = new Exception("abc", new RuntimeException("xyz"));
+        // when
+        ErrorMessage errorMessage1 = ErrorMessage.from("one", exception, counter);
+        int frameCount = counter.getFrameCount();
+        ErrorMessage errorMessage2 = ErrorMessage.from("two", exception, counter);
+        // then
+        assertThat(frameCount).isGreaterThan(0);
+        assertThat(counter.getFrameCount()).isEqualTo(frameCount);
+        assertThat(errorMessage1.message()).isEqualTo("one");
+        assertThat(errorMessage2.message()).isEqualTo("two");
+        assertThat(errorMessage2.throwable()).isSameAs(errorMessage1.throwable());
+    }
+
+    @Test
+    public void shouldNotShareFramesWhenCapturingDifferentThrowable() {
+        // given
+        ThrowableFrameLimitCounter counter = new ThrowableFrameLimitCounter();
+        // when
+        ErrorMessage.from(null, new Exception(), counter);
+        int frameCount = counter.getFrameCount();
+        ErrorMessage errorMessage = ErrorMessage.from(null, new IllegalStateException(), counter);
+        // then
+        assertThat(counter.getFrameCount()).isEqualTo(2 * frameCount);
+        assertThat(errorMessage.message()).isEqualTo("java.lang.IllegalStateException");
+        assertThat(errorMessage.throwable().getClassName())
+                .isEqualTo("java.lang.IllegalStateException");
+    }
+}
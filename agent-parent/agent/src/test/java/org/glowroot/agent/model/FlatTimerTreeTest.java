@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class FlatTimerTreeTest {
+
+    private final TimerNameImpl servlet = ImmutableTimerNameImpl.of("http request", false);
+    private final TimerNameImpl jdbcQuery = ImmutableTimerNameImpl.of("jdbc query", false);
+    private final TimerNameImpl jdbcCommit = ImmutableTimerNameImpl.of("jdbc commit", false);
+
+    @Test
+    public void shouldFlattenInPreOrder() {
+        // given
+        TimerImpl rootTimer = createTimerTree(0);
+        // when
+        FlatTimerTree flatTimerTree = FlatTimerTree.create(rootTimer);
+        // then
+        TimerTreeShape shape = flatTimerTree.getShape();
+        assertThat(shape.size()).isEqualTo(3);
+        assertThat(shape.getTimerName(0)).isEqualTo("http request");
+        assertThat(shape.getParentIndex(0)).isEqualTo(-1);
+        // most recently started child timer is first
+        assertThat(shape.getTimerName(1)).isEqualTo("jdbc commit");
+        assertThat(shape.getParentIndex(1)).isEqualTo(0);
+        assertThat(shape.getTimerName(2)).isEqualTo("jdbc query");
+        assertThat(shape.getParentIndex(2)).isEqualTo(0);
+        assertThat(flatTimerTree.getTotalNanos(0)).isEqualTo(100);
+        assertThat(flatTimerTree.getCount(0)).isEqualTo(1);
+        assertThat(flatTimerTree.getTotalNanos(1)).isEqualTo(10);
+        assertThat(flatTimerTree.getCount(1)).isEqualTo(1);
+        assertThat(flatTimerTree.getTotalNanos(2)).isEqualTo(30);
+        assertThat(flatTimerTree.getCount(2)).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldShareShapeForSameTimerTreeShape() {
+        // given
+        TimerImpl rootTimer1 = createTimerTree(0);
+        TimerImpl rootTimer2 = createTimerTree(5);
+        // when
+        FlatTimerTree flatTimerTree1 = FlatTimerTree.create(rootTimer1);
+        FlatTimerTree flatTimerTree2 = FlatTimerTree.create(rootTimer2);
+        // then
+        assertThat(flatTimerTree2.getShape()).isSameAs(flatTimerTree1.getShape());
+        assertThat(flatTimerTree2.getTotalNanos(0)).isEqualTo(105);
+    }
+
+    @Test
+    public void shouldNotShareShapeForDifferentTimerTreeShape() {
+        // given
+        TimerImpl rootTimer1 = createTimerTree(0);
+        TimerImpl rootTimer2 = TimerImpl.createRootTimer(mock(ThreadContextImpl.class), servlet);
+        rootTimer2.start(0);
+        rootTimer2.startNestedTimer(jdbcQuery, 10).end(20);
+        rootTimer2.end(100);
+        // when
+        FlatTimerTree flatTimerTree1 = FlatTimerTree.create(rootTimer1);
+        FlatTimerTree flatTimerTree2 = FlatTimerTree.create(rootTimer2);
+        // then
+        assertThat(flatTimerTree2.getShape().getId())
+                .isNotEqualTo(flatTimerTree1.getShape().getId());
+        assertThat(flatTimerTree2.getShape().size()).isEqualTo(2);
+    }
+
+    private TimerImpl createTimerTree(long extraNanos) {
+        TimerImpl rootTimer = TimerImpl.createRootTimer(mock(ThreadContextImpl.class), servlet);
+        rootTimer.start(0);
+        rootTimer.startNestedTimer(jdbcQuery, 10).end(20);
+        rootTimer.startNestedTimer(jdbcQuery, 30).end(50);
+        rootTimer.startNestedTimer(jdbcCommit, 60).end(70);
+        rootTimer.end(100 + extraNanos);
+        return rootTimer;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import static org.mockito.Mockito.mock;
+
+// used by AggregateCollectorTest to build completed timer trees from outside of this package
+public class TimerTrees {
+
+    private TimerTrees() {}
+
+    public static TimerImpl startRootTimer(TimerNameImpl timerName, long startTick) {
+        TimerImpl rootTimer = TimerImpl.createRootTimer(mock(ThreadContextImpl.class), timerName);
+        rootTimer.start(startTick);
+        return rootTimer;
+    }
+
+    public static TimerImpl startNestedTimer(TimerImpl parentTimer, TimerNameImpl timerName,
+            long startTick) {
+        return parentTimer.startNestedTimer(timerName, startTick);
+    }
+
+    public static void end(TimerImpl timer, long endTick) {
+        timer.end(endTick);
+    }
+
+    // the shape registry is global, so tests that fill it up need to clear it afterwards
+    public static void clearTimerTreeShapes() {
+        TimerTreeShape.clear();
+    }
+}
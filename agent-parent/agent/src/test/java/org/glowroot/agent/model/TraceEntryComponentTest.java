@@ -36,8 +36,8 @@ public class TraceEntryComponentTest {
         TraceEntryComponent traceEntryComponent =
                 new TraceEntryComponent(threadContext, messageSupplier, timer, 0);
         // when
-        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
-        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
+        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry());
+        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry());
         // then ok
     }
 
@@ -55,7 +55,7 @@ public class TraceEntryComponentTest {
                 new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
         // when
         traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
-        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry(), 0);
+        traceEntryComponent.popEntry(traceEntryComponent.getRootEntry());
         // then
         assertThat(traceEntryComponent.isCompleted()).isTrue();
     }
@@ -74,7 +74,7 @@ public class TraceEntryComponentTest {
                 new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0);
         // when
         traceEntryComponent.pushEntry(0, messageSupplier2, timer2, null, null, 0);
-        traceEntryComponent.popEntry(mock(TraceEntryImpl.class), 0);
+        traceEntryComponent.popEntry(mock(TraceEntryImpl.class));
         // then
         assertThat(traceEntryComponent.isCompleted()).isFalse();
     }
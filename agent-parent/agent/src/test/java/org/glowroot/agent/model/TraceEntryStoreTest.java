@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.api.Message;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TraceEntryStoreTest {
+
+    @Test
+    public void shouldGrowAcrossChunks() {
+        // given
+        TraceEntryStore store = new TraceEntryStore();
+        // when
+        for (int i = 0; i < 1000; i++) {
+            store.add(i, i - 1, null);
+        }
+        // then
+        assertThat(store.size()).isEqualTo(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(store.getStartTick(i)).isEqualTo(i);
+            assertThat(store.getParentIndex(i)).isEqualTo(i - 1);
+        }
+    }
+
+    @Test
+    public void shouldBuildProto() {
+        // given
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.from("abc"));
+        TraceEntryStore store = new TraceEntryStore();
+        int index = store.add(10, -1, messageSupplier);
+        store.setRowCount(index, 2);
+        store.setCompleted(index, 15);
+        // when
+        Trace.Entry entry = store.toProto(index, 1, 0, 20);
+        // then
+        assertThat(entry.getDepth()).isEqualTo(1);
+        assertThat(entry.getStartOffsetNanos()).isEqualTo(10);
+        assertThat(entry.getDurationNanos()).isEqualTo(5);
+        assertThat(entry.getActive()).isFalse();
+        assertThat(entry.getMessage()).isEqualTo("abc => 2 rows");
+    }
+
+    @Test
+    public void shouldBuildActiveProto() {
+        // given
+        TraceEntryStore store = new TraceEntryStore();
+        int index = store.add(10, -1, null);
+        // when
+        Trace.Entry entry = store.toProto(index, 0, 0, 20);
+        // then
+        assertThat(entry.getDurationNanos()).isEqualTo(10);
+        assertThat(entry.getActive()).isTrue();
+        assertThat(entry.getMessage()).isEmpty();
+    }
+
+    @Test
+    public void shouldIgnoreWritesAfterRelease() {
+        // given
+        TraceEntryStore store = new TraceEntryStore(false);
+        int index = store.add(10, -1, null);
+        // when
+        store.release();
+        store.setRowCount(index, 2);
+        store.setCompleted(index, 15);
+        // then
+        assertThat(store.size()).isEqualTo(0);
+        assertThat(store.hasEntry(index)).isFalse();
+    }
+
+    @Test
+    public void shouldReuseReleasedChunksWithoutStaleEntries() {
+        // given
+        MessageSupplier messageSupplier = mock(MessageSupplier.class);
+        when(messageSupplier.get()).thenReturn(Message.from("abc"));
+        TraceEntryStore releasedStore = new TraceEntryStore(false);
+        for (int i = 0; i < 20; i++) {
+            releasedStore.add(i, i - 1, messageSupplier);
+            releasedStore.setRowCount(i, 2);
+            releasedStore.setCompleted(i, i + 1);
+        }
+        releasedStore.release();
+        // when
+        TraceEntryStore store = new TraceEntryStore(true);
+        int index = store.add(10, -1, messageSupplier);
+        releasedStore.setRowCount(index, 3);
+        releasedStore.setCompleted(index, 11);
+        // then
+        Trace.Entry entry = store.toProto(index, 0, 0, 20);
+        assertThat(entry.getActive()).isTrue();
+        assertThat(entry.getMessage()).isEqualTo("abc");
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.server;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import io.grpc.stub.StreamObserver;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ClientResponse;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MBeanDump;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DownstreamServiceObserverTest {
+
+    @Test
+    public void shouldSendMBeanDumpInChunks() {
+        // given
+        MBeanDump.Builder builder = MBeanDump.newBuilder();
+        for (int i = 0; i < 50000; i++) {
+            builder.addMbeanInfoBuilder()
+                    .setObjectName("org.glowroot.test:type=Test,name=" + i);
+        }
+        MBeanDump mbeanDump = builder.build();
+        CollectingObserver observer = new CollectingObserver();
+        // when
+        DownstreamServiceObserver.sendMBeanDumpChunks(123, mbeanDump, observer);
+        // then
+        assertThat(observer.responses.size()).isGreaterThan(1);
+        ClientResponse merged = merge(observer.responses);
+        assertThat(merged.getRequestId()).isEqualTo(123);
+        assertThat(merged.getMbeanDumpResponse().getMbeanDump()).isEqualTo(mbeanDump);
+    }
+
+    @Test
+    public void shouldSendThreadDumpInChunks() {
+        // given
+        ThreadDump.Builder builder = ThreadDump.newBuilder();
+        builder.getThreadDumpingThreadBuilder().setName("dumping");
+        for (int i = 0; i < 3000; i++) {
+            ThreadDump.Thread.Builder thread = ThreadDump.Thread.newBuilder()
+                    .setName("thread-" + i)
+                    .setState("RUNNABLE");
+            for (int j = 0; j < 50; j++) {
+                thread.addStackTraceElementBuilder()
+                        .setClassName("org.glowroot.test.SomeClass" + j)
+                        .setMethodName("someMethod")
+                        .setFileName("SomeClass.java")
+                        .setLineNumber(j);
+            }
+            if (i % 3 == 0) {
+                builder.addTransactionBuilder()
+                        .setTransactionType("Web")
+                        .setTransactionName("/" + i)
+                        .addThread(thread);
+            } else {
+                builder.addUnmatchedThread(thread);
+            }
+        }
+        ThreadDump threadDump = builder.build();
+        CollectingObserver observer = new CollectingObserver();
+        // when
+        DownstreamServiceObserver.sendThreadDumpChunks(123, threadDump, observer);
+        // then
+        assertThat(observer.responses.size()).isGreaterThan(1);
+        ClientResponse merged = merge(observer.responses);
+        assertThat(merged.getThreadDumpResponse().getThreadDump()).isEqualTo(threadDump);
+    }
+
+    @Test
+    public void shouldSendSmallThreadDumpInSingleChunk() {
+        // given
+        ThreadDump threadDump = ThreadDump.newBuilder()
+                .addUnmatchedThread(ThreadDump.Thread.newBuilder()
+                        .setName("main"))
+                .build();
+        CollectingObserver observer = new CollectingObserver();
+        // when
+        DownstreamServiceObserver.sendThreadDumpChunks(123, threadDump, observer);
+        // then
+        assertThat(observer.responses).hasSize(1);
+        assertThat(observer.responses.get(0).getMoreChunks()).isFalse();
+        assertThat(observer.responses.get(0).getThreadDumpResponse().getThreadDump())
+                .isEqualTo(threadDump);
+    }
+
+    // same as the glowroot server does
+    private static ClientResponse merge(List<ClientResponse> chunks) {
+        ClientResponse.Builder merged = ClientResponse.newBuilder();
+        for (int i = 0; i < chunks.size(); i++) {
+            ClientResponse chunk = chunks.get(i);
+            assertThat(chunk.getMoreChunks()).isEqualTo(i < chunks.size() - 1);
+            merged.mergeFrom(chunk);
+        }
+        return merged.setMoreChunks(false).build();
+    }
+
+    private static class CollectingObserver implements StreamObserver<ClientResponse> {
+
+        private final List<ClientResponse> responses = Lists.newArrayList();
+
+        @Override
+        public void onNext(ClientResponse value) {
+            responses.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// runs the plugin benchmarks without the agent, and then with the agent once per agent config,
+// writes the scores and the agent overhead (score minus the score without the agent) to a csv
+// report, and (optionally) fails if the overhead regressed compared to a prior report
+//
+// plugin capture flags are varied by passing multiple agent configs, each of which is a glowroot
+// base dir whose config.json has different plugin property values
+//
+// LogbackBenchmark is additionally run against a generated agent config with the logger plugin
+// threshold set (variant "agent:logger-threshold-error"), since otherwise the threshold check is
+// never exercised
+//
+// usage: java -cp benchmarks.jar org.glowroot.agent.plugin.PluginOverheadRunner
+//            -agent <path to glowroot.jar> [-config <name>=<glowroot base dir>]...
+//            -report <report.csv> [-baseline <prior report.csv>] [-threshold <percent>]
+//            [-include <benchmark regex>]
+public class PluginOverheadRunner {
+
+    private static final String DEFAULT_INCLUDE =
+            "^org\\.glowroot\\.agent\\.plugin\\..*|.*\\.ExecutorBenchmark\\..*";
+
+    private static final String NO_AGENT = "no-agent";
+
+    private static final String LOGGER_THRESHOLD_BENCHMARK =
+            "org.glowroot.agent.plugin.logger.LogbackBenchmark.log";
+
+    private static final String LOGGER_THRESHOLD_VARIANT = "logger-threshold-error";
+
+    private static final String LOGGER_THRESHOLD_CONFIG =
+            "{\"plugins\":[{\"id\":\"logger\",\"properties\":{\"threshold\":\"error\"}}]}";
+
+    private static final String HEADER = "benchmark,params,variant,score,scoreError,unit,overhead";
+
+    private PluginOverheadRunner() {}
+
+    public static void main(String[] args) throws Exception {
+        String agentPath = null;
+        Map<String, String> configs = Maps.newLinkedHashMap();
+        String reportPath = null;
+        String baselinePath = null;
+        double thresholdPercent = 10;
+        String include = DEFAULT_INCLUDE;
+        if (args.length % 2 != 0) {
+            throw new IllegalArgumentException("Arguments must be name/value pairs");
+        }
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i];
+            String value = args[i + 1];
+            if (name.equals("-agent")) {
+                agentPath = value;
+            } else if (name.equals("-config")) {
+                int index = value.indexOf('=');
+                if (index == -1) {
+                    throw new IllegalArgumentException("Invalid -config (expecting name=dir): "
+                            + value);
+                }
+                configs.put(value.substring(0, index), value.substring(index + 1));
+            } else if (name.equals("-report")) {
+                reportPath = value;
+            } else if (name.equals("-baseline")) {
+                baselinePath = value;
+            } else if (name.equals("-threshold")) {
+                thresholdPercent = Double.parseDouble(value);
+            } else if (name.equals("-include")) {
+                include = value;
+            } else {
+                throw new IllegalArgumentException("Unexpected argument: " + name);
+            }
+        }
+        if (agentPath == null || reportPath == null) {
+            throw new IllegalArgumentException("Both -agent and -report are required");
+        }
+        if (configs.isEmpty()) {
+            // agent with default config
+            configs.put("default", null);
+        }
+        List<Row> rows = Lists.newArrayList();
+        Map<String, Double> noAgentScores = Maps.newHashMap();
+        for (RunResult result : run(include)) {
+            Row row = new Row(result, NO_AGENT);
+            noAgentScores.put(row.key(), row.score);
+            rows.add(row);
+        }
+        for (Map.Entry<String, String> entry : configs.entrySet()) {
+            runWithAgent(include, agentPath, entry.getKey(), entry.getValue(), noAgentScores,
+                    rows);
+        }
+        if (Pattern.compile(include).matcher(LOGGER_THRESHOLD_BENCHMARK).find()) {
+            File baseDir = Files.createTempDir();
+            try {
+                Files.write(LOGGER_THRESHOLD_CONFIG, new File(baseDir, "config.json"),
+                        Charsets.UTF_8);
+                runWithAgent(Pattern.quote(LOGGER_THRESHOLD_BENCHMARK), agentPath,
+                        LOGGER_THRESHOLD_VARIANT, baseDir.getAbsolutePath(), noAgentScores, rows);
+            } finally {
+                deleteRecursively(baseDir);
+            }
+        }
+        List<String> lines = Lists.newArrayList(HEADER);
+        for (Row row : rows) {
+            lines.add(row.toCsv());
+        }
+        Files.write(Joiner.on('\n').join(lines) + '\n', new File(reportPath), Charsets.UTF_8);
+        if (baselinePath != null
+                && !checkRegressions(rows, new File(baselinePath), thresholdPercent)) {
+            System.exit(1);
+        }
+    }
+
+    private static void runWithAgent(String include, String agentPath, String configName,
+            String baseDir, Map<String, Double> noAgentScores, List<Row> rows)
+            throws Exception {
+        String variant = "agent:" + configName;
+        List<String> jvmArgs = Lists.newArrayList("-javaagent:" + agentPath);
+        if (baseDir != null) {
+            jvmArgs.add("-Dglowroot.base.dir=" + baseDir);
+        }
+        for (RunResult result : run(include, jvmArgs.toArray(new String[jvmArgs.size()]))) {
+            Row row = new Row(result, variant);
+            Double noAgentScore = noAgentScores.get(row.key());
+            if (noAgentScore != null) {
+                row.overhead = row.score - noAgentScore;
+            }
+            rows.add(row);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("could not delete: " + file.getAbsolutePath());
+        }
+    }
+
+    private static Collection<RunResult> run(String include, String... jvmArgs)
+            throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder().include(include);
+        if (jvmArgs.length > 0) {
+            options.jvmArgsPrepend(jvmArgs);
+        }
+        return new Runner(options.build()).run();
+    }
+
+    private static boolean checkRegressions(List<Row> rows, File baselineFile,
+            double thresholdPercent) throws Exception {
+        Map<String, Double> baselineOverheads = Maps.newHashMap();
+        for (String line : Files.readLines(baselineFile, Charsets.UTF_8)) {
+            if (line.isEmpty() || line.equals(HEADER)) {
+                continue;
+            }
+            List<String> columns = Splitter.on(',').splitToList(line);
+            String key = columns.get(0) + ',' + columns.get(1) + ',' + columns.get(2);
+            baselineOverheads.put(key, Double.parseDouble(columns.get(6)));
+        }
+        boolean passed = true;
+        for (Row row : rows) {
+            if (Double.isNaN(row.overhead)) {
+                continue;
+            }
+            Double baselineOverhead = baselineOverheads.get(row.key() + ',' + row.variant);
+            if (baselineOverhead == null || Double.isNaN(baselineOverhead)
+                    || baselineOverhead <= 0) {
+                continue;
+            }
+            if (row.overhead > baselineOverhead * (1 + thresholdPercent / 100)) {
+                System.err.println("overhead regression: " + row.benchmark + " " + row.params
+                        + " " + row.variant + " " + baselineOverhead + " -> " + row.overhead
+                        + " " + row.unit);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    private static class Row {
+
+        private final String benchmark;
+        private final String params;
+        private final String variant;
+        private final double score;
+        private final double scoreError;
+        private final String unit;
+        private double overhead = Double.NaN;
+
+        private Row(RunResult result, String variant) {
+            BenchmarkParams benchmarkParams = result.getParams();
+            benchmark = benchmarkParams.getBenchmark();
+            List<String> paramValues = Lists.newArrayList();
+            for (String key : benchmarkParams.getParamsKeys()) {
+                paramValues.add(key + '=' + benchmarkParams.getParam(key));
+            }
+            params = Joiner.on(';').join(paramValues);
+            this.variant = variant;
+            Result<?> primaryResult = result.getPrimaryResult();
+            score = primaryResult.getScore();
+            scoreError = primaryResult.getScoreError();
+            unit = primaryResult.getScoreUnit();
+        }
+
+        private String key() {
+            return benchmark + ',' + params;
+        }
+
+        private String toCsv() {
+            return Joiner.on(',').join(benchmark, params, variant, score, scoreError, unit,
+                    overhead);
+        }
+    }
+}
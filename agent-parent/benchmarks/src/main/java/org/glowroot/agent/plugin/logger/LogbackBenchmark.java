@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.logger;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.helpers.NOPAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// PluginOverheadRunner also runs this in a separate fork against an agent config with the logger
+// plugin threshold set to error (variant "agent:logger-threshold-error"), in which case INFO and
+// WARN are below the threshold and their overhead should be close to the overhead of DISABLED_LEVEL
+// (which logback itself filters out before the logger plugin is ever reached)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class LogbackBenchmark extends TransactionWorthy {
+
+    private static final int LOGS_PER_TRANSACTION = 100;
+
+    @Param
+    private LogType logType;
+
+    private LoggerContext loggerContext;
+    private Logger logger;
+    private Exception exception;
+
+    @Setup
+    public void setup() {
+        // separate logger context with a no-op appender, so that the benchmark measures the logger
+        // plugin and not the cost of formatting and writing the log output
+        loggerContext = new LoggerContext();
+        NOPAppender<ILoggingEvent> appender = new NOPAppender<ILoggingEvent>();
+        appender.setContext(loggerContext);
+        appender.start();
+        logger = loggerContext.getLogger(LogbackBenchmark.class);
+        logger.setLevel(Level.INFO);
+        logger.setAdditive(false);
+        logger.addAppender(appender);
+        exception = new Exception();
+    }
+
+    @TearDown
+    public void tearDown() {
+        loggerContext.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOGS_PER_TRANSACTION)
+    public void log() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        switch (logType) {
+            case DISABLED_LEVEL:
+                for (int i = 0; i < LOGS_PER_TRANSACTION; i++) {
+                    logger.debug("benchmark {}", i);
+                }
+                break;
+            case INFO:
+                for (int i = 0; i < LOGS_PER_TRANSACTION; i++) {
+                    logger.info("benchmark {}", i);
+                }
+                break;
+            case WARN:
+                for (int i = 0; i < LOGS_PER_TRANSACTION; i++) {
+                    logger.warn("benchmark {}", i);
+                }
+                break;
+            case ERROR_WITH_THROWABLE:
+                for (int i = 0; i < LOGS_PER_TRANSACTION; i++) {
+                    logger.error("benchmark", exception);
+                }
+                break;
+        }
+    }
+
+    public enum LogType {
+        DISABLED_LEVEL, INFO, WARN, ERROR_WITH_THROWABLE
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures executor plugin overhead per submitted task, for transactions that submit many tiny
+// tasks, with one auxiliary thread context per task vs coalesced auxiliary thread contexts
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ExecutorBenchmark extends TransactionWorthy {
+
+    private static final int TASKS_PER_TRANSACTION = 1000;
+
+    @Param
+    private PoolType poolType;
+
+    private ExecutorService executorService;
+
+    @Setup
+    public void setup() throws Exception {
+        switch (poolType) {
+            case THREAD_POOL:
+                executorService = Executors.newFixedThreadPool(4);
+                break;
+            case FORK_JOIN_POOL:
+                // ForkJoinPool is created reflectively since it is not in the jdk 6 signatures that
+                // this module is checked against
+                executorService = (ExecutorService) Class
+                        .forName("java.util.concurrent.ForkJoinPool")
+                        .getConstructor(int.class)
+                        .newInstance(4);
+                break;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS_PER_TRANSACTION)
+    public void perTask() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS_PER_TRANSACTION)
+    @Fork(jvmArgsAppend = "-Dglowroot.auxThreadContext.coalesce=true")
+    public void coalesced() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        List<Future<Integer>> futures = Lists.newArrayListWithCapacity(TASKS_PER_TRANSACTION);
+        for (int i = 0; i < TASKS_PER_TRANSACTION; i++) {
+            futures.add(executorService.submit(new TinyTask(i)));
+        }
+        for (Future<Integer> future : futures) {
+            future.get();
+        }
+    }
+
+    public enum PoolType {
+        THREAD_POOL, FORK_JOIN_POOL
+    }
+
+    private static class TinyTask implements Callable<Integer> {
+
+        private final int value;
+
+        private TinyTask(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public Integer call() {
+            return value * 31;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// compares HdrHistogram (5 significant digits) against compact histograms (2 and 3 significant
+// digits) for merging stored histograms, which is what percentile chart rendering and rollups do
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class HistogramBenchmark {
+
+    private static final int NUM_HISTOGRAMS = 100;
+    private static final int VALUES_PER_HISTOGRAM = 10000;
+
+    // 0 means HdrHistogram
+    @Param({"0", "2", "3"})
+    private int compactSignificantDigits;
+
+    private List<Aggregate.Histogram> histograms;
+    private LazyHistogram lazyHistogram;
+    private ScratchBuffer scratchBuffer;
+
+    @Setup
+    public void setup() throws DataFormatException {
+        // fixed seed so that each kind of histogram is built from the same values
+        Random random = new Random(0);
+        scratchBuffer = new ScratchBuffer();
+        histograms = Lists.newArrayList();
+        for (int i = 0; i < NUM_HISTOGRAMS; i++) {
+            LazyHistogram source = new LazyHistogram(compactSignificantDigits);
+            for (int j = 0; j < VALUES_PER_HISTOGRAM; j++) {
+                // log-normal-ish response times centered around 10 milliseconds
+                source.add((long) (10000000 * Math.exp(random.nextGaussian())));
+            }
+            histograms.add(source.toProto(scratchBuffer));
+        }
+        lazyHistogram = new LazyHistogram(compactSignificantDigits);
+        for (Aggregate.Histogram histogram : histograms) {
+            lazyHistogram.merge(histogram);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_HISTOGRAMS)
+    public long merge() throws DataFormatException {
+        LazyHistogram merged = new LazyHistogram(compactSignificantDigits);
+        for (Aggregate.Histogram histogram : histograms) {
+            merged.merge(histogram);
+        }
+        return merged.getValueAtPercentile(99);
+    }
+
+    @Benchmark
+    public Aggregate.Histogram serialize() {
+        return lazyHistogram.toProto(scratchBuffer);
+    }
+}
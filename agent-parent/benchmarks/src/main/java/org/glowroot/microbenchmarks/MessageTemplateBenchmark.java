@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.MessageTemplateWorthy;
+import org.glowroot.microbenchmarks.support.MessageTemplateWorthy.Customer;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// compares generated (bytecode) accessors against reflective accessors for evaluating
+// config-defined message templates, e.g. {{0.address.city}}
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark extends TransactionWorthy {
+
+    private MessageTemplateWorthy messageTemplateWorthy;
+    private Customer customer;
+
+    @Setup
+    public void setup() {
+        messageTemplateWorthy = new MessageTemplateWorthy();
+        customer = new Customer();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    public void generated() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    @Fork(jvmArgsAppend = "-Dglowroot.advicegen.reflectiveAccessors=true")
+    public void reflective() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            messageTemplateWorthy.doSomethingMessageTemplateWorthy(customer);
+        }
+    }
+}
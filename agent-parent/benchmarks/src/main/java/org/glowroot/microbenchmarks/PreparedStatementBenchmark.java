@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures jdbc plugin overhead of capturing bind parameters for prepared statement executions
+//
+// compare runs with the jdbc plugin properties captureBindParameters and deferBindParameters
+// enabled/disabled in the agent config
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PreparedStatementBenchmark extends TransactionWorthy {
+
+    private static final int EXECUTIONS_PER_TRANSACTION = 100;
+
+    @Param({"1", "10"})
+    private int parameterCount;
+
+    @Param
+    private ExecutionType executionType;
+
+    private Connection connection;
+    private PreparedStatement preparedStatement;
+
+    @Setup
+    public void setup() throws Exception {
+        connection = DriverManager.getConnection("jdbc:hsqldb:mem:benchmark", "sa", "");
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("create table if not exists benchmark (c0 varchar(100),"
+                    + " c1 varchar(100), c2 varchar(100), c3 varchar(100), c4 varchar(100),"
+                    + " c5 varchar(100), c6 varchar(100), c7 varchar(100), c8 varchar(100),"
+                    + " c9 varchar(100))");
+        } finally {
+            statement.close();
+        }
+        StringBuilder sql = new StringBuilder("update benchmark set ");
+        for (int i = 0; i < parameterCount; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("c");
+            sql.append(i);
+            sql.append(" = ?");
+        }
+        // no rows are updated so that the benchmark is dominated by bind parameter handling
+        sql.append(" where 1 = 0");
+        preparedStatement = connection.prepareStatement(sql.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        preparedStatement.close();
+        connection.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EXECUTIONS_PER_TRANSACTION)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        switch (executionType) {
+            case EXECUTE:
+                for (int i = 0; i < EXECUTIONS_PER_TRANSACTION; i++) {
+                    setParameters(i);
+                    preparedStatement.executeUpdate();
+                }
+                break;
+            case EXECUTE_BATCH:
+                for (int i = 0; i < EXECUTIONS_PER_TRANSACTION; i++) {
+                    setParameters(i);
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+                break;
+        }
+    }
+
+    private void setParameters(int row) throws Exception {
+        for (int i = 1; i <= parameterCount; i++) {
+            preparedStatement.setString(i, "value");
+        }
+        preparedStatement.setString(1, Integer.toString(row));
+    }
+
+    public enum ExecutionType {
+        EXECUTE, EXECUTE_BATCH
+    }
+}
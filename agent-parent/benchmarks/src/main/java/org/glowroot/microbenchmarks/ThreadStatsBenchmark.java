@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures transaction start/end cost (which is where thread stats are captured) with thread stats
+// captured on every transaction vs sampled on 1 out of 10 transactions, and with thread contention
+// monitoring (which is needed for blocked/waited times) disabled vs enabled
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ThreadStatsBenchmark {
+
+    @Param({"false", "true"})
+    private boolean contentionMonitoringEnabled;
+
+    private TransactionWorthy transactionWorthy;
+
+    @Setup
+    public void setup() {
+        ManagementFactory.getThreadMXBean()
+                .setThreadContentionMonitoringEnabled(contentionMonitoringEnabled);
+        transactionWorthy = new TransactionWorthy();
+    }
+
+    @Benchmark
+    public void everyTransaction() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.threadStats.sampleInterval=10")
+    public void sampled() throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+public class MessageTemplateWorthy {
+
+    public void doSomethingMessageTemplateWorthy(@SuppressWarnings("unused") Customer customer) {}
+
+    public String getName() {
+        return "the name";
+    }
+
+    public static class Customer {
+
+        private final Address address = new Address();
+
+        public long getId() {
+            return 123;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+    }
+
+    public static class Address {
+
+        public String getCity() {
+            return "the city";
+        }
+    }
+}
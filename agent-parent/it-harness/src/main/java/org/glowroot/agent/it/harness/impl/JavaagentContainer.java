@@ -59,6 +59,7 @@ import org.glowroot.agent.it.harness.grpc.JavaagentServiceGrpc;
 import org.glowroot.agent.it.harness.grpc.JavaagentServiceGrpc.JavaagentServiceBlockingClient;
 import org.glowroot.agent.it.harness.grpc.JavaagentServiceOuterClass.AppUnderTestClassName;
 import org.glowroot.agent.it.harness.grpc.JavaagentServiceOuterClass.Void;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -241,6 +242,13 @@ public class JavaagentContainer implements Container {
         return traceCollector.getPartialTrace(10, SECONDS);
     }
 
+    // aggregates are only collected at the end of each aggregate interval, so tests using this
+    // should shorten the interval via -Dglowroot.internal.rollup.0.intervalMillis
+    public List<AggregatesByType> getCollectedAggregates() {
+        checkNotNull(traceCollector);
+        return traceCollector.getAggregates();
+    }
+
     @Override
     public void checkAndReset() throws Exception {
         if (configService == null) {
@@ -250,6 +258,7 @@ public class JavaagentContainer implements Container {
         }
         if (traceCollector != null) {
             traceCollector.checkAndResetLogMessages();
+            traceCollector.clearAggregates();
         }
     }
 
@@ -23,6 +23,7 @@ import javax.annotation.Nullable;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.immutables.value.Value;
 
@@ -41,6 +42,8 @@ class TraceCollector implements Collector {
 
     private volatile @Nullable Trace trace;
 
+    private final List<AggregatesByType> aggregates = Lists.newCopyOnWriteArrayList();
+
     private final List<ExpectedLogMessage> expectedMessages = Lists.newCopyOnWriteArrayList();
     private final List<LogEvent> unexpectedMessages = Lists.newCopyOnWriteArrayList();
 
@@ -79,6 +82,14 @@ class TraceCollector implements Collector {
         trace = null;
     }
 
+    List<AggregatesByType> getAggregates() {
+        return ImmutableList.copyOf(aggregates);
+    }
+
+    void clearAggregates() {
+        aggregates.clear();
+    }
+
     void addExpectedLogMessage(String loggerName, String partialMessage) {
         expectedMessages.add(ImmutableExpectedLogMessage.of(loggerName, partialMessage));
     }
@@ -108,7 +119,9 @@ class TraceCollector implements Collector {
             AgentConfigUpdater agentConfigUpdater) {}
 
     @Override
-    public void collectAggregates(long captureTime, List<AggregatesByType> aggregatesByType) {}
+    public void collectAggregates(long captureTime, List<AggregatesByType> aggregatesByType) {
+        aggregates.addAll(aggregatesByType);
+    }
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) {}
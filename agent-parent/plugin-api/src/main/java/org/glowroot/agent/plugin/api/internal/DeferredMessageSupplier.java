@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.api.internal;
+
+// this interface exists so that glowroot can ask plugin message suppliers to hold on to data that
+// they only keep in (recycled) per-thread storage, once it is known that the transaction will be
+// stored as a trace
+//
+// materialize() is called by the transaction thread once the transaction crosses its slow
+// threshold or at the end of the transaction, and also by other threads before building partial
+// traces and active traces, so it must be thread safe, and may be called more than once
+public interface DeferredMessageSupplier {
+
+    void materialize();
+}
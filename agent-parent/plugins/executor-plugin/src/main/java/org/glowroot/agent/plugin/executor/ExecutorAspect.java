@@ -120,6 +120,46 @@ public class ExecutorAspect {
         }
     }
 
+    // ForkJoinTask.fork() from inside of a ForkJoinPool worker thread pushes the task directly onto
+    // the worker's own queue (bypassing ForkJoinPool.execute/submit), from where it can be stolen
+    // and run by any other worker thread
+    @Pointcut(className = "java.util.concurrent.ForkJoinTask|akka.jsr166y.ForkJoinTask",
+            methodName = "fork", methodParameterTypes = {})
+    public static class ForkAdvice {
+        @OnBefore
+        public static void onBefore(ThreadContext context, @BindReceiver Object task) {
+            // this class may have been loaded before class file transformer was added to jvm
+            if (task instanceof RunnableEtcMixin && !(task instanceof SuppressedRunnableEtcMixin)) {
+                RunnableEtcMixin taskMixin = (RunnableEtcMixin) task;
+                AuxThreadContext auxContext = context.createAuxThreadContext();
+                taskMixin.glowroot$setAuxContext(auxContext);
+            }
+        }
+    }
+
+    // CompletableFuture *Async() stages are submitted to their executor by whichever thread
+    // completes the prior stage, which is often outside of the transaction (e.g. a network thread),
+    // so the aux context is captured when the stage is created instead
+    @Pointcut(className = "java.util.concurrent.CompletableFuture$UniCompletion",
+            methodName = "<init>",
+            methodParameterTypes = {"java.util.concurrent.Executor", ".."})
+    public static class CompletableFutureAsyncStageAdvice {
+        @OnReturn
+        public static void onReturn(ThreadContext context, @BindReceiver Object completion,
+                @BindParameter @Nullable Object executor) {
+            if (executor == null) {
+                // not an *Async() stage, so runs synchronously in the completing thread
+                return;
+            }
+            // this class may have been loaded before class file transformer was added to jvm
+            if (completion instanceof RunnableEtcMixin) {
+                RunnableEtcMixin completionMixin = (RunnableEtcMixin) completion;
+                AuxThreadContext auxContext = context.createAuxThreadContext();
+                completionMixin.glowroot$setAuxContext(auxContext);
+            }
+        }
+    }
+
     // no nesting group in order to capture sometimes wrapped runnable passed to delegate executor
     @Pointcut(className = "java.util.concurrent.ScheduledExecutorService", methodName = "schedule",
             methodParameterTypes = {".."})
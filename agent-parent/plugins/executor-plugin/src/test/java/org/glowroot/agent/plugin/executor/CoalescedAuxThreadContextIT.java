@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.executor;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.TraceEntryMarker;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.agent.it.harness.impl.JavaagentContainer;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CoalescedAuxThreadContextIT {
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // tests only work with javaagent container because they need to weave bootstrap classes
+        // that implement Executor and ExecutorService
+        container = JavaagentContainer.createWithExtraJvmArgs(
+                ImmutableList.of("-Dglowroot.auxThreadContext.coalesce=true"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldCoalesceTasksWithSameParentEntry() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(SubmitSequentialTasks.class);
+        // then
+        assertThat(trace.getHeader().getEntryCount()).isEqualTo(4);
+        Trace.Entry entry = trace.getEntry(0);
+        assertThat(entry.getDepth()).isEqualTo(0);
+        assertThat(entry.getMessage()).isEqualTo("auxiliary thread");
+        for (int i = 1; i < 4; i++) {
+            entry = trace.getEntry(i);
+            assertThat(entry.getDepth()).isEqualTo(1);
+            assertThat(entry.getMessage()).isEqualTo("trace entry marker / CreateTraceEntry");
+        }
+    }
+
+    @Test
+    public void shouldNotCoalesceTasksWithDifferentParentEntry() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(SubmitTasksFromDifferentParentEntries.class);
+        // then
+        assertThat(trace.getHeader().getEntryCount()).isEqualTo(5);
+        Trace.Entry entry1 = trace.getEntry(0);
+        assertThat(entry1.getDepth()).isEqualTo(0);
+        assertThat(entry1.getMessage()).isEqualTo("auxiliary thread");
+        Trace.Entry entry2 = trace.getEntry(1);
+        assertThat(entry2.getDepth()).isEqualTo(1);
+        assertThat(entry2.getMessage()).isEqualTo("trace entry marker / CreateTraceEntry");
+        Trace.Entry entry3 = trace.getEntry(2);
+        assertThat(entry3.getDepth()).isEqualTo(0);
+        assertThat(entry3.getMessage()).isEqualTo("trace entry marker / SubmitTaskFromEntry");
+        Trace.Entry entry4 = trace.getEntry(3);
+        assertThat(entry4.getDepth()).isEqualTo(1);
+        assertThat(entry4.getMessage()).isEqualTo("auxiliary thread");
+        Trace.Entry entry5 = trace.getEntry(4);
+        assertThat(entry5.getDepth()).isEqualTo(2);
+        assertThat(entry5.getMessage()).isEqualTo("trace entry marker / CreateTraceEntry");
+    }
+
+    public static class SubmitSequentialTasks implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            for (int i = 0; i < 3; i++) {
+                executor.submit(new CreateTraceEntryCallable()).get();
+            }
+            executor.shutdown();
+        }
+    }
+
+    public static class SubmitTasksFromDifferentParentEntries
+            implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            executor.submit(new CreateTraceEntryCallable()).get();
+            // the second task runs on the same executor thread, but must not be coalesced into
+            // the first task's thread context since it is started from a different trace entry
+            new SubmitTaskFromEntry(executor).traceEntryMarker();
+            executor.shutdown();
+        }
+    }
+
+    private static class SubmitTaskFromEntry implements TraceEntryMarker {
+
+        private final ExecutorService executor;
+
+        private SubmitTaskFromEntry(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void traceEntryMarker() throws Exception {
+            executor.submit(new CreateTraceEntryCallable()).get();
+        }
+    }
+
+    private static class CreateTraceEntryCallable implements Callable<Void> {
+
+        @Override
+        public Void call() {
+            new CreateTraceEntry().traceEntryMarker();
+            return null;
+        }
+    }
+
+    private static class CreateTraceEntry implements TraceEntryMarker {
+        @Override
+        public void traceEntryMarker() {}
+    }
+}
@@ -21,6 +21,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 import com.google.common.collect.Lists;
 import org.junit.After;
@@ -165,6 +166,21 @@ public class ForkJoinPoolIT {
         assertThat(count).isEqualTo(3);
     }
 
+    @Test
+    public void shouldCaptureForkedTasks() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoPoolInvokeRecursiveTask.class);
+        // then
+        int count = 0;
+        for (Trace.Entry entry : trace.getEntryList()) {
+            if (entry.getMessage().equals("trace entry marker / CreateTraceEntry")) {
+                count++;
+            }
+        }
+        assertThat(count).isEqualTo(7);
+    }
+
     public static class DoPoolSubmitCallable implements AppUnderTest, TransactionMarker {
 
         @Override
@@ -345,6 +361,20 @@ public class ForkJoinPoolIT {
         }
     }
 
+    public static class DoPoolInvokeRecursiveTask implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ForkJoinPool pool = new ForkJoinPool();
+            pool.invoke(new SimpleRecursiveTask(3));
+        }
+    }
+
     private static class SimpleCallable implements Callable<Void> {
         @Override
         public Void call() {
@@ -385,6 +415,25 @@ public class ForkJoinPoolIT {
         }
     }
 
+    @SuppressWarnings("serial")
+    private static class SimpleRecursiveTask extends RecursiveAction {
+
+        private final int depth;
+
+        private SimpleRecursiveTask(int depth) {
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            new CreateTraceEntry().traceEntryMarker();
+            if (depth > 1) {
+                // invokeAll() forks the second task, which may then be stolen by another worker
+                invokeAll(new SimpleRecursiveTask(depth - 1), new SimpleRecursiveTask(depth - 1));
+            }
+        }
+    }
+
     private static class CreateTraceEntry implements TraceEntryMarker {
         @Override
         public void traceEntryMarker() {}
@@ -16,6 +16,7 @@
 package org.glowroot.agent.plugin.jdbc;
 
 import java.util.Collection;
+import java.util.List;
 
 import javax.annotation.Nullable;
 
@@ -24,6 +25,7 @@ import com.google.common.collect.Queues;
 import com.google.common.hash.HashCode;
 
 import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
+import org.glowroot.agent.plugin.jdbc.message.BindParameterRing;
 
 // used to capture and mirror the state of prepared statements since the underlying
 // PreparedStatement values cannot be inspected after they have been set
@@ -32,18 +34,26 @@ class PreparedStatementMirror extends StatementMirror {
     private static final int PARAMETERS_INITIAL_CAPACITY = 4;
 
     private final String sql;
+    // normalized sql is computed at most once per prepared statement
+    private @Nullable String normalizedSql;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
-    private BindParameterList parameters;
+    //
+    // this is created lazily since it is not needed when bind parameter capture is disabled
+    private @Nullable BindParameterList parameters;
     private boolean parametersCopied;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
     private @Nullable Collection<BindParameterList> batchedParameters;
+    private int batchSize;
+    // when bind parameter capture is deferred, batched parameters are stored in consecutive slots
+    // of the per-thread ring, starting at batchFirstSeq (-1 if the batch is not in the ring)
+    private long batchFirstSeq = -1;
+    // only set in the rare case that the batch could not be copied back out of the ring
+    private boolean batchedParametersLost;
 
     public PreparedStatementMirror(String sql) {
         this.sql = sql;
-        // TODO delay creation to optimize case when bind parameter capture is disabled
-        parameters = new BindParameterList(PARAMETERS_INITIAL_CAPACITY);
     }
 
     public void addBatch() {
@@ -51,8 +61,34 @@ class PreparedStatementMirror extends StatementMirror {
         if (batchedParameters == null) {
             batchedParameters = Queues.newConcurrentLinkedQueue();
         }
-        batchedParameters.add(parameters);
+        batchedParameters.add(getOrCreateParameters());
         parametersCopied = true;
+        batchSize++;
+    }
+
+    public void addBatchDeferred(BindParameterRing ring) {
+        if (batchedParameters != null) {
+            // this batch has already fallen back to eager capture
+            addBatch();
+            return;
+        }
+        if (batchSize > 0 && (batchSize == ring.getSize()
+                || ring.getNextSeq() != batchFirstSeq + batchSize)) {
+            // the batch will not fit in the ring, or another statement was batched or executed by
+            // this thread in between, so fall back to eager capture for the rest of the batch
+            copyBatchOutOfRing(ring);
+            addBatch();
+            return;
+        }
+        long seq = ring.add(parameters);
+        if (batchSize == 0) {
+            batchFirstSeq = seq;
+        }
+        batchSize++;
+    }
+
+    public void addBatchWithoutParameters() {
+        batchSize++;
     }
 
     public Collection<BindParameterList> getBatchedParameters() {
@@ -63,17 +99,38 @@ class PreparedStatementMirror extends StatementMirror {
         }
     }
 
+    // returns -1 if the batched parameters are not in the per-thread ring
+    public long getDeferredBatchFirstSeq() {
+        return batchFirstSeq;
+    }
+
+    boolean isBatchedParametersLost() {
+        return batchedParametersLost;
+    }
+
     public @Nullable BindParameterList getParametersCopy() {
         parametersCopied = true;
         return parameters;
     }
 
+    // returns the sequence number that the parameters were stored under in the per-thread ring
+    public long addParametersToRing(BindParameterRing ring) {
+        return ring.add(parameters);
+    }
+
     public String getSql() {
         return sql;
     }
 
+    String getNormalizedSql() {
+        if (normalizedSql == null) {
+            normalizedSql = SqlNormalizer.normalize(sql);
+        }
+        return normalizedSql;
+    }
+
     int getBatchSize() {
-        return batchedParameters == null ? 0 : batchedParameters.size();
+        return batchSize;
     }
 
     // remember parameterIndex starts at 1 not 0
@@ -82,15 +139,39 @@ class PreparedStatementMirror extends StatementMirror {
             // separate method for less common path to not impact inlining budget of fast(er) path
             copyParameters();
         }
-        parameters.set(parameterIndex - 1, object);
+        getOrCreateParameters().set(parameterIndex - 1, object);
     }
 
     private void copyParameters() {
-        parameters = BindParameterList.copyOf(parameters);
+        if (parameters != null) {
+            parameters = BindParameterList.copyOf(parameters);
+        }
         parametersCopied = false;
     }
 
+    private void copyBatchOutOfRing(BindParameterRing ring) {
+        batchedParameters = Queues.newConcurrentLinkedQueue();
+        List<BindParameterList> copies = ring.copyOf(batchFirstSeq, batchSize);
+        if (copies == null) {
+            // only possible if this thread added more than the ring size to the ring in between
+            batchedParametersLost = true;
+        } else {
+            batchedParameters.addAll(copies);
+        }
+        batchFirstSeq = -1;
+    }
+
+    private BindParameterList getOrCreateParameters() {
+        if (parameters == null) {
+            parameters = new BindParameterList(PARAMETERS_INITIAL_CAPACITY);
+        }
+        return parameters;
+    }
+
     public void clearParameters() {
+        if (parameters == null) {
+            return;
+        }
         if (parametersCopied) {
             parameters = new BindParameterList(parameters.size());
             parametersCopied = false;
@@ -101,6 +182,13 @@ class PreparedStatementMirror extends StatementMirror {
 
     @Override
     public void clearBatch() {
+        batchSize = 0;
+        batchFirstSeq = -1;
+        batchedParametersLost = false;
+        if (parameters == null) {
+            batchedParameters = null;
+            return;
+        }
         if (parametersCopied) {
             parameters = new BindParameterList(parameters.size());
             parametersCopied = false;
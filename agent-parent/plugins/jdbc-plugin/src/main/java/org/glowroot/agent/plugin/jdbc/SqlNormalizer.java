@@ -0,0 +1,248 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.Locale;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableSet;
+
+// replaces literals with ? and collapses in-lists to a single ?, so that sql which inlines literals
+// does not produce an unbounded number of distinct aggregated queries
+//
+// this is a single pass lexer, not a parser, so it only needs to be good enough to produce a stable
+// aggregation key, the raw sql is still used for trace entries
+class SqlNormalizer {
+
+    private static final int MAX_CACHE_CHARS =
+            Integer.getInteger("glowroot.jdbc.sqlNormalizerCacheChars", 1000000);
+
+    // bounded by total string length (not by number of entries) so that sql with inlined literals
+    // (which rarely repeats, and can be very long, e.g. large in-lists) cannot grow it unbounded
+    private static final Cache<String, String> cache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHE_CHARS)
+            .weigher(new Weigher<String, String>() {
+                @Override
+                public int weigh(String sql, String normalized) {
+                    return sql.length() + normalized.length();
+                }
+            })
+            .build();
+
+    // keywords after which a + or - is a sign (e.g. "between -1 and -2") and not an operator
+    private static final ImmutableSet<String> operandKeywords = ImmutableSet.of("select",
+            "where", "and", "or", "not", "between", "values", "set", "when", "then", "else", "case",
+            "like", "is", "on", "having", "return", "limit", "offset");
+
+    private SqlNormalizer() {}
+
+    static String normalize(String sql) {
+        String normalized = cache.getIfPresent(sql);
+        if (normalized == null) {
+            normalized = normalizeInternal(sql);
+            cache.put(sql, normalized);
+        }
+        return normalized;
+    }
+
+    static String normalizeInternal(String sql) {
+        int length = sql.length();
+        StringBuilder sb = new StringBuilder(length);
+        // whether the last token was the keyword "in"
+        boolean afterIn = false;
+        // whether the next token is an operand, in which case a leading + or - is part of a
+        // literal, so that "a = -1" normalizes the same as "a = 1" (and the same as in an in-list)
+        boolean expectOperand = true;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                i = skipQuoted(sql, i, c);
+                sb.append('?');
+                afterIn = false;
+                expectOperand = false;
+            } else if (c == '"' || c == '`') {
+                // quoted identifier
+                int end = skipQuoted(sql, i, c);
+                sb.append(sql, i, end);
+                i = end;
+                afterIn = false;
+                expectOperand = false;
+            } else if (c == '-' && isNext(sql, i, '-')) {
+                int end = sql.indexOf('\n', i);
+                end = end == -1 ? length : end;
+                sb.append(sql, i, end);
+                i = end;
+            } else if (c == '/' && isNext(sql, i, '*')) {
+                int end = sql.indexOf("*/", i + 2);
+                end = end == -1 ? length : end + 2;
+                sb.append(sql, i, end);
+                i = end;
+            } else if (isIdentifierStart(c)) {
+                int end = i + 1;
+                while (end < length && isIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+                afterIn = end - i == 2 && sql.regionMatches(true, i, "in", 0, 2);
+                expectOperand = operandKeywords
+                        .contains(sql.substring(i, end).toLowerCase(Locale.ENGLISH));
+                sb.append(sql, i, end);
+                i = end;
+            } else if (isNumberStart(sql, i)) {
+                i = skipNumber(sql, i);
+                sb.append('?');
+                afterIn = false;
+                expectOperand = false;
+            } else if ((c == '-' || c == '+') && expectOperand && i + 1 < length
+                    && isNumberStart(sql, i + 1)) {
+                i = skipNumber(sql, i + 1);
+                sb.append('?');
+                afterIn = false;
+                expectOperand = false;
+            } else if (c == '(' && afterIn) {
+                int end = skipInList(sql, i);
+                if (end == -1) {
+                    sb.append(c);
+                    i++;
+                    expectOperand = true;
+                } else {
+                    sb.append("(?)");
+                    i = end;
+                    expectOperand = false;
+                }
+                afterIn = false;
+            } else {
+                if (!Character.isWhitespace(c)) {
+                    afterIn = false;
+                    // after ")" or a placeholder, a + or - is an operator, after anything else
+                    // (e.g. "(", "," or "=") it is a sign
+                    expectOperand = c != ')' && c != '?';
+                }
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    // returns the index after the closing paren, or -1 if the list contains anything other than
+    // literals and placeholders
+    private static int skipInList(String sql, int start) {
+        int length = sql.length();
+        boolean expectElement = true;
+        int i = start + 1;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (expectElement) {
+                if (c == '?') {
+                    i++;
+                } else if (c == '\'') {
+                    i = skipQuoted(sql, i, c);
+                } else if ((c == '-' || c == '+') && i + 1 < length
+                        && isNumberStart(sql, i + 1)) {
+                    i = skipNumber(sql, i + 1);
+                } else if (isNumberStart(sql, i)) {
+                    i = skipNumber(sql, i);
+                } else {
+                    return -1;
+                }
+                expectElement = false;
+            } else if (c == ',') {
+                i++;
+                expectElement = true;
+            } else if (c == ')') {
+                return i + 1;
+            } else {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    // returns the index after the closing quote
+    private static int skipQuoted(String sql, int start, char quote) {
+        int length = sql.length();
+        int i = start + 1;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == quote) {
+                if (isNext(sql, i, quote)) {
+                    // escaped quote
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    private static int skipNumber(String sql, int start) {
+        int length = sql.length();
+        int i = start;
+        if (sql.charAt(i) == '0' && i + 1 < length
+                && (sql.charAt(i + 1) == 'x' || sql.charAt(i + 1) == 'X')) {
+            i += 2;
+            while (i < length && Character.digit(sql.charAt(i), 16) != -1) {
+                i++;
+            }
+            return i;
+        }
+        while (i < length && (isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+            i++;
+        }
+        if (i < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < length && (sql.charAt(j) == '-' || sql.charAt(j) == '+')) {
+                j++;
+            }
+            if (j < length && isDigit(sql.charAt(j))) {
+                i = j;
+                while (i < length && isDigit(sql.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    private static boolean isNumberStart(String sql, int i) {
+        char c = sql.charAt(i);
+        return isDigit(c) || (c == '.' && i + 1 < sql.length() && isDigit(sql.charAt(i + 1)));
+    }
+
+    private static boolean isNext(String sql, int i, char c) {
+        return i + 1 < sql.length() && sql.charAt(i + 1) == c;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$' || c == '@' || c == '#';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '@' || c == '#';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -44,6 +44,8 @@ import org.glowroot.agent.plugin.jdbc.PreparedStatementMirror.StreamingParameter
 import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier;
 import org.glowroot.agent.plugin.jdbc.message.BatchPreparedStatementMessageSupplier2;
 import org.glowroot.agent.plugin.jdbc.message.BatchStatementMessageSupplier;
+import org.glowroot.agent.plugin.jdbc.message.BindParameterRing;
+import org.glowroot.agent.plugin.jdbc.message.DeferredPreparedStatementMessageSupplier;
 import org.glowroot.agent.plugin.jdbc.message.PreparedStatementMessageSupplier;
 import org.glowroot.agent.plugin.jdbc.message.StatementMessageSupplier;
 
@@ -59,6 +61,10 @@ public class StatementAspect {
 
     private static final BooleanProperty captureBindParameters =
             configService.getBooleanProperty("captureBindParameters");
+    private static final BooleanProperty deferBindParameters =
+            configService.getBooleanProperty("deferBindParameters");
+    private static final BooleanProperty normalizeSql =
+            configService.getBooleanProperty("normalizeSql");
     private static final BooleanProperty captureStatementClose =
             configService.getBooleanProperty("captureStatementClose");
 
@@ -255,7 +261,13 @@ public class StatementAspect {
             PreparedStatementMirror mirror =
                     (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
             if (mirror != null) {
-                mirror.addBatch();
+                if (!captureBindParameters.value()) {
+                    mirror.addBatchWithoutParameters();
+                } else if (deferBindParameters.value()) {
+                    mirror.addBatchDeferred(BindParameterRing.get());
+                } else {
+                    mirror.addBatch();
+                }
             }
         }
     }
@@ -298,7 +310,10 @@ public class StatementAspect {
                 return null;
             }
             MessageSupplier messageSupplier = new StatementMessageSupplier(sql);
-            QueryEntry query = context.startQueryEntry(QUERY_TYPE, sql, messageSupplier, timerName);
+            // the normalized sql is only used for aggregation, trace entries still get the raw sql
+            String queryText = normalizeSql.value() ? SqlNormalizer.normalize(sql) : sql;
+            QueryEntry query =
+                    context.startQueryEntry(QUERY_TYPE, queryText, messageSupplier, timerName);
             mirror.setLastQuery(query);
             return query;
         }
@@ -409,13 +424,20 @@ public class StatementAspect {
             MessageSupplier messageSupplier;
             String queryText = mirror.getSql();
             if (captureBindParameters.value()) {
-                messageSupplier =
-                        new PreparedStatementMessageSupplier(queryText, mirror.getParametersCopy());
+                if (deferBindParameters.value()) {
+                    BindParameterRing ring = BindParameterRing.get();
+                    long seq = mirror.addParametersToRing(ring);
+                    messageSupplier = new DeferredPreparedStatementMessageSupplier(queryText, ring,
+                            seq, 1, false);
+                } else {
+                    messageSupplier = new PreparedStatementMessageSupplier(queryText,
+                            mirror.getParametersCopy());
+                }
             } else {
                 messageSupplier = new StatementMessageSupplier(queryText);
             }
-            QueryEntry queryEntry =
-                    context.startQueryEntry(QUERY_TYPE, queryText, messageSupplier, timerName);
+            QueryEntry queryEntry = context.startQueryEntry(QUERY_TYPE,
+                    getAggregatedQueryText(mirror), messageSupplier, timerName);
             mirror.setLastQuery(queryEntry);
             return queryEntry;
         }
@@ -559,14 +581,20 @@ public class StatementAspect {
             MessageSupplier messageSupplier;
             String queryText = mirror.getSql();
             int batchSize = mirror.getBatchSize();
-            if (captureBindParameters.value()) {
+            long deferredBatchFirstSeq = mirror.getDeferredBatchFirstSeq();
+            if (captureBindParameters.value() && deferBindParameters.value()
+                    && deferredBatchFirstSeq != -1) {
+                messageSupplier = new DeferredPreparedStatementMessageSupplier(queryText,
+                        BindParameterRing.get(), deferredBatchFirstSeq, batchSize, true);
+            } else if (captureBindParameters.value() && !mirror.isBatchedParametersLost()) {
+                // this is also the fallback when deferred batch is too large for the ring
                 messageSupplier = new BatchPreparedStatementMessageSupplier(queryText,
                         mirror.getBatchedParameters());
             } else {
                 messageSupplier = new BatchPreparedStatementMessageSupplier2(queryText, batchSize);
             }
-            QueryEntry queryEntry = context.startQueryEntry(QUERY_TYPE, queryText, batchSize,
-                    messageSupplier, timerName);
+            QueryEntry queryEntry = context.startQueryEntry(QUERY_TYPE,
+                    getAggregatedQueryText(mirror), batchSize, messageSupplier, timerName);
             mirror.setLastQuery(queryEntry);
             mirror.clearBatch();
             return queryEntry;
@@ -634,4 +662,12 @@ public class StatementAspect {
             }
         }
     }
+
+    // the normalized sql is only used for aggregation, trace entries still get the raw sql
+    private static String getAggregatedQueryText(PreparedStatementMirror mirror) {
+        if (normalizeSql.value()) {
+            return mirror.getNormalizedSql();
+        }
+        return mirror.getSql();
+    }
 }
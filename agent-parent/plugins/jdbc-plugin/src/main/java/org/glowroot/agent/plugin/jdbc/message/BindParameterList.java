@@ -73,6 +73,10 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
         return size == 0;
     }
 
+    void copyInto(@Nullable Object[] dest) {
+        System.arraycopy(parameters, 0, dest, 0, size);
+    }
+
     public void clear() {
         Arrays.fill(parameters, null);
         size = 0;
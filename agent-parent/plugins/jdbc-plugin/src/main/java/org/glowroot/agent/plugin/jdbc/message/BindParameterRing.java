@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc.message;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+
+// per-thread ring of reusable bind parameter arrays, used when bind parameters are only retained
+// for transactions that end up being stored as traces
+//
+// the owning thread is the only writer, other threads (e.g. live viewing of active traces) can read
+// on a best effort basis and get null back if the slot has been recycled in the meantime
+public class BindParameterRing {
+
+    private static final int SIZE = Integer.getInteger("glowroot.jdbc.bindParameterRingSize", 256);
+
+    private static final FastThreadLocal<BindParameterRing> rings =
+            new FastThreadLocal<BindParameterRing>() {
+                @Override
+                protected BindParameterRing initialValue() {
+                    return new BindParameterRing();
+                }
+            };
+
+    private final Slot[] slots = new Slot[SIZE];
+
+    // only accessed by the owning thread
+    private long nextSeq;
+
+    public static BindParameterRing get() {
+        return rings.get();
+    }
+
+    private BindParameterRing() {
+        for (int i = 0; i < SIZE; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    // returns the sequence number that can be used to read the parameters back
+    public long add(@Nullable BindParameterList parameters) {
+        long seq = nextSeq++;
+        Slot slot = slots[(int) (seq % SIZE)];
+        // invalidate first so that concurrent readers do not see partially overwritten values
+        slot.seq = -1;
+        slot.set(parameters);
+        slot.seq = seq;
+        return seq;
+    }
+
+    // returns the sequence number that the next call to add() will return
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    public int getSize() {
+        return SIZE;
+    }
+
+    // returns null if any of the slots have already been recycled
+    @Nullable
+    public List<BindParameterList> copyOf(long firstSeq, int count) {
+        if (count > SIZE) {
+            return null;
+        }
+        List<BindParameterList> copies = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            long seq = firstSeq + i;
+            Slot slot = slots[(int) (seq % SIZE)];
+            if (slot.seq != seq) {
+                return null;
+            }
+            BindParameterList copy = slot.copy();
+            if (slot.seq != seq) {
+                return null;
+            }
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    private static class Slot {
+
+        private volatile long seq = -1;
+
+        // these are only written by the owning thread, and depend on seq for visibility
+        private @Nullable Object[] values = new Object[0];
+        private int size;
+
+        private void set(@Nullable BindParameterList parameters) {
+            int newSize = parameters == null ? 0 : parameters.size();
+            if (values.length < newSize) {
+                values = new Object[newSize];
+            } else if (newSize < size) {
+                // don't retain references to old values
+                Arrays.fill(values, newSize, size, null);
+            }
+            if (parameters != null) {
+                parameters.copyInto(values);
+            }
+            size = newSize;
+        }
+
+        private BindParameterList copy() {
+            // values and size can be mismatched here under race condition, which is then caught by
+            // re-checking seq after copying
+            Object[] values = this.values;
+            int size = Math.min(this.size, values.length);
+            BindParameterList copy = new BindParameterList(size);
+            for (int i = 0; i < size; i++) {
+                copy.set(i, values[i]);
+            }
+            return copy;
+        }
+    }
+}
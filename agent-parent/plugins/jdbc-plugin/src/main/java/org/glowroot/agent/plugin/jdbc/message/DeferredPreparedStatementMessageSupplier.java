@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc.message;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.glowroot.agent.plugin.api.Message;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.internal.DeferredMessageSupplier;
+
+// bind parameters are only copied out of the per-thread ring once the transaction crosses its slow
+// threshold, or is stored as a trace, or is captured as a partial or active trace
+public class DeferredPreparedStatementMessageSupplier extends MessageSupplier
+        implements DeferredMessageSupplier {
+
+    private final String sql;
+
+    private final BindParameterRing ring;
+    private final long firstSeq;
+    private final int count;
+    private final boolean batch;
+
+    private volatile @Nullable List<BindParameterList> materialized;
+
+    public DeferredPreparedStatementMessageSupplier(String sql, BindParameterRing ring,
+            long firstSeq, int count, boolean batch) {
+        this.sql = sql;
+        this.ring = ring;
+        this.firstSeq = firstSeq;
+        this.count = count;
+        this.batch = batch;
+    }
+
+    @Override
+    public void materialize() {
+        if (materialized == null) {
+            materialized = ring.copyOf(firstSeq, count);
+        }
+    }
+
+    @Override
+    public Message get() {
+        List<BindParameterList> parameters = materialized;
+        if (parameters == null) {
+            parameters = ring.copyOf(firstSeq, count);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("jdbc execution: ");
+        if (batch && count > 1) {
+            // print out number of batches to make it easy to identify
+            sb.append(count);
+            sb.append(" x ");
+        }
+        sb.append(sql);
+        if (parameters == null) {
+            sb.append(" [bind parameters not retained]");
+        } else {
+            for (BindParameterList oneParameters : parameters) {
+                if (batch || !oneParameters.isEmpty()) {
+                    PreparedStatementMessageSupplier.appendParameters(sb, oneParameters);
+                }
+            }
+        }
+        return Message.from(sb.toString());
+    }
+}
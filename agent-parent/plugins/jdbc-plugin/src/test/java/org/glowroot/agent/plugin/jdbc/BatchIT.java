@@ -87,6 +87,46 @@ public class BatchIT {
                 .isEqualTo("jdbc execution: 2 x insert into employee (name) values (?) => 2 rows");
     }
 
+    @Test
+    public void testBatchPreparedStatementWithDeferredBindParams() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "deferBindParameters", true);
+        // when
+        Trace trace = container.execute(ExecuteBatchPreparedStatement.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(2);
+        assertThat(entries.get(0).getMessage()).isEqualTo("jdbc execution: 3 x"
+                + " insert into employee (name) values (?) ['huckle'] ['sally'] ['sally']"
+                + " => 3 rows");
+        assertThat(entries.get(1).getMessage()).isEqualTo("jdbc execution: 2 x"
+                + " insert into employee (name) values (?) ['lowly'] ['pig will'] => 2 rows");
+    }
+
+    @Test
+    public void testBatchPreparedStatementLargerThanDeferredRing() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "deferBindParameters", true);
+        // when
+        Trace trace = container.execute(ExecuteLargeBatchPreparedStatement.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(1);
+        StringBuilder sb = new StringBuilder();
+        sb.append("jdbc execution: ");
+        sb.append(ExecuteLargeBatchPreparedStatement.COUNT);
+        sb.append(" x insert into employee (name) values (?)");
+        for (int i = 0; i < ExecuteLargeBatchPreparedStatement.COUNT; i++) {
+            sb.append(" ['x");
+            sb.append(i);
+            sb.append("']");
+        }
+        sb.append(" => ");
+        sb.append(ExecuteLargeBatchPreparedStatement.COUNT);
+        sb.append(" rows");
+        assertThat(entries.get(0).getMessage()).isEqualTo(sb.toString());
+    }
+
     @Test
     public void testBatchPreparedStatementWithoutClear() throws Exception {
         // given
@@ -209,6 +249,37 @@ public class BatchIT {
         }
     }
 
+    public static class ExecuteLargeBatchPreparedStatement
+            implements AppUnderTest, TransactionMarker {
+        // more than the per-thread bind parameter ring holds
+        private static final int COUNT = 300;
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            connection.setAutoCommit(false);
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement =
+                    connection.prepareStatement("insert into employee (name) values (?)");
+            try {
+                for (int i = 0; i < COUNT; i++) {
+                    preparedStatement.setString(1, "x" + i);
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecuteBatchPreparedStatementWithoutClear
             implements AppUnderTest, TransactionMarker {
         private Connection connection;
@@ -180,6 +180,39 @@ public class PreparedStatementIT {
                 .isEqualTo("jdbc execution: select * from employee where name like ? => 1 row");
     }
 
+    @Test
+    public void testPreparedStatementWithDeferredBindParameters() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "deferBindParameters", true);
+        // when
+        Trace trace = container.execute(ExecutePreparedStatementAndIterateOverResults.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(1);
+        Trace.Entry entry = entries.get(0);
+        assertThat(entry.getActive()).isFalse();
+        assertThat(entry.getMessage()).isEqualTo(
+                "jdbc execution: select * from employee where name like ? ['john%'] => 1 row");
+    }
+
+    @Test
+    public void testManyPreparedStatementsWithDeferredBindParameters() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "deferBindParameters", true);
+        // when
+        Trace trace = container.execute(ExecuteManyPreparedStatements.class);
+        // then
+        // slow threshold is 0 in tests, so bind parameters are retained as soon as each entry is
+        // started, even though there are more executions than the per-thread ring holds
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(ExecuteManyPreparedStatements.COUNT);
+        for (int i = 0; i < ExecuteManyPreparedStatements.COUNT; i++) {
+            assertThat(entries.get(i).getMessage()).isEqualTo(
+                    "jdbc execution: select * from employee where name like ? ['x" + i
+                            + "'] => 0 rows");
+        }
+    }
+
     @Test
     public void testPreparedStatementWithSetNull() throws Exception {
         // given
@@ -327,6 +360,37 @@ public class PreparedStatementIT {
         }
     }
 
+    public static class ExecuteManyPreparedStatements implements AppUnderTest, TransactionMarker {
+        // more than the per-thread bind parameter ring holds
+        private static final int COUNT = 300;
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement =
+                    connection.prepareStatement("select * from employee where name like ?");
+            try {
+                for (int i = 0; i < COUNT; i++) {
+                    preparedStatement.setString(1, "x" + i);
+                    ResultSet rs = preparedStatement.executeQuery();
+                    while (rs.next()) {
+                        rs.getString(1);
+                    }
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecutePreparedStatementQueryAndIterateOverResults
             implements AppUnderTest, TransactionMarker {
         private Connection connection;
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
+import org.glowroot.agent.plugin.jdbc.message.BindParameterRing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PreparedStatementMirrorTest {
+
+    @Test
+    public void shouldReferenceSmallBatchInRing() {
+        // given
+        BindParameterRing ring = BindParameterRing.get();
+        PreparedStatementMirror mirror = new PreparedStatementMirror("insert");
+        long nextSeq = ring.getNextSeq();
+        // when
+        addBatchDeferred(mirror, ring, 0, 3);
+        // then
+        assertThat(mirror.getDeferredBatchFirstSeq()).isEqualTo(nextSeq);
+        assertThat(mirror.getBatchSize()).isEqualTo(3);
+        assertThat(mirror.getBatchedParameters()).isEmpty();
+        assertThat(toValues(ring.copyOf(nextSeq, 3))).containsExactly("x0", "x1", "x2");
+    }
+
+    @Test
+    public void shouldFallBackToEagerCaptureForBatchLargerThanRing() {
+        // given
+        BindParameterRing ring = BindParameterRing.get();
+        PreparedStatementMirror mirror = new PreparedStatementMirror("insert");
+        int count = ring.getSize() + 10;
+        // when
+        addBatchDeferred(mirror, ring, 0, count);
+        // then
+        assertThat(mirror.getDeferredBatchFirstSeq()).isEqualTo(-1);
+        assertThat(mirror.isBatchedParametersLost()).isFalse();
+        assertThat(mirror.getBatchSize()).isEqualTo(count);
+        List<Object> values = toValues(mirror.getBatchedParameters());
+        assertThat(values).hasSize(count);
+        for (int i = 0; i < count; i++) {
+            assertThat(values.get(i)).isEqualTo("x" + i);
+        }
+    }
+
+    @Test
+    public void shouldFallBackToEagerCaptureForInterleavedBatch() {
+        // given
+        BindParameterRing ring = BindParameterRing.get();
+        PreparedStatementMirror mirror = new PreparedStatementMirror("insert");
+        PreparedStatementMirror other = new PreparedStatementMirror("update");
+        // when
+        addBatchDeferred(mirror, ring, 0, 2);
+        addBatchDeferred(other, ring, 0, 1);
+        addBatchDeferred(mirror, ring, 2, 2);
+        // then
+        assertThat(mirror.getDeferredBatchFirstSeq()).isEqualTo(-1);
+        assertThat(toValues(mirror.getBatchedParameters())).containsExactly("x0", "x1", "x2",
+                "x3");
+    }
+
+    private static void addBatchDeferred(PreparedStatementMirror mirror, BindParameterRing ring,
+            int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            mirror.setParameterValue(1, "x" + i);
+            mirror.addBatchDeferred(ring);
+        }
+    }
+
+    private static List<Object> toValues(Iterable<BindParameterList> batchedParameters) {
+        List<Object> values = Lists.newArrayList();
+        for (BindParameterList parameters : batchedParameters) {
+            values.add(ImmutableList.copyOf(parameters).get(0));
+        }
+        return values;
+    }
+}
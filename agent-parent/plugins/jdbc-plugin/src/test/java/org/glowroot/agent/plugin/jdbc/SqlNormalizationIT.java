@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Map;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.agent.it.harness.impl.JavaagentContainer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SqlNormalizationIT {
+
+    private static final String PLUGIN_ID = "jdbc";
+
+    private static JavaagentContainer container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // aggregated queries are only visible once the aggregate interval is collected
+        container = JavaagentContainer.createWithExtraJvmArgs(
+                ImmutableList.of("-Dglowroot.internal.rollup.0.intervalMillis=1000"));
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldAggregateDifferentLiteralsIntoOneQuery() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "normalizeSql", true);
+        // when
+        container.execute(ExecuteStatementsWithDifferentLiterals.class);
+        // then
+        Map<String, Long> executionCounts = getSqlExecutionCounts(3);
+        assertThat(executionCounts).hasSize(1);
+        assertThat(executionCounts.get("select * from employee where name = ? and ? > ?"))
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotAggregateDifferentLiteralsWhenNotNormalizing() throws Exception {
+        // given
+        // when
+        container.execute(ExecuteStatementsWithDifferentLiterals.class);
+        // then
+        Map<String, Long> executionCounts = getSqlExecutionCounts(3);
+        assertThat(executionCounts).hasSize(3);
+    }
+
+    // waits until the expected number of executions have been collected, since the transaction
+    // can straddle two aggregate intervals
+    private static Map<String, Long> getSqlExecutionCounts(long expectedTotal)
+            throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Map<String, Long> executionCounts = Maps.newHashMap();
+        while (stopwatch.elapsed(SECONDS) < 10) {
+            executionCounts = Maps.newHashMap();
+            long total = 0;
+            for (AggregatesByType aggregatesByType : container.getCollectedAggregates()) {
+                Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
+                for (Aggregate.QueriesByType queriesByType : overallAggregate
+                        .getQueriesByTypeList()) {
+                    if (!queriesByType.getType().equals("SQL")) {
+                        continue;
+                    }
+                    for (Aggregate.Query query : queriesByType.getQueryList()) {
+                        Long count = executionCounts.get(query.getText());
+                        executionCounts.put(query.getText(), (count == null ? 0 : count)
+                                + query.getExecutionCount());
+                        total += query.getExecutionCount();
+                    }
+                }
+            }
+            if (total >= expectedTotal) {
+                return executionCounts;
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("Expected query executions were not collected");
+    }
+
+    public static class ExecuteStatementsWithDifferentLiterals
+            implements AppUnderTest, TransactionMarker {
+        private Connection connection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute(
+                        "select * from employee where name = 'john doe' and 0 > -1");
+                statement.execute(
+                        "select * from employee where name = 'jane doe' and 1 > -2");
+                statement.execute(
+                        "select * from employee where name = 'sally doe' and 2.5 > -3");
+            } finally {
+                statement.close();
+            }
+        }
+    }
+}
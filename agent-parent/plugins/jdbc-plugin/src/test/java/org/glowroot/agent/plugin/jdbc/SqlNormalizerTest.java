@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SqlNormalizerTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        assertThat(SqlNormalizer.normalize("select * from t1 where a = 'o''brien' and b = -1.5e10"
+                + " and c = 0x1F and d = ?")).isEqualTo(
+                        "select * from t1 where a = ? and b = ? and c = ? and d = ?");
+    }
+
+    @Test
+    public void shouldReplaceSignedLiteralsSameInsideAndOutsideInLists() {
+        assertThat(SqlNormalizer.normalize("select * from t where x = -1"))
+                .isEqualTo("select * from t where x = ?");
+        assertThat(SqlNormalizer.normalize("select * from t where x in (-1)"))
+                .isEqualTo("select * from t where x in (?)");
+        assertThat(SqlNormalizer.normalize("select * from t where x between -1 and +2"))
+                .isEqualTo("select * from t where x between ? and ?");
+    }
+
+    @Test
+    public void shouldNotTreatBinaryOperatorAsSign() {
+        assertThat(SqlNormalizer.normalize("select a - 1, a-1, (b)-2, f(-3) from t"))
+                .isEqualTo("select a - ?, a-?, (b)-?, f(?) from t");
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(SqlNormalizer.normalize("select * from t where a in (1, 2, 3) and b IN ('x')"
+                + " and c not in (?, ?, ?)")).isEqualTo(
+                        "select * from t where a in (?) and b IN (?) and c not in (?)");
+    }
+
+    @Test
+    public void shouldNotCollapseSubquery() {
+        assertThat(SqlNormalizer.normalize("select * from t where a in (select a from u"
+                + " where b = 1) and c = 2")).isEqualTo(
+                        "select * from t where a in (select a from u where b = ?) and c = ?");
+    }
+
+    @Test
+    public void shouldNotReplaceInsideIdentifiersAndComments() {
+        assertThat(SqlNormalizer.normalize("select \"col 1\", `c2`, t3.c4 from t3 /* 5 */"))
+                .isEqualTo("select \"col 1\", `c2`, t3.c4 from t3 /* 5 */");
+    }
+}
@@ -25,6 +25,8 @@ import org.glowroot.agent.plugin.api.TraceEntry;
 import org.glowroot.agent.plugin.api.weaving.BindParameter;
 import org.glowroot.agent.plugin.api.weaving.BindReceiver;
 import org.glowroot.agent.plugin.api.weaving.BindTraveler;
+import org.glowroot.agent.plugin.api.weaving.IsEnabled;
+import org.glowroot.agent.plugin.api.weaving.Mixin;
 import org.glowroot.agent.plugin.api.weaving.OnAfter;
 import org.glowroot.agent.plugin.api.weaving.OnBefore;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
@@ -44,6 +46,24 @@ public class Log4j2xAspect {
     private static final int TRACE = 600;
     private static final int ALL = Integer.MAX_VALUE;
 
+    // the field name is verbose to avoid conflict since it will become a field in all classes that
+    // implement org.apache.logging.log4j.spi.ExtendedLogger
+    @Mixin("org.apache.logging.log4j.spi.ExtendedLogger")
+    public abstract static class LoggerImpl implements LoggerMixin {
+
+        private @Nullable String glowroot$abbreviatedLoggerName;
+
+        @Override
+        public @Nullable String glowroot$getAbbreviatedLoggerName() {
+            return glowroot$abbreviatedLoggerName;
+        }
+
+        @Override
+        public void glowroot$setAbbreviatedLoggerName(@Nullable String abbreviatedLoggerName) {
+            glowroot$abbreviatedLoggerName = abbreviatedLoggerName;
+        }
+    }
+
     @Shim("org.apache.logging.log4j.Logger")
     public interface Logger {
         @Nullable
@@ -68,6 +88,16 @@ public class Log4j2xAspect {
             nestingGroup = "logging", timerName = TIMER_NAME)
     public static class CallAppendersAdvice {
         private static final TimerName timerName = Agent.getTimerName(CallAppendersAdvice.class);
+        @IsEnabled
+        public static boolean isEnabled(
+                @SuppressWarnings("unused") @BindParameter @Nullable String fqcn,
+                @BindParameter @Nullable Level level) {
+            // this is checked before anything else (including starting the timer), so log calls
+            // below the threshold have close to zero overhead
+            int maxIntLevel = LoggerPlugin.maxIntLevel();
+            return maxIntLevel == Integer.MAX_VALUE
+                    || (level != null && level.intLevel() <= maxIntLevel);
+        }
         @OnBefore
         public static @Nullable LogAdviceTraveler onBefore(ThreadContext context,
                 @BindReceiver Logger logger,
@@ -81,7 +111,7 @@ public class Log4j2xAspect {
             if (LoggerPlugin.markTraceAsError(lvl <= ERROR, lvl <= WARN, t != null)) {
                 context.setTransactionError(formattedMessage, t);
             }
-            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger.getName());
+            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger, logger.getName());
             TraceEntry traceEntry = context.startTraceEntry(MessageSupplier.from("log {}: {} - {}",
                     getLevelStr(lvl), loggerName, formattedMessage), timerName);
             return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
@@ -28,6 +28,7 @@ import org.glowroot.agent.plugin.api.weaving.BindParameter;
 import org.glowroot.agent.plugin.api.weaving.BindReceiver;
 import org.glowroot.agent.plugin.api.weaving.BindTraveler;
 import org.glowroot.agent.plugin.api.weaving.IsEnabled;
+import org.glowroot.agent.plugin.api.weaving.Mixin;
 import org.glowroot.agent.plugin.api.weaving.OnAfter;
 import org.glowroot.agent.plugin.api.weaving.OnBefore;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
@@ -46,6 +47,24 @@ public class Log4jAspect {
     private static final int DEBUG_INT = 10000;
     private static final int ALL_INT = Integer.MIN_VALUE;
 
+    // the field name is verbose to avoid conflict since it will become a field in all classes that
+    // extend org.apache.log4j.Category
+    @Mixin("org.apache.log4j.Category")
+    public abstract static class LoggerImpl implements LoggerMixin {
+
+        private @Nullable String glowroot$abbreviatedLoggerName;
+
+        @Override
+        public @Nullable String glowroot$getAbbreviatedLoggerName() {
+            return glowroot$abbreviatedLoggerName;
+        }
+
+        @Override
+        public void glowroot$setAbbreviatedLoggerName(@Nullable String abbreviatedLoggerName) {
+            glowroot$abbreviatedLoggerName = abbreviatedLoggerName;
+        }
+    }
+
     @Shim("org.apache.log4j.Category")
     public interface Logger {
         @Nullable
@@ -70,7 +89,16 @@ public class Log4jAspect {
         private static final TimerName timerName = Agent.getTimerName(ForcedLogAdvice.class);
         @IsEnabled
         @SuppressWarnings("unboxing.of.nullable")
-        public static boolean isEnabled(@BindReceiver Logger logger) {
+        public static boolean isEnabled(@BindReceiver Logger logger,
+                @SuppressWarnings("unused") @BindParameter @Nullable String fqcn,
+                @BindParameter @Nullable Level level) {
+            // the threshold is checked first (before walking the appenders), so log calls below
+            // the threshold have close to zero overhead
+            int minLevelInt = LoggerPlugin.minLevelInt();
+            if (minLevelInt != Integer.MIN_VALUE
+                    && (level == null || level.toInt() < minLevelInt)) {
+                return false;
+            }
             // check to see if no appenders, then don't capture (this is just to avoid confusion)
             // log4j itself will log a warning:
             // "No appenders could be found for logger, Please initialize the log4j system properly"
@@ -98,7 +126,7 @@ public class Log4jAspect {
             if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
                 context.setTransactionError(messageText, t);
             }
-            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger.getName());
+            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger, logger.getName());
             return context.startTraceEntry(MessageSupplier.from("log {}: {} - {}", getLevelStr(lvl),
                     loggerName, messageText), timerName);
         }
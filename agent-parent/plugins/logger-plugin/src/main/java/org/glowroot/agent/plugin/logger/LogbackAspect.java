@@ -26,6 +26,8 @@ import org.glowroot.agent.plugin.api.weaving.BindClassMeta;
 import org.glowroot.agent.plugin.api.weaving.BindParameter;
 import org.glowroot.agent.plugin.api.weaving.BindReceiver;
 import org.glowroot.agent.plugin.api.weaving.BindTraveler;
+import org.glowroot.agent.plugin.api.weaving.IsEnabled;
+import org.glowroot.agent.plugin.api.weaving.Mixin;
 import org.glowroot.agent.plugin.api.weaving.OnAfter;
 import org.glowroot.agent.plugin.api.weaving.OnBefore;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
@@ -44,6 +46,24 @@ public class LogbackAspect {
     private static final int TRACE_INT = 5000;
     private static final int ALL_INT = Integer.MIN_VALUE;
 
+    // the field name is verbose to avoid conflict since it will become a field in all classes that
+    // extend ch.qos.logback.classic.Logger
+    @Mixin("ch.qos.logback.classic.Logger")
+    public abstract static class LoggerImpl implements LoggerMixin {
+
+        private @Nullable String glowroot$abbreviatedLoggerName;
+
+        @Override
+        public @Nullable String glowroot$getAbbreviatedLoggerName() {
+            return glowroot$abbreviatedLoggerName;
+        }
+
+        @Override
+        public void glowroot$setAbbreviatedLoggerName(@Nullable String abbreviatedLoggerName) {
+            glowroot$abbreviatedLoggerName = abbreviatedLoggerName;
+        }
+    }
+
     @Shim("ch.qos.logback.classic.spi.ILoggingEvent")
     public interface ILoggingEvent {
         @Shim("ch.qos.logback.classic.Level getLevel()")
@@ -74,9 +94,20 @@ public class LogbackAspect {
             nestingGroup = "logging", timerName = TIMER_NAME)
     public static class CallAppendersAdvice {
         private static final TimerName timerName = Agent.getTimerName(CallAppendersAdvice.class);
+        @IsEnabled
+        public static boolean isEnabled(@BindParameter @Nullable ILoggingEvent loggingEvent) {
+            // this is checked before anything else (including starting the timer), so log calls
+            // below the threshold have close to zero overhead
+            int minLevelInt = LoggerPlugin.minLevelInt();
+            if (minLevelInt == Integer.MIN_VALUE || loggingEvent == null) {
+                return true;
+            }
+            Level level = loggingEvent.glowroot$getLevel();
+            return level != null && level.toInt() >= minLevelInt;
+        }
         @OnBefore
         public static @Nullable LogAdviceTraveler onBefore(ThreadContext context,
-                @BindParameter @Nullable ILoggingEvent loggingEvent) {
+                @BindReceiver Object logger, @BindParameter @Nullable ILoggingEvent loggingEvent) {
             if (loggingEvent == null) {
                 return null;
             }
@@ -94,7 +125,8 @@ public class LogbackAspect {
                 context.setTransactionError(formattedMessage, t);
             }
             TraceEntry traceEntry;
-            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(loggingEvent.getLoggerName());
+            String loggerName =
+                    LoggerPlugin.getAbbreviatedLoggerName(logger, loggingEvent.getLoggerName());
             traceEntry = context.startTraceEntry(MessageSupplier.from("log {}: {} - {}",
                     getLevelStr(lvl), loggerName, formattedMessage), timerName);
             return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
@@ -126,6 +158,15 @@ public class LogbackAspect {
             nestingGroup = "logging", timerName = TIMER_NAME)
     public static class CallAppenders0xAdvice {
         private static final TimerName timerName = Agent.getTimerName(CallAppenders0xAdvice.class);
+        @IsEnabled
+        public static boolean isEnabled(@BindParameter @Nullable Object loggingEvent,
+                @BindClassMeta LoggingEventInvoker invoker) {
+            int minLevelInt = LoggerPlugin.minLevelInt();
+            if (minLevelInt == Integer.MIN_VALUE || loggingEvent == null) {
+                return true;
+            }
+            return invoker.getLevel(loggingEvent) >= minLevelInt;
+        }
         @OnBefore
         public static @Nullable LogAdviceTraveler onBefore(ThreadContext context,
                 @BindReceiver Object logger, @BindParameter @Nullable Object loggingEvent,
@@ -139,8 +180,8 @@ public class LogbackAspect {
             if (LoggerPlugin.markTraceAsError(lvl >= ERROR_INT, lvl >= WARN_INT, t != null)) {
                 context.setTransactionError(formattedMessage, t);
             }
-            String loggerName =
-                    LoggerPlugin.getAbbreviatedLoggerName(invoker.getLoggerName(logger));
+            String loggerName = LoggerPlugin.getAbbreviatedLoggerName(logger,
+                    invoker.getLoggerName(logger));
             TraceEntry traceEntry = context.startTraceEntry(MessageSupplier.from("log {}: {} - {}",
                     getLevelStr(lvl), loggerName, formattedMessage), timerName);
             return new LogAdviceTraveler(traceEntry, lvl, formattedMessage, t);
@@ -15,10 +15,13 @@
  */
 package org.glowroot.agent.plugin.logger;
 
+import java.util.Locale;
+
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.config.BooleanProperty;
+import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.config.ConfigService;
 
 class LoggerPlugin {
@@ -38,8 +41,38 @@ class LoggerPlugin {
     private static final LoggerNameAbbreviator loggerNameAbbreviator =
             new LoggerNameAbbreviator(36);
 
+    // the threshold is resolved once per config change into the level scales used by the logging
+    // frameworks, so that checking a log call against it is a single int comparison
+    //
+    // visibility is provided by memoryBarrier in org.glowroot.config.ConfigService
+    //
+    // logback and log4j 1.x share the same level scale (higher is more severe)
+    private static int minLevelInt = Integer.MIN_VALUE;
+    // log4j 2.x level scale is reversed (lower is more severe)
+    private static int maxIntLevel = Integer.MAX_VALUE;
+
+    static {
+        configService.registerConfigListener(new ConfigListener() {
+            @Override
+            public void onChange() {
+                String threshold = configService.getStringProperty("threshold").value();
+                updateThreshold(threshold.trim().toLowerCase(Locale.ENGLISH));
+            }
+        });
+    }
+
     private LoggerPlugin() {}
 
+    // returns Integer.MIN_VALUE if all levels are captured
+    static int minLevelInt() {
+        return minLevelInt;
+    }
+
+    // returns Integer.MAX_VALUE if all levels are captured
+    static int maxIntLevel() {
+        return maxIntLevel;
+    }
+
     static boolean markTraceAsError(boolean isErrorOrHigher, boolean isWarnOrHigher,
             boolean throwable) {
         if (isErrorOrHigher) {
@@ -53,10 +86,49 @@ class LoggerPlugin {
         return false;
     }
 
+    // the abbreviated logger name is cached on the logger itself (see LoggerMixin) since the
+    // logger name never changes and abbreviating it allocates
+    static String getAbbreviatedLoggerName(Object logger, @Nullable String loggerName) {
+        if (!(logger instanceof LoggerMixin)) {
+            return getAbbreviatedLoggerName(loggerName);
+        }
+        LoggerMixin loggerMixin = (LoggerMixin) logger;
+        String abbreviatedLoggerName = loggerMixin.glowroot$getAbbreviatedLoggerName();
+        if (abbreviatedLoggerName == null) {
+            abbreviatedLoggerName = getAbbreviatedLoggerName(loggerName);
+            loggerMixin.glowroot$setAbbreviatedLoggerName(abbreviatedLoggerName);
+        }
+        return abbreviatedLoggerName;
+    }
+
     static String getAbbreviatedLoggerName(@Nullable String loggerName) {
         if (loggerName == null) {
             return "null";
         }
         return loggerNameAbbreviator.abbreviate(loggerName);
     }
+
+    private static void updateThreshold(String threshold) {
+        // constants from ch.qos.logback.classic.Level / org.apache.log4j.Level
+        // and from org.apache.logging.log4j.spi.StandardLevel
+        if (threshold.equals("trace")) {
+            minLevelInt = 5000;
+            maxIntLevel = 600;
+        } else if (threshold.equals("debug")) {
+            minLevelInt = 10000;
+            maxIntLevel = 500;
+        } else if (threshold.equals("info")) {
+            minLevelInt = 20000;
+            maxIntLevel = 400;
+        } else if (threshold.equals("warn")) {
+            minLevelInt = 30000;
+            maxIntLevel = 300;
+        } else if (threshold.equals("error")) {
+            minLevelInt = 40000;
+            maxIntLevel = 200;
+        } else {
+            minLevelInt = Integer.MIN_VALUE;
+            maxIntLevel = Integer.MAX_VALUE;
+        }
+    }
 }
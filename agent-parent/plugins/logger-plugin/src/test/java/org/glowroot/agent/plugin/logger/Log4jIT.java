@@ -72,6 +72,26 @@ public class Log4jIT {
                 .isEqualTo("log fatal: o.g.a.p.logger.Log4jIT$ShouldLog - fgh");
     }
 
+    @Test
+    public void testLogWithThreshold() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "threshold", "error");
+        container.getConfigService().setPluginProperty(PLUGIN_ID,
+                "traceErrorOnWarningWithoutThrowable", true);
+        container.getConfigService().setPluginProperty(PLUGIN_ID,
+                "traceErrorOnErrorWithoutThrowable", true);
+        // when
+        Trace trace = container.execute(ShouldLog.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(trace.getHeader().getError().getMessage()).isEqualTo("efg");
+        assertThat(entries).hasSize(2);
+        assertThat(entries.get(0).getMessage())
+                .isEqualTo("log error: o.g.a.p.logger.Log4jIT$ShouldLog - efg");
+        assertThat(entries.get(1).getMessage())
+                .isEqualTo("log fatal: o.g.a.p.logger.Log4jIT$ShouldLog - fgh");
+    }
+
     @Test
     public void testLogWithThrowable() throws Exception {
         // given
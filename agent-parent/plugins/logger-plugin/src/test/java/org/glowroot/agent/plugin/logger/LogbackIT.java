@@ -83,6 +83,24 @@ public class LogbackIT {
                 .isEqualTo("log error: o.g.a.p.logger.LogbackIT$ShouldLog - efg");
     }
 
+    @Test
+    public void testLogWithThreshold() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "threshold", "error");
+        container.getConfigService().setPluginProperty(PLUGIN_ID,
+                "traceErrorOnWarningWithoutThrowable", true);
+        container.getConfigService().setPluginProperty(PLUGIN_ID,
+                "traceErrorOnErrorWithoutThrowable", true);
+        // when
+        Trace trace = container.execute(ShouldLog.class);
+        // then
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(trace.getHeader().getError().getMessage()).isEqualTo("efg");
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).getMessage())
+                .isEqualTo("log error: o.g.a.p.logger.LogbackIT$ShouldLog - efg");
+    }
+
     @Test
     public void testLogWithThrowable() throws Exception {
         // given
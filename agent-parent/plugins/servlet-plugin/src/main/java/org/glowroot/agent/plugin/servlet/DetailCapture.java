@@ -19,10 +19,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -39,16 +37,20 @@ import org.glowroot.agent.plugin.servlet.ServletAspect.HttpServletRequest;
 //
 // shallow copies are also necessary because servlet container may clear out the objects after the
 // request is complete (e.g. tomcat does this) in order to reuse them, in which case this detail
-// would need to be captured synchronously at end of request anyways (although then it could be
-// captured only if trace met threshold for storage...)
+// would need to be captured synchronously at end of request anyways
+//
+// when the servlet plugin property deferRequestDetailCapture is enabled, only a raw shallow copy is
+// made during the request (see RawRequestDetail), and the capture/mask patterns are applied only if
+// and when the detail is actually needed, i.e. when the trace is stored or viewed live (except that
+// request header names are already matched while copying, to avoid copying every header value)
 class DetailCapture {
 
     private DetailCapture() {}
 
     static ImmutableMap<String, Object> captureRequestParameters(
             Map</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/[]> requestParameters) {
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
-        ImmutableList<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
+        WildcardMatcher capturePatterns = ServletPluginProperties.captureRequestParameters();
+        WildcardMatcher maskPatterns = ServletPluginProperties.maskRequestParameters();
         ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
         for (Entry</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/[]> entry : requestParameters
                 .entrySet()) {
@@ -56,12 +58,10 @@ class DetailCapture {
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!capturePatterns.matches(name)) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
+            if (maskPatterns.matches(name)) {
                 map.put(name, "****");
                 continue;
             }
@@ -79,8 +79,8 @@ class DetailCapture {
         if (e == null) {
             return ImmutableMap.of();
         }
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestParameters();
-        ImmutableList<Pattern> maskPatterns = ServletPluginProperties.maskRequestParameters();
+        WildcardMatcher capturePatterns = ServletPluginProperties.captureRequestParameters();
+        WildcardMatcher maskPatterns = ServletPluginProperties.maskRequestParameters();
         ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
         while (e.hasMoreElements()) {
             Object nameObj = e.nextElement();
@@ -91,12 +91,10 @@ class DetailCapture {
                 continue;
             }
             String name = (String) nameObj;
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!capturePatterns.matches(name)) {
                 continue;
             }
-            if (matchesOneOf(keyLowerCase, maskPatterns)) {
+            if (maskPatterns.matches(name)) {
                 map.put(name, "****");
                 continue;
             }
@@ -109,6 +107,51 @@ class DetailCapture {
         return map.build();
     }
 
+    static RawRequestDetail captureRawRequestParameters(
+            Map</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/[]> requestParameters) {
+        int size = requestParameters.size();
+        String[] names = new String[size];
+        Object[] values = new Object[size];
+        int i = 0;
+        for (Entry</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/[]> entry : requestParameters
+                .entrySet()) {
+            String name = entry.getKey();
+            @Nullable
+            String[] entryValues = entry.getValue();
+            if (name != null && entryValues != null && i < size) {
+                names[i] = name;
+                // the values array itself is not copied, since containers create a new array (as
+                // opposed to re-using one) for each request
+                values[i++] = entryValues;
+            }
+        }
+        return new RawRequestDetail(names, values, i, false);
+    }
+
+    static RawRequestDetail captureRawRequestParameters(HttpServletRequest request) {
+        Enumeration<? extends /*@Nullable*/Object> e = request.getParameterNames();
+        if (e == null) {
+            return RawRequestDetail.EMPTY;
+        }
+        List<String> names = Lists.newArrayList();
+        List<Object> values = Lists.newArrayList();
+        while (e.hasMoreElements()) {
+            Object nameObj = e.nextElement();
+            if (!(nameObj instanceof String)) {
+                continue;
+            }
+            String name = (String) nameObj;
+            @Nullable
+            String[] parameterValues = request.getParameterValues(name);
+            if (parameterValues != null) {
+                names.add(name);
+                values.add(parameterValues);
+            }
+        }
+        return new RawRequestDetail(names.toArray(new String[names.size()]), values.toArray(),
+                names.size(), false);
+    }
+
     private static void set(ImmutableMap.Builder<String, Object> map, String name,
             @Nullable String[] values) {
         if (values == null) {
@@ -128,7 +171,7 @@ class DetailCapture {
     }
 
     static ImmutableMap<String, Object> captureRequestHeaders(HttpServletRequest request) {
-        ImmutableList<Pattern> capturePatterns = ServletPluginProperties.captureRequestHeaders();
+        WildcardMatcher capturePatterns = ServletPluginProperties.captureRequestHeaders();
         if (capturePatterns.isEmpty()) {
             return ImmutableMap.of();
         }
@@ -142,44 +185,124 @@ class DetailCapture {
             if (name == null) {
                 continue;
             }
-            // converted to lower case for case-insensitive matching (patterns are lower case)
-            String keyLowerCase = name.toLowerCase(Locale.ENGLISH);
-            if (!matchesOneOf(keyLowerCase, capturePatterns)) {
+            if (!capturePatterns.matches(name)) {
                 continue;
             }
             Enumeration</*@Nullable*/ String> values = request.getHeaders(name);
             if (values != null) {
-                captureRequestHeader(name, values, requestHeaders);
+                requestHeaders.put(name, captureRequestHeader(values));
             }
         }
         return ImmutableMap.copyOf(requestHeaders);
     }
 
-    static boolean matchesOneOf(String key, List<Pattern> patterns) {
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(key).matches()) {
-                return true;
+    // only the map building is deferred, header names are still matched while copying so that
+    // the values of headers that will never be captured are not read and retained
+    static RawRequestDetail captureRawRequestHeaders(HttpServletRequest request) {
+        WildcardMatcher capturePatterns = ServletPluginProperties.captureRequestHeaders();
+        if (capturePatterns.isEmpty()) {
+            return RawRequestDetail.EMPTY;
+        }
+        Enumeration</*@Nullable*/ String> headerNames = request.getHeaderNames();
+        if (headerNames == null) {
+            return RawRequestDetail.EMPTY;
+        }
+        List<String> names = Lists.newArrayList();
+        List<Object> values = Lists.newArrayList();
+        for (Enumeration</*@Nullable*/ String> e = headerNames; e.hasMoreElements();) {
+            String name = e.nextElement();
+            if (name == null) {
+                continue;
+            }
+            if (!capturePatterns.matches(name)) {
+                continue;
+            }
+            Enumeration</*@Nullable*/ String> headerValues = request.getHeaders(name);
+            if (headerValues != null) {
+                names.add(name);
+                values.add(captureRequestHeader(headerValues));
             }
         }
-        return false;
+        return new RawRequestDetail(names.toArray(new String[names.size()]), values.toArray(),
+                names.size(), true);
     }
 
-    private static void captureRequestHeader(String name, Enumeration</*@Nullable*/ String> values,
-            Map<String, Object> requestHeaders) {
+    private static Object captureRequestHeader(Enumeration</*@Nullable*/ String> values) {
         if (!values.hasMoreElements()) {
-            requestHeaders.put(name, "");
-        } else {
-            String value = values.nextElement();
-            if (!values.hasMoreElements()) {
-                requestHeaders.put(name, Strings.nullToEmpty(value));
+            return "";
+        }
+        String value = values.nextElement();
+        if (!values.hasMoreElements()) {
+            return Strings.nullToEmpty(value);
+        }
+        List<String> list = Lists.newArrayList();
+        list.add(Strings.nullToEmpty(value));
+        while (values.hasMoreElements()) {
+            list.add(Strings.nullToEmpty(values.nextElement()));
+        }
+        return ImmutableList.copyOf(list);
+    }
+
+    // raw shallow copy of request parameters or request headers, without any capture/mask patterns
+    // applied yet
+    static class RawRequestDetail {
+
+        private static final RawRequestDetail EMPTY =
+                new RawRequestDetail(new String[0], new Object[0], 0, false);
+
+        private final String[] names;
+        // String[] for request parameters, String or ImmutableList<String> for request headers
+        private final Object[] values;
+        private final int size;
+        private final boolean headers;
+
+        private RawRequestDetail(String[] names, Object[] values, int size, boolean headers) {
+            this.names = names;
+            this.values = values;
+            this.size = size;
+            this.headers = headers;
+        }
+
+        // applies the current capture/mask patterns
+        ImmutableMap<String, Object> filter() {
+            if (size == 0) {
+                return ImmutableMap.of();
+            }
+            if (headers) {
+                return filterRequestHeaders();
             } else {
-                List<String> list = Lists.newArrayList();
-                list.add(Strings.nullToEmpty(value));
-                while (values.hasMoreElements()) {
-                    list.add(Strings.nullToEmpty(values.nextElement()));
+                return filterRequestParameters();
+            }
+        }
+
+        private ImmutableMap<String, Object> filterRequestParameters() {
+            WildcardMatcher capturePatterns = ServletPluginProperties.captureRequestParameters();
+            WildcardMatcher maskPatterns = ServletPluginProperties.maskRequestParameters();
+            ImmutableMap.Builder<String, Object> map = ImmutableMap.builder();
+            for (int i = 0; i < size; i++) {
+                String name = names[i];
+                if (!capturePatterns.matches(name)) {
+                    continue;
+                }
+                if (maskPatterns.matches(name)) {
+                    map.put(name, "****");
+                    continue;
+                }
+                set(map, name, (String[]) values[i]);
+            }
+            return map.build();
+        }
+
+        private ImmutableMap<String, Object> filterRequestHeaders() {
+            WildcardMatcher capturePatterns = ServletPluginProperties.captureRequestHeaders();
+            Map<String, Object> requestHeaders = Maps.newHashMap();
+            for (int i = 0; i < size; i++) {
+                String name = names[i];
+                if (capturePatterns.matches(name)) {
+                    requestHeaders.put(name, values[i]);
                 }
-                requestHeaders.put(name, ImmutableList.copyOf(list));
             }
+            return ImmutableMap.copyOf(requestHeaders);
         }
     }
 }
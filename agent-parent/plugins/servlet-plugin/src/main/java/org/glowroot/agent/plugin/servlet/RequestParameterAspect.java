@@ -55,8 +55,7 @@ public class RequestParameterAspect {
         private static void captureRequestParameters(RequestClassMeta requestClassMeta,
                 HttpServletRequest request, ServletMessageSupplier messageSupplier) {
             if (requestClassMeta.isBadParameterMapImplementation()) {
-                messageSupplier.setCaptureRequestParameters(
-                        DetailCapture.captureRequestParameters(request));
+                captureRequestParametersWithoutMap(request, messageSupplier);
                 return;
             }
             Map</*@Nullable*/ String, /*@Nullable*/ String /*@Nullable*/[]> parameterMap;
@@ -74,15 +73,30 @@ public class RequestParameterAspect {
                 logger.debug(e.getMessage(), e);
                 // set flag so don't keep generating/catching exception over and over
                 requestClassMeta.setBadParameterMapImplementation();
-                messageSupplier.setCaptureRequestParameters(
-                        DetailCapture.captureRequestParameters(request));
+                captureRequestParametersWithoutMap(request, messageSupplier);
                 return;
             }
             if (parameterMap == null) {
                 return;
             }
-            messageSupplier.setCaptureRequestParameters(
-                    DetailCapture.captureRequestParameters(parameterMap));
+            if (ServletPluginProperties.deferRequestDetailCapture()) {
+                messageSupplier.setRawRequestParameters(
+                        DetailCapture.captureRawRequestParameters(parameterMap));
+            } else {
+                messageSupplier.setCaptureRequestParameters(
+                        DetailCapture.captureRequestParameters(parameterMap));
+            }
+        }
+
+        private static void captureRequestParametersWithoutMap(HttpServletRequest request,
+                ServletMessageSupplier messageSupplier) {
+            if (ServletPluginProperties.deferRequestDetailCapture()) {
+                messageSupplier.setRawRequestParameters(
+                        DetailCapture.captureRawRequestParameters(request));
+            } else {
+                messageSupplier.setCaptureRequestParameters(
+                        DetailCapture.captureRequestParameters(request));
+            }
         }
     }
 }
@@ -143,16 +143,20 @@ public class ServletAspect {
             // url ended with ? but nothing after that
             String requestQueryString = request.getQueryString();
             String requestMethod = Strings.nullToEmpty(request.getMethod());
-            ImmutableMap<String, Object> requestHeaders =
-                    DetailCapture.captureRequestHeaders(request);
+            ImmutableMap<String, String> sessionAttributes;
             if (session == null) {
+                sessionAttributes = ImmutableMap.of();
+            } else {
+                sessionAttributes = HttpSessions.getSessionAttributes(session);
+            }
+            if (ServletPluginProperties.deferRequestDetailCapture()) {
                 messageSupplier = new ServletMessageSupplier(requestMethod, requestUri,
-                        requestQueryString, requestHeaders, ImmutableMap.<String, String>of());
+                        requestQueryString, DetailCapture.captureRawRequestHeaders(request),
+                        sessionAttributes);
             } else {
-                ImmutableMap<String, String> sessionAttributes =
-                        HttpSessions.getSessionAttributes(session);
                 messageSupplier = new ServletMessageSupplier(requestMethod, requestUri,
-                        requestQueryString, requestHeaders, sessionAttributes);
+                        requestQueryString, DetailCapture.captureRequestHeaders(request),
+                        sessionAttributes);
             }
             String user = null;
             if (session != null) {
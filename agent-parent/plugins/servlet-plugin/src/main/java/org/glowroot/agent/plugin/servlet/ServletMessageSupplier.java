@@ -29,6 +29,9 @@ import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 
 import org.glowroot.agent.plugin.api.Message;
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.servlet.DetailCapture.RawRequestDetail;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 // this class is thread-safe (unlike other MessageSuppliers) since it gets passed around to
 // auxiliary thread contexts for handling async servlets
@@ -39,8 +42,12 @@ class ServletMessageSupplier extends MessageSupplier {
     private final @Nullable String requestQueryString;
 
     private volatile @MonotonicNonNull ImmutableMap<String, Object> requestParameters;
+    // raw request parameters/headers are only set when request detail capture is deferred, in which
+    // case they are filtered on first use, see getRequestParameters() and getRequestHeaders()
+    private volatile @MonotonicNonNull RawRequestDetail rawRequestParameters;
 
-    private final ImmutableMap<String, Object> requestHeaders;
+    private volatile @Nullable ImmutableMap<String, Object> requestHeaders;
+    private final @Nullable RawRequestDetail rawRequestHeaders;
 
     private final ResponseHeaderComponent responseHeaderComponent = new ResponseHeaderComponent();
 
@@ -61,6 +68,17 @@ class ServletMessageSupplier extends MessageSupplier {
         this.requestUri = requestUri;
         this.requestQueryString = requestQueryString;
         this.requestHeaders = requestHeaders;
+        rawRequestHeaders = null;
+        this.sessionAttributeInitialValueMap = sessionAttributeMap;
+    }
+
+    ServletMessageSupplier(String requestMethod, String requestUri,
+            @Nullable String requestQueryString, RawRequestDetail rawRequestHeaders,
+            ImmutableMap<String, String> sessionAttributeMap) {
+        this.requestMethod = requestMethod;
+        this.requestUri = requestUri;
+        this.requestQueryString = requestQueryString;
+        this.rawRequestHeaders = rawRequestHeaders;
         this.sessionAttributeInitialValueMap = sessionAttributeMap;
     }
 
@@ -72,9 +90,11 @@ class ServletMessageSupplier extends MessageSupplier {
             // including empty query string since that means request ended with ?
             detail.put("Request query string", requestQueryString);
         }
+        ImmutableMap<String, Object> requestParameters = getRequestParameters();
         if (requestParameters != null && !requestParameters.isEmpty()) {
             detail.put("Request parameters", requestParameters);
         }
+        ImmutableMap<String, Object> requestHeaders = getRequestHeaders();
         if (!requestHeaders.isEmpty()) {
             detail.put("Request headers", requestHeaders);
         }
@@ -87,13 +107,17 @@ class ServletMessageSupplier extends MessageSupplier {
     }
 
     boolean isRequestParametersCaptured() {
-        return requestParameters != null;
+        return requestParameters != null || rawRequestParameters != null;
     }
 
     void setCaptureRequestParameters(ImmutableMap<String, Object> requestParameters) {
         this.requestParameters = requestParameters;
     }
 
+    void setRawRequestParameters(RawRequestDetail rawRequestParameters) {
+        this.rawRequestParameters = rawRequestParameters;
+    }
+
     void setResponseHeader(String name, String value) {
         responseHeaderComponent.setHeader(name, value);
     }
@@ -129,6 +153,26 @@ class ServletMessageSupplier extends MessageSupplier {
         sessionAttributeUpdatedValueMap.put(name, Optional.fromNullable(value));
     }
 
+    // racy filtering from multiple threads is ok since the result is the same
+    private @Nullable ImmutableMap<String, Object> getRequestParameters() {
+        ImmutableMap<String, Object> requestParameters = this.requestParameters;
+        if (requestParameters == null && rawRequestParameters != null) {
+            requestParameters = rawRequestParameters.filter();
+            this.requestParameters = requestParameters;
+        }
+        return requestParameters;
+    }
+
+    // racy filtering from multiple threads is ok since the result is the same
+    private ImmutableMap<String, Object> getRequestHeaders() {
+        ImmutableMap<String, Object> requestHeaders = this.requestHeaders;
+        if (requestHeaders == null) {
+            requestHeaders = checkNotNull(rawRequestHeaders).filter();
+            this.requestHeaders = requestHeaders;
+        }
+        return requestHeaders;
+    }
+
     private void addSessionAttributeDetail(Map<String, Object> detail) {
         if (!sessionAttributeInitialValueMap.isEmpty()) {
             if (sessionAttributeUpdatedValueMap == null) {
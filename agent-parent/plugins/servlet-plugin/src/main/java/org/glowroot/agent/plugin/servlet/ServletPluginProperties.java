@@ -15,14 +15,8 @@
  */
 package org.glowroot.agent.plugin.servlet;
 
-import java.util.List;
-import java.util.Locale;
-import java.util.regex.Pattern;
-
 import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
@@ -36,6 +30,8 @@ class ServletPluginProperties {
     private static final String MASK_REQUEST_PARAMS_PROPERTY_NAME = "maskRequestParameters";
     private static final String CAPTURE_REQUEST_HEADER_PROPERTY_NAME = "captureRequestHeaders";
     private static final String CAPTURE_RESPONSE_HEADER_PROPERTY_NAME = "captureResponseHeaders";
+    private static final String DEFER_REQUEST_DETAIL_CAPTURE_PROPERTY_NAME =
+            "deferRequestDetailCapture";
     private static final String SESSION_USER_ATTRIBUTE_PROPERTY_NAME = "sessionUserAttribute";
     private static final String CAPTURE_SESSION_ATTRIBUTES_PROPERTY_NAME =
             "captureSessionAttributes";
@@ -44,13 +40,15 @@ class ServletPluginProperties {
 
     private static final Splitter splitter = Splitter.on(',').trimResults().omitEmptyStrings();
 
-    private static ImmutableList<Pattern> captureRequestParameters = ImmutableList.of();
-    private static ImmutableList<Pattern> maskRequestParameters = ImmutableList.of();
-    private static ImmutableList<Pattern> captureRequestHeaders = ImmutableList.of();
-    private static ImmutableList<Pattern> captureResponseHeaders = ImmutableList.of();
+    private static WildcardMatcher captureRequestParameters = WildcardMatcher.NONE;
+    private static WildcardMatcher maskRequestParameters = WildcardMatcher.NONE;
+    private static WildcardMatcher captureRequestHeaders = WildcardMatcher.NONE;
+    private static WildcardMatcher captureResponseHeaders = WildcardMatcher.NONE;
 
     private static boolean captureResponseHeadersNonEmpty;
 
+    private static boolean deferRequestDetailCapture;
+
     private static String sessionUserAttributePath = "";
     private static boolean sessionUserAttributeIsId;
 
@@ -69,19 +67,19 @@ class ServletPluginProperties {
 
     private ServletPluginProperties() {}
 
-    static ImmutableList<Pattern> captureRequestParameters() {
+    static WildcardMatcher captureRequestParameters() {
         return captureRequestParameters;
     }
 
-    static ImmutableList<Pattern> maskRequestParameters() {
+    static WildcardMatcher maskRequestParameters() {
         return maskRequestParameters;
     }
 
-    static ImmutableList<Pattern> captureRequestHeaders() {
+    static WildcardMatcher captureRequestHeaders() {
         return captureRequestHeaders;
     }
 
-    static ImmutableList<Pattern> captureResponseHeaders() {
+    static WildcardMatcher captureResponseHeaders() {
         return captureResponseHeaders;
     }
 
@@ -89,6 +87,10 @@ class ServletPluginProperties {
         return captureResponseHeadersNonEmpty;
     }
 
+    static boolean deferRequestDetailCapture() {
+        return deferRequestDetailCapture;
+    }
+
     static String sessionUserAttributePath() {
         return sessionUserAttributePath;
     }
@@ -112,11 +114,14 @@ class ServletPluginProperties {
     }
 
     private static void updateCache() {
-        captureRequestParameters = buildPatternList(CAPTURE_REQUEST_PARAMS_PROPERTY_NAME);
-        maskRequestParameters = buildPatternList(MASK_REQUEST_PARAMS_PROPERTY_NAME);
-        captureRequestHeaders = buildPatternList(CAPTURE_REQUEST_HEADER_PROPERTY_NAME);
-        captureResponseHeaders = buildPatternList(CAPTURE_RESPONSE_HEADER_PROPERTY_NAME);
+        captureRequestParameters = buildWildcardMatcher(CAPTURE_REQUEST_PARAMS_PROPERTY_NAME);
+        maskRequestParameters = buildWildcardMatcher(MASK_REQUEST_PARAMS_PROPERTY_NAME);
+        captureRequestHeaders = buildWildcardMatcher(CAPTURE_REQUEST_HEADER_PROPERTY_NAME);
+        captureResponseHeaders = buildWildcardMatcher(CAPTURE_RESPONSE_HEADER_PROPERTY_NAME);
         captureResponseHeadersNonEmpty = !captureResponseHeaders.isEmpty();
+        deferRequestDetailCapture =
+                configService.getBooleanProperty(DEFER_REQUEST_DETAIL_CAPTURE_PROPERTY_NAME)
+                        .value();
         sessionUserAttributePath =
                 configService.getStringProperty(SESSION_USER_ATTRIBUTE_PROPERTY_NAME).value();
         sessionUserAttributeIsId = sessionUserAttributePath.equals(HTTP_SESSION_ID_ATTR);
@@ -129,14 +134,9 @@ class ServletPluginProperties {
                 captureSessionAttributeNames.contains(HTTP_SESSION_ID_ATTR);
     }
 
-    private static ImmutableList<Pattern> buildPatternList(String propertyName) {
-        String captureRequestParametersText = configService.getStringProperty(propertyName).value();
-        List<Pattern> captureParameters = Lists.newArrayList();
-        for (String parameter : splitter.split(captureRequestParametersText)) {
-            // converted to lower case for case-insensitive matching
-            captureParameters.add(buildRegexPattern(parameter.toLowerCase(Locale.ENGLISH)));
-        }
-        return ImmutableList.copyOf(captureParameters);
+    private static WildcardMatcher buildWildcardMatcher(String propertyName) {
+        String wildcardPatternsText = configService.getStringProperty(propertyName).value();
+        return WildcardMatcher.create(splitter.split(wildcardPatternsText));
     }
 
     private static ImmutableSet<String> buildCaptureSessionAttributeNames() {
@@ -151,12 +151,4 @@ class ServletPluginProperties {
         }
         return names.build();
     }
-
-    private static Pattern buildRegexPattern(String wildcardPattern) {
-        // convert * into .* and quote the rest of the text using \Q...\E
-        String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
-        // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
-        regex = regex.replace("\\Q\\E", "");
-        return Pattern.compile(regex);
-    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+// matches names against a list of wildcard patterns ('*' matches any sequence of characters) with
+// a single precompiled case-insensitive regex, instead of matching each pattern in turn against a
+// lower cased copy of the name
+class WildcardMatcher {
+
+    static final WildcardMatcher NONE = new WildcardMatcher(null, false);
+
+    private static final WildcardMatcher ALL = new WildcardMatcher(null, true);
+
+    private final @Nullable Pattern combinedPattern;
+    private final boolean matchAll;
+
+    private WildcardMatcher(@Nullable Pattern combinedPattern, boolean matchAll) {
+        this.combinedPattern = combinedPattern;
+        this.matchAll = matchAll;
+    }
+
+    boolean isEmpty() {
+        return combinedPattern == null && !matchAll;
+    }
+
+    boolean matches(String name) {
+        if (matchAll) {
+            return true;
+        }
+        return combinedPattern != null && combinedPattern.matcher(name).matches();
+    }
+
+    static WildcardMatcher create(Iterable<String> wildcardPatterns) {
+        List<String> regexes = Lists.newArrayList();
+        for (String wildcardPattern : wildcardPatterns) {
+            if (wildcardPattern.equals("*")) {
+                return ALL;
+            }
+            regexes.add(toRegex(wildcardPattern));
+        }
+        if (regexes.isEmpty()) {
+            return NONE;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String regex : regexes) {
+            if (sb.length() > 0) {
+                sb.append('|');
+            }
+            sb.append("(?:");
+            sb.append(regex);
+            sb.append(')');
+        }
+        return new WildcardMatcher(
+                Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE),
+                false);
+    }
+
+    private static String toRegex(String wildcardPattern) {
+        // convert * into .* and quote the rest of the text using \Q...\E
+        String regex = "\\Q" + wildcardPattern.replace("*", "\\E.*\\Q") + "\\E";
+        // strip off unnecessary \\Q\\E in case * appeared at beginning or end of part
+        return regex.replace("\\Q\\E", "");
+    }
+}
@@ -75,6 +75,23 @@ public class RequestHeaderIT {
         assertThat(requestHeaders.get("Extra")).isNull();
     }
 
+    @Test
+    public void testDeferredStandardRequestHeaders() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureRequestHeaders",
+                "Content-Type, Content-Length");
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "deferRequestDetailCapture",
+                true);
+        // when
+        Trace trace = container.execute(SetStandardRequestHeaders.class);
+        // then
+        Map<String, Object> requestHeaders =
+                ResponseHeaderIT.getDetailMap(trace, "Request headers");
+        assertThat(requestHeaders.get("Content-Type")).isEqualTo("text/plain;charset=UTF-8");
+        assertThat(requestHeaders.get("Content-Length")).isEqualTo("1");
+        assertThat(requestHeaders.get("Extra")).isNull();
+    }
+
     @Test
     public void testStandardRequestHeadersLowercase() throws Exception {
         // given
@@ -107,6 +124,25 @@ public class RequestHeaderIT {
         assertThat(requestHeaders.get("Three")).isNull();
     }
 
+    @Test
+    public void testDeferredLotsOfRequestHeaders() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "captureRequestHeaders",
+                "One,Two");
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "deferRequestDetailCapture",
+                true);
+        // when
+        Trace trace = container.execute(SetOtherRequestHeaders.class);
+        // then
+        Map<String, Object> requestHeaders =
+                ResponseHeaderIT.getDetailMap(trace, "Request headers");
+        @SuppressWarnings("unchecked")
+        List<String> one = (List<String>) requestHeaders.get("One");
+        assertThat(one).containsExactly("ab", "xy");
+        assertThat(requestHeaders.get("Two")).isEqualTo("1");
+        assertThat(requestHeaders.get("Three")).isNull();
+    }
+
     @Test
     public void testBadRequestHeaders() throws Exception {
         // given
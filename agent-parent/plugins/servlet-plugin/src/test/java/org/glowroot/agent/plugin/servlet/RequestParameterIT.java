@@ -78,6 +78,24 @@ public class RequestParameterIT {
         assertThat(multi).containsExactly("m1", "m2");
     }
 
+    @Test
+    public void testDeferredRequestParameters() throws Exception {
+        // given
+        container.getConfigService().setPluginProperty(PLUGIN_ID, "deferRequestDetailCapture",
+                true);
+        // when
+        Trace trace = container.execute(GetParameter.class);
+        // then
+        Map<String, Object> requestParameters =
+                ResponseHeaderIT.getDetailMap(trace, "Request parameters");
+        assertThat(requestParameters).hasSize(3);
+        assertThat(requestParameters.get("xYz")).isEqualTo("aBc");
+        assertThat(requestParameters.get("jpassword1")).isEqualTo("****");
+        @SuppressWarnings("unchecked")
+        List<String> multi = (List<String>) requestParameters.get("multi");
+        assertThat(multi).containsExactly("m1", "m2");
+    }
+
     @Test
     public void testWithoutCaptureRequestParameters() throws Exception {
         // given
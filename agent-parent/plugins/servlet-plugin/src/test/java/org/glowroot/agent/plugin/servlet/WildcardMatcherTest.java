@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.servlet;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WildcardMatcherTest {
+
+    @Test
+    public void shouldMatchCaseInsensitive() {
+        WildcardMatcher matcher = WildcardMatcher.create(ImmutableList.of("Content-Type", "x-*"));
+        assertThat(matcher.matches("content-type")).isTrue();
+        assertThat(matcher.matches("X-Forwarded-For")).isTrue();
+        assertThat(matcher.matches("Content-Length")).isFalse();
+    }
+
+    @Test
+    public void shouldMatchAll() {
+        WildcardMatcher matcher = WildcardMatcher.create(ImmutableList.of("abc", "*"));
+        assertThat(matcher.isEmpty()).isFalse();
+        assertThat(matcher.matches("anything")).isTrue();
+    }
+
+    @Test
+    public void shouldMatchNone() {
+        WildcardMatcher matcher = WildcardMatcher.create(ImmutableList.<String>of());
+        assertThat(matcher.isEmpty()).isTrue();
+        assertThat(matcher.matches("anything")).isFalse();
+    }
+
+    @Test
+    public void shouldQuoteNonWildcardCharacters() {
+        WildcardMatcher matcher = WildcardMatcher.create(ImmutableList.of("a.b"));
+        assertThat(matcher.matches("a.b")).isTrue();
+        assertThat(matcher.matches("axb")).isFalse();
+    }
+}
@@ -36,8 +36,9 @@ public interface LiveJvmService {
 
     void gc(String agentId) throws Exception;
 
-    MBeanDump getMBeanDump(String agentId, MBeanDumpKind mbeanDumpKind, List<String> objectNames)
-            throws Exception;
+    // domain is ignored for SOME_MBEANS_INCLUDE_ATTRIBUTES, and empty domain means all domains
+    MBeanDump getMBeanDump(String agentId, MBeanDumpKind mbeanDumpKind, List<String> objectNames,
+            String domain) throws Exception;
 
     List<String> getMatchingMBeanObjectNames(String agentId, String partialObjectName, int limit)
             throws Exception;
@@ -81,6 +81,17 @@ public interface LiveTraceRepository {
             return durationNanosHigh == null || durationNanos <= durationNanosHigh;
         }
 
+        // the headline and attributes of an active trace are relatively expensive to capture, so
+        // these can be used to skip capturing them when they are not filtered on
+        public boolean hasHeadlineFilter() {
+            return headlineComparator() != null && !Strings.isNullOrEmpty(headline());
+        }
+
+        public boolean hasAttributeFilter() {
+            return !Strings.isNullOrEmpty(attributeName()) || (attributeValueComparator() != null
+                    && !Strings.isNullOrEmpty(attributeValue()));
+        }
+
         public boolean matchesHeadline(String headline) {
             return matchesUsingStringComparator(headline, headline(), headlineComparator());
         }
@@ -95,9 +106,7 @@ public interface LiveTraceRepository {
         }
 
         public boolean matchesAttributes(Map<String, ? extends Collection<String>> attributes) {
-            if (Strings.isNullOrEmpty(attributeName()) && (attributeValueComparator() == null
-                    || Strings.isNullOrEmpty(attributeValue()))) {
-                // no custom attribute filter
+            if (!hasAttributeFilter()) {
                 return true;
             }
             for (Entry<String, ? extends Collection<String>> entry : attributes.entrySet()) {
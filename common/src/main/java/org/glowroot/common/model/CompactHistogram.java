@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// histogram with a fixed log-linear bucket layout that depends only on the precision, so that two
+// histograms (or their serialized forms) with the same precision are merged by summing the counts
+// at each bucket index
+//
+// values below 2^subBucketBits microseconds each get their own bucket, above that each power of
+// two is split into 2^(subBucketBits - 1) equal width buckets, which bounds the relative error to
+// 2^(1 - subBucketBits)
+//
+// same as the HdrHistograms in LazyHistogram, nanosecond values are only tracked at microsecond
+// precision
+public class CompactHistogram {
+
+    private static final int NANOS_PER_MICRO = 1000;
+
+    private final int subBucketBits;
+
+    private long[] counts;
+    private long totalCount;
+
+    private CompactHistogram(int subBucketBits) {
+        this.subBucketBits = subBucketBits;
+        counts = new long[1 << subBucketBits];
+    }
+
+    public static CompactHistogram create(int significantDigits) {
+        return new CompactHistogram(getSubBucketBits(significantDigits));
+    }
+
+    public static CompactHistogram create(Aggregate.Histogram hist) {
+        CompactHistogram histogram = new CompactHistogram(hist.getCompactSubBucketBits());
+        histogram.merge(hist);
+        return histogram;
+    }
+
+    public CompactHistogram copy() {
+        CompactHistogram copy = new CompactHistogram(subBucketBits);
+        copy.merge(this);
+        return copy;
+    }
+
+    public static boolean isCompact(Aggregate.Histogram hist) {
+        return hist.getCompactSubBucketBits() != 0;
+    }
+
+    public void recordValue(long nanos) {
+        recordValueWithCount(nanos, 1);
+    }
+
+    public void recordValueWithCount(long nanos, long count) {
+        int index = getIndex(nanos / NANOS_PER_MICRO, subBucketBits);
+        ensureCapacity(index + 1);
+        counts[index] += count;
+        totalCount += count;
+    }
+
+    public void merge(CompactHistogram histogram) {
+        if (histogram.subBucketBits == subBucketBits) {
+            ensureCapacity(histogram.counts.length);
+            for (int i = 0; i < histogram.counts.length; i++) {
+                counts[i] += histogram.counts[i];
+            }
+            totalCount += histogram.totalCount;
+        } else {
+            for (int i = 0; i < histogram.counts.length; i++) {
+                long count = histogram.counts[i];
+                if (count != 0) {
+                    recordValueWithCount(
+                            getHighestEquivalentValue(i, histogram.subBucketBits), count);
+                }
+            }
+        }
+    }
+
+    public void merge(Aggregate.Histogram hist) {
+        int firstIndex = hist.getCompactFirstIndex();
+        List<Long> buckets = hist.getCompactBucketList();
+        if (hist.getCompactSubBucketBits() == subBucketBits) {
+            ensureCapacity(firstIndex + buckets.size());
+            for (int i = 0; i < buckets.size(); i++) {
+                long count = buckets.get(i);
+                counts[firstIndex + i] += count;
+                totalCount += count;
+            }
+        } else {
+            for (int i = 0; i < buckets.size(); i++) {
+                long count = buckets.get(i);
+                if (count != 0) {
+                    recordValueWithCount(getHighestEquivalentValue(firstIndex + i,
+                            hist.getCompactSubBucketBits()), count);
+                }
+            }
+        }
+    }
+
+    public void merge(Histogram histogram) {
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            recordValueWithCount(value.getValueIteratedTo(), value.getCountAtValueIteratedTo());
+        }
+    }
+
+    public void copyInto(Histogram histogram) {
+        for (int i = 0; i < counts.length; i++) {
+            long count = counts[i];
+            if (count != 0) {
+                histogram.recordValueWithCount(getHighestEquivalentValue(i, subBucketBits), count);
+            }
+        }
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        // this is consistent with HdrHistogram behavior
+        long countAtPercentile = Math.max(1, (long) (percentile / 100 * totalCount + 0.5));
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= countAtPercentile) {
+                return getHighestEquivalentValue(i, subBucketBits);
+            }
+        }
+        // unreachable since cumulativeCount ends at totalCount
+        return 0;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public void writeTo(Aggregate.Histogram.Builder builder) {
+        int firstIndex = 0;
+        while (firstIndex < counts.length && counts[firstIndex] == 0) {
+            firstIndex++;
+        }
+        int lastIndex = counts.length - 1;
+        while (lastIndex >= firstIndex && counts[lastIndex] == 0) {
+            lastIndex--;
+        }
+        builder.setCompactSubBucketBits(subBucketBits);
+        builder.setCompactFirstIndex(lastIndex < firstIndex ? 0 : firstIndex);
+        for (int i = firstIndex; i <= lastIndex; i++) {
+            builder.addCompactBucket(counts[i]);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > counts.length) {
+            // at least double in size
+            long[] temp = new long[Math.max(counts.length * 2, capacity)];
+            System.arraycopy(counts, 0, temp, 0, counts.length);
+            counts = temp;
+        }
+    }
+
+    // smallest sub bucket bits where the relative error 2^(1 - subBucketBits) is no more than
+    // 10^-significantDigits
+    static int getSubBucketBits(int significantDigits) {
+        // more significant digits than this is better served by HdrHistogram
+        checkArgument(significantDigits >= 1 && significantDigits <= 3,
+                "significantDigits must be between 1 and 3");
+        int subBucketBits = 1;
+        long pow = 1;
+        for (int i = 0; i < significantDigits; i++) {
+            pow *= 10;
+        }
+        while ((1L << (subBucketBits - 1)) < pow) {
+            subBucketBits++;
+        }
+        return subBucketBits;
+    }
+
+    static int getIndex(long micros, int subBucketBits) {
+        if (micros < (1L << subBucketBits)) {
+            return (int) Math.max(micros, 0);
+        }
+        // shift is at least 1 here
+        int shift = 64 - Long.numberOfLeadingZeros(micros) - subBucketBits;
+        return (shift << (subBucketBits - 1)) + (int) (micros >>> shift);
+    }
+
+    // returns nanoseconds
+    static long getHighestEquivalentValue(int index, int subBucketBits) {
+        if (index < (1 << subBucketBits)) {
+            return (index + 1L) * NANOS_PER_MICRO - 1;
+        }
+        int shift = (index >>> (subBucketBits - 1)) - 1;
+        long lowestMicros = (long) (index - (shift << (subBucketBits - 1))) << shift;
+        return (lowestMicros + (1L << shift)) * NANOS_PER_MICRO - 1;
+    }
+}
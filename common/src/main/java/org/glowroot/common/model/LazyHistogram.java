@@ -33,18 +33,39 @@ public class LazyHistogram {
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
     private static final int MAX_VALUES = 1024;
 
+    // when set (to 1, 2 or 3), larger numbers of values are tracked in a CompactHistogram with this
+    // many significant digits instead of in an HdrHistogram, which is much smaller when stored and
+    // much faster to merge
+    //
+    // this is not the default since older versions cannot read compact histograms
+    private static final int COMPACT_SIGNIFICANT_DIGITS =
+            Integer.getInteger("glowroot.histogram.compactSignificantDigits", 0);
+
+    private final int compactSignificantDigits;
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
     private @MonotonicNonNull Histogram histogram;
+    private @MonotonicNonNull CompactHistogram compactHistogram;
 
-    public LazyHistogram() {}
+    public LazyHistogram() {
+        this(COMPACT_SIGNIFICANT_DIGITS);
+    }
+
+    @VisibleForTesting
+    public LazyHistogram(int compactSignificantDigits) {
+        this.compactSignificantDigits = compactSignificantDigits;
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        compactSignificantDigits = COMPACT_SIGNIFICANT_DIGITS;
         ByteString encodedBytes = hist.getEncodedBytes();
-        if (encodedBytes.isEmpty()) {
+        if (CompactHistogram.isCompact(hist)) {
+            compactHistogram = CompactHistogram.create(hist);
+        } else if (encodedBytes.isEmpty()) {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
             values = new long[orderedRawValues.size()];
             for (int i = 0; i < values.length; i++) {
@@ -58,7 +79,9 @@ public class LazyHistogram {
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
         Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
-        if (histogram == null) {
+        if (compactHistogram != null) {
+            compactHistogram.writeTo(builder);
+        } else if (histogram == null) {
             if (!sorted) {
                 // sort values before storing so don't have to sort each time later when calculating
                 // percentiles
@@ -79,33 +102,66 @@ public class LazyHistogram {
     }
 
     public void merge(Aggregate.Histogram toBeMergedHistogram) throws DataFormatException {
+        // when still tracking raw values, convert to the same kind of histogram as the one being
+        // merged in, since converting between the two kinds is slower and loses precision
+        if (CompactHistogram.isCompact(toBeMergedHistogram)) {
+            if (histogram != null) {
+                CompactHistogram.create(toBeMergedHistogram).copyInto(histogram);
+            } else if (compactHistogram != null) {
+                compactHistogram.merge(toBeMergedHistogram);
+            } else {
+                convertValuesToCompactHistogram(CompactHistogram.create(toBeMergedHistogram));
+            }
+            return;
+        }
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
             for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
                 add(rawValue);
             }
         } else {
-            if (histogram == null) {
-                convertValuesToHistogram();
+            Histogram decodedHistogram =
+                    Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            if (compactHistogram != null) {
+                compactHistogram.merge(decodedHistogram);
+            } else {
+                if (histogram == null) {
+                    convertValuesToHistogram();
+                }
+                histogram.add(decodedHistogram);
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (histogram == null) {
-            convertValuesToHistogram();
-        }
-        if (toBeMergedHistogram.histogram == null) {
-            for (int i = 0; i < toBeMergedHistogram.size; i++) {
-                histogram.recordValue(toBeMergedHistogram.values[i]);
+        if (toBeMergedHistogram.compactHistogram != null) {
+            if (histogram != null) {
+                toBeMergedHistogram.compactHistogram.copyInto(histogram);
+            } else if (compactHistogram != null) {
+                compactHistogram.merge(toBeMergedHistogram.compactHistogram);
+            } else {
+                convertValuesToCompactHistogram(toBeMergedHistogram.compactHistogram.copy());
+            }
+        } else if (toBeMergedHistogram.histogram != null) {
+            if (compactHistogram != null) {
+                compactHistogram.merge(toBeMergedHistogram.histogram);
+            } else {
+                if (histogram == null) {
+                    convertValuesToHistogram();
+                }
+                histogram.add(toBeMergedHistogram.histogram);
             }
         } else {
-            histogram.add(toBeMergedHistogram.histogram);
+            for (int i = 0; i < toBeMergedHistogram.size; i++) {
+                add(toBeMergedHistogram.values[i]);
+            }
         }
     }
 
     public long getValueAtPercentile(double percentile) {
+        if (compactHistogram != null) {
+            return compactHistogram.getValueAtPercentile(percentile);
+        }
         if (histogram == null) {
             if (size == 0) {
                 // this is consistent with HdrHistogram behavior
@@ -128,6 +184,8 @@ public class LazyHistogram {
         ensureCapacity(size + 1);
         if (histogram != null) {
             histogram.recordValue(value);
+        } else if (compactHistogram != null) {
+            compactHistogram.recordValue(value);
         } else {
             values[size++] = value;
             sorted = false;
@@ -135,11 +193,15 @@ public class LazyHistogram {
     }
 
     private void ensureCapacity(int capacity) {
-        if (histogram != null) {
+        if (histogram != null || compactHistogram != null) {
             return;
         }
         if (capacity > MAX_VALUES) {
-            convertValuesToHistogram();
+            if (compactSignificantDigits == 0) {
+                convertValuesToHistogram();
+            } else {
+                convertValuesToCompactHistogram(CompactHistogram.create(compactSignificantDigits));
+            }
             return;
         }
         if (capacity > values.length) {
@@ -161,6 +223,15 @@ public class LazyHistogram {
         values = new long[0];
     }
 
+    @EnsuresNonNull("compactHistogram")
+    private void convertValuesToCompactHistogram(CompactHistogram compactHistogram) {
+        for (int i = 0; i < size; i++) {
+            compactHistogram.recordValue(values[i]);
+        }
+        values = new long[0];
+        this.compactHistogram = compactHistogram;
+    }
+
     private void sortValues() {
         Arrays.sort(values, 0, size);
         sorted = true;
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactHistogramTest {
+
+    @Test
+    public void shouldCalculateSubBucketBits() {
+        assertThat(CompactHistogram.getSubBucketBits(1)).isEqualTo(5);
+        assertThat(CompactHistogram.getSubBucketBits(2)).isEqualTo(8);
+        assertThat(CompactHistogram.getSubBucketBits(3)).isEqualTo(11);
+    }
+
+    @Test
+    public void shouldMapValuesToContiguousBuckets() {
+        for (int subBucketBits : new int[] {5, 8, 11}) {
+            int prevIndex = 0;
+            for (long micros = 0; micros < 1000000; micros++) {
+                int index = CompactHistogram.getIndex(micros, subBucketBits);
+                assertThat(index - prevIndex).isBetween(0, 1);
+                long highestEquivalentMicros =
+                        CompactHistogram.getHighestEquivalentValue(index, subBucketBits) / 1000;
+                assertThat(highestEquivalentMicros).isGreaterThanOrEqualTo(micros);
+                assertThat(highestEquivalentMicros - micros)
+                        .isLessThanOrEqualTo(micros >> (subBucketBits - 1));
+                prevIndex = index;
+            }
+        }
+    }
+
+    @Test
+    public void shouldMergeSerializedForm() {
+        // given
+        CompactHistogram histogram1 = CompactHistogram.create(2);
+        CompactHistogram histogram2 = CompactHistogram.create(2);
+        for (int i = 1; i <= 1000; i++) {
+            histogram1.recordValue(i * 1000000L);
+            histogram2.recordValue((i + 1000) * 1000000L);
+        }
+        Aggregate.Histogram.Builder builder1 = Aggregate.Histogram.newBuilder();
+        histogram1.writeTo(builder1);
+        Aggregate.Histogram.Builder builder2 = Aggregate.Histogram.newBuilder();
+        histogram2.writeTo(builder2);
+        // when
+        CompactHistogram merged = CompactHistogram.create(builder1.build());
+        merged.merge(builder2.build());
+        // then
+        assertThat(builder1.getCompactFirstIndex()).isGreaterThan(0);
+        assertThat(merged.getTotalCount()).isEqualTo(2000);
+        assertThat(merged.getValueAtPercentile(50)).isBetween(1000000000L, 1010000000L);
+        assertThat(merged.getValueAtPercentile(100)).isBetween(2000000000L, 2020000000L);
+    }
+
+    @Test
+    public void shouldMergeDifferentPrecision() {
+        // given
+        CompactHistogram histogram1 = CompactHistogram.create(2);
+        CompactHistogram histogram2 = CompactHistogram.create(3);
+        for (int i = 1; i <= 1000; i++) {
+            histogram1.recordValue(i * 1000000L);
+            histogram2.recordValue((i + 1000) * 1000000L);
+        }
+        // when
+        histogram1.merge(histogram2);
+        // then
+        assertThat(histogram1.getTotalCount()).isEqualTo(2000);
+        assertThat(histogram1.getValueAtPercentile(50)).isBetween(1000000000L, 1010000000L);
+        assertThat(histogram1.getValueAtPercentile(100)).isBetween(2000000000L, 2020000000L);
+    }
+
+    @Test
+    public void shouldWriteEmpty() {
+        // given
+        CompactHistogram histogram = CompactHistogram.create(2);
+        Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        // when
+        histogram.writeTo(builder);
+        // then
+        assertThat(builder.getCompactBucketCount()).isZero();
+        assertThat(CompactHistogram.create(builder.build()).getValueAtPercentile(50)).isZero();
+    }
+}
@@ -78,6 +78,55 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldTestCompactPercentiles() {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestCompactPercentiles(i);
+        }
+        shouldTestCompactPercentiles(10000000);
+        shouldTestCompactPercentiles(100000000);
+    }
+
+    @Test
+    public void shouldTestCompactEncodeDecode() throws Exception {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestCompactEncodeDecode(i);
+        }
+        shouldTestCompactEncodeDecode(10000000);
+        shouldTestCompactEncodeDecode(100000000);
+    }
+
+    @Test
+    public void shouldMergeCompactAndHdr() throws Exception {
+        // given
+        LazyHistogram compactHistogram = new LazyHistogram(2);
+        for (int i = 10000000; i > 0; i -= 1000) {
+            compactHistogram.add(i);
+        }
+        LazyHistogram hdrHistogram = new LazyHistogram(0);
+        for (int i = 20000000; i > 10000000; i -= 1000) {
+            hdrHistogram.add(i);
+        }
+        Aggregate.Histogram compact = compactHistogram.toProto(new ScratchBuffer());
+        Aggregate.Histogram hdr = hdrHistogram.toProto(new ScratchBuffer());
+        // when
+        LazyHistogram lazyHistogram1 = new LazyHistogram(0);
+        lazyHistogram1.merge(hdr);
+        lazyHistogram1.merge(compact);
+        LazyHistogram lazyHistogram2 = new LazyHistogram(0);
+        lazyHistogram2.merge(compact);
+        lazyHistogram2.merge(hdr);
+        // then
+        assertThat(compact.getCompactSubBucketBits()).isNotZero();
+        assertThat(compact.getEncodedBytes().size()).isZero();
+        assertThat(hdr.getCompactSubBucketBits()).isZero();
+        for (LazyHistogram lazyHistogram : new LazyHistogram[] {lazyHistogram1, lazyHistogram2}) {
+            assertPercentile(lazyHistogram, 20000000, 50);
+            assertPercentile(lazyHistogram, 20000000, 95);
+            assertPercentile(lazyHistogram, 20000000, 99);
+        }
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -111,6 +160,40 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, num, 99.99);
     }
 
+    private void shouldTestCompactPercentiles(int num) {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(2);
+        // when
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // then
+        assertPercentile(lazyHistogram, num, 50);
+        assertPercentile(lazyHistogram, num, 95);
+        assertPercentile(lazyHistogram, num, 99);
+        assertPercentile(lazyHistogram, num, 99.9);
+        assertPercentile(lazyHistogram, num, 99.99);
+    }
+
+    private void shouldTestCompactEncodeDecode(int num) throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(2);
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        lazyHistogram = new LazyHistogram(2);
+        // when
+        lazyHistogram.merge(histogram);
+        lazyHistogram.merge(histogram);
+        // then
+        assertPercentile(lazyHistogram, num, 50);
+        assertPercentile(lazyHistogram, num, 95);
+        assertPercentile(lazyHistogram, num, 99);
+        assertPercentile(lazyHistogram, num, 99.9);
+        assertPercentile(lazyHistogram, num, 99.99);
+    }
+
     private void shouldTestEncodeDecodeAndAddMore(int num) throws Exception {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
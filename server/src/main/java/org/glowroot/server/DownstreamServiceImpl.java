@@ -127,13 +127,13 @@ public class DownstreamServiceImpl implements DownstreamService {
         connectedAgent.gc();
     }
 
-    MBeanDump mbeanDump(String agentId, MBeanDumpKind mbeanDumpKind, List<String> objectNames)
-            throws Exception {
+    MBeanDump mbeanDump(String agentId, MBeanDumpKind mbeanDumpKind, List<String> objectNames,
+            String domain) throws Exception {
         ConnectedAgent connectedAgent = connectedAgents.get(agentId);
         if (connectedAgent == null) {
             throw new AgentNotConnectedException();
         }
-        return connectedAgent.mbeanDump(mbeanDumpKind, objectNames);
+        return connectedAgent.mbeanDump(mbeanDumpKind, objectNames, domain);
     }
 
     List<String> matchingMBeanObjectNames(String agentId, String partialObjectName, int limit)
@@ -287,7 +287,9 @@ public class DownstreamServiceImpl implements DownstreamService {
             }
             long requestId = value.getRequestId();
             ResponseHolder responseHolder = responseHolders.getIfPresent(requestId);
-            responseHolders.invalidate(requestId);
+            if (!value.getMoreChunks()) {
+                responseHolders.invalidate(requestId);
+            }
             if (responseHolder == null) {
                 logger.error("no response holder for request id: {}", requestId);
                 return;
@@ -332,6 +334,7 @@ public class DownstreamServiceImpl implements DownstreamService {
         private ThreadDump threadDump() throws Exception {
             ClientResponse response = sendRequest(ServerRequest.newBuilder()
                     .setRequestId(nextRequestId.getAndIncrement())
+                    .setAcceptChunkedResponse(true)
                     .setThreadDumpRequest(ThreadDumpRequest.getDefaultInstance())
                     .build());
             return response.getThreadDumpResponse().getThreadDump();
@@ -362,13 +365,15 @@ public class DownstreamServiceImpl implements DownstreamService {
                     .build());
         }
 
-        private MBeanDump mbeanDump(MBeanDumpKind mbeanDumpKind, List<String> objectNames)
-                throws Exception {
+        private MBeanDump mbeanDump(MBeanDumpKind mbeanDumpKind, List<String> objectNames,
+                String domain) throws Exception {
             ClientResponse response = sendRequest(ServerRequest.newBuilder()
                     .setRequestId(nextRequestId.getAndIncrement())
+                    .setAcceptChunkedResponse(true)
                     .setMbeanDumpRequest(MBeanDumpRequest.newBuilder()
                             .setKind(mbeanDumpKind)
-                            .addAllObjectName(objectNames))
+                            .addAllObjectName(objectNames)
+                            .setDomain(domain))
                     .build());
             return response.getMbeanDumpResponse().getMbeanDump();
         }
@@ -531,6 +536,9 @@ public class DownstreamServiceImpl implements DownstreamService {
             // passing ClientResponse.getDefaultInstance() is just dummy (non-null) value
             ClientResponse response = responseHolder.response
                     .exchange(ClientResponse.getDefaultInstance(), 1, MINUTES);
+            if (response.getMoreChunks()) {
+                response = receiveRemainingChunks(response, responseHolder);
+            }
             if (response.getMessageCase() == MessageCase.UNKNOWN_REQUEST_RESPONSE) {
                 throw new OutdatedAgentException();
             }
@@ -541,6 +549,22 @@ public class DownstreamServiceImpl implements DownstreamService {
         }
     }
 
+    // chunks are merged as they arrive (instead of being collected first) to avoid holding on to
+    // two copies of a large response
+    private static ClientResponse receiveRemainingChunks(ClientResponse firstChunk,
+            ResponseHolder responseHolder) throws Exception {
+        ClientResponse.Builder response = firstChunk.toBuilder();
+        ClientResponse chunk = firstChunk;
+        while (chunk.getMoreChunks()) {
+            // timeout is in case agent never sends the next chunk
+            chunk = responseHolder.response.exchange(ClientResponse.getDefaultInstance(), 1,
+                    MINUTES);
+            response.mergeFrom(chunk);
+        }
+        // proto3 merge does not overwrite with default (false) values
+        return response.setMoreChunks(false).build();
+    }
+
     private static class ResponseHolder {
         private final Exchanger<ClientResponse> response = new Exchanger<ClientResponse>();
     }
@@ -60,8 +60,8 @@ class LiveJvmServiceImpl implements LiveJvmService {
 
     @Override
     public MBeanDump getMBeanDump(String agentId, MBeanDumpKind mbeanDumpKind,
-            List<String> objectNames) throws Exception {
-        return downstreamService.mbeanDump(agentId, mbeanDumpKind, objectNames);
+            List<String> objectNames, String domain) throws Exception {
+        return downstreamService.mbeanDump(agentId, mbeanDumpKind, objectNames, domain);
     }
 
     @Override
@@ -51,6 +51,7 @@ import org.glowroot.server.storage.GaugeValueDao;
 import org.glowroot.server.storage.RoleDao;
 import org.glowroot.server.storage.RollupService;
 import org.glowroot.server.storage.ServerConfigDao;
+import org.glowroot.server.storage.TimerNameDao;
 import org.glowroot.server.storage.TraceDao;
 import org.glowroot.server.storage.TransactionTypeDao;
 import org.glowroot.server.storage.TriggeredAlertDao;
@@ -148,8 +149,9 @@ class ServerModule {
 
             TransactionTypeDao transactionTypeDao =
                     new TransactionTypeDao(session, configRepository);
+            TimerNameDao timerNameDao = new TimerNameDao(session, configRepository);
             AggregateDao aggregateDao =
-                    new AggregateDao(session, transactionTypeDao, configRepository);
+                    new AggregateDao(session, transactionTypeDao, timerNameDao, configRepository);
             TraceDao traceDao = new TraceDao(session, configRepository);
             GaugeValueDao gaugeValueDao = new GaugeValueDao(session, configRepository);
             TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(session, configRepository);
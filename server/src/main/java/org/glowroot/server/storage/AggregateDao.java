@@ -24,6 +24,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
@@ -79,6 +81,8 @@ import org.glowroot.storage.repo.MutableAggregate;
 import org.glowroot.storage.repo.MutableThreadStats;
 import org.glowroot.storage.repo.MutableTimer;
 import org.glowroot.storage.repo.Utils;
+import org.glowroot.storage.util.TimerNameDictionary;
+import org.glowroot.storage.util.TimerTrees;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate.QueriesByType;
@@ -175,6 +179,7 @@ public class AggregateDao implements AggregateRepository {
 
     private final Session session;
     private final TransactionTypeDao transactionTypeDao;
+    private final TimerNameDao timerNameDao;
     private final ConfigRepository configRepository;
 
     // list index is rollupLevel
@@ -195,9 +200,10 @@ public class AggregateDao implements AggregateRepository {
     private final ImmutableList<Table> allTables;
 
     public AggregateDao(Session session, TransactionTypeDao transactionTypeDao,
-            ConfigRepository configRepository) {
+            TimerNameDao timerNameDao, ConfigRepository configRepository) {
         this.session = session;
         this.transactionTypeDao = transactionTypeDao;
+        this.timerNameDao = timerNameDao;
         this.configRepository = configRepository;
 
         int count = configRepository.getRollupConfigs().size();
@@ -414,9 +420,9 @@ public class AggregateDao implements AggregateRepository {
     // query.from() is INCLUSIVE
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollup,
-            TransactionQuery query)
-            throws IOException {
+            TransactionQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollup, query, overviewTable);
+        TimerNameDictionary timerNames = timerNameDao.getDictionary(agentRollup);
         List<OverviewAggregate> overviewAggregates = Lists.newArrayList();
         for (Row row : results) {
             int i = 0;
@@ -424,12 +430,9 @@ public class AggregateDao implements AggregateRepository {
             double totalDurationNanos = row.getDouble(i++);
             long transactionCount = row.getLong(i++);
             boolean asyncTransactions = row.getBool(i++);
-            List<Aggregate.Timer> mainThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            List<Aggregate.Timer> auxThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            List<Aggregate.Timer> asyncTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+            List<Aggregate.Timer> mainThreadRootTimers = readTimers(row.getBytes(i++), timerNames);
+            List<Aggregate.Timer> auxThreadRootTimers = readTimers(row.getBytes(i++), timerNames);
+            List<Aggregate.Timer> asyncTimers = readTimers(row.getBytes(i++), timerNames);
             ImmutableOverviewAggregate.Builder builder = ImmutableOverviewAggregate.builder()
                     .captureTime(captureTime)
                     .totalDurationNanos(totalDurationNanos)
@@ -727,12 +730,14 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupOverview(RollupParams rollup, TransactionQuery query)
-            throws IOException {
+            throws Exception {
         ResultSet results = executeQueryForRollup(rollup.agentRollup(), query, overviewTable);
         if (results.isExhausted()) {
             // this probably shouldn't happen
             return ImmutableList.of();
         }
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        TimerNameDictionary timerNames = timerNameDao.getDictionary(rollup.agentRollup(), futures);
         double totalDurationNanos = 0;
         long transactionCount = 0;
         boolean asyncTransactions = false;
@@ -749,13 +754,13 @@ public class AggregateDao implements AggregateRepository {
                 asyncTransactions = true;
             }
             List<Aggregate.Timer> toBeMergedMainThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+                    readTimers(row.getBytes(i++), timerNames);
             MutableAggregate.mergeRootTimers(toBeMergedMainThreadRootTimers, mainThreadRootTimers);
             List<Aggregate.Timer> toBeMergedAuxThreadRootTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+                    readTimers(row.getBytes(i++), timerNames);
             MutableAggregate.mergeRootTimers(toBeMergedAuxThreadRootTimers, auxThreadRootTimers);
             List<Aggregate.Timer> toBeMergedAsyncTimers =
-                    Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
+                    readTimers(row.getBytes(i++), timerNames);
             MutableAggregate.mergeRootTimers(toBeMergedAsyncTimers, asyncTimers);
             ByteBuffer toBeMergedMainThreadStats = row.getBytes(i++);
             if (toBeMergedMainThreadStats != null) {
@@ -785,15 +790,16 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setBool(i++, asyncTransactions);
         boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(mainThreadRootTimers)));
+                writeTimers(MutableAggregate.toProto(mainThreadRootTimers), timerNames));
         boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(auxThreadRootTimers)));
+                writeTimers(MutableAggregate.toProto(auxThreadRootTimers), timerNames));
         boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(asyncTimers)));
+                writeTimers(MutableAggregate.toProto(asyncTimers), timerNames));
         boundStatement.setBytes(i++, toByteBuffer(mainThreadStats.toProto()));
         boundStatement.setBytes(i++, toByteBuffer(auxThreadStats.toProto()));
         boundStatement.setInt(i++, rollup.ttl());
-        return ImmutableList.of(session.executeAsync(boundStatement));
+        futures.add(session.executeAsync(boundStatement));
+        return futures;
     }
 
     private List<ResultSetFuture> rollupHistogram(RollupParams rollup, TransactionQuery query,
@@ -1030,7 +1036,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> storeOverallAggregate(String agentRollup, String transactionType,
-            long captureTime, Aggregate aggregate, int ttl) throws IOException {
+            long captureTime, Aggregate aggregate, int ttl) throws Exception {
 
         final int rollupLevel = 0;
 
@@ -1062,7 +1068,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, agentRollup);
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
-        bindAggregate(boundStatement, aggregate, i++, ttl);
+        bindAggregate(boundStatement, aggregate, i++, ttl,
+                timerNameDao.getDictionary(agentRollup, futures));
         futures.add(session.executeAsync(boundStatement));
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
@@ -1123,7 +1130,7 @@ public class AggregateDao implements AggregateRepository {
 
     private List<ResultSetFuture> storeTransactionAggregate(String agentRollup,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
-            int ttl) throws IOException {
+            int ttl) throws Exception {
 
         final int rollupLevel = 0;
 
@@ -1158,7 +1165,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionType);
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
-        bindAggregate(boundStatement, aggregate, i++, ttl);
+        bindAggregate(boundStatement, aggregate, i++, ttl,
+                timerNameDao.getDictionary(agentRollup, futures));
         futures.add(session.executeAsync(boundStatement));
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
@@ -1231,26 +1239,26 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private void bindAggregate(BoundStatement boundStatement, Aggregate aggregate, int startIndex,
-            int ttl) throws IOException {
+            int ttl, TimerNameDictionary timerNames) throws Exception {
         int i = startIndex;
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBool(i++, aggregate.getAsyncTransactions());
         List<Timer> mainThreadRootTimers = aggregate.getMainThreadRootTimerList();
         if (!mainThreadRootTimers.isEmpty()) {
-            boundStatement.setBytes(i++, Messages.toByteBuffer(mainThreadRootTimers));
+            boundStatement.setBytes(i++, writeTimers(mainThreadRootTimers, timerNames));
         } else {
             boundStatement.setToNull(i++);
         }
         List<Timer> auxThreadRootTimers = aggregate.getAuxThreadRootTimerList();
         if (!auxThreadRootTimers.isEmpty()) {
-            boundStatement.setBytes(i++, Messages.toByteBuffer(auxThreadRootTimers));
+            boundStatement.setBytes(i++, writeTimers(auxThreadRootTimers, timerNames));
         } else {
             boundStatement.setToNull(i++);
         }
         List<Timer> asyncTimers = aggregate.getAsyncTimerList();
         if (!asyncTimers.isEmpty()) {
-            boundStatement.setBytes(i++, Messages.toByteBuffer(asyncTimers));
+            boundStatement.setBytes(i++, writeTimers(asyncTimers, timerNames));
         } else {
             boundStatement.setToNull(i++);
         }
@@ -1267,6 +1275,25 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setInt(i++, ttl);
     }
 
+    private static ByteBuffer writeTimers(List<Aggregate.Timer> rootTimers,
+            TimerNameDictionary timerNames) throws Exception {
+        return ByteBuffer.wrap(TimerTrees.encode(rootTimers, timerNames));
+    }
+
+    private static List<Aggregate.Timer> readTimers(@Nullable ByteBuffer byteBuf,
+            TimerNameDictionary timerNames) throws Exception {
+        if (byteBuf == null) {
+            return ImmutableList.of();
+        }
+        byte[] bytes = new byte[byteBuf.remaining()];
+        byteBuf.duplicate().get(bytes);
+        if (TimerTrees.isEncoded(bytes)) {
+            return TimerTrees.decode(bytes, timerNames);
+        }
+        // stored prior to timer name encoding
+        return Messages.parseDelimitedFrom(byteBuf, Aggregate.Timer.parser());
+    }
+
     private ResultSet createBoundStatement(String agentRollup, OverallQuery query, Table table) {
         BoundStatement boundStatement =
                 checkNotNull(readOverallPS.get(table)).get(query.rollupLevel()).bind();
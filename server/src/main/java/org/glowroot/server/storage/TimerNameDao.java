@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.server.storage;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+import org.glowroot.storage.repo.ConfigRepository;
+import org.glowroot.storage.util.TimerNameDictionary;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// unlike the embedded storage, there is no single writer to hand out sequential ids, so timer name
+// ids are derived from a 48-bit hash of the timer name (the number of distinct timer names per
+// agent is small, so the chance of collision is negligible)
+public class TimerNameDao {
+
+    private static final String WITH_LCS =
+            "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
+
+    private final Session session;
+    private final ConfigRepository configRepository;
+
+    private final PreparedStatement insertPS;
+    private final PreparedStatement readPS;
+
+    // 2-day expiration is just to periodically clean up cache
+    private final LoadingCache<TimerNameKey, RateLimiter> rateLimiters =
+            CacheBuilder.newBuilder().expireAfterAccess(2, DAYS)
+                    .build(new CacheLoader<TimerNameKey, RateLimiter>() {
+                        @Override
+                        public RateLimiter load(TimerNameKey key) throws Exception {
+                            // 1 permit per 24 hours
+                            return RateLimiter.create(1 / (24 * 3600.0));
+                        }
+                    });
+
+    private final LoadingCache<String, ConcurrentMap<Long, String>> timerNames =
+            CacheBuilder.newBuilder().expireAfterAccess(2, DAYS)
+                    .build(new CacheLoader<String, ConcurrentMap<Long, String>>() {
+                        @Override
+                        public ConcurrentMap<Long, String> load(String agentRollup)
+                                throws Exception {
+                            ConcurrentMap<Long, String> timerNames = Maps.newConcurrentMap();
+                            readTimerNames(agentRollup, timerNames);
+                            return timerNames;
+                        }
+                    });
+
+    // ids that were not found even after re-reading the table, so that repeated lookups of the same
+    // unknown id (e.g. for a timer name that has expired) do not re-read the table every time
+    private final Cache<TimerNameIdKey, Boolean> missedIds =
+            CacheBuilder.newBuilder().expireAfterWrite(1, MINUTES).build();
+
+    public TimerNameDao(Session session, ConfigRepository configRepository) {
+        this.session = session;
+        this.configRepository = configRepository;
+
+        session.execute("create table if not exists timer_name (agent_rollup varchar, id bigint,"
+                + " timer_name varchar, primary key (agent_rollup, id)) " + WITH_LCS);
+
+        insertPS = session.prepare("insert into timer_name (agent_rollup, id, timer_name) values"
+                + " (?, ?, ?) using ttl ?");
+        readPS = session.prepare("select id, timer_name from timer_name where agent_rollup = ?");
+    }
+
+    // for decoding only
+    TimerNameDictionary getDictionary(String agentRollup) {
+        return new AgentTimerNames(agentRollup, ImmutableList.<ResultSetFuture>of());
+    }
+
+    // the futures list is used to collect inserts of newly seen timer names when encoding
+    TimerNameDictionary getDictionary(String agentRollup, List<ResultSetFuture> futures) {
+        return new AgentTimerNames(agentRollup, futures);
+    }
+
+    private void readTimerNames(String agentRollup, ConcurrentMap<Long, String> timerNames) {
+        BoundStatement boundStatement = readPS.bind();
+        boundStatement.setString(0, agentRollup);
+        ResultSet results = session.execute(boundStatement);
+        for (Row row : results) {
+            timerNames.put(row.getLong(0), checkNotNull(row.getString(1)));
+        }
+    }
+
+    private void maybeInsert(String agentRollup, long id, String timerName,
+            List<ResultSetFuture> futures) {
+        final TimerNameKey rateLimiterKey = ImmutableTimerNameKey.of(agentRollup, timerName);
+        RateLimiter rateLimiter = rateLimiters.getUnchecked(rateLimiterKey);
+        if (!rateLimiter.tryAcquire()) {
+            return;
+        }
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollup);
+        boundStatement.setLong(i++, id);
+        boundStatement.setString(i++, timerName);
+        boundStatement.setInt(i++, getTTL());
+        ResultSetFuture future = session.executeAsync(boundStatement);
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {}
+            @Override
+            public void onFailure(Throwable t) {
+                // give the permit back (by starting over with a new rate limiter) so that the
+                // insert is retried the next time this timer name is seen, instead of a day later
+                rateLimiters.invalidate(rateLimiterKey);
+            }
+        }, MoreExecutors.directExecutor());
+        futures.add(future);
+    }
+
+    // timer names need to outlive every aggregate that references them
+    private int getTTL() {
+        long maxTTL = 0;
+        for (long expirationHours : configRepository.getStorageConfig().rollupExpirationHours()) {
+            maxTTL = Math.max(maxTTL, HOURS.toSeconds(expirationHours));
+        }
+        return Ints.saturatedCast(maxTTL + DAYS.toSeconds(1));
+    }
+
+    private static long getId(String timerName) {
+        return Hashing.murmur3_128().hashString(timerName, UTF_8).asLong() >>> 16;
+    }
+
+    private class AgentTimerNames implements TimerNameDictionary {
+
+        private final String agentRollup;
+        private final List<ResultSetFuture> futures;
+
+        private AgentTimerNames(String agentRollup, List<ResultSetFuture> futures) {
+            this.agentRollup = agentRollup;
+            this.futures = futures;
+        }
+
+        @Override
+        public long getId(String timerName) throws Exception {
+            long id = TimerNameDao.getId(timerName);
+            timerNames.get(agentRollup).put(id, timerName);
+            maybeInsert(agentRollup, id, timerName, futures);
+            return id;
+        }
+
+        @Override
+        public @Nullable String getName(long id) throws Exception {
+            ConcurrentMap<Long, String> names = timerNames.get(agentRollup);
+            String timerName = names.get(id);
+            if (timerName != null) {
+                return timerName;
+            }
+            TimerNameIdKey missedIdKey = ImmutableTimerNameIdKey.of(agentRollup, id);
+            if (missedIds.getIfPresent(missedIdKey) != null) {
+                return null;
+            }
+            // could have been stored by another server node since names were last read
+            readTimerNames(agentRollup, names);
+            timerName = names.get(id);
+            if (timerName == null) {
+                missedIds.put(missedIdKey, true);
+            }
+            return timerName;
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface TimerNameKey {
+        String agentRollup();
+        String timerName();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface TimerNameIdKey {
+        String agentRollup();
+        long id();
+    }
+}
@@ -83,7 +83,8 @@ public class AggregateDaoIT {
         agentDao.setConfigRepository(configRepository);
         serverConfigDao.setConfigRepository(configRepository);
         TransactionTypeDao transactionTypeDao = new TransactionTypeDao(session, configRepository);
-        aggregateDao = new AggregateDao(session, transactionTypeDao, configRepository);
+        TimerNameDao timerNameDao = new TimerNameDao(session, configRepository);
+        aggregateDao = new AggregateDao(session, transactionTypeDao, timerNameDao, configRepository);
     }
 
     @AfterClass
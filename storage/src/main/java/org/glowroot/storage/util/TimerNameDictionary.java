@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.util;
+
+import javax.annotation.Nullable;
+
+// maps timer names to ids (and back) for a single agent, see TimerTrees
+public interface TimerNameDictionary {
+
+    long getId(String timerName) throws Exception;
+
+    // returns null if the id is not (or no longer) known
+    @Nullable
+    String getName(long id) throws Exception;
+}
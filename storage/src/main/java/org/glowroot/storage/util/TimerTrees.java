@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// compact encoding of aggregate timer trees, which are stored for every transaction name, at every
+// rollup level, for every interval
+//
+// timer names are replaced by ids from a per-agent TimerNameDictionary, and each timer is written
+// in pre-order as a run of varints: name id, (child count << 2 | integral nanos flag << 1 |
+// extended flag), count, and then total nanos either as a varint (when integral, which is nearly
+// always) or as a fixed 64-bit double
+//
+// the encoding starts with a zero byte, which distinguishes it from the length-delimited protobuf
+// timers that were stored previously (and that can still be read), since a delimited timer always
+// has a non-zero length
+public class TimerTrees {
+
+    private static final int MARKER = 0;
+    private static final int VERSION = 1;
+
+    private static final String UNKNOWN_TIMER_NAME = "<unknown>";
+
+    // largest integral double that is guaranteed to be exactly representable as a long
+    private static final double MAX_INTEGRAL_NANOS = 1L << 53;
+
+    private TimerTrees() {}
+
+    public static byte[] encode(List<Aggregate.Timer> rootTimers,
+            TimerNameDictionary dictionary) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(baos);
+        out.writeRawByte(MARKER);
+        out.writeRawByte(VERSION);
+        out.writeUInt32NoTag(rootTimers.size());
+        for (Aggregate.Timer rootTimer : rootTimers) {
+            writeTimer(rootTimer, out, dictionary);
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    public static boolean isEncoded(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == MARKER;
+    }
+
+    public static List<Aggregate.Timer> decode(byte[] bytes, TimerNameDictionary dictionary)
+            throws Exception {
+        CodedInputStream in = CodedInputStream.newInstance(bytes);
+        in.readRawByte();
+        int version = in.readRawByte();
+        if (version != VERSION) {
+            throw new IOException("Unexpected timer tree encoding version: " + version);
+        }
+        int rootTimerCount = in.readUInt32();
+        List<Aggregate.Timer> rootTimers = Lists.newArrayListWithCapacity(rootTimerCount);
+        for (int i = 0; i < rootTimerCount; i++) {
+            rootTimers.add(readTimer(in, dictionary));
+        }
+        return rootTimers;
+    }
+
+    private static void writeTimer(Aggregate.Timer timer, CodedOutputStream out,
+            TimerNameDictionary dictionary) throws Exception {
+        double totalNanos = timer.getTotalNanos();
+        boolean integralNanos = totalNanos >= 0 && totalNanos <= MAX_INTEGRAL_NANOS
+                && totalNanos == Math.rint(totalNanos);
+        int header = timer.getChildTimerCount() << 2;
+        if (integralNanos) {
+            header |= 2;
+        }
+        if (timer.getExtended()) {
+            header |= 1;
+        }
+        out.writeUInt64NoTag(dictionary.getId(timer.getName()));
+        out.writeUInt32NoTag(header);
+        out.writeUInt64NoTag(timer.getCount());
+        if (integralNanos) {
+            out.writeUInt64NoTag((long) totalNanos);
+        } else {
+            out.writeFixed64NoTag(Double.doubleToRawLongBits(totalNanos));
+        }
+        for (Aggregate.Timer childTimer : timer.getChildTimerList()) {
+            writeTimer(childTimer, out, dictionary);
+        }
+    }
+
+    private static Aggregate.Timer readTimer(CodedInputStream in, TimerNameDictionary dictionary)
+            throws Exception {
+        long nameId = in.readUInt64();
+        int header = in.readUInt32();
+        long count = in.readUInt64();
+        double totalNanos;
+        if ((header & 2) != 0) {
+            totalNanos = in.readUInt64();
+        } else {
+            totalNanos = Double.longBitsToDouble(in.readFixed64());
+        }
+        String name = dictionary.getName(nameId);
+        Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
+                .setName(name == null ? UNKNOWN_TIMER_NAME : name)
+                .setExtended((header & 1) != 0)
+                .setTotalNanos(totalNanos)
+                .setCount(count);
+        int childTimerCount = header >>> 2;
+        for (int i = 0; i < childTimerCount; i++) {
+            builder.addChildTimer(readTimer(in, dictionary));
+        }
+        return builder.build();
+    }
+}
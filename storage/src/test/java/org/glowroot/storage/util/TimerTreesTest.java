@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimerTreesTest {
+
+    @Test
+    public void shouldRoundTrip() throws Exception {
+        // given
+        TimerNameDictionary dictionary = new SimpleDictionary();
+        List<Aggregate.Timer> rootTimers = ImmutableList.of(
+                Aggregate.Timer.newBuilder()
+                        .setName("http request")
+                        .setTotalNanos(123456789)
+                        .setCount(10)
+                        .addChildTimer(createTimer("jdbc query", 2345678, 20))
+                        .addChildTimer(Aggregate.Timer.newBuilder()
+                                .setName("jdbc execute")
+                                .setExtended(true)
+                                .setTotalNanos(1.5)
+                                .setCount(3)
+                                .addChildTimer(createTimer("jdbc query", 1, 1)))
+                        .build(),
+                createTimer("other", 0, 0));
+        // when
+        byte[] bytes = TimerTrees.encode(rootTimers, dictionary);
+        // then
+        assertThat(TimerTrees.isEncoded(bytes)).isTrue();
+        assertThat(TimerTrees.decode(bytes, dictionary)).isEqualTo(rootTimers);
+    }
+
+    @Test
+    public void shouldBeSmallerThanProtobuf() throws Exception {
+        // given
+        TimerNameDictionary dictionary = new SimpleDictionary();
+        Aggregate.Timer rootTimer = Aggregate.Timer.newBuilder()
+                .setName("http request")
+                .setTotalNanos(123456789)
+                .setCount(10)
+                .addChildTimer(createTimer("jdbc query", 2345678, 20))
+                .addChildTimer(createTimer("jdbc get connection", 3456, 20))
+                .build();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        rootTimer.writeDelimitedTo(baos);
+        byte[] protobufBytes = baos.toByteArray();
+        // when
+        byte[] bytes = TimerTrees.encode(ImmutableList.of(rootTimer), dictionary);
+        // then
+        assertThat(TimerTrees.isEncoded(protobufBytes)).isFalse();
+        assertThat(bytes.length).isLessThan(protobufBytes.length / 2);
+    }
+
+    @Test
+    public void shouldDecodeUnknownTimerName() throws Exception {
+        // given
+        List<Aggregate.Timer> rootTimers = ImmutableList.of(createTimer("abc", 100, 1));
+        byte[] bytes = TimerTrees.encode(rootTimers, new SimpleDictionary());
+        // when
+        List<Aggregate.Timer> decoded = TimerTrees.decode(bytes, new SimpleDictionary());
+        // then
+        assertThat(decoded).hasSize(1);
+        assertThat(decoded.get(0).getName()).isEqualTo("<unknown>");
+        assertThat(decoded.get(0).getTotalNanos()).isEqualTo(100);
+    }
+
+    private static Aggregate.Timer createTimer(String name, double totalNanos, long count) {
+        return Aggregate.Timer.newBuilder()
+                .setName(name)
+                .setTotalNanos(totalNanos)
+                .setCount(count)
+                .build();
+    }
+
+    private static class SimpleDictionary implements TimerNameDictionary {
+
+        private final HashBiMap<String, Long> ids = HashBiMap.create();
+
+        @Override
+        public long getId(String timerName) {
+            Long id = ids.get(timerName);
+            if (id == null) {
+                id = (long) ids.size() + 1;
+                ids.put(timerName, id);
+            }
+            return id;
+        }
+
+        @Override
+        public @Nullable String getName(long id) {
+            return ids.inverse().get(id);
+        }
+    }
+}
@@ -35,15 +35,28 @@ glowroot.controller('JvmMBeanTreeCtrl', [
       expandedObjectNames = [expandedObjectNames];
     }
 
+    // optional, limits the tree to a single domain so that only that domain's mbeans are queried
+    // and sent by the agent
+    $scope.domainFilter = $location.search().domain;
+
     function updateLocation() {
       var query = {};
       if (!$scope.layout.fat) {
         query['agent-id'] = $scope.agentId;
       }
+      if ($scope.domainFilter) {
+        query.domain = $scope.domainFilter;
+      }
       query.expanded = expandedObjectNames;
       $location.search(query).replace();
     }
 
+    $scope.filterDomain = function (domain) {
+      $scope.domainFilter = domain;
+      updateLocation();
+      $scope.refresh();
+    };
+
     $scope.toggleMBean = function (node) {
       if (node.expanded) {
         var index = expandedObjectNames.indexOf(node.objectName);
@@ -85,6 +98,9 @@ glowroot.controller('JvmMBeanTreeCtrl', [
         agentId: $scope.agentId,
         expanded: expandedObjectNames
       };
+      if ($scope.domainFilter) {
+        queryData.domain = $scope.domainFilter;
+      }
       $http.get('backend/jvm/mbean-tree' + queryStrings.encodeObject(queryData))
           .success(function (data) {
             $scope.loaded = true;
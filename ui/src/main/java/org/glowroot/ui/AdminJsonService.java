@@ -26,6 +26,7 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -287,10 +288,24 @@ class AdminJsonService {
                 .sessionTimeoutMinutes(config.sessionTimeoutMinutes())
                 .version(config.version())
                 .build();
+        RequestDispatcher requestDispatcher = httpServer.getRequestDispatcher();
+        HttpResponseCache responseCache = httpServer.getResponseCache();
+        CacheStats responseCacheStats = responseCache.getStats();
+        WebStats stats = ImmutableWebStats.builder()
+                .dispatchedRequestCount(requestDispatcher.getDispatchedCount())
+                .rejectedRequestCount(requestDispatcher.getRejectedCount())
+                .totalQueueNanos(requestDispatcher.getTotalQueueNanos())
+                .maxQueueNanos(requestDispatcher.getMaxQueueNanos())
+                .responseCacheHitCount(responseCacheStats.hitCount())
+                .responseCacheMissCount(responseCacheStats.missCount())
+                .responseCacheEvictionCount(responseCacheStats.evictionCount())
+                .notModifiedCount(responseCache.getNotModifiedCount())
+                .build();
         return mapper.writeValueAsString(ImmutableWebConfigResponse.builder()
                 .config(configDto)
                 .activePort(httpServer.getPort())
                 .portChangeFailed(portChangeFailed)
+                .stats(stats)
                 .build());
     }
 
@@ -305,6 +320,21 @@ class AdminJsonService {
         WebConfigDto config();
         int activePort();
         boolean portChangeFailed();
+        WebStats stats();
+    }
+
+    @Value.Immutable
+    interface WebStats {
+        long dispatchedRequestCount();
+        // rejected because too many requests were already waiting
+        long rejectedRequestCount();
+        long totalQueueNanos();
+        long maxQueueNanos();
+        long responseCacheHitCount();
+        long responseCacheMissCount();
+        long responseCacheEvictionCount();
+        // 304 responses sent because the browser's copy was still current
+        long notModifiedCount();
     }
 
     @Value.Immutable
@@ -32,6 +32,10 @@ class ConditionalHttpContentCompressor extends HttpContentCompressor {
             // don't compress already zipped content
             return null;
         }
+        if (response.headers().contains(HttpHeaderNames.CONTENT_ENCODING)) {
+            // don't compress already encoded content (e.g. gzipped responses from the cache)
+            return null;
+        }
         return super.beginEncode(response, acceptEncoding);
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nullable;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+// writes the body of a chunked http response directly to the channel in fixed size pooled buffers,
+// blocking the writer whenever the channel is not writable, so the amount of response held in
+// memory stays bounded regardless of the total response size
+//
+// must not be used from the event loop thread, since it blocks waiting for the channel
+class HttpContentOutputStream extends OutputStream {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final ChannelHandlerContext ctx;
+
+    private @Nullable ByteBuf buffer;
+    private @Nullable ChannelFuture lastFuture;
+    private boolean closed;
+
+    HttpContentOutputStream(ChannelHandlerContext ctx) {
+        checkState(!ctx.executor().inEventLoop(), "Cannot block on the event loop");
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ByteBuf buffer = getBuffer();
+        buffer.writeByte(b);
+        if (!buffer.isWritable()) {
+            writeChunk();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            ByteBuf buffer = getBuffer();
+            int n = Math.min(remaining, buffer.writableBytes());
+            buffer.writeBytes(b, offset, n);
+            offset += n;
+            remaining -= n;
+            if (!buffer.isWritable()) {
+                writeChunk();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (buffer != null && buffer.isReadable()) {
+            writeChunk();
+        } else if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+        lastFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
+    // releases the pooled buffer without writing it, used when the response cannot be completed
+    // (this is a no-op after close(), since close() already hands off or releases the buffer)
+    void discard() {
+        closed = true;
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+    }
+
+    // only valid after close()
+    ChannelFuture getLastFuture() {
+        return checkNotNull(lastFuture);
+    }
+
+    private ByteBuf getBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (buffer == null) {
+            buffer = ctx.alloc().buffer(CHUNK_SIZE, CHUNK_SIZE);
+        }
+        return buffer;
+    }
+
+    private void writeChunk() throws IOException {
+        ByteBuf chunk = checkNotNull(buffer);
+        buffer = null;
+        ChannelFuture future = ctx.writeAndFlush(new DefaultHttpContent(chunk));
+        if (!ctx.channel().isWritable()) {
+            // wait for the outbound buffer to drain before generating more of the response
+            try {
+                future.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (future.isDone() && !future.isSuccess()) {
+            Throwable cause = future.cause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.MediaType;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.storage.repo.ConfigRepository;
+import org.glowroot.storage.repo.helper.RollupLevelService;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches json responses for fully historical time ranges, which never change once the range ends
+// before the last rolled up capture time (other than eventually expiring)
+//
+// responses are held gzipped, since that is how nearly all browsers ask for them, and are served
+// with etags so that the browser can revalidate without the response being re-sent
+//
+// the gzipped and identity responses are different representations, so they get different etags,
+// and the identity response gets a weak etag since ConditionalHttpContentCompressor can still
+// deflate it on the way out
+class HttpResponseCache {
+
+    private static final long MAX_WEIGHT_BYTES =
+            Long.getLong("glowroot.ui.responseCacheSizeBytes", 16 * 1024 * 1024);
+
+    // allows for aggregates that are collected from remote agents to arrive late, and for the
+    // rollup of the last interval to complete
+    private static final long SAFETY_MARGIN_MILLIS = MINUTES.toMillis(5);
+
+    // bounds how long a response can be served after its underlying data has expired
+    private static final long EXPIRE_AFTER_WRITE_HOURS = 1;
+
+    private static final ImmutableSet<String> CACHEABLE_PATHS = ImmutableSet.of(
+            "/backend/transaction/average",
+            "/backend/transaction/percentiles",
+            "/backend/transaction/throughput",
+            "/backend/transaction/queries",
+            "/backend/transaction/service-calls",
+            "/backend/transaction/profile");
+
+    private final ConfigRepository configRepository;
+    private final RollupLevelService rollupLevelService;
+    private final Clock clock;
+
+    private final Cache<CacheKey, CachedResponse> cache;
+
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    HttpResponseCache(ConfigRepository configRepository, RollupLevelService rollupLevelService,
+            Clock clock) {
+        this(configRepository, rollupLevelService, clock, MAX_WEIGHT_BYTES);
+    }
+
+    @VisibleForTesting
+    HttpResponseCache(ConfigRepository configRepository, RollupLevelService rollupLevelService,
+            Clock clock, long maxWeightBytes) {
+        this.configRepository = configRepository;
+        this.rollupLevelService = rollupLevelService;
+        this.clock = clock;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeightBytes)
+                .weigher(new Weigher<CacheKey, CachedResponse>() {
+                    @Override
+                    public int weigh(CacheKey key, CachedResponse value) {
+                        return key.uri().length() + value.gzippedContent.length;
+                    }
+                })
+                .expireAfterWrite(EXPIRE_AFTER_WRITE_HOURS, HOURS)
+                .recordStats()
+                .build();
+    }
+
+    // returns null if the request is not cacheable
+    @Nullable
+    CacheKey getCacheKey(String agentRollup, String path, String uri,
+            Map<String, List<String>> queryParameters) throws Exception {
+        if (!CACHEABLE_PATHS.contains(path)) {
+            return null;
+        }
+        Long from = getLongParameter(queryParameters, "from");
+        Long to = getLongParameter(queryParameters, "to");
+        if (from == null || to == null) {
+            return null;
+        }
+        int rollupLevel = rollupLevelService.getRollupLevelForView(from, to);
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        long lastRolledUpTime = RollupLevelService.getSafeRollupTime(
+                clock.currentTimeMillis() - SAFETY_MARGIN_MILLIS, intervalMillis);
+        if (to > lastRolledUpTime) {
+            return null;
+        }
+        return ImmutableCacheKey.of(agentRollup, uri, rollupLevel);
+    }
+
+    @Nullable
+    CachedResponse get(CacheKey cacheKey) {
+        return cache.getIfPresent(cacheKey);
+    }
+
+    CachedResponse put(CacheKey cacheKey, byte[] content) throws IOException {
+        String hash = Hashing.sha1().hashBytes(content).toString();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(baos);
+        out.write(content);
+        out.close();
+        CachedResponse cachedResponse = new CachedResponse(hash, baos.toByteArray());
+        cache.put(cacheKey, cachedResponse);
+        return cachedResponse;
+    }
+
+    FullHttpResponse createResponse(CachedResponse cachedResponse, HttpRequest request)
+            throws IOException {
+        boolean gzip = acceptsGzip(request);
+        String etag = gzip ? '"' + cachedResponse.hash + "-gzip\""
+                : "W/\"" + cachedResponse.hash + '"';
+        FullHttpResponse response;
+        if (matchesIfNoneMatch(etag, request.headers().get(HttpHeaderNames.IF_NONE_MATCH))) {
+            notModifiedCount.getAndIncrement();
+            response = new DefaultFullHttpResponse(HTTP_1_1, NOT_MODIFIED);
+        } else if (gzip) {
+            response = new DefaultFullHttpResponse(HTTP_1_1, OK,
+                    Unpooled.wrappedBuffer(cachedResponse.gzippedContent));
+            // the content encoding header prevents the content from being compressed again
+            response.headers().set(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+        } else {
+            InputStream in = new GZIPInputStream(
+                    new ByteArrayInputStream(cachedResponse.gzippedContent));
+            byte[] content;
+            try {
+                content = ByteStreams.toByteArray(in);
+            } finally {
+                in.close();
+            }
+            response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer(content));
+        }
+        if (response.status() == OK) {
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, MediaType.JSON_UTF_8);
+        }
+        response.headers().set(HttpHeaderNames.ETAG, etag);
+        response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        // private since responses depend on the user's permissions, and no-cache so that the
+        // browser revalidates (cheaply) in case the underlying data has since expired
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "private, no-cache");
+        return response;
+    }
+
+    CacheStats getStats() {
+        return cache.stats();
+    }
+
+    long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    private static boolean acceptsGzip(HttpRequest request) {
+        String acceptEncoding = request.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+
+    // if-none-match uses the weak comparison function, see RFC 7232 section 3.2
+    @VisibleForTesting
+    static boolean matchesIfNoneMatch(String etag, @Nullable String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaqueTag = getOpaqueTag(etag);
+        for (String tag : Splitter.on(',').trimResults().omitEmptyStrings().split(ifNoneMatch)) {
+            if (tag.equals("*") || getOpaqueTag(tag).equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getOpaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static @Nullable Long getLongParameter(Map<String, List<String>> queryParameters,
+            String name) {
+        List<String> values = queryParameters.get(name);
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(values.get(0));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface CacheKey {
+        String agentRollup();
+        // includes all query parameters
+        String uri();
+        int rollupLevel();
+    }
+
+    // not an immutables value type, since that would copy the content array on every access
+    static class CachedResponse {
+
+        // sha1 of the (identity) content
+        private final String hash;
+        private final byte[] gzippedContent;
+
+        private CachedResponse(String hash, byte[] gzippedContent) {
+            this.hash = hash;
+            this.gzippedContent = gzippedContent;
+        }
+    }
+}
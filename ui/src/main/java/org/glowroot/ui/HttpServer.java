@@ -54,6 +54,8 @@ class HttpServer {
     private final HttpServerHandler handler;
     private final EventLoopGroup bossGroup;
     private final EventLoopGroup workerGroup;
+    private final RequestDispatcher requestDispatcher;
+    private final HttpResponseCache responseCache;
 
     private final String bindAddress;
 
@@ -62,7 +64,8 @@ class HttpServer {
 
     HttpServer(String bindAddress, int port, int numWorkerThreads, LayoutService layoutService,
             Map<Pattern, HttpService> httpServices, SecurityManager securityManager,
-            SessionHelper sessionHelper, List<Object> jsonServices) throws Exception {
+            SessionHelper sessionHelper, List<Object> jsonServices,
+            HttpResponseCache responseCache) throws Exception {
 
         InternalLoggerFactory.setDefaultFactory(Slf4JLoggerFactory.INSTANCE);
 
@@ -77,8 +80,11 @@ class HttpServer {
         bossGroup = new NioEventLoopGroup(1, bossThreadFactory);
         workerGroup = new NioEventLoopGroup(numWorkerThreads, workerThreadFactory);
 
+        requestDispatcher = new RequestDispatcher();
+        this.responseCache = responseCache;
+
         final HttpServerHandler handler = new HttpServerHandler(layoutService, httpServices,
-                securityManager, sessionHelper, jsonServices);
+                securityManager, sessionHelper, jsonServices, requestDispatcher, responseCache);
 
         bootstrap = new ServerBootstrap();
         bootstrap.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class)
@@ -111,6 +117,7 @@ class HttpServer {
                 // clean up
                 bossGroup.shutdownGracefully(0, 0, SECONDS);
                 workerGroup.shutdownGracefully(0, 0, SECONDS);
+                requestDispatcher.close();
                 throw f;
             }
             logger.error("error binding to port: {} (bound to port {} instead)", port,
@@ -127,6 +134,14 @@ class HttpServer {
         return port;
     }
 
+    RequestDispatcher getRequestDispatcher() {
+        return requestDispatcher;
+    }
+
+    HttpResponseCache getResponseCache() {
+        return responseCache;
+    }
+
     void changePort(final int newPort) throws PortChangeFailedException {
         // need to call from separate thread, since netty throws exception if I/O thread (serving
         // http request) calls awaitUninterruptibly(), which is called by bind() below
@@ -155,6 +170,7 @@ class HttpServer {
         serverChannel.close().awaitUninterruptibly();
         bossGroup.shutdownGracefully();
         workerGroup.shutdownGracefully();
+        requestDispatcher.close();
         handler.close();
         logger.debug("close(): http server stopped");
     }
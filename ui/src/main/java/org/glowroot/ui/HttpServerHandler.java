@@ -15,12 +15,15 @@
  */
 package org.glowroot.ui;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URL;
 import java.sql.SQLException;
 import java.util.Date;
@@ -33,6 +36,7 @@ import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
@@ -60,6 +64,7 @@ import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.QueryStringDecoder;
@@ -75,6 +80,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
+import org.glowroot.ui.HttpResponseCache.CacheKey;
+import org.glowroot.ui.HttpResponseCache.CachedResponse;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -85,6 +92,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_TIMEOUT;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static io.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -133,13 +141,19 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
     private final SecurityManager securityManager;
     private final SessionHelper sessionHelper;
 
+    private final RequestDispatcher requestDispatcher;
+    private final HttpResponseCache responseCache;
+
     private final ThreadLocal</*@Nullable*/ Channel> currentChannel =
             new ThreadLocal</*@Nullable*/ Channel>();
 
     HttpServerHandler(LayoutService layoutService, Map<Pattern, HttpService> httpServices,
             SecurityManager securityManager, SessionHelper sessionHelper,
-            List<Object> jsonServices) {
+            List<Object> jsonServices, RequestDispatcher requestDispatcher,
+            HttpResponseCache responseCache) {
         this.layoutService = layoutService;
+        this.requestDispatcher = requestDispatcher;
+        this.responseCache = responseCache;
         this.httpServices = ImmutableMap.copyOf(httpServices);
         this.securityManager = securityManager;
         this.sessionHelper = sessionHelper;
@@ -190,9 +204,45 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
     public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception {
         final FullHttpRequest request = (FullHttpRequest) msg;
         logger.debug("messageReceived(): request.uri={}", request.uri());
+        final Subject subject = buildSubject(request);
+        if (isStaticResourceRequest(request)) {
+            // static resources are cheap, so they are served directly on the event loop
+            handleRequest(ctx, request, subject);
+            return;
+        }
+        // stop reading from this connection until the response is written, so that responses to
+        // requests on a keep-alive connection stay in order
+        ctx.channel().config().setAutoRead(false);
+        requestDispatcher.dispatch(getUser(ctx, subject), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleRequest(ctx, request, subject);
+                } finally {
+                    // channelReadComplete() has already run on the event loop by this time
+                    ctx.flush();
+                    ctx.channel().config().setAutoRead(true);
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                logger.warn("too many http requests in progress (or shutting down), rejecting"
+                        + " request: {}", request.uri());
+                request.release();
+                ctx.channel().config().setAutoRead(true);
+                FullHttpResponse response =
+                        new DefaultFullHttpResponse(HTTP_1_1, SERVICE_UNAVAILABLE);
+                response.headers().add(HttpHeaderNames.CONTENT_LENGTH, 0);
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            }
+        });
+    }
+
+    private void handleRequest(final ChannelHandlerContext ctx, final FullHttpRequest request,
+            Subject subject) {
         Channel channel = ctx.channel();
         currentChannel.set(channel);
-        Subject subject = buildSubject(request);
         try {
             subject.execute(new Callable</*@Nullable*/ Void>() {
                 @Override
@@ -206,13 +256,39 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
             });
         } catch (Exception e) {
             logger.error("error handling request {}: {}", request.uri(), e.getMessage(), e);
-            sendExceptionResponse(ctx, e);
+            try {
+                sendExceptionResponse(ctx, e);
+            } catch (Exception f) {
+                logger.error(f.getMessage(), f);
+            }
         } finally {
             currentChannel.remove();
             request.release();
         }
     }
 
+    private boolean isStaticResourceRequest(FullHttpRequest request) throws Exception {
+        String path = new QueryStringDecoder(request.uri()).path();
+        return !path.equals("/backend/login") && !path.equals("/backend/sign-out")
+                && getHttpService(path) == null && getJsonServiceMapping(request, path) == null;
+    }
+
+    // per-user concurrency limits apply per authenticated user, or per remote address for
+    // anonymous users (all users are anonymous when authentication is not configured)
+    private static String getUser(ChannelHandlerContext ctx, Subject subject) {
+        if (subject.isAuthenticated()) {
+            Object principal = subject.getPrincipal();
+            if (principal != null) {
+                return "user:" + principal;
+            }
+        }
+        SocketAddress remoteAddress = ctx.channel().remoteAddress();
+        if (remoteAddress instanceof InetSocketAddress) {
+            return "address:" + ((InetSocketAddress) remoteAddress).getAddress().getHostAddress();
+        }
+        return "address:" + remoteAddress;
+    }
+
     private Subject buildSubject(FullHttpRequest request) {
         String sessionId = sessionHelper.getSessionId(request);
         if (sessionId != null) {
@@ -240,16 +316,7 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
             FullHttpResponse response) throws Exception {
         boolean keepAlive = HttpUtil.isKeepAlive(request);
         try {
-            if (sessionHelper.getSessionId(request) != null
-                    && !SecurityUtils.getSubject().isAuthenticated()
-                    && !response.headers().contains("Set-Cookie")) {
-                sessionHelper.deleteSessionCookie(response);
-            }
-            if (request.uri().startsWith("/backend/") && !request.uri().equals("/backend/layout")
-                    && !request.uri().equals("/backend/login")
-                    && !request.uri().equals("/backend/sign-out")) {
-                response.headers().add("Glowroot-Layout-Version", layoutService.getLayoutVersion());
-            }
+            addSessionAndLayoutHeaders(request, response);
         } catch (Exception e) {
             logger.error("error handling request {}: {}", request.uri(), e.getMessage(), e);
             sendExceptionResponse(ctx, e);
@@ -274,6 +341,20 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    private void addSessionAndLayoutHeaders(HttpRequest request, HttpResponse response)
+            throws Exception {
+        if (sessionHelper.getSessionId(request) != null
+                && !SecurityUtils.getSubject().isAuthenticated()
+                && !response.headers().contains("Set-Cookie")) {
+            sessionHelper.deleteSessionCookie(response);
+        }
+        if (request.uri().startsWith("/backend/") && !request.uri().equals("/backend/layout")
+                && !request.uri().equals("/backend/login")
+                && !request.uri().equals("/backend/sign-out")) {
+            response.headers().add("Glowroot-Layout-Version", layoutService.getLayoutVersion());
+        }
+    }
+
     // TODO report checker framework issue that occurs without this suppression
     @SuppressWarnings("argument.type.incompatible")
     private void sendExceptionResponse(ChannelHandlerContext ctx, Exception exception)
@@ -309,7 +390,7 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         }
         JsonServiceMapping jsonServiceMapping = getJsonServiceMapping(request, path);
         if (jsonServiceMapping != null) {
-            return handleJsonServiceMappings(request, jsonServiceMapping);
+            return handleJsonServiceMappings(ctx, request, jsonServiceMapping);
         }
         return handleStaticResource(path, request);
     }
@@ -384,14 +465,15 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         return null;
     }
 
-    private FullHttpResponse handleJsonServiceMappings(FullHttpRequest request,
-            JsonServiceMapping jsonServiceMapping) throws Exception {
+    private @Nullable FullHttpResponse handleJsonServiceMappings(ChannelHandlerContext ctx,
+            FullHttpRequest request, JsonServiceMapping jsonServiceMapping) throws Exception {
         List<Class<?>> parameterTypes = Lists.newArrayList();
         List<Object> parameters = Lists.newArrayList();
         QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
         Map<String, List<String>> queryParameters = decoder.parameters();
         Subject subject = SecurityUtils.getSubject();
         boolean permitted;
+        String agentRollupForCache = null;
         if (jsonServiceMapping.bindAgentId()) {
             List<String> values = queryParameters.get("agent-id");
             if (values == null) {
@@ -412,6 +494,7 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
             parameters.add(agentRollup);
             queryParameters.remove("agent-rollup");
             permitted = isPermitted(subject, agentRollup, jsonServiceMapping.permission());
+            agentRollupForCache = agentRollup;
         } else {
             permitted = jsonServiceMapping.permission().isEmpty()
                     || subject.isPermitted(jsonServiceMapping.permission());
@@ -423,6 +506,17 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
                 return handleNotAuthenticated(request);
             }
         }
+        CacheKey cacheKey = null;
+        if (agentRollupForCache != null) {
+            cacheKey = responseCache.getCacheKey(agentRollupForCache, decoder.path(),
+                    request.uri(), queryParameters);
+        }
+        if (cacheKey != null) {
+            CachedResponse cachedResponse = responseCache.get(cacheKey);
+            if (cachedResponse != null) {
+                return responseCache.createResponse(cachedResponse, request);
+            }
+        }
         Object responseObject;
         try {
             responseObject = callMethod(jsonServiceMapping, parameterTypes, parameters,
@@ -430,9 +524,41 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         } catch (Exception e) {
             return newHttpResponseFromException(e);
         }
+        if (cacheKey != null) {
+            byte[] content = toCacheableContent(responseObject);
+            if (content != null) {
+                return responseCache.createResponse(responseCache.put(cacheKey, content),
+                        request);
+            }
+        }
+        if (responseObject instanceof StreamingJsonResponse) {
+            HttpResponse response = HttpServices.createStreamingJsonResponse();
+            addSessionAndLayoutHeaders(request, response);
+            HttpServices.writeStreamingJsonResponse(ctx, request, response,
+                    (StreamingJsonResponse) responseObject);
+            // return null to indicate streaming
+            return null;
+        }
         return buildJsonResponse(responseObject);
     }
 
+    // streaming responses are buffered here, but only for fully historical time ranges, which are
+    // then served from the cache on subsequent requests
+    private static @Nullable byte[] toCacheableContent(@Nullable Object responseObject)
+            throws Exception {
+        if (responseObject instanceof String) {
+            return ((String) responseObject).getBytes(Charsets.ISO_8859_1);
+        }
+        if (responseObject instanceof StreamingJsonResponse) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            JsonGenerator jg = mapper.getFactory().createGenerator(baos, JsonEncoding.UTF8);
+            ((StreamingJsonResponse) responseObject).writeJson(jg);
+            jg.close();
+            return baos.toByteArray();
+        }
+        return null;
+    }
+
     private FullHttpResponse buildJsonResponse(@Nullable Object responseObject) {
         FullHttpResponse response;
         if (responseObject == null) {
@@ -19,6 +19,9 @@ import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
 import java.util.Date;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.net.MediaType;
@@ -26,20 +29,29 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.util.concurrent.GenericFutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.common.util.ObjectMappers;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 class HttpServices {
 
     private static final Logger logger = LoggerFactory.getLogger(HttpServices.class);
+    private static final ObjectMapper mapper = ObjectMappers.create();
 
     private static final ImmutableSet<String> BROWSER_DISCONNECT_MESSAGES =
             ImmutableSet.of("An existing connection was forcibly closed by the remote host",
@@ -58,6 +70,46 @@ class HttpServices {
         response.headers().set(HttpHeaderNames.EXPIRES, new Date(0));
     }
 
+    static HttpResponse createStreamingJsonResponse() {
+        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+        response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, MediaType.JSON_UTF_8);
+        preventCaching(response);
+        return response;
+    }
+
+    // writes the response headers and then streams the json body, compression (if accepted) is
+    // applied incrementally per chunk by ConditionalHttpContentCompressor
+    static void writeStreamingJsonResponse(ChannelHandlerContext ctx, HttpRequest request,
+            HttpResponse response, StreamingJsonResponse streamingJsonResponse) {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive && !request.protocolVersion().isKeepAliveDefault()) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ctx.write(response);
+        HttpContentOutputStream out = new HttpContentOutputStream(ctx);
+        try {
+            JsonGenerator jg = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+            streamingJsonResponse.writeJson(jg);
+            // this also closes the underlying output stream which writes the terminating chunk
+            jg.close();
+        } catch (Exception e) {
+            // too late to send an error status since the response headers have already been sent
+            if (shouldLogException(e)) {
+                logger.error(e.getMessage(), e);
+            }
+            ctx.close();
+            return;
+        } finally {
+            out.discard();
+        }
+        ChannelFuture future = out.getLastFuture();
+        addErrorListener(future);
+        if (!keepAlive) {
+            addCloseListener(future);
+        }
+    }
+
     static FullHttpResponse createJsonResponse(String content, HttpResponseStatus status) {
         ByteBuf byteBuf = Unpooled.copiedBuffer(content, Charsets.ISO_8859_1);
         DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status, byteBuf);
@@ -211,8 +211,10 @@ class JvmJsonService {
         checkNotNull(liveJvmService);
         MBeanDump mbeanDump;
         try {
+            String domain = request.domain();
             mbeanDump = liveJvmService.getMBeanDump(agentId,
-                    MBeanDumpKind.ALL_MBEANS_INCLUDE_ATTRIBUTES_FOR_SOME, request.expanded());
+                    MBeanDumpKind.ALL_MBEANS_INCLUDE_ATTRIBUTES_FOR_SOME, request.expanded(),
+                    domain == null ? "" : domain);
         } catch (AgentNotConnectedException e) {
             logger.debug(e.getMessage(), e);
             return "{\"agentNotConnected\":true}";
@@ -251,7 +253,7 @@ class JvmJsonService {
         checkNotNull(liveJvmService);
         MBeanDump mbeanDump =
                 liveJvmService.getMBeanDump(agentId, MBeanDumpKind.SOME_MBEANS_INCLUDE_ATTRIBUTES,
-                        ImmutableList.of(request.objectName()));
+                        ImmutableList.of(request.objectName()), "");
         List<MBeanDump.MBeanInfo> mbeanInfos = mbeanDump.getMbeanInfoList();
         if (mbeanInfos.isEmpty()) {
             throw new IllegalStateException(
@@ -389,6 +391,9 @@ class JvmJsonService {
     @Value.Immutable
     interface MBeanTreeRequest {
         List<String> expanded();
+        // optional, limits the tree to a single domain
+        @Nullable
+        String domain();
     }
 
     @Value.Immutable
@@ -44,6 +44,7 @@ class LazyHttpServer {
     private final TraceExportHttpService traceExportHttpService;
     private final GlowrootLogHttpService glowrootLogHttpService;
     private final List<Object> jsonServices;
+    private final HttpResponseCache responseCache;
     private final int numWorkerThreads;
 
     private volatile @Nullable HttpServer httpServer;
@@ -54,7 +55,7 @@ class LazyHttpServer {
             TraceDetailHttpService traceDetailHttpService,
             TraceExportHttpService traceExportHttpService,
             GlowrootLogHttpService glowrootLogHttpService, List<Object> jsonServices,
-            int numWorkerThreads) {
+            HttpResponseCache responseCache, int numWorkerThreads) {
         this.bindAddress = bindAddress;
         this.port = port;
         this.securityManager = securityManager;
@@ -66,6 +67,7 @@ class LazyHttpServer {
         this.traceExportHttpService = traceExportHttpService;
         this.glowrootLogHttpService = glowrootLogHttpService;
         this.jsonServices = jsonServices;
+        this.responseCache = responseCache;
         this.numWorkerThreads = numWorkerThreads;
     }
 
@@ -109,7 +111,7 @@ class LazyHttpServer {
         // services
         try {
             return new HttpServer(bindAddress, port, numWorkerThreads, layoutService, httpServices,
-                    securityManager, sessionHelper, jsonServices);
+                    securityManager, sessionHelper, jsonServices, responseCache);
         } catch (Exception e) {
             // binding to the specified port failed and binding to port 0 (any port) failed
             logger.error("error binding to any port, the user interface will not be available", e);
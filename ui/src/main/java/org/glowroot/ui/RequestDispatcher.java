@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// runs potentially blocking requests (json services, trace export, etc) off of the netty event
+// loop threads so that a slow query cannot stall every other connection served by the same event
+// loop, while limiting how many requests a single user can have running at once
+class RequestDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestDispatcher.class);
+
+    private static final int NUM_THREADS = Integer.getInteger("glowroot.ui.requestThreads",
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final int MAX_CONCURRENT_REQUESTS_PER_USER =
+            Integer.getInteger("glowroot.ui.maxConcurrentRequestsPerUser", 4);
+
+    private static final int MAX_QUEUED_REQUESTS =
+            Integer.getInteger("glowroot.ui.maxQueuedRequests", 1000);
+
+    private static final long SLOW_QUEUE_TIME_NANOS = SECONDS.toNanos(5);
+
+    private final ThreadPoolExecutor executor;
+    private final int maxConcurrentRequestsPerUser;
+    private final int maxQueuedRequests;
+    private final Ticker ticker;
+
+    @GuardedBy("userQueues")
+    private final Map<String, UserQueue> userQueues = Maps.newHashMap();
+    // includes both running and waiting requests
+    @GuardedBy("userQueues")
+    private int inFlightRequests;
+
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+
+    RequestDispatcher() {
+        this(NUM_THREADS, MAX_CONCURRENT_REQUESTS_PER_USER, MAX_QUEUED_REQUESTS,
+                Ticker.systemTicker());
+    }
+
+    RequestDispatcher(int numThreads, int maxConcurrentRequestsPerUser, int maxQueuedRequests,
+            Ticker ticker) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Http-Request-%d")
+                .build();
+        // the executor queue is effectively bounded by maxQueuedRequests, since that bounds the
+        // total number of requests in flight
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0, MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        this.maxConcurrentRequestsPerUser = maxConcurrentRequestsPerUser;
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.ticker = ticker;
+    }
+
+    // runs onRejected instead of the request if too many requests are already waiting, or if this
+    // dispatcher has been closed
+    void dispatch(String user, Runnable request, Runnable onRejected) {
+        DispatchedRequest dispatchedRequest =
+                new DispatchedRequest(user, request, onRejected, ticker.read());
+        List<DispatchedRequest> rejectedRequests = Lists.newArrayList();
+        synchronized (userQueues) {
+            if (inFlightRequests >= maxQueuedRequests) {
+                rejectedRequests.add(dispatchedRequest);
+            } else {
+                inFlightRequests++;
+                UserQueue userQueue = userQueues.get(user);
+                if (userQueue == null) {
+                    userQueue = new UserQueue();
+                    userQueues.put(user, userQueue);
+                }
+                if (userQueue.activeRequests < maxConcurrentRequestsPerUser) {
+                    userQueue.activeRequests++;
+                    execute(dispatchedRequest, rejectedRequests);
+                } else {
+                    userQueue.pendingRequests.add(dispatchedRequest);
+                }
+            }
+        }
+        reject(rejectedRequests);
+    }
+
+    long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    long getTotalQueueNanos() {
+        return totalQueueNanos.get();
+    }
+
+    long getMaxQueueNanos() {
+        return maxQueueNanos.get();
+    }
+
+    void close() {
+        // requests that were waiting in the executor queue are rejected the same as requests that
+        // are dispatched after this
+        for (Runnable runnable : executor.shutdownNow()) {
+            onComplete(((DispatchedRequest) runnable).user,
+                    Lists.newArrayList((DispatchedRequest) runnable));
+        }
+    }
+
+    @GuardedBy("userQueues")
+    private void execute(DispatchedRequest dispatchedRequest,
+            List<DispatchedRequest> rejectedRequests) {
+        try {
+            executor.execute(dispatchedRequest);
+        } catch (RejectedExecutionException e) {
+            // executor has been shut down, so roll back the same as if the request had completed,
+            // which in turn rejects the user's pending requests
+            logger.debug(e.getMessage(), e);
+            rejectedRequests.add(dispatchedRequest);
+            onCompleteUnderLock(dispatchedRequest.user, rejectedRequests);
+        }
+    }
+
+    private void onComplete(String user, List<DispatchedRequest> rejectedRequests) {
+        synchronized (userQueues) {
+            onCompleteUnderLock(user, rejectedRequests);
+        }
+        reject(rejectedRequests);
+    }
+
+    @GuardedBy("userQueues")
+    private void onCompleteUnderLock(String user, List<DispatchedRequest> rejectedRequests) {
+        inFlightRequests--;
+        UserQueue userQueue = userQueues.get(user);
+        if (userQueue == null) {
+            logger.error("user queue not found: {}", user);
+            return;
+        }
+        DispatchedRequest next = userQueue.pendingRequests.poll();
+        if (next != null) {
+            execute(next, rejectedRequests);
+        } else {
+            userQueue.activeRequests--;
+            if (userQueue.activeRequests == 0) {
+                userQueues.remove(user);
+            }
+        }
+    }
+
+    // called outside of the lock since onRejected writes the response
+    private void reject(List<DispatchedRequest> rejectedRequests) {
+        for (DispatchedRequest rejectedRequest : rejectedRequests) {
+            rejectedCount.incrementAndGet();
+            try {
+                rejectedRequest.onRejected.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    private void recordQueueTime(long queueNanos) {
+        dispatchedCount.incrementAndGet();
+        totalQueueNanos.addAndGet(queueNanos);
+        long currMax = maxQueueNanos.get();
+        while (queueNanos > currMax && !maxQueueNanos.compareAndSet(currMax, queueNanos)) {
+            currMax = maxQueueNanos.get();
+        }
+        if (queueNanos > SLOW_QUEUE_TIME_NANOS) {
+            logger.warn("http request waited {} milliseconds before starting (consider increasing"
+                    + " -Dglowroot.ui.requestThreads)", NANOSECONDS.toMillis(queueNanos));
+        }
+    }
+
+    private static class UserQueue {
+        private int activeRequests;
+        private final Queue<DispatchedRequest> pendingRequests = Queues.newArrayDeque();
+    }
+
+    private class DispatchedRequest implements Runnable {
+
+        private final String user;
+        private final Runnable request;
+        private final Runnable onRejected;
+        private final long dispatchTick;
+
+        private DispatchedRequest(String user, Runnable request, Runnable onRejected,
+                long dispatchTick) {
+            this.user = user;
+            this.request = request;
+            this.onRejected = onRejected;
+            this.dispatchTick = dispatchTick;
+        }
+
+        @Override
+        public void run() {
+            recordQueueTime(ticker.read() - dispatchTick);
+            try {
+                request.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            } finally {
+                onComplete(user, Lists.<DispatchedRequest>newArrayList());
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+// json services can return this instead of a String in order to stream large responses directly
+// to the channel instead of buffering the entire json in memory first
+//
+// any potentially failing work (e.g. queries) should be done before returning this, since the
+// response status has already been sent by the time writeJson() is called
+interface StreamingJsonResponse {
+
+    void writeJson(JsonGenerator jg) throws Exception;
+}
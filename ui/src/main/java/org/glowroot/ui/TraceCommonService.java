@@ -17,16 +17,21 @@ package org.glowroot.ui;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Deque;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
 import com.google.common.io.CharStreams;
 import org.immutables.value.Value;
 
@@ -75,50 +80,51 @@ class TraceCommonService {
     // overwritten entries will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getEntriesJson(String agentId, String traceId, boolean checkLiveTraces)
+    StreamingJsonResponse getEntries(String agentId, String traceId, boolean checkLiveTraces)
             throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
             // trace is not missed if it is in transition between these states
             List<Trace.Entry> entries = liveTraceRepository.getEntries(agentId, traceId);
             if (!entries.isEmpty()) {
-                return toJson(entries);
+                return toStreamingJson(entries);
             }
         }
-        return toJson(getStoredEntries(agentId, traceId, new RetryCountdown(checkLiveTraces)));
+        return toStreamingJson(
+                getStoredEntries(agentId, traceId, new RetryCountdown(checkLiveTraces)));
     }
 
     // overwritten profile will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getMainThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
-            throws Exception {
+    StreamingJsonResponse getMainThreadProfile(String agentId, String traceId,
+            boolean checkLiveTraces) throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
             // trace is not missed if it is in transition between these states
             Profile profile = liveTraceRepository.getMainThreadProfile(agentId, traceId);
             if (profile != null) {
-                return toJson(profile);
+                return toStreamingJson(profile);
             }
         }
-        return toJson(
+        return toStreamingJson(
                 getStoredMainThreadProfile(agentId, traceId, new RetryCountdown(checkLiveTraces)));
     }
 
     // overwritten profile will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getAuxThreadProfileJson(String agentId, String traceId, boolean checkLiveTraces)
-            throws Exception {
+    StreamingJsonResponse getAuxThreadProfile(String agentId, String traceId,
+            boolean checkLiveTraces) throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
             // trace is not missed if it is in transition between these states
             Profile profile = liveTraceRepository.getAuxThreadProfile(agentId, traceId);
             if (profile != null) {
-                return toJson(profile);
+                return toStreamingJson(profile);
             }
         }
-        return toJson(
+        return toStreamingJson(
                 getStoredAuxThreadProfile(agentId, traceId, new RetryCountdown(checkLiveTraces)));
     }
 
@@ -207,6 +213,51 @@ class TraceCommonService {
         }
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
+        writeEntries(entries, jg);
+        jg.close();
+        return sb.toString();
+    }
+
+    @VisibleForTesting
+    static @Nullable String toJson(@Nullable Profile profile) throws IOException {
+        if (profile == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
+        writeProfile(profile, jg);
+        jg.close();
+        return sb.toString();
+    }
+
+    private static @Nullable StreamingJsonResponse toStreamingJson(
+            final List<Trace.Entry> entries) {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return new StreamingJsonResponse() {
+            @Override
+            public void writeJson(JsonGenerator jg) throws IOException {
+                writeEntries(entries, jg);
+            }
+        };
+    }
+
+    private static @Nullable StreamingJsonResponse toStreamingJson(
+            final @Nullable Profile profile) {
+        if (profile == null) {
+            return null;
+        }
+        return new StreamingJsonResponse() {
+            @Override
+            public void writeJson(JsonGenerator jg) throws IOException {
+                writeProfile(profile, jg);
+            }
+        };
+    }
+
+    private static void writeEntries(List<Trace.Entry> entries, JsonGenerator jg)
+            throws IOException {
         jg.writeStartArray();
         PeekingIterator<Trace.Entry> i = Iterators.peekingIterator(entries.iterator());
         while (i.hasNext()) {
@@ -228,17 +279,92 @@ class TraceCommonService {
             }
         }
         jg.writeEndArray();
-        jg.close();
-        return sb.toString();
     }
 
-    private static @Nullable String toJson(@Nullable Profile profile) throws IOException {
-        if (profile == null) {
-            return null;
+    // transcodes the flattened (pre-order, depth-annotated) protobuf profile directly into the
+    // same nested json that MutableProfile.writeJson() produces, without building a MutableProfile
+    //
+    // profiles produced by MutableProfile.toProto() never have duplicate sibling nodes, but
+    // profiles received from (older or third party) agents are not guaranteed to be merged, in
+    // which case this falls back to merging them into a MutableProfile first
+    private static void writeProfile(Profile profile, JsonGenerator jg) throws IOException {
+        if (hasDuplicateSiblings(profile.getNodeList())) {
+            MutableProfile mutableProfile = new MutableProfile();
+            mutableProfile.merge(profile);
+            mutableProfile.writeJson(jg);
+            return;
+        }
+        List<String> packageNames = profile.getPackageNameList();
+        List<String> classNames = profile.getClassNameList();
+        List<String> methodNames = profile.getMethodNameList();
+        List<String> fileNames = profile.getFileNameList();
+        List<Profile.ProfileNode> nodes = profile.getNodeList();
+        long unfilteredSampleCount = 0;
+        for (Profile.ProfileNode node : nodes) {
+            if (node.getDepth() == 0) {
+                unfilteredSampleCount += node.getSampleCount();
+            }
+        }
+        jg.writeStartObject();
+        jg.writeNumberField("unfilteredSampleCount", unfilteredSampleCount);
+        jg.writeArrayFieldStart("rootNodes");
+        int prevDepth = -1;
+        for (int i = 0; i < nodes.size(); i++) {
+            Profile.ProfileNode node = nodes.get(i);
+            int depth = node.getDepth();
+            if (depth > prevDepth && prevDepth != -1) {
+                jg.writeArrayFieldStart("childNodes");
+            } else if (prevDepth != -1) {
+                jg.writeEndObject();
+                for (int j = prevDepth; j > depth; j--) {
+                    jg.writeEndArray();
+                    jg.writeEndObject();
+                }
+            }
+            jg.writeStartObject();
+            String packageName = packageNames.get(node.getPackageNameIndex());
+            String className = classNames.get(node.getClassNameIndex());
+            String fullClassName =
+                    packageName.isEmpty() ? className : packageName + '.' + className;
+            jg.writeStringField("stackTraceElement",
+                    new StackTraceElement(fullClassName, methodNames.get(node.getMethodNameIndex()),
+                            fileNames.get(node.getFileNameIndex()), node.getLineNumber())
+                                    .toString());
+            Profile.LeafThreadState leafThreadState = node.getLeafThreadState();
+            if (leafThreadState != Profile.LeafThreadState.NONE) {
+                jg.writeStringField("leafThreadState", leafThreadState.name());
+            }
+            jg.writeNumberField("sampleCount", node.getSampleCount());
+            prevDepth = depth;
+        }
+        if (prevDepth != -1) {
+            jg.writeEndObject();
+            for (int j = prevDepth; j > 0; j--) {
+                jg.writeEndArray();
+                jg.writeEndObject();
+            }
         }
-        MutableProfile mutableProfile = new MutableProfile();
-        mutableProfile.merge(profile);
-        return mutableProfile.toJson();
+        jg.writeEndArray();
+        jg.writeEndObject();
+    }
+
+    private static boolean hasDuplicateSiblings(List<Profile.ProfileNode> nodes) {
+        // siblingKeys.peek() holds the keys of the siblings seen so far at the current depth
+        Deque<Set<SiblingKey>> siblingKeys = Queues.newArrayDeque();
+        siblingKeys.push(Sets.<SiblingKey>newHashSet());
+        for (Profile.ProfileNode node : nodes) {
+            int depth = node.getDepth();
+            while (siblingKeys.size() > depth + 1) {
+                siblingKeys.pop();
+            }
+            if (siblingKeys.size() == depth) {
+                siblingKeys.push(Sets.<SiblingKey>newHashSet());
+            }
+            if (!siblingKeys.peek().add(new SiblingKey(node))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static String toJsonLiveHeader(Trace.Header header) throws IOException {
@@ -512,6 +638,46 @@ class TraceCommonService {
         }
     }
 
+    // same fields that MutableProfile uses to merge sibling nodes
+    private static class SiblingKey {
+
+        private final int packageNameIndex;
+        private final int classNameIndex;
+        private final int methodNameIndex;
+        private final int fileNameIndex;
+        private final int lineNumber;
+        private final Profile.LeafThreadState leafThreadState;
+
+        private SiblingKey(Profile.ProfileNode node) {
+            packageNameIndex = node.getPackageNameIndex();
+            classNameIndex = node.getClassNameIndex();
+            methodNameIndex = node.getMethodNameIndex();
+            fileNameIndex = node.getFileNameIndex();
+            lineNumber = node.getLineNumber();
+            leafThreadState = node.getLeafThreadState();
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof SiblingKey)) {
+                return false;
+            }
+            SiblingKey that = (SiblingKey) obj;
+            return lineNumber == that.lineNumber
+                    && fileNameIndex == that.fileNameIndex
+                    && leafThreadState == that.leafThreadState
+                    && methodNameIndex == that.methodNameIndex
+                    && classNameIndex == that.classNameIndex
+                    && packageNameIndex == that.packageNameIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface TraceExport {
@@ -19,23 +19,16 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.HttpResponse;
-import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
-import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 
 class TraceDetailHttpService implements HttpService {
@@ -76,57 +69,29 @@ class TraceDetailHttpService implements HttpService {
                 "handleRequest(): traceComponent={}, agentId={}, traceId={}, checkLiveTraces={}",
                 traceComponent, agentId, traceId, checkLiveTraces);
 
-        ChunkSource detail =
-                getDetailChunkSource(traceComponent, agentId, traceId, checkLiveTraces);
+        StreamingJsonResponse detail =
+                getDetail(traceComponent, agentId, traceId, checkLiveTraces);
         if (detail == null) {
             return new DefaultFullHttpResponse(HTTP_1_1, NOT_FOUND);
         }
-        HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
-        response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
-        boolean keepAlive = HttpUtil.isKeepAlive(request);
-        if (keepAlive && !request.protocolVersion().isKeepAliveDefault()) {
-            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-        }
-        HttpServices.preventCaching(response);
-        ctx.write(response);
-        // TODO no more point in chunking here
-        ChannelFuture future = ctx.write(ChunkedInputs.from(detail));
-        HttpServices.addErrorListener(future);
-        if (!keepAlive) {
-            HttpServices.addCloseListener(future);
-        }
+        HttpServices.writeStreamingJsonResponse(ctx, request,
+                HttpServices.createStreamingJsonResponse(), detail);
         // return null to indicate streaming
         return null;
     }
 
-    private @Nullable ChunkSource getDetailChunkSource(String traceComponent, String agentId,
+    private @Nullable StreamingJsonResponse getDetail(String traceComponent, String agentId,
             String traceId, boolean checkLiveTraces) throws Exception {
         if (traceComponent.equals("entries")) {
-            String entriesJson =
-                    traceCommonService.getEntriesJson(agentId, traceId, checkLiveTraces);
-            if (entriesJson == null) {
-                // this includes trace was found but the trace had no trace entries
-                // caller should check trace.entry_count
-                return null;
-            }
-            return ChunkSource.wrap(entriesJson);
+            // this returns null if trace was found but the trace had no trace entries
+            // caller should check trace.entry_count
+            return traceCommonService.getEntries(agentId, traceId, checkLiveTraces);
         }
         if (traceComponent.equals("main-thread-profile")) {
-            String profileJson = traceCommonService.getMainThreadProfileJson(agentId, traceId,
-                    checkLiveTraces);
-            if (profileJson == null) {
-                return null;
-            }
-            return ChunkSource.wrap(profileJson);
+            return traceCommonService.getMainThreadProfile(agentId, traceId, checkLiveTraces);
         }
         if (traceComponent.equals("aux-thread-profile")) {
-            String profileJson = traceCommonService.getAuxThreadProfileJson(agentId, traceId,
-                    checkLiveTraces);
-            if (profileJson == null) {
-                return null;
-            }
-            return ChunkSource.wrap(profileJson);
+            return traceCommonService.getAuxThreadProfile(agentId, traceId, checkLiveTraces);
         }
         throw new IllegalStateException("Unexpected trace component: " + traceComponent);
     }
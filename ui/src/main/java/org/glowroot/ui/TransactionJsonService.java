@@ -241,37 +241,44 @@ class TransactionJsonService {
     }
 
     @GET(path = "/backend/transaction/profile", permission = "agent:view:transaction:profile")
-    String getProfile(@BindAgentRollup String agentRollup,
+    StreamingJsonResponse getProfile(@BindAgentRollup String agentRollup,
             @BindRequest TransactionProfileRequest request) throws Exception {
         TransactionQuery query = toQuery(request);
-        MutableProfile profile =
+        final MutableProfile profile =
                 transactionCommonService.getMergedProfile(agentRollup, query, request.auxiliary(),
                         request.include(), request.exclude(), request.truncateBranchPercentage());
-        boolean hasUnfilteredAuxThreadProfile;
+        final boolean hasUnfilteredAuxThreadProfile;
         if (request.auxiliary()) {
             hasUnfilteredAuxThreadProfile = profile.getUnfilteredSampleCount() > 0;
         } else {
             hasUnfilteredAuxThreadProfile =
                     transactionCommonService.hasAuxThreadProfile(agentRollup, query);
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
-        jg.writeStartObject();
-        jg.writeBooleanField("hasUnfilteredAuxThreadProfile", hasUnfilteredAuxThreadProfile);
+        final boolean overwritten;
         if (profile.getUnfilteredSampleCount() == 0) {
-            if (request.auxiliary()
-                    && aggregateRepository.shouldHaveAuxThreadProfile(agentRollup, query)) {
-                jg.writeBooleanField("overwritten", true);
-            } else if (!request.auxiliary()
-                    && aggregateRepository.shouldHaveMainThreadProfile(agentRollup, query)) {
-                jg.writeBooleanField("overwritten", true);
+            if (request.auxiliary()) {
+                overwritten = aggregateRepository.shouldHaveAuxThreadProfile(agentRollup, query);
+            } else {
+                overwritten = aggregateRepository.shouldHaveMainThreadProfile(agentRollup, query);
             }
+        } else {
+            overwritten = false;
         }
-        jg.writeFieldName("profile");
-        profile.writeJson(jg);
-        jg.writeEndObject();
-        jg.close();
-        return sb.toString();
+        // profiles can be very large, so stream instead of buffering the json
+        return new StreamingJsonResponse() {
+            @Override
+            public void writeJson(JsonGenerator jg) throws Exception {
+                jg.writeStartObject();
+                jg.writeBooleanField("hasUnfilteredAuxThreadProfile",
+                        hasUnfilteredAuxThreadProfile);
+                if (overwritten) {
+                    jg.writeBooleanField("overwritten", true);
+                }
+                jg.writeFieldName("profile");
+                profile.writeJson(jg);
+                jg.writeEndObject();
+            }
+        };
     }
 
     @GET(path = "/backend/transaction/summaries", permission = "agent:view:transaction:summaries")
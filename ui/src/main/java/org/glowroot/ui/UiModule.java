@@ -153,7 +153,8 @@ public class UiModule {
         LazyHttpServer lazyHttpServer = new LazyHttpServer(bindAddress, port, securityManager,
                 sessionHelper, indexHtmlHttpService, layoutHttpService, layoutService,
                 traceDetailHttpService, traceExportHttpService, glowrootLogHttpService,
-                jsonServices, numWorkerThreads);
+                jsonServices, new HttpResponseCache(configRepository, rollupLevelService, clock),
+                numWorkerThreads);
 
         lazyHttpServer.init(adminJsonService);
         return new UiModule(lazyHttpServer);
@@ -19,11 +19,15 @@ import java.net.InetAddress;
 
 import javax.mail.Message;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.CacheStats;
 import org.apache.shiro.authc.credential.PasswordService;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.glowroot.common.live.LiveAggregateRepository;
+import org.glowroot.storage.config.ImmutableWebConfig;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.RepoAdmin;
 import org.glowroot.storage.util.MailService;
@@ -31,6 +35,7 @@ import org.glowroot.ui.AdminJsonService.SmtpConfigDto;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class AdminJsonServiceTest {
 
@@ -121,6 +126,40 @@ public class AdminJsonServiceTest {
         assertThat(message.getContent()).isEqualTo("");
     }
 
+    @Test
+    public void shouldIncludeWebStatsInWebConfig() throws Exception {
+        // given
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getWebConfig()).thenReturn(ImmutableWebConfig.builder().build());
+        AdminJsonService adminJsonService = new AdminJsonService(false, configRepository,
+                mock(RepoAdmin.class), mock(LiveAggregateRepository.class), mailService,
+                mock(PasswordService.class));
+        RequestDispatcher requestDispatcher = new RequestDispatcher();
+        HttpServer httpServer = mock(HttpServer.class);
+        when(httpServer.getRequestDispatcher()).thenReturn(requestDispatcher);
+        HttpResponseCache responseCache = mock(HttpResponseCache.class);
+        when(responseCache.getStats()).thenReturn(new CacheStats(3, 2, 0, 0, 0, 1));
+        when(responseCache.getNotModifiedCount()).thenReturn(4L);
+        when(httpServer.getResponseCache()).thenReturn(responseCache);
+        adminJsonService.setHttpServer(httpServer);
+        try {
+            // when
+            String json = adminJsonService.getWebConfig();
+            // then
+            JsonNode stats = new ObjectMapper().readTree(json).get("stats");
+            assertThat(stats.get("dispatchedRequestCount").asLong()).isEqualTo(0);
+            assertThat(stats.get("rejectedRequestCount").asLong()).isEqualTo(0);
+            assertThat(stats.get("totalQueueNanos").asLong()).isEqualTo(0);
+            assertThat(stats.get("maxQueueNanos").asLong()).isEqualTo(0);
+            assertThat(stats.get("responseCacheHitCount").asLong()).isEqualTo(3);
+            assertThat(stats.get("responseCacheMissCount").asLong()).isEqualTo(2);
+            assertThat(stats.get("responseCacheEvictionCount").asLong()).isEqualTo(1);
+            assertThat(stats.get("notModifiedCount").asLong()).isEqualTo(4);
+        } finally {
+            requestDispatcher.close();
+        }
+    }
+
     static class MockMailService extends MailService {
 
         private Message msg;
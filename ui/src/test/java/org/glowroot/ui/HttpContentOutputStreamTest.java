@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HttpContentOutputStreamTest {
+
+    private ChannelHandlerContext ctx;
+
+    @Before
+    public void beforeEachTest() {
+        ctx = mock(ChannelHandlerContext.class);
+        EventExecutor executor = mock(EventExecutor.class);
+        when(executor.inEventLoop()).thenReturn(false);
+        when(ctx.executor()).thenReturn(executor);
+        when(ctx.alloc()).thenReturn(UnpooledByteBufAllocator.DEFAULT);
+        Channel channel = mock(Channel.class);
+        when(channel.isWritable()).thenReturn(true);
+        when(ctx.channel()).thenReturn(channel);
+        ChannelFuture future = mock(ChannelFuture.class);
+        when(future.isDone()).thenReturn(true);
+        when(future.isSuccess()).thenReturn(true);
+        when(ctx.writeAndFlush(any())).thenReturn(future);
+    }
+
+    @Test
+    public void shouldWriteFixedSizeChunks() throws Exception {
+        // given
+        HttpContentOutputStream out = new HttpContentOutputStream(ctx);
+        // when
+        out.write(new byte[20000]);
+        out.write(1);
+        out.close();
+        // then
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(ctx, times(4)).writeAndFlush(captor.capture());
+        List<Object> chunks = captor.getAllValues();
+        assertThat(((HttpContent) chunks.get(0)).content().readableBytes()).isEqualTo(8192);
+        assertThat(((HttpContent) chunks.get(1)).content().readableBytes()).isEqualTo(8192);
+        assertThat(((HttpContent) chunks.get(2)).content().readableBytes()).isEqualTo(3617);
+        assertThat(chunks.get(3)).isEqualTo(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
+    @Test
+    public void shouldOnlyWriteTerminatingChunkWhenEmpty() throws Exception {
+        // given
+        HttpContentOutputStream out = new HttpContentOutputStream(ctx);
+        // when
+        out.close();
+        // then
+        verify(ctx).writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
+    @Test
+    public void shouldReleaseBufferOnDiscard() throws Exception {
+        // given
+        ByteBuf buffer = Unpooled.buffer(8192, 8192);
+        ByteBufAllocator alloc = mock(ByteBufAllocator.class);
+        when(alloc.buffer(8192, 8192)).thenReturn(buffer);
+        when(ctx.alloc()).thenReturn(alloc);
+        HttpContentOutputStream out = new HttpContentOutputStream(ctx);
+        // when
+        out.write(new byte[100]);
+        out.discard();
+        // then
+        assertThat(buffer.refCnt()).isZero();
+        verify(ctx, never()).writeAndFlush(any());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotAllowUseOnEventLoop() {
+        // given
+        when(ctx.executor().inEventLoop()).thenReturn(true);
+        // when
+        new HttpContentOutputStream(ctx);
+    }
+}
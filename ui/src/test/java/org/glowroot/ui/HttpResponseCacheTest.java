@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.storage.repo.ConfigRepository;
+import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
+import org.glowroot.storage.repo.ImmutableRollupConfig;
+import org.glowroot.storage.repo.helper.RollupLevelService;
+import org.glowroot.ui.HttpResponseCache.CacheKey;
+import org.glowroot.ui.HttpResponseCache.CachedResponse;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HttpResponseCacheTest {
+
+    private static final String PATH = "/backend/transaction/average";
+
+    private static final long NOW = HOURS.toMillis(1000);
+
+    private HttpResponseCache responseCache;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(ImmutableList.<RollupConfig>of(
+                ImmutableRollupConfig.of(MINUTES.toMillis(1), MINUTES.toMillis(15))));
+        RollupLevelService rollupLevelService = mock(RollupLevelService.class);
+        when(rollupLevelService.getRollupLevelForView(anyLong(), anyLong())).thenReturn(0);
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(NOW);
+        responseCache =
+                new HttpResponseCache(configRepository, rollupLevelService, clock, 1024 * 1024);
+    }
+
+    @Test
+    public void shouldNotCacheRecentRange() throws Exception {
+        // when
+        CacheKey cacheKey = getCacheKey(NOW - HOURS.toMillis(1), NOW);
+        // then
+        assertThat(cacheKey).isNull();
+    }
+
+    @Test
+    public void shouldNotCacheOtherPaths() throws Exception {
+        // when
+        CacheKey cacheKey = responseCache.getCacheKey("", "/backend/transaction/summaries", "",
+                getQueryParameters(NOW - HOURS.toMillis(2), NOW - HOURS.toMillis(1)));
+        // then
+        assertThat(cacheKey).isNull();
+    }
+
+    @Test
+    public void shouldCacheHistoricalRange() throws Exception {
+        // given
+        CacheKey cacheKey = getCacheKey(NOW - HOURS.toMillis(2), NOW - HOURS.toMillis(1));
+        byte[] content = "{\"x\":1}".getBytes(Charsets.UTF_8);
+        // when
+        responseCache.put(cacheKey, content);
+        CachedResponse cachedResponse =
+                responseCache.get(getCacheKey(NOW - HOURS.toMillis(2), NOW - HOURS.toMillis(1)));
+        // then
+        assertThat(cachedResponse).isNotNull();
+        FullHttpResponse response = responseCache.createResponse(cachedResponse, newRequest());
+        assertThat(response.status()).isEqualTo(OK);
+        assertThat(response.headers().get(HttpHeaderNames.CONTENT_ENCODING)).isNull();
+        assertThat(response.content().toString(Charsets.UTF_8)).isEqualTo("{\"x\":1}");
+        assertThat(responseCache.getStats().hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldServeGzippedContent() throws Exception {
+        // given
+        CacheKey cacheKey = getCacheKey(NOW - HOURS.toMillis(2), NOW - HOURS.toMillis(1));
+        CachedResponse cachedResponse =
+                responseCache.put(cacheKey, "{\"x\":1}".getBytes(Charsets.UTF_8));
+        HttpRequest request = newRequest();
+        request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip, deflate");
+        // when
+        FullHttpResponse response = responseCache.createResponse(cachedResponse, request);
+        // then
+        assertThat(response.status()).isEqualTo(OK);
+        assertThat(response.headers().get(HttpHeaderNames.CONTENT_ENCODING)).isEqualTo("gzip");
+        assertThat(response.headers().get(HttpHeaderNames.ETAG)).isNotNull();
+    }
+
+    @Test
+    public void shouldReturnNotModified() throws Exception {
+        // given
+        CacheKey cacheKey = getCacheKey(NOW - HOURS.toMillis(2), NOW - HOURS.toMillis(1));
+        CachedResponse cachedResponse =
+                responseCache.put(cacheKey, "{\"x\":1}".getBytes(Charsets.UTF_8));
+        String etag = responseCache.createResponse(cachedResponse, newRequest()).headers()
+                .get(HttpHeaderNames.ETAG);
+        HttpRequest request = newRequest();
+        request.headers().set(HttpHeaderNames.IF_NONE_MATCH, etag);
+        // when
+        FullHttpResponse response = responseCache.createResponse(cachedResponse, request);
+        // then
+        assertThat(response.status()).isEqualTo(NOT_MODIFIED);
+        assertThat(response.content().readableBytes()).isZero();
+        assertThat(responseCache.getNotModifiedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldUseDifferentEtagPerEncoding() throws Exception {
+        // given
+        CacheKey cacheKey = getCacheKey(NOW - HOURS.toMillis(2), NOW - HOURS.toMillis(1));
+        CachedResponse cachedResponse =
+                responseCache.put(cacheKey, "{\"x\":1}".getBytes(Charsets.UTF_8));
+        HttpRequest gzipRequest = newRequest();
+        gzipRequest.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+        // when
+        String etag = responseCache.createResponse(cachedResponse, newRequest()).headers()
+                .get(HttpHeaderNames.ETAG);
+        String gzipEtag = responseCache.createResponse(cachedResponse, gzipRequest).headers()
+                .get(HttpHeaderNames.ETAG);
+        // then
+        assertThat(etag).startsWith("W/\"");
+        assertThat(gzipEtag).startsWith("\"").endsWith("-gzip\"");
+        assertThat(HttpResponseCache.matchesIfNoneMatch(etag, gzipEtag)).isFalse();
+    }
+
+    @Test
+    public void shouldNotReturnNotModifiedForEtagOfOtherEncoding() throws Exception {
+        // given
+        CacheKey cacheKey = getCacheKey(NOW - HOURS.toMillis(2), NOW - HOURS.toMillis(1));
+        CachedResponse cachedResponse =
+                responseCache.put(cacheKey, "{\"x\":1}".getBytes(Charsets.UTF_8));
+        HttpRequest gzipRequest = newRequest();
+        gzipRequest.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+        String gzipEtag = responseCache.createResponse(cachedResponse, gzipRequest).headers()
+                .get(HttpHeaderNames.ETAG);
+        HttpRequest request = newRequest();
+        request.headers().set(HttpHeaderNames.IF_NONE_MATCH, gzipEtag);
+        // when
+        FullHttpResponse response = responseCache.createResponse(cachedResponse, request);
+        // then
+        assertThat(response.status()).isEqualTo(OK);
+        assertThat(response.content().toString(Charsets.UTF_8)).isEqualTo("{\"x\":1}");
+    }
+
+    @Test
+    public void shouldReturnNotModifiedForEtagInList() throws Exception {
+        // given
+        CacheKey cacheKey = getCacheKey(NOW - HOURS.toMillis(2), NOW - HOURS.toMillis(1));
+        CachedResponse cachedResponse =
+                responseCache.put(cacheKey, "{\"x\":1}".getBytes(Charsets.UTF_8));
+        HttpRequest request = newRequest();
+        request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+        String etag = responseCache.createResponse(cachedResponse, request).headers()
+                .get(HttpHeaderNames.ETAG);
+        request.headers().set(HttpHeaderNames.IF_NONE_MATCH, "\"abc\", W/" + etag + " ,W/\"def\"");
+        // when
+        FullHttpResponse response = responseCache.createResponse(cachedResponse, request);
+        // then
+        assertThat(response.status()).isEqualTo(NOT_MODIFIED);
+    }
+
+    @Test
+    public void shouldMatchIfNoneMatch() {
+        assertThat(HttpResponseCache.matchesIfNoneMatch("\"a\"", null)).isFalse();
+        assertThat(HttpResponseCache.matchesIfNoneMatch("\"a\"", "\"a\"")).isTrue();
+        assertThat(HttpResponseCache.matchesIfNoneMatch("\"a\"", "W/\"a\"")).isTrue();
+        assertThat(HttpResponseCache.matchesIfNoneMatch("W/\"a\"", "\"a\"")).isTrue();
+        assertThat(HttpResponseCache.matchesIfNoneMatch("\"a\"", "\"b\",\"a\"")).isTrue();
+        assertThat(HttpResponseCache.matchesIfNoneMatch("\"a\"", "*")).isTrue();
+        assertThat(HttpResponseCache.matchesIfNoneMatch("\"a\"", "\"b\", W/\"c\"")).isFalse();
+        assertThat(HttpResponseCache.matchesIfNoneMatch("\"a\"", "\"a-gzip\"")).isFalse();
+    }
+
+    private CacheKey getCacheKey(long from, long to) throws Exception {
+        return responseCache.getCacheKey("a", PATH, PATH + "?from=" + from + "&to=" + to,
+                getQueryParameters(from, to));
+    }
+
+    private static Map<String, List<String>> getQueryParameters(long from, long to) {
+        return ImmutableMap.<String, List<String>>of("from",
+                ImmutableList.of(Long.toString(from)), "to", ImmutableList.of(Long.toString(to)));
+    }
+
+    private static HttpRequest newRequest() {
+        return new DefaultFullHttpRequest(HTTP_1_1, HttpMethod.GET, PATH);
+    }
+}
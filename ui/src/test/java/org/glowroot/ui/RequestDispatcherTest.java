@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RequestDispatcherTest {
+
+    private RequestDispatcher requestDispatcher;
+    private AtomicInteger rejected;
+    private Runnable onRejected;
+
+    @Before
+    public void beforeEachTest() {
+        requestDispatcher = new RequestDispatcher(4, 2, 5, Ticker.systemTicker());
+        rejected = new AtomicInteger();
+        onRejected = new Runnable() {
+            @Override
+            public void run() {
+                rejected.incrementAndGet();
+            }
+        };
+    }
+
+    @After
+    public void afterEachTest() {
+        requestDispatcher.close();
+    }
+
+    @Test
+    public void shouldLimitConcurrentRequestsPerUser() throws Exception {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(4);
+        // when
+        for (int i = 0; i < 4; i++) {
+            requestDispatcher.dispatch("user:a",
+                    new BlockingRequest(release, running, maxRunning, done), onRejected);
+        }
+        Thread.sleep(100);
+        int runningBeforeRelease = running.get();
+        release.countDown();
+        // then
+        assertThat(done.await(10, SECONDS)).isTrue();
+        assertThat(runningBeforeRelease).isEqualTo(2);
+        assertThat(maxRunning.get()).isEqualTo(2);
+        assertThat(requestDispatcher.getDispatchedCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldNotLimitAcrossUsers() throws Exception {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(4);
+        // when
+        for (String user : new String[] {"user:a", "user:a", "user:b", "user:b"}) {
+            requestDispatcher.dispatch(user,
+                    new BlockingRequest(release, running, maxRunning, done), onRejected);
+        }
+        Thread.sleep(100);
+        int runningBeforeRelease = running.get();
+        release.countDown();
+        // then
+        assertThat(done.await(10, SECONDS)).isTrue();
+        assertThat(runningBeforeRelease).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldRejectWhenTooManyRequestsInFlight() throws Exception {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            requestDispatcher.dispatch("user:a",
+                    new BlockingRequest(release, running, maxRunning, done), onRejected);
+        }
+        // when
+        requestDispatcher.dispatch("user:b",
+                new BlockingRequest(release, running, maxRunning, done), onRejected);
+        release.countDown();
+        // then
+        assertThat(rejected.get()).isEqualTo(1);
+        assertThat(requestDispatcher.getRejectedCount()).isEqualTo(1);
+        assertThat(done.await(10, SECONDS)).isTrue();
+    }
+
+    @Test
+    public void shouldRejectPendingRequestsOnClose() throws Exception {
+        // given
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(2);
+        for (int i = 0; i < 4; i++) {
+            requestDispatcher.dispatch("user:a",
+                    new BlockingRequest(release, running, maxRunning, done), onRejected);
+        }
+        Thread.sleep(100);
+        // when
+        requestDispatcher.close();
+        // then
+        assertThat(done.await(10, SECONDS)).isTrue();
+        // give the interrupted requests time to hand off to the pending requests
+        Thread.sleep(100);
+        assertThat(rejected.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRejectAndNotLeakAfterClose() throws Exception {
+        // given
+        requestDispatcher.close();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        // when
+        for (int i = 0; i < 10; i++) {
+            requestDispatcher.dispatch("user:a",
+                    new BlockingRequest(release, running, maxRunning, done), onRejected);
+        }
+        // then
+        // all 10 are rejected by the executor (not by the in-flight limit of 5), which requires
+        // each rejection to be rolled back
+        assertThat(rejected.get()).isEqualTo(10);
+        assertThat(running.get()).isEqualTo(0);
+    }
+
+    private static class BlockingRequest implements Runnable {
+
+        private final CountDownLatch release;
+        private final AtomicInteger running;
+        private final AtomicInteger maxRunning;
+        private final CountDownLatch done;
+
+        private BlockingRequest(CountDownLatch release, AtomicInteger running,
+                AtomicInteger maxRunning, CountDownLatch done) {
+            this.release = release;
+            this.running = running;
+            this.maxRunning = maxRunning;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            int curr = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), curr));
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+                done.countDown();
+            }
+        }
+    }
+}
@@ -17,9 +17,12 @@ package org.glowroot.ui;
 
 import java.util.List;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -39,4 +42,68 @@ public class TraceCommonServiceTest {
                 + "\"childEntries\":[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\"}]"
                 + "}]");
     }
+
+    @Test
+    public void shouldTranscodeProfile() throws Exception {
+        // given
+        MutableProfile profile = new MutableProfile();
+        StackTraceElement a = new StackTraceElement("x.y.A", "a", "A.java", 1);
+        StackTraceElement b = new StackTraceElement("x.y.B", "b", "B.java", 2);
+        StackTraceElement c = new StackTraceElement("C", "c", "C.java", 3);
+        profile.merge(ImmutableList.of(b, a), Thread.State.RUNNABLE);
+        profile.merge(ImmutableList.of(c, a), Thread.State.WAITING);
+        profile.merge(ImmutableList.of(a), Thread.State.RUNNABLE);
+        profile.merge(ImmutableList.of(c), Thread.State.BLOCKED);
+        // when
+        String json = TraceCommonService.toJson(profile.toProto());
+        // then
+        assertThat(json).isEqualTo(profile.toJson());
+    }
+
+    @Test
+    public void shouldMergeDuplicateSiblingsWhenTranscodingProfile() throws Exception {
+        // given
+        Profile.ProfileNode a = Profile.ProfileNode.newBuilder()
+                .setDepth(0)
+                .setPackageNameIndex(0)
+                .setClassNameIndex(0)
+                .setMethodNameIndex(0)
+                .setFileNameIndex(0)
+                .setLineNumber(1)
+                .setSampleCount(2)
+                .build();
+        Profile.ProfileNode b = Profile.ProfileNode.newBuilder()
+                .setDepth(1)
+                .setPackageNameIndex(0)
+                .setClassNameIndex(1)
+                .setMethodNameIndex(1)
+                .setFileNameIndex(1)
+                .setLineNumber(2)
+                .setLeafThreadState(Profile.LeafThreadState.RUNNABLE)
+                .setSampleCount(2)
+                .build();
+        Profile profile = Profile.newBuilder()
+                .addPackageName("x.y")
+                .addClassName("A")
+                .addClassName("B")
+                .addMethodName("a")
+                .addMethodName("b")
+                .addFileName("A.java")
+                .addFileName("B.java")
+                .addNode(a)
+                .addNode(b)
+                .addNode(a)
+                .addNode(b)
+                .build();
+        MutableProfile mergedProfile = new MutableProfile();
+        StackTraceElement ae = new StackTraceElement("x.y.A", "a", "A.java", 1);
+        StackTraceElement be = new StackTraceElement("x.y.B", "b", "B.java", 2);
+        for (int i = 0; i < 4; i++) {
+            mergedProfile.merge(ImmutableList.of(be, ae), Thread.State.RUNNABLE);
+        }
+        // when
+        String json = TraceCommonService.toJson(profile);
+        // then
+        assertThat(json).isEqualTo(mergedProfile.toJson());
+    }
 }